@@ -0,0 +1,65 @@
+package com.kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keys, values and scratch directories shared by the benchmarks. Keys are fixed-width so that key order
+ * matches numeric order, which lets range benchmarks pick ranges of a known length.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    private static final String PADDING = "0000000000";
+
+    /**
+     * Formats key i cheaply; String.format would cost more than most of the operations measured.
+     */
+    static String key(long i) {
+        String digits = Long.toString(i);
+        return "key" + PADDING.substring(Math.min(digits.length(), PADDING.length())) + digits;
+    }
+
+    static String randomKey(int datasetSize) {
+        return key(ThreadLocalRandom.current().nextInt(datasetSize));
+    }
+
+    /**
+     * A key that sorts between two dataset keys, so it is never present but falls inside the key range.
+     */
+    static String randomMissingKey(int datasetSize) {
+        return randomKey(datasetSize) + "~";
+    }
+
+    static String value(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'v');
+        return new String(chars);
+    }
+
+    static File newDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("kvstore-bench-" + prefix).toFile();
+    }
+
+    static void deleteDirectory(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory.toPath())) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());  // Children first
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
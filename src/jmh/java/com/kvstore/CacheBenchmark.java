@@ -0,0 +1,59 @@
+package com.kvstore;
+
+import kvstore.LRUCache;
+import kvstore.TinyLfuCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hit and miss paths of the read caches. LRUCache is not thread-safe, so every benchmark thread gets
+ * caches of its own; the shared TinyLfuCache contention is measured by {@code KeyValueStoreBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    @Param({"10000", "100000"})
+    int datasetSize;
+
+    @Param({"16", "256"})
+    int valueSize;
+
+    private LRUCache<String, String> lruCache;
+    private TinyLfuCache<String, String> tinyLfuCache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String value = BenchmarkData.value(valueSize);
+        lruCache = new LRUCache<>(datasetSize);
+        tinyLfuCache = new TinyLfuCache<>(Long.MAX_VALUE, (key, cached) -> 1);
+        for (int i = 0; i < datasetSize; i++) {
+            lruCache.put(BenchmarkData.key(i), value);
+            tinyLfuCache.put(BenchmarkData.key(i), value);
+        }
+    }
+
+    @Benchmark
+    public String lruHit() {
+        return lruCache.get(BenchmarkData.randomKey(datasetSize));
+    }
+
+    @Benchmark
+    public String lruMiss() {
+        return lruCache.get(BenchmarkData.randomMissingKey(datasetSize));
+    }
+
+    @Benchmark
+    public String tinyLfuHit() {
+        return tinyLfuCache.get(BenchmarkData.randomKey(datasetSize));
+    }
+
+    @Benchmark
+    public String tinyLfuMiss() {
+        return tinyLfuCache.get(BenchmarkData.randomMissingKey(datasetSize));
+    }
+}
@@ -0,0 +1,71 @@
+package com.kvstore;
+
+import kvstore.KeyValueStore;
+import kvstore.StoreConfig;
+import kvstore.WriteBatch;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads through the whole store: range reads merging the memTables and SSTables, and point reads served
+ * by the shared cache or falling through to the tree. Run with {@code -t} for concurrent readers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyValueStoreBenchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"100000"})
+    int datasetSize;
+
+    @Param({"64"})
+    int valueSize;
+
+    @Param({"10", "1000"})
+    int rangeLength;
+
+    private File directory;
+    private KeyValueStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.newDirectory("store");
+        store = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        String value = BenchmarkData.value(valueSize);
+        for (int start = 0; start < datasetSize; start += BATCH_SIZE) {
+            WriteBatch batch = new WriteBatch();
+            for (int i = start; i < Math.min(datasetSize, start + BATCH_SIZE); i++) {
+                batch.put(BenchmarkData.key(i), value);
+            }
+            store.write(batch);
+        }
+        store.getLSMTree().flushMemTable();
+        store.getLSMTree().awaitCompactions();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public List<String[]> readKeyRange() throws IOException {
+        int start = ThreadLocalRandom.current().nextInt(Math.max(1, datasetSize - rangeLength));
+        return store.readKeyRange(BenchmarkData.key(start), BenchmarkData.key(start + rangeLength - 1));
+    }
+
+    @Benchmark
+    public String get() {
+        return store.get(BenchmarkData.randomKey(datasetSize));
+    }
+}
@@ -0,0 +1,78 @@
+package com.kvstore;
+
+import kvstore.LSMTree;
+import kvstore.MemTableType;
+import kvstore.StoreConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Point writes and reads of the storage engine without the write ahead log or the cache in front of it.
+ * Reads hit a tree whose data is spread over the memTables and several levels of SSTables.
+ * Run with {@code -t} to measure concurrent writers and readers, and with {@code -prof gc} to compare the
+ * allocation rate of the memTable types.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LSMTreeBenchmark {
+    @Param({"100000"})
+    int datasetSize;
+
+    @Param({"16", "256"})
+    int valueSize;
+
+    @Param({"SKIP_LIST", "ARENA"})
+    MemTableType memTableType;
+
+    private File directory;
+    private LSMTree tree;
+    private String value;
+    private final AtomicLong nextKey = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.newDirectory("lsm");
+        tree = new LSMTree(new StoreConfig().setDataDirectory(directory).setMemTableType(memTableType));
+        value = BenchmarkData.value(valueSize);
+        for (int i = 0; i < datasetSize; i++) {
+            tree.put(BenchmarkData.key(i), value);
+        }
+        tree.flushMemTable();
+        tree.awaitCompactions();
+        nextKey.set(datasetSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.close();
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void putNewKey() throws IOException {
+        tree.put(BenchmarkData.key(nextKey.getAndIncrement()), value);
+    }
+
+    @Benchmark
+    public void overwriteExistingKey() throws IOException {
+        tree.put(BenchmarkData.randomKey(datasetSize), value);
+    }
+
+    @Benchmark
+    public String getExistingKey() throws IOException {
+        return tree.get(BenchmarkData.randomKey(datasetSize));
+    }
+
+    @Benchmark
+    public String getMissingKey() throws IOException {
+        return tree.get(BenchmarkData.randomMissingKey(datasetSize));
+    }
+}
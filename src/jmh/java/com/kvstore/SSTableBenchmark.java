@@ -0,0 +1,79 @@
+package com.kvstore;
+
+import kvstore.BlockCodec;
+import kvstore.Entry;
+import kvstore.SSTable;
+import kvstore.SSTableWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads from a single memory-mapped SSTable: point lookups through the bloom filter and block index,
+ * and range scans decoding consecutive records, with blocks stored as they are or compressed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SSTableBenchmark {
+    @Param({"100000", "1000000"})
+    int datasetSize;
+
+    @Param({"16", "256"})
+    int valueSize;
+
+    @Param({"100"})
+    int rangeLength;
+
+    @Param({"none", "lz4"})
+    String codec;
+
+    private File directory;
+    private SSTable table;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.newDirectory("sstable");
+        String value = BenchmarkData.value(valueSize);
+        try (SSTableWriter writer = new SSTableWriter(new File(directory, "000001.sstable"), 10,
+                BlockCodec.forName(codec))) {
+            for (int i = 0; i < datasetSize; i++) {
+                writer.add(BenchmarkData.key(i), i + 1, value);
+            }
+            table = writer.finish();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Entry pointReadHit() {
+        return table.find(BenchmarkData.randomKey(datasetSize));
+    }
+
+    @Benchmark
+    public Entry pointReadMiss() {
+        String key = BenchmarkData.randomMissingKey(datasetSize);
+        return table.mightContain(key) ? table.find(key) : null;
+    }
+
+    @Benchmark
+    public void rangeScan(Blackhole blackhole) {
+        int start = ThreadLocalRandom.current().nextInt(Math.max(1, datasetSize - rangeLength));
+        Iterator<Entry> it = table.iterator(BenchmarkData.key(start), BenchmarkData.key(start + rangeLength - 1));
+        while (it.hasNext()) {
+            blackhole.consume(it.next());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kvstore;
+
+import kvstore.FsyncPolicy;
+import kvstore.StoreConfig;
+import kvstore.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of logging a record while other threads log concurrently, i.e. of group commit. Runs with 8
+ * threads by default; compare with {@code -t 1} to see what batching saves under each fsync policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+    @Param({"EVERY_BATCH", "OS_MANAGED"})
+    FsyncPolicy fsyncPolicy;
+
+    @Param({"64", "1024"})
+    int recordSize;
+
+    private File directory;
+    private WriteAheadLog wal;
+    private String record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.newDirectory("wal");
+        wal = new WriteAheadLog(new StoreConfig().setDataDirectory(directory).setWalFsyncPolicy(fsyncPolicy));
+        record = BenchmarkData.value(recordSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        wal.close();
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void logOperation() throws IOException {
+        wal.logOperation(record);
+    }
+}
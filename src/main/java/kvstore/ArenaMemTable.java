@@ -0,0 +1,375 @@
+package kvstore;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ArenaMemTable keeps its versions off the heap: every version is a node of a skip list, allocated with
+ * its key and value from direct-buffer slabs of {@link #SLAB_SIZE} bytes. A write allocates nothing the
+ * garbage collector has to trace, and the heap footprint of a full memTable is a handful of slab objects.
+ *
+ * <pre>
+ * node : height:int keyLength:int sequence:long valueLength:int pad:int expiresAt:long next:long[height] key:bytes value:bytes
+ * </pre>
+ *
+ * Nodes are 8-byte aligned and addressed by a long, slab number and offset, so a next pointer can be
+ * published with release semantics and followed with acquire semantics: the single writer links a node
+ * bottom-up after filling it in, and readers walk the list without locks, as in LevelDB's arena skip
+ * list. Under {@link KeyComparator#BYTEWISE} keys are compared in place, without copying them out of the
+ * slab; any other comparator gets a copy of the node's key.
+ *
+ * The slabs are freed together, without waiting for a garbage collection, once the memTable is released
+ * and the last reader that picked it up is done: a lookup holds it for its duration, an iterator until it
+ * is exhausted or closed. A reader that comes too late finds the memTable empty, which is safe because the
+ * tree releases a memTable only after its versions are in an installed SSTable, and readers look at the
+ * memTables before they pick up the Version.
+ */
+public class ArenaMemTable implements MemTable {
+    public static final int SLAB_SIZE = 64 * 1024;
+    private static final int MAX_HEIGHT = 12;
+    private static final int BRANCHING = 4;  // A node reaches the next level with probability 1/4
+    private static final long HEAD = 0;      // The head node is the first allocation; no node points to it
+
+    private static final int HEIGHT = 0;
+    private static final int KEY_LENGTH = 4;
+    private static final int SEQUENCE = 8;
+    private static final int VALUE_LENGTH = 16;
+    private static final int EXPIRES_AT = 24;
+    private static final int NEXT = 32;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final MethodHandle INVOKE_CLEANER = findCleaner();
+
+    private final KeyComparator comparator;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];  // 8-byte aligned views, by slab number
+    private final List<ByteBuffer> allocations = new ArrayList<>();  // The buffers to free
+    private int slabPosition;  // Next free byte of the last slab; only the writer allocates
+    private volatile int height = 1;  // Highest level in use
+    private final long[] splice = new long[MAX_HEIGHT];  // The writer's insertion point on every level
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong approximateBytes = new AtomicLong();
+    private final AtomicLong arenaBytes = new AtomicLong();
+    private final AtomicInteger references = new AtomicInteger(1);  // The tree's, plus one per reader
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public ArenaMemTable() {
+        this(KeyComparator.BYTEWISE);
+    }
+
+    public ArenaMemTable(KeyComparator comparator) {
+        this.comparator = comparator;
+        allocate(NEXT + 8 * MAX_HEIGHT);  // The head, whose next pointers start out null (0)
+        slabs[0].putInt(HEIGHT, MAX_HEIGHT);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long sequence, long expiresAt) {
+        int nodeHeight = randomHeight();
+        findGreaterOrEqual(key, sequence, splice);
+        int currentHeight = height;
+        for (int level = currentHeight; level < nodeHeight; level++) {
+            splice[level] = HEAD;
+        }
+
+        int keyStart = NEXT + 8 * nodeHeight;
+        long node = allocate(keyStart + key.length + (value == null ? 0 : value.length));
+        ByteBuffer slab = slab(node);
+        int offset = (int) node;
+        slab.putInt(offset + HEIGHT, nodeHeight);
+        slab.putInt(offset + KEY_LENGTH, key.length);
+        slab.putLong(offset + SEQUENCE, sequence);
+        slab.putInt(offset + VALUE_LENGTH, value == null ? SSTable.TOMBSTONE : value.length);
+        slab.putLong(offset + EXPIRES_AT, expiresAt);
+        slab.put(offset + keyStart, key);
+        if (value != null) {
+            slab.put(offset + keyStart + key.length, value);
+        }
+
+        // Bottom-up, so a reader that finds the node on a level also finds it on the levels below
+        for (int level = 0; level < nodeHeight; level++) {
+            LONGS.set(slab, offset + NEXT + 8 * level, next(splice[level], level));
+            LONGS.setRelease(slab(splice[level]), (int) splice[level] + NEXT + 8 * level, node);
+        }
+        if (nodeHeight > currentHeight) {
+            height = nodeHeight;
+        }
+        size.incrementAndGet();
+        approximateBytes.addAndGet(key.length + (value == null ? 0 : value.length) + 8);
+    }
+
+    @Override
+    public Entry get(byte[] key, long sequence) {
+        if (!pin()) {
+            return null;
+        }
+        try {
+            long node = findGreaterOrEqual(key, sequence, null);
+            return node != HEAD && compareKey(node, key) == 0 ? entryAt(node) : null;
+        } finally {
+            unpin();
+        }
+    }
+
+    @Override
+    public KeyComparator comparator() {
+        return comparator;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public long getApproximateBytes() {
+        return approximateBytes.get();
+    }
+
+    /**
+     * Off-heap bytes allocated for the slabs, whether used yet or not.
+     */
+    public long getArenaBytes() {
+        return arenaBytes.get();
+    }
+
+    /**
+     * Whether the slabs have been freed.
+     */
+    public boolean isFreed() {
+        return references.get() == 0;
+    }
+
+    @Override
+    public ScanIterator iterator(byte[] startKey, byte[] endKey) {
+        if (!pin()) {
+            return ScanIterator.empty();
+        }
+        long first = startKey == null ? next(HEAD, 0) : findGreaterOrEqual(startKey, Long.MAX_VALUE, null);
+        return new NodeIterator(first, endKey);
+    }
+
+    @Override
+    public ScanIterator iterator() {
+        if (!pin()) {
+            return ScanIterator.empty();
+        }
+        return new NodeIterator(next(HEAD, 0), null);
+    }
+
+    @Override
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            unpin();
+        }
+    }
+
+    /**
+     * Returns the first node at or after the key and sequence in internal order, or HEAD if there is none.
+     * If prev is given, it receives the last node before that position on every level.
+     */
+    private long findGreaterOrEqual(byte[] key, long sequence, long[] prev) {
+        long node = HEAD;
+        for (int level = height - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != HEAD && compare(next, key, sequence) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (prev != null) {
+                prev[level] = node;
+            }
+        }
+        return next(node, 0);
+    }
+
+    private long next(long node, int level) {
+        return (long) LONGS.getAcquire(slab(node), (int) node + NEXT + 8 * level);
+    }
+
+    // Compares a node with a key and sequence in internal order: by key, then newest first
+    private int compare(long node, byte[] key, long sequence) {
+        int cmp = compareKey(node, key);
+        return cmp != 0 ? cmp : Long.compare(sequence, slab(node).getLong((int) node + SEQUENCE));
+    }
+
+    private int compareKey(long node, byte[] key) {
+        ByteBuffer slab = slab(node);
+        int offset = (int) node;
+        int length = slab.getInt(offset + KEY_LENGTH);
+        int keyStart = offset + NEXT + 8 * slab.getInt(offset + HEIGHT);
+        if (comparator != KeyComparator.BYTEWISE) {
+            byte[] nodeKey = new byte[length];
+            slab.get(keyStart, nodeKey);
+            return comparator.compare(nodeKey, key);
+        }
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            byte b = slab.get(keyStart + i);
+            if (b != key[i]) {
+                return (b & 0xFF) - (key[i] & 0xFF);
+            }
+        }
+        return length - key.length;
+    }
+
+    private Entry entryAt(long node) {
+        ByteBuffer slab = slab(node);
+        int offset = (int) node;
+        int keyLength = slab.getInt(offset + KEY_LENGTH);
+        int keyStart = offset + NEXT + 8 * slab.getInt(offset + HEIGHT);
+        byte[] key = new byte[keyLength];
+        slab.get(keyStart, key);
+        int valueLength = slab.getInt(offset + VALUE_LENGTH);
+        byte[] value = null;
+        if (valueLength != SSTable.TOMBSTONE) {
+            value = new byte[valueLength];
+            slab.get(keyStart + keyLength, value);
+        }
+        return new Entry(key, value, slab.getLong(offset + SEQUENCE), slab.getLong(offset + EXPIRES_AT));
+    }
+
+    private ByteBuffer slab(long node) {
+        return slabs[(int) (node >>> 32)];
+    }
+
+    /**
+     * Reserves 8-byte aligned space for a node and returns its address. Nodes larger than a slab get a
+     * slab of their own.
+     */
+    private long allocate(int bytes) {
+        int size = (bytes + 7) & ~7;
+        ByteBuffer[] current = slabs;
+        if (current.length == 0 || slabPosition + size > current[current.length - 1].capacity()) {
+            int capacity = Math.max(SLAB_SIZE, size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + 7);
+            allocations.add(buffer);
+            arenaBytes.addAndGet(buffer.capacity());
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = buffer.alignedSlice(8).order(ByteOrder.nativeOrder());
+            slabs = current;  // Published before any node in the slab is linked
+            slabPosition = 0;
+        }
+        long address = (long) (current.length - 1) << 32 | slabPosition;
+        slabPosition += size;
+        return address;
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(BRANCHING) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    // Takes a reference for a reader, unless the slabs are already freed
+    private boolean pin() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void unpin() {
+        if (references.decrementAndGet() == 0) {
+            free();
+        }
+    }
+
+    private void free() {
+        slabs = new ByteBuffer[0];
+        if (INVOKE_CLEANER != null) {
+            for (ByteBuffer buffer : allocations) {
+                try {
+                    INVOKE_CLEANER.invokeExact(buffer);
+                } catch (Throwable e) {
+                    System.err.println("ERROR: Cannot free memTable slab: " + e.getMessage());
+                }
+            }
+        }
+        allocations.clear();
+    }
+
+    /**
+     * Returns {@code Unsafe.invokeCleaner}, which frees a direct buffer's memory at once, or null if the
+     * JDK does not offer it; the slabs are then freed when the garbage collector finds them unreachable.
+     */
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+            return invokeCleaner.bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Walks level 0 from a node up to an end key, holding a reference until it runs out or is closed.
+     */
+    private class NodeIterator implements ScanIterator {
+        private final byte[] endKey;  // Null for no bound
+        private long node;
+        private boolean holding = true;
+
+        NodeIterator(long node, byte[] endKey) {
+            this.node = node;
+            this.endKey = endKey;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (holding && node != HEAD && (endKey == null || compareKey(node, endKey) <= 0)) {
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (holding) {
+                holding = false;
+                node = HEAD;
+                unpin();
+            }
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = entryAt(node);
+            node = ArenaMemTable.this.next(node, 0);
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BlockCache holds decompressed SSTable data blocks, shared by all tables of a tree, so hot blocks are
+ * decompressed once rather than on every read. Blocks are keyed by (file id, block offset), where the file
+ * id is unique to a table while it is open. The cache is split into {@link #SHARD_COUNT} shards, each an
+ * LRU list under its own lock, so concurrent readers rarely contend.
+ *
+ * The capacity is a fixed budget in bytes. Index and filter data is pinned against it: it stays decoded for
+ * as long as a table is open and is never evicted, and data blocks share what is left. Blocks are kept on
+ * the heap, or in direct buffers outside it. An evicted block may still be in use by an iterator, so its
+ * memory is never reused in place: off-heap blocks are freed once the garbage collector finds them
+ * unreferenced.
+ *
+ * Hits and misses are counted apart from the row cache, so memory can be split between the two by how
+ * well each one does.
+ */
+public final class BlockCache {
+    static final int SHARD_COUNT = 16;  // A power of two
+    private static final int SHARD_BITS = 4;
+    static final int ENTRY_OVERHEAD = 64;  // Map node, boxed key and buffer object of a cached block
+
+    private final long capacityBytes;
+    private final boolean offHeap;
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    private final AtomicLong pinnedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The blocks of one shard, least recently used first, guarded by the shard.
+     */
+    private static final class Shard {
+        final LinkedHashMap<Long, ByteBuffer> blocks = new LinkedHashMap<>(64, 0.75f, true);
+        long usedBytes;
+    }
+
+    public BlockCache(long capacityBytes, boolean offHeap) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("Block cache size must be greater than 0");
+        }
+        this.capacityBytes = capacityBytes;
+        this.offHeap = offHeap;
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Returns the cached block at the given offset of a file, or null on a miss.
+     */
+    public ByteBuffer get(long fileId, int offset) {
+        long key = key(fileId, offset);
+        Shard shard = shardFor(key);
+        ByteBuffer block;
+        synchronized (shard) {
+            block = shard.blocks.get(key);
+        }
+        if (block == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return block.duplicate();  // Readers share the block, not its position
+    }
+
+    /**
+     * Caches a decompressed block, evicting the least recently used blocks of its shard to make room, and
+     * returns it as readers should see it. A block larger than its shard's share of the budget is returned
+     * without being cached.
+     */
+    public ByteBuffer put(long fileId, int offset, byte[] block) {
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(block.length).put(block).flip() : ByteBuffer.wrap(block);
+        long key = key(fileId, offset);
+        long charge = charge(buffer);
+        long budget = Math.max(0, capacityBytes - pinnedBytes.get()) / SHARD_COUNT;
+        if (charge > budget) {
+            return buffer;
+        }
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            ByteBuffer previous = shard.blocks.put(key, buffer);
+            if (previous != null) {
+                shard.usedBytes -= charge(previous);  // Another reader decompressed the same block
+            }
+            shard.usedBytes += charge;
+            Iterator<ByteBuffer> eldest = shard.blocks.values().iterator();
+            while (shard.usedBytes > budget) {
+                ByteBuffer evicted = eldest.next();
+                eldest.remove();
+                shard.usedBytes -= charge(evicted);
+                evictions.increment();
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Drops every block of a file, e.g. once its table has left the tree.
+     */
+    public void invalidateFile(long fileId) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<Map.Entry<Long, ByteBuffer>> it = shard.blocks.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, ByteBuffer> entry = it.next();
+                    if (entry.getKey() >>> 32 == fileId) {
+                        shard.usedBytes -= charge(entry.getValue());
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Charges bytes that stay in memory regardless of the cache, i.e. a table's index and filter, against
+     * the budget. Data blocks are evicted around them as the shards next fill up.
+     */
+    void pin(long bytes) {
+        pinnedBytes.addAndGet(bytes);
+    }
+
+    void unpin(long bytes) {
+        pinnedBytes.addAndGet(-bytes);
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Bytes charged for the cached data blocks, overhead included.
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                used += shard.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Bytes of index and filter data pinned against the budget.
+     */
+    public long getPinnedBytes() {
+        return pinnedBytes.get();
+    }
+
+    public int getBlockCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.blocks.size();
+            }
+        }
+        return count;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Share of the lookups served from the cache, or 0 before the first one.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    private Shard shardFor(long key) {
+        return shards[(int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - SHARD_BITS))];
+    }
+
+    private static long key(long fileId, int offset) {
+        return fileId << 32 | (offset & 0xFFFFFFFFL);
+    }
+
+    private static long charge(ByteBuffer block) {
+        return block.capacity() + ENTRY_OVERHEAD;
+    }
+}
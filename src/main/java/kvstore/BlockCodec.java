@@ -0,0 +1,108 @@
+package kvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BlockCodec compresses the data blocks of an SSTable. The codec a table was written with is recorded in
+ * its footer by {@link #id()}, so tables written with different codecs can live side by side; a table is
+ * read with the codec {@link #forId(int)} returns for it. Blocks are compressed and decompressed one at a
+ * time, and a block that does not shrink enough is stored as is (see {@link SSTableWriter}).
+ * Implementations must be thread-safe.
+ */
+public interface BlockCodec {
+    /**
+     * Stores blocks as they are.
+     */
+    BlockCodec NONE = new BlockCodec() {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return length;
+        }
+
+        @Override
+        public int compress(byte[] src, int length, byte[] dst) {
+            System.arraycopy(src, 0, dst, 0, length);
+            return length;
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, int offset, int length, byte[] dst, int dstLength) throws IOException {
+            if (length != dstLength) {
+                throw new IOException("Uncompressed block of " + length + " bytes, expected " + dstLength);
+            }
+            src.get(offset, dst, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return name();
+        }
+    };
+
+    /**
+     * The LZ4 block format, see {@link Lz4BlockCodec}.
+     */
+    BlockCodec LZ4 = new Lz4BlockCodec();
+
+    /**
+     * Identifies the codec in the footer of the tables written with it.
+     */
+    int id();
+
+    /**
+     * Name used in configuration and statistics.
+     */
+    String name();
+
+    /**
+     * Size of a buffer that can hold the compressed form of any input of the given length.
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses the first length bytes of src into dst, which holds at least
+     * {@link #maxCompressedLength(int)} bytes, and returns the compressed length.
+     */
+    int compress(byte[] src, int length, byte[] dst);
+
+    /**
+     * Decompresses length bytes of src starting at offset into the first dstLength bytes of dst, failing
+     * if they do not decompress to exactly dstLength bytes. Does not move the position of src.
+     */
+    void decompress(ByteBuffer src, int offset, int length, byte[] dst, int dstLength) throws IOException;
+
+    /**
+     * Returns the codec with the given id, e.g. the one recorded in a table's footer.
+     */
+    static BlockCodec forId(int id) throws IOException {
+        if (id == NONE.id()) {
+            return NONE;
+        } else if (id == LZ4.id()) {
+            return LZ4;
+        }
+        throw new IOException("Unknown block codec " + id);
+    }
+
+    /**
+     * Returns the codec with the given name, e.g. from a configuration file.
+     */
+    static BlockCodec forName(String name) {
+        for (BlockCodec codec : new BlockCodec[]{NONE, LZ4}) {
+            if (codec.name().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown block codec " + name);
+    }
+}
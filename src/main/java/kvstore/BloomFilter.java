@@ -0,0 +1,131 @@
+package kvstore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * BloomFilter is a compact probabilistic set used to skip SSTables that cannot contain a key.
+ * A negative answer is always correct; a positive answer is wrong with a probability that
+ * depends on the number of bits per key (about 1% at 10 bits per key).
+ */
+public class BloomFilter {
+    private static final int MAGIC = 0x424C4F4D; // "BLOM"
+
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = (long) bits.length * 64;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Builds a filter sized for the given key hashes (see {@link #hash(byte[])}).
+     */
+    public static BloomFilter build(long[] keyHashes, int count, int bitsPerKey) {
+        long wanted = Math.max(64L, (long) count * bitsPerKey);
+        long[] bits = new long[(int) ((wanted + 63) / 64)];
+        // The optimal number of probes is bitsPerKey * ln(2)
+        int numHashes = (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * 0.69)));
+        BloomFilter filter = new BloomFilter(bits, numHashes);
+        for (int i = 0; i < count; i++) {
+            filter.add(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * 64-bit hash of the key's UTF-8 bytes, the same as {@link #hash(byte[])} of them.
+     */
+    public static long hash(String key) {
+        return hash(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 64-bit hash of the key, used both when building and when probing the filter.
+     */
+    public static long hash(byte[] data) {
+        long h = 0xCBF29CE484222325L;  // FNV-1a, finished with a MurmurHash3 mixer
+        for (byte b : data) {
+            h ^= b;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public boolean mightContain(String key) {
+        return mightContain(hash(key));
+    }
+
+    public boolean mightContain(byte[] key) {
+        return mightContain(hash(key));
+    }
+
+    public boolean mightContain(long hash) {
+        // Double hashing: probe i is h1 + i * h2
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public long getSizeBytes() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * Persists the filter, writing to a temporary file first so a crash never leaves a partial filter.
+     */
+    public void writeTo(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numHashes);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static BloomFilter readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a bloom filter file: " + file);
+            }
+            int numHashes = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(bits, numHashes);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checkpoint is a consistent copy of an LSM tree's SSTables, made to catch up a replica that fell too far
+ * behind to replay the replication log. The table files (and their bloom filters) are hard links into a
+ * directory of their own, so compactions can delete the originals while the checkpoint is being sent.
+ *
+ * The checkpoint holds every write up to its sequence number in the primary's replication log; a replica
+ * that installs it continues with the records after that sequence.
+ */
+public final class Checkpoint {
+    private final File directory;
+    private final List<List<String>> levels;  // Table file names by level, level 0 newest first
+    private final long sequence;
+
+    public Checkpoint(File directory, List<List<String>> levels, long sequence) {
+        this.directory = directory;
+        this.levels = levels;
+        this.sequence = sequence;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<List<String>> getLevels() {
+        return levels;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Every file of the checkpoint, table files and bloom filters, by name.
+     */
+    public List<String> getFileNames() {
+        List<String> names = new ArrayList<>();
+        for (List<String> level : levels) {
+            for (String table : level) {
+                names.add(table);
+                File filter = SSTable.filterFileFor(new File(directory, table));
+                if (filter.exists()) {
+                    names.add(filter.getName());
+                }
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Links the checkpoint's files into target, a directory that is created for them, and returns the
+     * checkpoint there.
+     */
+    public Checkpoint copyTo(File target) throws IOException {
+        if (!target.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + target);
+        }
+        for (String name : getFileNames()) {
+            linkOrCopy(new File(directory, name), new File(target, name));
+        }
+        return new Checkpoint(target, levels, sequence);
+    }
+
+    // A hard link shares the file's blocks; a copy is only made where links are not supported
+    static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source.toPath(), target.toPath());
+        }
+    }
+
+    /**
+     * Removes the checkpoint's directory and the links in it; the tree's own files are not affected.
+     */
+    public void delete() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+}
@@ -0,0 +1,197 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compactor merges SSTables of an LSMTree down its levels to bound read amplification and reclaim space.
+ *
+ * Level 0 is compacted into level 1 once it holds {@link StoreConfig#getLevel0CompactionTrigger()} tables.
+ * A deeper level n is compacted once it grows past {@link StoreConfig#maxBytesForLevel(int)}: one of its
+ * tables (picked round-robin through the key space) is merged with the overlapping tables of level n + 1.
+ * Merging keeps the newest version of every key, plus the older versions open snapshots can still see
+ * ({@link ObsoleteVersionFilter}); tombstones are dropped when no deeper level can hold an older value
+ * they would have to shadow, and expired values are dropped the same way. Compactions run one at a time on the tree's
+ * background executor and never block readers: the result is installed as a new {@link Version}.
+ */
+class Compactor {
+    private final LSMTree tree;
+    private final StoreConfig config;
+    private final KeyComparator comparator;
+    private final byte[][] compactPointers;  // Per level: last key of the most recently compacted table
+
+    /**
+     * A compaction picked from a Version: the tables to merge and the level receiving the output.
+     */
+    static final class Job {
+        final int level;
+        final List<SSTable> upperInputs;  // Newest first for level 0, a single table otherwise
+        final List<SSTable> lowerInputs;  // Overlapping tables of the output level, in key order
+
+        Job(int level, List<SSTable> upperInputs, List<SSTable> lowerInputs) {
+            this.level = level;
+            this.upperInputs = upperInputs;
+            this.lowerInputs = lowerInputs;
+        }
+
+        int outputLevel() {
+            return level + 1;
+        }
+
+        List<SSTable> allInputs() {
+            List<SSTable> all = new ArrayList<>(upperInputs);
+            all.addAll(lowerInputs);
+            return all;
+        }
+    }
+
+    Compactor(LSMTree tree, StoreConfig config) {
+        this.tree = tree;
+        this.config = config;
+        this.comparator = config.getKeyComparator();
+        this.compactPointers = new byte[config.getNumLevels()][];
+    }
+
+    /**
+     * Returns the most urgent compaction for the given Version, or null if every level is within its limits.
+     */
+    Job pick(Version version) {
+        int bestLevel = -1;
+        double bestScore = 1.0;
+        // The last level has nowhere to compact into
+        for (int level = 0; level < version.numLevels() - 1; level++) {
+            double score = level == 0
+                    ? (double) version.level(0).size() / config.getLevel0CompactionTrigger()
+                    : (double) version.levelBytes(level) / config.maxBytesForLevel(level);
+            if (score >= bestScore) {
+                bestScore = score;
+                bestLevel = level;
+            }
+        }
+        if (bestLevel < 0) {
+            return null;
+        }
+
+        List<SSTable> upper;
+        if (bestLevel == 0) {
+            upper = new ArrayList<>(version.level(0));
+        } else {
+            upper = List.of(nextTableToCompact(version.level(bestLevel), compactPointers[bestLevel]));
+        }
+        byte[] smallest = smallestKey(upper);
+        byte[] largest = largestKey(upper);
+        return new Job(bestLevel, upper, version.overlapping(bestLevel + 1, smallest, largest));
+    }
+
+    /**
+     * Runs compactions until no level exceeds its limits. Errors are reported and leave the tree unchanged.
+     */
+    void compactUntilBalanced() {
+        try {
+            Job job;
+            while ((job = pick(tree.getVersion())) != null) {
+                run(job);
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Compaction failed: " + e.getMessage());
+        }
+    }
+
+    void run(Job job) throws IOException {
+        long start = System.nanoTime();
+        Version version = tree.getVersion();
+        List<SSTable> inputs = job.allInputs();
+        byte[] smallest = smallestKey(inputs);
+        byte[] largest = largestKey(inputs);
+
+        // Tombstones can only be dropped if no deeper level may still hold a value they shadow
+        boolean bottommost = true;
+        for (int level = job.outputLevel() + 1; level < version.numLevels(); level++) {
+            if (!version.overlapping(level, smallest, largest).isEmpty()) {
+                bottommost = false;
+                break;
+            }
+        }
+
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        for (SSTable table : inputs) {
+            sources.add(table.uncachedIterator());  // Upper inputs first, so newer data wins the merge
+        }
+        Iterator<Entry> merged = new ObsoleteVersionFilter(new MergingIterator(sources, true, comparator),
+                tree.smallestSnapshot(), bottommost, comparator, System.currentTimeMillis());
+
+        List<SSTable> outputs = new ArrayList<>();
+        SSTableWriter writer = null;
+        byte[] lastKey = null;
+        try {
+            while (merged.hasNext()) {
+                Entry entry = merged.next();
+                // Cut at the target size, but never between two versions of a key: tables of a level must not overlap
+                if (writer != null && writer.estimatedSize() >= config.getTargetFileSizeBytes()
+                        && comparator.compare(entry.getKeyBytes(), lastKey) != 0) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+                if (writer == null) {
+                    writer = new SSTableWriter(tree.newTableFile(), config.getBloomBitsPerKey(), config.getBlockCodec(),
+                            comparator);
+                }
+                writer.add(entry.getKeyBytes(), entry.getSequence(), entry.getValueBytes(), entry.getExpiresAt());
+                lastKey = entry.getKeyBytes();
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.close();
+            }
+            for (SSTable output : outputs) {
+                output.delete();
+            }
+            throw e;
+        }
+
+        tree.installCompaction(inputs, job.outputLevel(), outputs, start);
+        if (job.level > 0) {
+            compactPointers[job.level] = largestKey(job.upperInputs);
+        }
+        for (SSTable input : inputs) {
+            input.delete();
+        }
+    }
+
+    private SSTable nextTableToCompact(List<SSTable> tables, byte[] pointer) {
+        if (pointer != null) {
+            for (SSTable table : tables) {
+                if (comparator.compare(table.getFirstKeyBytes(), pointer) > 0) {
+                    return table;
+                }
+            }
+        }
+        return tables.get(0);  // Wrap around to the start of the key space
+    }
+
+    private byte[] smallestKey(List<SSTable> tables) {
+        byte[] smallest = null;
+        for (SSTable table : tables) {
+            if (smallest == null || comparator.compare(table.getFirstKeyBytes(), smallest) < 0) {
+                smallest = table.getFirstKeyBytes();
+            }
+        }
+        return smallest;
+    }
+
+    private byte[] largestKey(List<SSTable> tables) {
+        byte[] largest = null;
+        for (SSTable table : tables) {
+            if (largest == null || comparator.compare(table.getLastKeyBytes(), largest) > 0) {
+                largest = table.getLastKeyBytes();
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,25 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Directories makes changes to a directory's entries durable. Forcing a file only persists its contents;
+ * a file just created, renamed into place or deleted can still be lost in a crash until its directory is
+ * forced as well.
+ */
+final class Directories {
+    private Directories() {
+    }
+
+    /**
+     * Forces the entries of the directory, e.g. after creating or renaming a file in it.
+     */
+    static void sync(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
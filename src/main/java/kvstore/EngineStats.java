@@ -0,0 +1,223 @@
+package kvstore;
+
+/**
+ * EngineStats is a point-in-time copy of the work counters of an LSMTree since it was opened, with the
+ * amplification factors derived from them:
+ *
+ * <ul>
+ *   <li>write amplification: bytes written to the write ahead log and to SSTables (by flushes and
+ *       compactions) per byte of keys and values written by users;</li>
+ *   <li>read amplification: SSTables whose bloom filter was checked, and SSTables whose blocks were read,
+ *       per point lookup; SSTables merged per range scan;</li>
+ *   <li>compression: the ratio of the SSTable data blocks written by flushes and compactions, and the
+ *       time spent compressing them and decompressing blocks for reads;</li>
+ *   <li>block cache: the share of compressed block reads served from the {@link BlockCache} rather than
+ *       decompressed again.</li>
+ * </ul>
+ *
+ * Space amplification needs a pass over the data; see {@link LSMTree#computeTableStats()}.
+ */
+public final class EngineStats {
+    private final long userBytesWritten;
+    private final long walBytesWritten;
+    private final long flushCount;
+    private final long flushBytesWritten;
+    private final long flushNanos;
+    private final long compactionCount;
+    private final long compactionBytesRead;
+    private final long compactionBytesWritten;
+    private final long compactionNanos;
+    private final long gets;
+    private final long tablesCheckedByGets;
+    private final long tablesReadByGets;
+    private final long scans;
+    private final long tablesScanned;
+    private final long blockBytesRaw;
+    private final long blockBytesStored;
+    private final long compressNanos;
+    private final long blocksDecompressed;
+    private final long decompressNanos;
+    private final long blockCacheHits;
+    private final long blockCacheMisses;
+
+    EngineStats(long userBytesWritten, long walBytesWritten, long flushCount, long flushBytesWritten, long flushNanos,
+                long compactionCount, long compactionBytesRead, long compactionBytesWritten, long compactionNanos,
+                long gets, long tablesCheckedByGets, long tablesReadByGets, long scans, long tablesScanned,
+                long blockBytesRaw, long blockBytesStored, long compressNanos, long blocksDecompressed,
+                long decompressNanos, long blockCacheHits, long blockCacheMisses) {
+        this.userBytesWritten = userBytesWritten;
+        this.walBytesWritten = walBytesWritten;
+        this.flushCount = flushCount;
+        this.flushBytesWritten = flushBytesWritten;
+        this.flushNanos = flushNanos;
+        this.compactionCount = compactionCount;
+        this.compactionBytesRead = compactionBytesRead;
+        this.compactionBytesWritten = compactionBytesWritten;
+        this.compactionNanos = compactionNanos;
+        this.gets = gets;
+        this.tablesCheckedByGets = tablesCheckedByGets;
+        this.tablesReadByGets = tablesReadByGets;
+        this.scans = scans;
+        this.tablesScanned = tablesScanned;
+        this.blockBytesRaw = blockBytesRaw;
+        this.blockBytesStored = blockBytesStored;
+        this.compressNanos = compressNanos;
+        this.blocksDecompressed = blocksDecompressed;
+        this.decompressNanos = decompressNanos;
+        this.blockCacheHits = blockCacheHits;
+        this.blockCacheMisses = blockCacheMisses;
+    }
+
+    /**
+     * The same counters, with the bytes written to the write ahead log that fronts the tree.
+     */
+    public EngineStats withWalBytesWritten(long walBytesWritten) {
+        return new EngineStats(userBytesWritten, walBytesWritten, flushCount, flushBytesWritten, flushNanos,
+                compactionCount, compactionBytesRead, compactionBytesWritten, compactionNanos,
+                gets, tablesCheckedByGets, tablesReadByGets, scans, tablesScanned, blockBytesRaw, blockBytesStored,
+                compressNanos, blocksDecompressed, decompressNanos, blockCacheHits, blockCacheMisses);
+    }
+
+    /**
+     * UTF-8 bytes of the keys and values users wrote, tombstones counting their key only.
+     */
+    public long getUserBytesWritten() {
+        return userBytesWritten;
+    }
+
+    public long getWalBytesWritten() {
+        return walBytesWritten;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getFlushBytesWritten() {
+        return flushBytesWritten;
+    }
+
+    /**
+     * Total time spent writing memTables to SSTables.
+     */
+    public long getFlushNanos() {
+        return flushNanos;
+    }
+
+    public long getCompactionCount() {
+        return compactionCount;
+    }
+
+    public long getCompactionBytesRead() {
+        return compactionBytesRead;
+    }
+
+    public long getCompactionBytesWritten() {
+        return compactionBytesWritten;
+    }
+
+    /**
+     * Total time spent merging tables, from picking the inputs to installing the outputs.
+     */
+    public long getCompactionNanos() {
+        return compactionNanos;
+    }
+
+    public long getGets() {
+        return gets;
+    }
+
+    public long getTablesCheckedByGets() {
+        return tablesCheckedByGets;
+    }
+
+    public long getTablesReadByGets() {
+        return tablesReadByGets;
+    }
+
+    public long getScans() {
+        return scans;
+    }
+
+    public long getTablesScanned() {
+        return tablesScanned;
+    }
+
+    /**
+     * Bytes of data blocks written by flushes and compactions, before compression.
+     */
+    public long getBlockBytesRaw() {
+        return blockBytesRaw;
+    }
+
+    /**
+     * Bytes of the same data blocks as stored, compressed or not.
+     */
+    public long getBlockBytesStored() {
+        return blockBytesStored;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos;
+    }
+
+    public long getBlocksDecompressed() {
+        return blocksDecompressed;
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos;
+    }
+
+    public long getBlockCacheHits() {
+        return blockCacheHits;
+    }
+
+    public long getBlockCacheMisses() {
+        return blockCacheMisses;
+    }
+
+    /**
+     * Share of the compressed block reads the block cache served, or 0 before the first one.
+     */
+    public double getBlockCacheHitRatio() {
+        return ratio(blockCacheHits, blockCacheHits + blockCacheMisses);
+    }
+
+    /**
+     * Raw bytes per stored byte of the data blocks written, e.g. 3 if they shrank to a third; 0 before
+     * anything was written.
+     */
+    public double getCompressionRatio() {
+        return ratio(blockBytesRaw, blockBytesStored);
+    }
+
+    /**
+     * Bytes written to storage per user byte, or 0 before anything was written.
+     */
+    public double getWriteAmplification() {
+        return ratio(walBytesWritten + flushBytesWritten + compactionBytesWritten, userBytesWritten);
+    }
+
+    /**
+     * SSTables consulted per point lookup, whether the bloom filter let the lookup through or not.
+     */
+    public double getTablesCheckedPerGet() {
+        return ratio(tablesCheckedByGets, gets);
+    }
+
+    /**
+     * SSTables whose blocks were read per point lookup, i.e. lookups the bloom filters did not save.
+     */
+    public double getTablesReadPerGet() {
+        return ratio(tablesReadByGets, gets);
+    }
+
+    public double getTablesPerScan() {
+        return ratio(tablesScanned, scans);
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return denominator == 0 ? 0 : (double) numerator / denominator;
+    }
+}
@@ -0,0 +1,139 @@
+package kvstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+/**
+ * A single key/value record as held by the memTable or stored in an SSTable.
+ * A null value marks the key as deleted (tombstone), so callers can tell a deleted key
+ * apart from a key that is simply not present in a table.
+ *
+ * Keys and values are bytes, kept as given from the client to the disk and back. The String constructors
+ * and getters are a convenience for text, encoded as UTF-8. The arrays are shared, not copied: they must
+ * not be modified once handed to an entry.
+ *
+ * Every write stored by an LSMTree is stamped with a sequence number, so several versions of a key can
+ * coexist and a {@link Snapshot} sees only the ones written before it. Entries that were not written
+ * through a tree yet (e.g. the operations of a {@link WriteBatch}) have sequence 0.
+ *
+ * A value may expire: once the clock reaches its expiry time, in milliseconds since the epoch, reads treat
+ * the entry like a tombstone, and flushes and compactions write it out as one. An expiry of 0 means never.
+ */
+public final class Entry {
+    /**
+     * Orders entries by key bytes ({@link KeyComparator#BYTEWISE}), and the versions of a key newest first.
+     */
+    public static final Comparator<Entry> INTERNAL_ORDER = internalOrder(KeyComparator.BYTEWISE);
+
+    private final byte[] key;
+    private final byte[] value;
+    private final long sequence;
+    private final long expiresAt;
+
+    public Entry(String key, String value) {
+        this(key, value, 0);
+    }
+
+    public Entry(String key, String value, long sequence) {
+        this(utf8(key), utf8(value), sequence);
+    }
+
+    public Entry(byte[] key, byte[] value) {
+        this(key, value, 0);
+    }
+
+    public Entry(byte[] key, byte[] value, long sequence) {
+        this(key, value, sequence, 0);
+    }
+
+    public Entry(byte[] key, byte[] value, long sequence, long expiresAt) {
+        this.key = key;
+        this.value = value;
+        this.sequence = sequence;
+        this.expiresAt = value == null ? 0 : expiresAt;
+    }
+
+    /**
+     * Orders entries by key with the given comparator, and the versions of a key newest first.
+     */
+    public static Comparator<Entry> internalOrder(KeyComparator comparator) {
+        return (a, b) -> {
+            int cmp = comparator.compare(a.key, b.key);
+            return cmp != 0 ? cmp : Long.compare(b.sequence, a.sequence);
+        };
+    }
+
+    /**
+     * The key decoded as UTF-8.
+     */
+    public String getKey() {
+        return fromUtf8(key);
+    }
+
+    /**
+     * The value decoded as UTF-8, or null for a tombstone.
+     */
+    public String getValue() {
+        return fromUtf8(value);
+    }
+
+    public byte[] getKeyBytes() {
+        return key;
+    }
+
+    /**
+     * The value, or null for a tombstone.
+     */
+    public byte[] getValueBytes() {
+        return value;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isTombstone() {
+        return value == null;
+    }
+
+    /**
+     * When the value expires, in milliseconds since the epoch, or 0 if it never does.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Whether the value has expired by the given time, in milliseconds since the epoch.
+     */
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    /**
+     * Whether the entry holds a value that has not expired by the given time.
+     */
+    public boolean isLive(long now) {
+        return value != null && !isExpired(now);
+    }
+
+    @Override
+    public String toString() {
+        return getKey() + "=" + (value == null ? "<deleted>" : getValue()) + (sequence == 0 ? "" : "@" + sequence)
+                + (expiresAt == 0 ? "" : " expires " + expiresAt);
+    }
+
+    /**
+     * The UTF-8 bytes of a string, or null for null.
+     */
+    static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The string the UTF-8 bytes encode, or null for null.
+     */
+    static String fromUtf8(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
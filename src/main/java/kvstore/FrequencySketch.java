@@ -0,0 +1,111 @@
+package kvstore;
+
+/**
+ * FrequencySketch estimates how often keys were accessed recently, in a fixed amount of memory.
+ * It is a count-min sketch of 4-bit counters: every key maps to four counters in a row of 16 packed
+ * into one long, and its frequency is the smallest of them, so collisions can only overestimate.
+ * Once the number of increments reaches ten times the capacity, all counters are halved; this ages out
+ * keys that used to be popular and keeps the estimates about recent history.
+ *
+ * Not thread-safe; {@link TinyLfuCache} only uses it while holding its eviction lock.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {  // Odd 64-bit constants, one per counter
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;  // Clears the top bit of every counter after a shift
+    private static final long ONE_MASK = 0x1111111111111111L;    // The lowest bit of every counter
+    private static final int MAX_COUNT = 15;
+
+    private long[] table = new long[0];
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * Grows the sketch to track about {@code expectedKeys} distinct keys. Growing drops the history.
+     */
+    void ensureCapacity(long expectedKeys) {
+        int capacity = (int) Math.min(Math.max(expectedKeys, 16), 1 << 30);
+        if (table.length >= capacity) {
+            return;
+        }
+        table = new long[Integer.highestOneBit(capacity - 1) << 1];
+        tableMask = table.length - 1;
+        sampleSize = 10 * capacity;
+        additions = 0;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of the key, at most 15.
+     */
+    int frequency(Object key) {
+        if (table.length == 0) {
+            return 0;
+        }
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;  // Which 4 of the row's 16 counters this key uses
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key.
+     */
+    void increment(Object key) {
+        if (table.length == 0) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter. Odd counters lose their lowest bit, which is accounted for in the additions.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
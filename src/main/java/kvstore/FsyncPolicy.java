@@ -0,0 +1,23 @@
+package kvstore;
+
+/**
+ * FsyncPolicy controls when the WriteAheadLog forces written records to stable storage.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every group-commit batch is forced before its writers are released. No acknowledged write is lost.
+     */
+    EVERY_BATCH,
+
+    /**
+     * Batches are written immediately and forced at most every {@link StoreConfig#getWalSyncIntervalMs()} ms.
+     * A crash of the machine may lose the writes of the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Batches are written to the OS page cache and the OS decides when to flush them.
+     * Survives a process crash but not a power failure.
+     */
+    OS_MANAGED
+}
@@ -0,0 +1,88 @@
+package kvstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing partitions the keyspace over a set of nodes by consistent hashing. Every node is placed on a
+ * 64-bit ring at VIRTUAL_NODES points, and a key belongs to the first nodes found clockwise from its hash.
+ * The many points per node even out the share each node gets, and adding a node only moves the keys on
+ * the arcs just before its points; every other key keeps its owners.
+ *
+ * Rings are immutable: {@link #withNode(Node)} returns a new ring.
+ */
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<Node> nodes;
+    private final int virtualNodes;
+    private final TreeMap<Long, Node> points = new TreeMap<>();
+
+    public HashRing(List<Node> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(List<Node> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Each node needs at least one virtual node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.virtualNodes = virtualNodes;
+        for (Node node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(BloomFilter.hash(node.getAddress() + "#" + i), node);
+            }
+        }
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public HashRing withNode(Node node) {
+        for (Node existing : nodes) {
+            if (existing.getAddress().equals(node.getAddress())) {
+                throw new IllegalArgumentException("Node " + node.getAddress() + " is already in the ring");
+            }
+        }
+        List<Node> grown = new ArrayList<>(nodes);
+        grown.add(node);
+        return new HashRing(grown, virtualNodes);
+    }
+
+    public Node getOwner(String key) {
+        return getOwners(key, 1).get(0);
+    }
+
+    public List<Node> getOwners(String key, int count) {
+        return getOwners(key.getBytes(StandardCharsets.UTF_8), count);
+    }
+
+    /**
+     * The first count distinct nodes clockwise from the key's hash, or every node if there are fewer.
+     * The first one is the key's primary owner.
+     */
+    public List<Node> getOwners(byte[] key, int count) {
+        int wanted = Math.min(count, nodes.size());
+        List<Node> owners = new ArrayList<>(wanted);
+        long hash = BloomFilter.hash(key);
+        for (Map<Long, Node> part : List.of(points.tailMap(hash, true), points.headMap(hash, false))) {
+            for (Node node : part.values()) {
+                if (!owners.contains(node)) {
+                    owners.add(node);
+                    if (owners.size() == wanted) {
+                        return owners;
+                    }
+                }
+            }
+        }
+        return owners;
+    }
+}
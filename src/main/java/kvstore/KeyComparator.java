@@ -0,0 +1,38 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * KeyComparator defines the order of keys, which are arbitrary bytes, in memTables, SSTables and scans.
+ * Keys that compare equal are the same key. The order is part of the data on disk: tables are sorted by
+ * it, so a tree must always be opened with the comparator it was written with. The manifest records its
+ * {@link #name()} and refuses to open with a different one.
+ */
+public interface KeyComparator extends Comparator<byte[]> {
+    /**
+     * Orders keys by their bytes, compared as unsigned. For UTF-8 keys this is the order of their code
+     * points, which equals {@link String#compareTo} for keys without supplementary characters.
+     */
+    KeyComparator BYTEWISE = new KeyComparator() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return Arrays.compareUnsigned(a, b);
+        }
+
+        @Override
+        public String name() {
+            return "bytewise";
+        }
+
+        @Override
+        public String toString() {
+            return name();
+        }
+    };
+
+    /**
+     * Identifies the order; two comparators with the same name must order keys the same way.
+     */
+    String name();
+}
@@ -1,54 +1,135 @@
 package kvstore;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class KeyValueStore {
+public class KeyValueStore implements Replica {
+    // Written by close() once every write is in an SSTable; a store that finds it skips WAL replay
+    private static final String CLEAN_SHUTDOWN_MARKER = "CLEAN_SHUTDOWN";
+    // Directories of checkpoints made for replicas, and of checkpoints received from a primary
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final long REPLICATION_TIMEOUT_MS = 30000;
+    private static final int WRITE_STRIPES = 4096; // A power of two
+
+    private final File dataDirectory;
     private WriteAheadLog wal;
     private LSMTree lsmTree;
-    private LRUCache<String, String> cache;
+    private final KeyComparator keyComparator; // Order of the keys in range reads
+    // Shared by all request threads, keyed by wrapped key bytes. Holds the newest version of a key, versioned
+    // by its sequence in the tree, or the tombstone of a delete, so a stale fill never replaces a newer write
+    private TinyLfuCache<ByteBuffer, Entry> cache;
+    // The highest sequence written to any key of a stripe, so a read can tell if a write raced with its fill
+    private final AtomicLongArray lastWriteByStripe = new AtomicLongArray(WRITE_STRIPES);
     private List<KeyValueStore> nodes; // List of nodes for replication
+    private final ReplicationLog replicationLog = new ReplicationLog(); // Every write, for the replicas to fetch
+    private final Replicator replicator; // Ships the replication log to the nodes in the background
+    private final Object replicationApplyLock = new Object(); // Applies replicated batches one at a time
+    private long appliedLogId; // The primary log this node last applied records from
+    private long appliedSequence; // And the last sequence it applied from it
     private KeyValueStore primaryNode; // Track the primary node
     private boolean isActive; // Simulate if the current node is active or failed
+    private final OperationMetrics metrics = new OperationMetrics(); // Latency of every operation, by kind
 
     // Store for the key-value pairs
     private Map<String, String> store;
 
     public KeyValueStore() throws IOException {
-        wal = new WriteAheadLog();
-        lsmTree = new LSMTree();
-        cache = new LRUCache<>(100);
+        this(new StoreConfig());
+    }
+
+    public KeyValueStore(StoreConfig config) throws IOException {
+        dataDirectory = config.getDataDirectory();
+        keyComparator = config.getKeyComparator();
+        wal = new WriteAheadLog(config);
+        lsmTree = new LSMTree(config);
+        cache = new TinyLfuCache<>(config.getCacheMaxBytes(), KeyValueStore::cachedBytes);
         nodes = new ArrayList<>(); // Initialize the list of nodes
+        replicator = new Replicator(replicationLog, this::createCheckpoint);
         isActive = true; // Initially, the node is active
         store = new HashMap<>();
 
-        // Recover from WAL
-        recoverFromWAL();
+        // Recover from WAL unless the store was shut down cleanly, then retire log segments whenever
+        // the memTable they protect reaches an SSTable
+        File marker = new File(dataDirectory, CLEAN_SHUTDOWN_MARKER);
+        if (marker.exists()) {
+            wal.deleteSegmentsBefore(wal.getCurrentSegmentId()); // Nothing in them that is not in an SSTable
+            ByteBuffer position = ByteBuffer.wrap(Files.readAllBytes(marker.toPath()));
+            if (position.remaining() == 16) { // Where replication from a primary stopped
+                appliedLogId = position.getLong();
+                appliedSequence = position.getLong();
+            }
+            Files.delete(marker.toPath());
+            syncDirectory(); // A crash from now on must replay the WAL again
+        } else {
+            recoverFromWAL();
+        }
+        lsmTree.setMemTableListener(new MemTableListener() {
+            @Override
+            public long onMemTableFrozen() throws IOException {
+                return wal.rollSegment();
+            }
+
+            @Override
+            public void onMemTableFlushed(long firstLiveSegment) throws IOException {
+                wal.deleteSegmentsBefore(firstLiveSegment);
+            }
+        });
+        deleteCheckpoints(); // Left behind by a crash while one was sent or installed
     }
 
-    // Recover from Write Ahead Log (WAL)
+    // Recover from Write Ahead Log (WAL): replays the records not yet flushed to an SSTable, and finds
+    // how far replication from a primary got
     private void recoverFromWAL() throws IOException {
-        List<String> recoveryOps = wal.recoverLog();
-        for (String op : recoveryOps) {
-            String[] parts = op.split(":");
-            if ("DELETE".equals(parts[0])) {
-                lsmTree.put(parts[1], null); // Record tombstone for deleted key
-            } else if ("PUT".equals(parts[0])) {
-                lsmTree.put(parts[1], parts[2]); // Restore key-value pairs
+        for (byte[] record : wal.readRecords()) {
+            lsmTree.write(WalRecord.decode(record), null); // A null value records a tombstone
+            long[] position = WalRecord.replicationPosition(record);
+            if (position != null) {
+                appliedLogId = position[0];
+                appliedSequence = position[1];
             }
         }
     }
 
-    // Method to add nodes to the cluster
+    // Method to add nodes to the cluster. The node receives every write from now on, and is caught up
+    // with the ones it missed in the background
     public void addNode(KeyValueStore store) {
         nodes.add(store); // Add a secondary node for replication
+        store.primaryNode = this; // The secondary reads from this node while it recovers
+        replicator.addReplica(store);
     }
 
-    // Method to set the primary node
+    // Replicate to a node in another process, e.g. a follower server reached over the network. Unlike
+    // nodes added with addNode, it does not take part in failover within this process
+    public void addReplica(Replica replica) {
+        replicator.addReplica(replica);
+    }
+
+    public void removeReplica(Replica replica) {
+        replicator.removeReplica(replica);
+    }
+
+    // Method to set the primary node. When this node was the primary, the new primary takes over its
+    // secondaries, and this node rejoins as a secondary of the new primary.
     public void setPrimaryNode(KeyValueStore store) {
         this.primaryNode = store; // Set the primary node using the passed parameter
+        if (store != this && !nodes.isEmpty()) {
+            store.primaryNode = null;
+            for (KeyValueStore node : nodes) {
+                if (node != store && !store.nodes.contains(node)) {
+                    store.addNode(node);
+                }
+            }
+            for (KeyValueStore node : nodes) {
+                replicator.removeReplica(node);
+            }
+            nodes.clear();
+            store.addNode(this);
+        }
     }
 
     // Simulate failure of this node
@@ -57,11 +138,11 @@ public class KeyValueStore {
         System.out.println("Node has failed.");
     }
 
-    // Simulate recovery of this node
+    // Simulate recovery of this node. The primary resumes replicating to it from the last write it
+    // acknowledged, so it catches up with the writes it missed in the background
     public void recoverFromFailure() {
         this.isActive = true;
-        syncWithPrimary(); // Sync with the current primary node on recovery
-        System.out.println("Node has recovered and synced with the primary.");
+        System.out.println("Node has recovered and is catching up with the primary.");
     }
 
     // Check if the current node is active
@@ -69,53 +150,87 @@ public class KeyValueStore {
         return this.isActive;
     }
 
-    // PUT method for inserting or updating keys with replication
+    // PUT method for inserting or updating keys with replication. Text keys and values are stored as
+    // their UTF-8 bytes
     public void put(String key, String value) throws IOException {
+        validateKeyValue(key, value);
+        put(Entry.utf8(key), Entry.utf8(value));
+    }
+
+    // PUT method for a key that expires after ttlMs milliseconds, e.g. a session: once it expires reads no
+    // longer find it, and compactions drop it, without a DELETE
+    public void put(String key, String value, long ttlMs) throws IOException {
+        validateKeyValue(key, value);
+        put(Entry.utf8(key), Entry.utf8(value), ttlMs);
+    }
+
+    // PUT method for binary keys and values, e.g. serialized messages; the bytes are stored as they are
+    public void put(byte[] key, byte[] value) throws IOException {
+        putUntil(key, value, 0);
+    }
+
+    public void put(byte[] key, byte[] value, long ttlMs) throws IOException {
+        putUntil(key, value, expiryTime(ttlMs));
+    }
+
+    // PUT method for a value that expires at a given time in milliseconds since the epoch, or never if it
+    // is 0, e.g. for a write forwarded by another node that already fixed its expiry
+    public void putUntil(byte[] key, byte[] value, long expiresAt) throws IOException {
         if (!this.isActive) {
             throw new IllegalStateException("Node is not active. Cannot process PUT operation.");
         }
 
         validateKeyValue(key, value);
-        wal.logOperation("PUT:" + key + ":" + value);
-        cache.put(key, value);
-        lsmTree.put(key, value); // Add or update the key in LSM Tree
-
-        // Replicate the data to other nodes
-        for (KeyValueStore node : nodes) {
-            if (node.isActive()) {
-                replicatePut(node, key, value);
-            }
+        long start = System.nanoTime();
+        try {
+            apply(Collections.singletonList(new Entry(key, value, 0, expiresAt)),
+                    WalRecord.put(key, value, expiresAt)); // Log, then add or update the key
+        } finally {
+            metrics.record(OperationMetrics.Operation.PUT, start);
         }
-        System.out.println("Inserted/Updated key: " + key);
-    }
-
-    // Replicate PUT operation to a secondary node
-    private void replicatePut(KeyValueStore node, String key, String value) throws IOException {
-        System.out.println("Replicating to node: PUT " + key + " = " + value);
-        node.put(key, value); // Directly call put on the KeyValueStore
     }
 
     // GET method for retrieving values by key with failover handling
     public String get(String key) {
         validateKey(key);
+        return Entry.fromUtf8(get(Entry.utf8(key)));
+    }
 
-        // Check if the key exists in the cache
-        if (cache.containsKey(key)) {
-            String value = cache.get(key);
-            if (value == null) {
-                throw new NoSuchElementException("ERROR: Key not found or already deleted");
-            }
-            return value;
+    // GET method for binary keys; the returned array belongs to the caller
+    public byte[] get(byte[] key) {
+        validateKey(key);
+        long start = System.nanoTime();
+        try {
+            byte[] value = read(key);
+            return value == null ? null : value.clone();
+        } finally {
+            metrics.record(OperationMetrics.Operation.GET, start);
+        }
+    }
+
+    // GET method for a key held in a buffer, e.g. a slice of a network frame: reads its remaining bytes
+    // without moving its position
+    public byte[] get(ByteBuffer key) {
+        byte[] bytes = new byte[key.remaining()];
+        key.get(key.position(), bytes);
+        return get(bytes);
+    }
+
+    private byte[] read(byte[] key) {
+
+        // Check if the key exists in the cache (expired keys are never returned from it, deletes are cached
+        // as tombstones)
+        ByteBuffer cacheKey = ByteBuffer.wrap(key);
+        Entry cached = cache.get(cacheKey);
+        if (cached != null && !cached.isTombstone()) {
+            return cached.getValueBytes();
         }
 
-        // Check if the key exists in the LSM tree
+        // Check if the key exists in the LSM tree (a single lookup, filtered by the SSTable bloom filters)
         try {
-            if (lsmTree.containsKey(key)) {
-                String value = lsmTree.get(key);
-                if (value == null) {
-                    throw new NoSuchElementException("ERROR: Key not found or already deleted");
-                }
-                return value;
+            Entry entry = cached != null ? null : readThrough(cacheKey);
+            if (entry != null) {
+                return entry.getValueBytes();
             }
         } catch (Exception e) {
             System.err.println("ERROR: Exception in LSM tree operation: " + e.getMessage());
@@ -126,7 +241,7 @@ public class KeyValueStore {
         // If not found, check the primary node during recovery
         if (!this.isActive && primaryNode != null && primaryNode.isActive()) {
             try {
-                return primaryNode.getStore().get(key); // Fetch from the primary node
+                return Entry.utf8(primaryNode.getStore().get(Entry.fromUtf8(key))); // Fetch from the primary node
             } catch (NoSuchElementException e) {
                 throw new NoSuchElementException("ERROR: Key not found in primary node as well");
             }
@@ -136,103 +251,298 @@ public class KeyValueStore {
         throw new NoSuchElementException("ERROR: Key not found");
     }
 
+    // Look up a key in the LSM tree and cache what it finds, versioned by the sequence it was written at, so
+    // a newer version already cached by a writer is kept. A write that committed after the lookup started
+    // may have been cached and evicted already, so the fill is undone if any write to the key's stripe
+    // committed since then; the writer raises the stripe before it caches its own version
+    private Entry readThrough(ByteBuffer cacheKey) {
+        byte[] key = cacheKey.array();
+        int stripe = writeStripe(key);
+        long before = lsmTree.getLastSequence();
+        Entry entry = lsmTree.getEntry(key);
+        if (entry != null) {
+            cache.putIfNewer(cacheKey, entry, entry.getExpiresAt(), entry.getSequence());
+            long lastWrite = lastWriteByStripe.get(stripe);
+            if (lastWrite > before) {
+                cache.invalidateOlderThan(cacheKey, lastWrite);
+            }
+        }
+        return entry;
+    }
+
+    private static int writeStripe(byte[] key) {
+        return (Arrays.hashCode(key) * 0x9E3779B9 >>> 16) & (WRITE_STRIPES - 1);
+    }
+
     // DELETE method for removing keys (records a tombstone)
     public boolean delete(String key) throws IOException {
         validateKey(key);
+        return delete(Entry.utf8(key));
+    }
+
+    public boolean delete(byte[] key) throws IOException {
+        validateKey(key);
 
         if (!this.isActive) {
             throw new IllegalStateException("Node is not active. Cannot process DELETE operation.");
         }
 
-        // Check if the key exists in the cache or LSM tree
-        if (cache.containsKey(key) || lsmTree.containsKey(key)) {
-            wal.logOperation("DELETE:" + key);
-            cache.remove(key);
-            lsmTree.put(key, null); // Mark the key as deleted (tombstone)
-
-            // Replicate the deletion to other nodes
-            for (KeyValueStore node : nodes) {
-                if (node.isActive()) {
-                    replicateDelete(node, key);
-                }
+        // Check if the key exists in the LSM tree (the cache only holds keys that are in it)
+        long start = System.nanoTime();
+        try {
+            if (lsmTree.containsKey(key)) {
+                apply(Collections.singletonList(new Entry(key, null)), WalRecord.delete(key)); // Mark the key as deleted (tombstone)
+            } else {
+                throw new NoSuchElementException("ERROR: Key not found or already deleted");
             }
-
-            System.out.println("Deleted key: " + key);
-            return true;
-        } else {
-            throw new NoSuchElementException("ERROR: Key not found or already deleted");
+        } finally {
+            metrics.record(OperationMetrics.Operation.DELETE, start);
         }
+        return true;
     }
 
-    // Replicate DELETE operation to a secondary node
-    private void replicateDelete(KeyValueStore node, String key) throws IOException {
-        System.out.println("Replicating to node: DELETE " + key);
-        node.delete(key);
+    // Batch PUT method for inserting multiple key-value pairs as one atomic write batch
+    public void batchPut(List<String> keys, List<String> values) throws IOException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Keys and values must be of the same length.");
+        }
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < keys.size(); i++) {
+            batch.put(keys.get(i), values.get(i));
+        }
+        write(batch);
     }
 
-    // Sync with the current primary node after recovery
-    private void syncWithPrimary() {
-        if (primaryNode != null && primaryNode.isActive()) {
-            System.out.println("Syncing with primary node...");
+    // WRITE method for applying a batch of puts and deletes as one unit: one WAL record, one memTable
+    // acquisition and one replication call per node. After a crash either the whole batch or none of it
+    // is recovered.
+    public void write(WriteBatch batch) throws IOException {
+        if (!this.isActive) {
+            throw new IllegalStateException("Node is not active. Cannot process batch write operation.");
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
 
-            // Fetch and update local store from primary node
-            try {
-                List<String[]> syncedData = primaryNode.readKeyRange("startKey", "endKey");
-                for (String[] entry : syncedData) {
-                    String key = entry[0];
-                    String value = entry[1];
-                    this.put(key, value); // Insert or update the key-value pair
+        List<Entry> entries = batch.getEntries();
+        long start = System.nanoTime();
+        try {
+            apply(entries, WalRecord.batch(entries));
+        } finally {
+            metrics.record(OperationMetrics.Operation.BATCH, start);
+        }
+    }
+
+    // Apply replicated writes from the primary, all shipped records as one WAL record that also records
+    // the last sequence applied. Records this node already applied from the same primary log are skipped,
+    // so a batch that is delivered late, e.g. by a connection that failed and was replaced, cannot undo
+    // newer writes
+    @Override
+    public void replicate(long logId, List<ReplicationLog.Record> records) throws IOException {
+        if (!this.isActive) {
+            throw new IllegalStateException("Node is not active. Cannot apply replicated writes.");
+        }
+        synchronized (replicationApplyLock) {
+            if (logId != appliedLogId) {
+                appliedLogId = logId; // A new primary, or a restarted one
+                appliedSequence = 0;
+            }
+            List<Entry> entries = new ArrayList<>();
+            long last = appliedSequence;
+            for (ReplicationLog.Record record : records) {
+                if (record.getSequence() > appliedSequence) {
+                    entries.addAll(record.getEntries());
+                    last = Math.max(last, record.getSequence());
                 }
-            } catch (IOException e) {
-                System.err.println("ERROR during syncing: " + e.getMessage());
             }
+            if (!entries.isEmpty()) {
+                apply(entries, WalRecord.replicated(logId, last, entries));
+            }
+            appliedSequence = last;
         }
     }
 
-    // Batch PUT method for inserting multiple key-value pairs from a Map
-    public void batchPut(List<String> keys, List<String> values) throws IOException {
+    // Get the last sequence of the primary's log this node applied. A node that never applied any records
+    // can start from the beginning of the log if it is empty, but otherwise needs a checkpoint: it is not
+    // known which of the primary's writes its contents include.
+    @Override
+    public long getAppliedSequence(long logId) {
+        synchronized (replicationApplyLock) {
+            if (appliedLogId == logId) {
+                return appliedSequence;
+            }
+            if (appliedLogId != 0) {
+                return -1;
+            }
+            try (ScanIterator scan = lsmTree.scan((byte[]) null, null)) {
+                return scan.hasNext() ? -1 : 0;
+            }
+        }
+    }
+
+    // Replace this node's contents with a primary's checkpoint, for a node too far behind to replay the
+    // primary's log. The write ahead log of the replaced contents is discarded; a record of the new
+    // position takes its place.
+    @Override
+    public void installCheckpoint(long logId, Checkpoint checkpoint) throws IOException {
         if (!this.isActive) {
-            throw new IllegalStateException("Node is not active. Cannot process batch PUT operation.");
+            throw new IllegalStateException("Node is not active. Cannot install a checkpoint.");
+        }
+        synchronized (replicationApplyLock) {
+            File staging = new File(dataDirectory, CHECKPOINT_PREFIX + "install");
+            if (staging.exists()) {
+                new Checkpoint(staging, List.of(), 0).delete();
+            }
+            Checkpoint local = checkpoint.copyTo(staging);
+            try {
+                lsmTree.installCheckpoint(local, () -> {
+                    wal.deleteSegmentsBefore(wal.rollSegment());
+                    wal.append(WalRecord.replicated(logId, checkpoint.getSequence(), List.of()));
+                });
+            } finally {
+                local.delete();
+            }
+            cache.invalidateAll();
+            appliedLogId = logId;
+            appliedSequence = checkpoint.getSequence();
         }
+        System.out.println("Installed checkpoint at sequence " + checkpoint.getSequence());
+    }
 
-        if (keys.size() != values.size()) {
-            throw new IllegalArgumentException("Keys and values must be of the same length.");
+    // Make a checkpoint of this store for a replica that fell behind the replication log. Every write
+    // logged before the flush it makes is in it
+    private Checkpoint createCheckpoint() throws IOException {
+        long sequence = replicationLog.getLastSequence();
+        File directory = new File(dataDirectory, CHECKPOINT_PREFIX + sequence + "-" + System.nanoTime());
+        return lsmTree.checkpoint(directory, sequence);
+    }
+
+    // Get the directory that holds the files of a checkpoint received from a primary until it is installed
+    public File getReceivedCheckpointDirectory(String name) {
+        if (!name.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid checkpoint name: " + name);
         }
-        for (int i = 0; i < keys.size(); i++) {
-            put(keys.get(i), values.get(i));
+        return new File(dataDirectory, CHECKPOINT_PREFIX + "received-" + name);
+    }
+
+    private void deleteCheckpoints() throws IOException {
+        File[] files = dataDirectory.listFiles((dir, name) -> name.startsWith(CHECKPOINT_PREFIX));
+        if (files != null) {
+            for (File directory : files) {
+                new Checkpoint(directory, List.of(), 0).delete();
+            }
         }
     }
 
-    // READ method for fetching key-value pairs in a range
-    public List<String[]> readKeyRange(String startKey, String endKey) throws IOException {
-        Map<String, String> combinedStore = new HashMap<>(cache);
+    // Log, insert and cache a write, and queue it for the replicas. The tree queues the WAL record as it
+    // stamps the write, and the write enters the replication log once it is durable, in sequence order, so
+    // WAL recovery and every replica apply writes in the order they took effect here
+    private void apply(List<Entry> entries, byte[] walRecord) throws IOException {
+        long sequence = lsmTree.write(entries, new LSMTree.WriteLog() {
+            @Override
+            public LSMTree.PendingLog append() throws IOException {
+                WriteAheadLog.PendingWrite write = wal.submit(walRecord);
+                return () -> wal.await(write);
+            }
 
-        // Fetch keys from the memTable in the specified range
-        Map<String, String> memTableRange = lsmTree.getMemTable().subMap(startKey, true, endKey, true);
-        memTableRange.forEach((key, value) -> {
-            if (value != null) {
-                combinedStore.putIfAbsent(key, value);
+            @Override
+            public void committed() {
+                replicationLog.append(entries);
             }
         });
+        // Cache every entry as the version it was stamped with; a delete caches its tombstone, so a read
+        // that found the deleted value cannot cache it again
+        for (Entry entry : entries) {
+            byte[] key = entry.getKeyBytes();
+            lastWriteByStripe.accumulateAndGet(writeStripe(key), sequence, Math::max);
+            cache.putIfNewer(ByteBuffer.wrap(key), new Entry(key, entry.getValueBytes(), sequence, entry.getExpiresAt()),
+                    entry.getExpiresAt(), sequence);
+            sequence++;
+        }
+    }
+
+    // Wait until every active node has acknowledged every write made so far, e.g. before reading
+    // from a secondary what was just written to the primary
+    public void awaitReplication() throws IOException {
+        replicator.awaitReplication(REPLICATION_TIMEOUT_MS);
+    }
+
+    // Get how far each node lags behind this node's writes
+    public List<ReplicaStatus> getReplicationStatus() {
+        return replicator.getStatus();
+    }
+
+    @Override
+    public String getName() {
+        return dataDirectory.getName();
+    }
+
+    // READ method for fetching key-value pairs in a range, in key order. The LSM tree merges its
+    // memTables and SSTables, so the newest value of every key wins and deleted keys are skipped.
+    public List<String[]> readKeyRange(String startKey, String endKey) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        Iterator<Entry> it = scanKeyRange(startKey, endKey);
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            result.add(new String[]{entry.getKey(), entry.getValue()});
+        }
+        return result;
+    }
+
+    // Stream the live entries of a range in key order without collecting them, e.g. to write a large
+    // range to a client. Entries are read lazily, but as of the moment the scan starts: writes made
+    // during the scan are not seen, and the scan does not hold up writers or flushes.
+    // The latency of a range read covers the whole scan, so it is recorded once the scan is exhausted.
+    public ScanIterator scanKeyRange(String startKey, String endKey) {
+        return scanKeyRange(Entry.utf8(startKey), Entry.utf8(endKey));
+    }
 
-        // Iterate through SSTables to find keys in the specified range
-        for (SSTable sstable : lsmTree.getSSTables()) {
-            List<String> sstableKeys = sstable.getKeyRange(startKey, endKey);
-            for (String key : sstableKeys) {
-                if (!combinedStore.containsKey(key)) {
-                    String value = sstable.read(key);
-                    if (value != null) {
-                        combinedStore.put(key, value);
-                    }
+    // Stream the live entries of a range of binary keys, ordered by the configured key comparator. A null
+    // bound leaves that end of the range open, e.g. to scan every key. Close the scan if it is not read to the end
+    public ScanIterator scanKeyRange(byte[] startKey, byte[] endKey) {
+        if (startKey != null && endKey != null && keyComparator.compare(startKey, endKey) > 0) {
+            return ScanIterator.empty();
+        }
+        long start = System.nanoTime();
+        ScanIterator scan = lsmTree.scan(startKey, endKey);
+        return new ScanIterator() {
+            private boolean recorded;
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = scan.hasNext();
+                if (!hasNext && !recorded) {
+                    recorded = true;
+                    metrics.record(OperationMetrics.Operation.RANGE, start);
                 }
+                return hasNext;
             }
-        }
 
-        // Return the combined key-value pairs in the specified range
-        return combinedStore.entrySet().stream()
-                .filter(entry -> entry.getKey().compareTo(startKey) >= 0 && entry.getKey().compareTo(endKey) <= 0)
-                .map(entry -> new String[]{entry.getKey(), entry.getValue()})
-                .collect(Collectors.toList());
+            @Override
+            public Entry next() {
+                return scan.next();
+            }
+
+            @Override
+            public void close() {
+                scan.close();
+            }
+        };
+    }
+
+    // Take a point-in-time snapshot for repeatable reads and range scans, e.g. for a long analytical scan
+    // whose results must be consistent with each other. Reads through it bypass the cache; close it when done.
+    public Snapshot getSnapshot() {
+        return lsmTree.getSnapshot();
+    }
+
+    // Turn a time to live into the time the value expires, in milliseconds since the epoch
+    static long expiryTime(long ttlMs) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("TTL must be greater than 0");
+        }
+        long now = System.currentTimeMillis();
+        return ttlMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMs;
     }
 
     // Validate key and value
@@ -245,6 +555,13 @@ public class KeyValueStore {
         }
     }
 
+    private void validateKeyValue(byte[] key, byte[] value) {
+        validateKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+    }
+
     // Validate key
     private void validateKey(String key) {
         if (key == null || key.isEmpty()) {
@@ -252,6 +569,65 @@ public class KeyValueStore {
         }
     }
 
+    private void validateKey(byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("Key cannot be null or empty");
+        }
+    }
+
+    // Stop replicating, flush the memTable, stop background work of the storage engine and close the write ahead log.
+    // Leaves the clean shutdown marker behind, so the next start does not need to replay the WAL; it holds
+    // the replication position of a replica.
+    public void close() throws IOException {
+        replicator.close();
+        lsmTree.flushMemTable();
+        lsmTree.close();
+        wal.close();
+        byte[] position = new byte[0];
+        synchronized (replicationApplyLock) {
+            if (appliedLogId != 0) {
+                position = ByteBuffer.allocate(16).putLong(appliedLogId).putLong(appliedSequence).array();
+            }
+        }
+        Files.write(new File(dataDirectory, CLEAN_SHUTDOWN_MARKER).toPath(), position);
+        syncDirectory();
+    }
+
+    // Make file creations and deletions in the data directory durable
+    private void syncDirectory() throws IOException {
+        Directories.sync(dataDirectory);
+    }
+
+    // Approximate heap bytes of a cached entry: the key and value bytes plus array, buffer, entry, map and node overhead
+    private static int cachedBytes(ByteBuffer key, Entry entry) {
+        return key.remaining() + (entry.isTombstone() ? 0 : entry.getValueBytes().length) + 176;
+    }
+
+    // Get the read cache, e.g. to inspect its hit, miss and eviction counters
+    public TinyLfuCache<ByteBuffer, Entry> getCache() {
+        return cache;
+    }
+
+    // Get the latency histograms of this store's operations
+    public OperationMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Get the storage engine's work counters, with the bytes this store's write ahead log wrote
+    public EngineStats getEngineStats() {
+        return lsmTree.getStats().withWalBytesWritten(wal.getBytesWritten());
+    }
+
+    // Get the write ahead log, e.g. to inspect its write and sync counters
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    // Get the storage engine, e.g. to inspect its bloom filter counters
+    public LSMTree getLSMTree() {
+        return lsmTree;
+    }
+
     // Get store for external access if needed
     public Map<String, String> getStore() {
         return store;
@@ -7,6 +7,7 @@ import java.util.Map;
 /**
  * LRUCache class implements a Least Recently Used (LRU) cache by extending LinkedHashMap.
  * It automatically removes the least recently accessed entry when the cache exceeds its defined capacity.
+ * The store caches rows in a {@link TinyLfuCache}; this class is only kept as the baseline of CacheBenchmark.
  */
 public class LRUCache<K, V> extends LinkedHashMap<K, V> {
     private final int capacity;  // Maximum capacity of the cache
@@ -27,10 +28,6 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> {
     @Override
     protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
         // Remove the eldest entry if the cache size exceeds the defined capacity
-        boolean shouldRemove = size() > capacity;
-        if (shouldRemove) {
-            System.out.println("Removing eldest entry: " + eldest); // Log the removal
-        }
-        return shouldRemove;
+        return size() > capacity;
     }
 }
@@ -1,108 +1,1083 @@
 package kvstore;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class LSMTree {
-    private TreeMap<String, String> memTable = new TreeMap<>();
-    private static final int MAX_MEMTABLE_SIZE = 100;
-    private List<SSTable> sstables;
+    private final StoreConfig config;
+    private final File directory;
+    private final KeyComparator comparator;  // Order of the keys in every memTable and table
+
+    // Writes go to the active memTable. A full one is frozen into the immutable slot and flushed in the
+    // background while writes continue on a fresh one; reads check active, then immutable, then the tables.
+    private volatile MemTable activeMemTable;
+    private volatile MemTable immutableMemTable;  // Null when no flush is pending
+    private final Object flushMonitor = new Object();  // Signalled when the immutable memTable is flushed
+    private IOException flushError;  // Guarded by flushMonitor; set if a background flush failed
+    private final ExecutorService flushExecutor;
+
+    // Writers (log + insert) share this lock; freezing the memTable takes it exclusively,
+    // so every record logged before a freeze is also in the frozen memTable
+    private final ReentrantReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private volatile MemTableListener memTableListener;
+
+    // Every write is stamped with the next sequence numbers and queues its log record in the same step, so the
+    // logs hold writes in sequence order. Once its record is durable, a write waits for the writes before it,
+    // inserts its entries and publishes its last sequence in lastSequence, so reading at lastSequence never
+    // misses a write at or below it
+    private volatile long lastSequence;
+    private long allocatedSequence;  // Last sequence handed to a write, guarded by sequenceLock
+    private final Object sequenceLock = new Object();
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();  // Open snapshots by sequence, guarded by itself
+
+    // The current set of SSTables; replaced (never modified) by flushes and compactions under versionLock
+    private volatile Version current;
+    private final Object versionLock = new Object();
+    private final Manifest manifest;
+    private final AtomicLong nextFileNumber;
+    private final Compactor compactor;
+    private final ExecutorService compactionExecutor;
+    private final BlockCache blockCache;  // Shared by the tables of the current Version, null if disabled
+
+    // Bloom filter effectiveness, used to size the filters (bits per key)
+    private final LongAdder bloomUsefulHits = new LongAdder();     // Filter said "maybe" and the key was there
+    private final LongAdder bloomTrueNegatives = new LongAdder();  // Filter said "no", table skipped
+    private final LongAdder bloomFalsePositives = new LongAdder(); // Filter said "maybe" but the key was absent
+
+    // Work done per user operation, for the amplification figures of getStats()
+    private final LongAdder userBytesWritten = new LongAdder();
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder tablesChecked = new LongAdder();  // Tables whose filter a get consulted
+    private final LongAdder tablesRead = new LongAdder();     // Tables whose blocks a get read
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder tablesScanned = new LongAdder();
+
+    // Background work, counted as it completes
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong compactionBytesRead = new AtomicLong();
+    private final AtomicLong compactionBytesWritten = new AtomicLong();
+    private final LatencyHistogram compactionLatency = new LatencyHistogram();
+    private final AtomicLong blockBytesRaw = new AtomicLong();     // Data blocks written, before compression
+    private final AtomicLong blockBytesStored = new AtomicLong();  // The same blocks as stored
+    private final AtomicLong compressNanos = new AtomicLong();
+    // Decompression done by tables no longer in the tree; the current tables count their own
+    private final AtomicLong retiredBlocksDecompressed = new AtomicLong();
+    private final AtomicLong retiredDecompressNanos = new AtomicLong();
+
+    /**
+     * Runs under the tree's write lock, e.g. to log a change to the whole tree.
+     */
+    public interface LogAction {
+        void log() throws IOException;
+    }
+
+    /**
+     * Logs a write before its entries are inserted into the memTable, in two steps so that concurrent
+     * writers log in the order of their sequences and still share the log's group commit.
+     */
+    public interface WriteLog {
+        /**
+         * Queues the write's record and returns the wait for it to be durable. Runs under the sequence lock,
+         * right after the write is stamped, so it must not wait for I/O.
+         */
+        PendingLog append() throws IOException;
+
+        /**
+         * Runs once the record is durable, in sequence order, just before the write becomes visible, e.g. to
+         * queue the write for replicas in the same order.
+         */
+        default void committed() {
+        }
+    }
+
+    /**
+     * Waits for a record queued by {@link WriteLog#append()} to be durable.
+     */
+    public interface PendingLog {
+        void await() throws IOException;
+    }
+
+    public LSMTree() throws IOException {
+        this(new StoreConfig());
+    }
+
+    /**
+     * Opens the tree in the configured data directory, reopening the SSTables that were live when it was
+     * last used. Only the manifest is read up front: the tables' indexes and filters are loaded in the
+     * background, in parallel, and any table a read needs earlier is loaded on demand.
+     */
+    public LSMTree(StoreConfig config) throws IOException {
+        this.config = config;
+        this.directory = config.getDataDirectory();
+        this.comparator = config.getKeyComparator();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create data directory " + directory);
+        }
+        this.activeMemTable = MemTable.create(config.getMemTableType(), comparator);
+        this.manifest = new Manifest(directory, comparator);
+        this.current = manifest.recover(config.getNumLevels());
+        this.blockCache = config.getBlockCacheMaxBytes() == 0 ? null
+                : new BlockCache(config.getBlockCacheMaxBytes(), config.isBlockCacheOffHeap());
+        attach(current.allOldestFirst());
+        this.lastSequence = manifest.getLastSequence();
+        this.allocatedSequence = lastSequence;
+        deleteObsoleteFiles();
+        this.nextFileNumber = new AtomicLong(Math.max(manifest.getNextFileNumber(), highestFileNumber() + 1));
+        this.compactor = new Compactor(this, config);
+        this.flushExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loadTablesInBackground();
+    }
 
-    {
-        sstables = new ArrayList<>();
+    /**
+     * Registers the listener that is told when the memTable is frozen and flushed.
+     */
+    public void setMemTableListener(MemTableListener memTableListener) {
+        this.memTableListener = memTableListener;
     }
 
     /**
      * Inserts a key-value pair into the memTable. If the value is null, the key is considered deleted.
      */
-    public synchronized void put(String key, String value) throws IOException {
-        memTable.put(key, value);
-        if (memTable.size() >= MAX_MEMTABLE_SIZE) {
-            flushMemTableToDisk();
+    public void put(String key, String value) throws IOException {
+        put(key, value, null);
+    }
+
+    /**
+     * Logs and inserts a key-value pair as one unit with respect to memTable freezes: the record is logged
+     * first, and a freeze never separates a logged record from the memTable it is inserted into.
+     * Concurrent writers wait for their records together, so that the log can group-commit them.
+     * Writes only wait for a flush when the previous memTable is still being flushed as this one fills up.
+     */
+    public void put(String key, String value, WriteLog log) throws IOException {
+        write(Collections.singletonList(new Entry(key, value)), log);
+    }
+
+    public void put(byte[] key, byte[] value) throws IOException {
+        write(Collections.singletonList(new Entry(key, value)), null);
+    }
+
+    /**
+     * Writes several entries (null values are tombstones, expiry times are kept) under a single acquisition of the memTable:
+     * they are logged once, as one record, and they all land in the same memTable, so a flush never splits
+     * them between two SSTables. The entries get consecutive sequence numbers, later entries higher ones,
+     * and become visible to snapshots together.
+     *
+     * Writes are logged, made visible and seen by {@link WriteLog#committed()} in the order of their
+     * sequences, so replaying the log, or applying the writes in the order they were committed, gives
+     * every key the value it has here. A write whose record fails to be logged is not inserted.
+     * Returns the sequence of the first entry.
+     */
+    public long write(List<Entry> entries, WriteLog log) throws IOException {
+        long bytes = 0;
+        for (Entry entry : entries) {
+            bytes += entry.getKeyBytes().length + (entry.isTombstone() ? 0 : entry.getValueBytes().length);
+        }
+        userBytesWritten.add(bytes);
+        boolean full;
+        long first;
+        switchLock.readLock().lock();
+        try {
+            PendingLog pending = null;
+            synchronized (sequenceLock) {
+                first = allocatedSequence + 1;
+                if (log != null) {
+                    pending = log.append();  // Nothing is allocated if this throws
+                }
+                allocatedSequence += entries.size();
+            }
+
+            // Waiting for the log runs concurrently; only stamping and inserting is serialized
+            Exception failure = null;
+            if (pending != null) {
+                try {
+                    pending.await();
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            MemTable memTable = activeMemTable;
+            awaitTurn(first);
+            try {
+                if (failure == null) {
+                    if (log != null) {
+                        log.committed();
+                    }
+                    long sequence = first;
+                    for (Entry entry : entries) {
+                        memTable.put(entry.getKeyBytes(), entry.getValueBytes(), sequence++, entry.getExpiresAt());
+                    }
+                }
+            } finally {
+                synchronized (sequenceLock) {
+                    lastSequence = first + entries.size() - 1;  // A failed write leaves its sequences unused
+                    sequenceLock.notifyAll();
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            full = memTable.getApproximateBytes() >= config.getMemTableMaxBytes();
+        } finally {
+            switchLock.readLock().unlock();
+        }
+        if (full) {
+            freezeMemTable(false);
+        }
+        return first;
+    }
+
+    // Waits until every write stamped before the given sequence is visible. Not interruptible: the writes
+    // after this one wait for it in turn
+    private void awaitTurn(long firstSequence) {
+        boolean interrupted = false;
+        synchronized (sequenceLock) {
+            while (lastSequence != firstSequence - 1) {
+                try {
+                    sequenceLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Flushes the memTable to a new SSTable and waits until it is installed, e.g. before shutting down.
+     */
+    public void flushMemTable() throws IOException {
+        freezeMemTable(true);
+        awaitFlush();
+    }
+
+    /**
+     * Freezes the active memTable and hands it to the flush thread. Unless forced, nothing happens if
+     * another writer froze the memTable in the meantime.
+     */
+    private void freezeMemTable(boolean force) throws IOException {
+        switchLock.writeLock().lock();
+        try {
+            MemTable memTable = activeMemTable;
+            if (memTable.isEmpty() || (!force && memTable.getApproximateBytes() < config.getMemTableMaxBytes())) {
+                return;
+            }
+            awaitFlush();  // Only one immutable memTable at a time: stall writes until the last one is flushed
+            MemTableListener listener = memTableListener;
+            long marker = listener == null ? 0 : listener.onMemTableFrozen();
+            immutableMemTable = memTable;  // Visible to readers before it leaves the active slot
+            activeMemTable = MemTable.create(config.getMemTableType(), comparator);
+            flushExecutor.execute(() -> flushInBackground(memTable, listener, marker));
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+    }
+
+    private void flushInBackground(MemTable memTable, MemTableListener listener, long marker) {
+        try {
+            flushMemTableToDisk(memTable);
+            if (listener != null) {
+                listener.onMemTableFlushed(marker);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: MemTable flush failed: " + e.getMessage());
+            synchronized (flushMonitor) {
+                flushError = e instanceof IOException ? (IOException) e : new IOException(e);
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks until no memTable is waiting to be flushed. Fails if a background flush failed; its memTable
+     * stays readable, and its records stay in the write ahead log.
+     */
+    private void awaitFlush() throws IOException {
+        synchronized (flushMonitor) {
+            while (immutableMemTable != null) {
+                if (flushError != null) {
+                    throw new IOException("MemTable flush failed", flushError);
+                }
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a memTable flush", e);
+                }
+            }
         }
     }
 
     /**
-     * Retrieves the value associated with the given key from either the memTable or SSTables.
+     * Retrieves the value associated with the given key from either the memTables or SSTables.
+     */
+    public String get(String key) throws IOException {
+        return Entry.fromUtf8(get(Entry.utf8(key), Long.MAX_VALUE));
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves the newest value of the key written at or before the given sequence, or null if it was
+     * deleted or has expired.
      */
-    public synchronized String get(String key) throws IOException {
-        if (memTable.containsKey(key)) {
-            return memTable.get(key);
+    byte[] get(byte[] key, long sequence) throws IOException {
+        Entry entry = find(key, sequence);
+        return entry != null && entry.isLive(System.currentTimeMillis()) ? entry.getValueBytes() : null;
+    }
+
+    /**
+     * Retrieves the newest version of the key with its expiry time, or null if the key is absent, deleted
+     * or expired.
+     */
+    Entry getEntry(byte[] key) {
+        Entry entry = find(key, Long.MAX_VALUE);
+        return entry != null && entry.isLive(System.currentTimeMillis()) ? entry : null;
+    }
+
+    /**
+     * Finds the newest version of the key written at or before the given sequence, tombstones and expired
+     * values included, or null if there is none.
+     */
+    private Entry find(byte[] key, long sequence) {
+        gets.increment();
+        // Active before immutable before tables: a memTable leaves a slot only after it reached the next one
+        Entry buffered = activeMemTable.get(key, sequence);
+        if (buffered == null) {
+            MemTable immutable = immutableMemTable;
+            buffered = immutable == null ? null : immutable.get(key, sequence);
+        }
+        if (buffered != null) {
+            return buffered;
+        }
+
+        // Then the tables: newest first, level 0 then one candidate per sorted level
+        Version version = current;
+        for (SSTable sstable : version.level(0)) {
+            Entry entry = probe(sstable, key, sequence);
+            if (entry != null) {
+                return entry;
+            }
         }
-        for (SSTable sstable : sstables) {
-            String value = sstable.read(key);
-            if (value != null) return value;  // If value found in SSTable
+        for (int level = 1; level < version.numLevels(); level++) {
+            SSTable sstable = version.findTable(level, key);
+            Entry entry = sstable == null ? null : probe(sstable, key, sequence);
+            if (entry != null) {
+                return entry;
+            }
         }
         return null;
     }
 
-    public boolean containsKey(String key) throws IOException {
-        // Check in memTable first
-        if (memTable.containsKey(key) && memTable.get(key) != null) {
-            return true;
+    private Entry probe(SSTable sstable, byte[] key, long sequence) {
+        tablesChecked.increment();
+        if (!sstable.mightContain(key)) {
+            bloomTrueNegatives.increment();
+            return null;
         }
-        // Check in SSTables
-        for (SSTable sstable : sstables) {
-            String value = sstable.read(key);
-            if (value != null) {
-                return true;
+        tablesRead.increment();
+        Entry entry = sstable.find(key, sequence);
+        if (sstable.hasBloomFilter()) {
+            // A table holding only versions newer than the read's sequence still holds the key: the filter was right
+            if (entry == null && (sequence == Long.MAX_VALUE || sstable.find(key, Long.MAX_VALUE) == null)) {
+                bloomFalsePositives.increment();
+            } else {
+                bloomUsefulHits.increment();
             }
         }
-        return false;
+        return entry;
+    }
+
+    public boolean containsKey(String key) throws IOException {
+        return get(key) != null;
+    }
+
+    public boolean containsKey(byte[] key) throws IOException {
+        return get(key) != null;
     }
 
     /**
      * Retrieves all keys within the given key range [startKey, endKey], excluding deleted keys.
      */
-    public synchronized List<String> getKeyRange(String startKey, String endKey) throws IOException {
-        // 1. Get all keys in the range from memTable and filter out null values (deleted keys)
-        Map<String, String> rangeMap = memTable.subMap(startKey, true, endKey, true);
-        List<String> validKeysInMemTable = rangeMap.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)  // Exclude deleted entries
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
-
-        // 2. Check SSTables for keys in the range, avoiding duplicates
-        for (SSTable sstable : sstables) {
-            List<String> sstableKeys = sstable.getKeyRange(startKey, endKey);
-            for (String key : sstableKeys) {
-                if (!memTable.containsKey(key)) {  // Avoid duplicates
-                    String value = sstable.read(key);
-                    if (value != null) {
-                        validKeysInMemTable.add(key);  // Only add if not deleted
+    public List<String> getKeyRange(String startKey, String endKey) throws IOException {
+        List<String> keys = new ArrayList<>();
+        ScanIterator it = scan(startKey, endKey);
+        while (it.hasNext()) {
+            keys.add(it.next().getKey());
+        }
+        return keys;
+    }
+
+    public ScanIterator scan(String startKey, String endKey) {
+        return scan(Entry.utf8(startKey), Entry.utf8(endKey));
+    }
+
+    /**
+     * Returns the live entries with keys in [startKey, endKey] in key order, merged from the memTables
+     * and the SSTables so that the newest record of every key wins and deleted keys are skipped, as are
+     * keys that have expired by the time the scan starts. A null bound leaves that end of the range open.
+     * The scan reads as of the moment it starts: writes made while it runs are not seen, however long it
+     * takes, and it holds no lock while it runs. A caller that stops before the end closes it, so that the
+     * memTables it reads can be freed.
+     */
+    public ScanIterator scan(byte[] startKey, byte[] endKey) {
+        // The sources are picked up now, and no flush or compaction changes them, so nothing a
+        // read at this sequence needs can be dropped before the scan ends
+        return scan(startKey, endKey, lastSequence);
+    }
+
+    /**
+     * Returns the live entries with keys in [startKey, endKey] as of the given sequence, in key order.
+     */
+    ScanIterator scan(byte[] startKey, byte[] endKey, long sequence) {
+        // Sources newest first, in the same order as get(): active, immutable, level 0 newest first, deeper levels
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        sources.add(new VisibleVersions(activeMemTable.iterator(startKey, endKey), sequence));
+        MemTable immutable = immutableMemTable;
+        if (immutable != null) {
+            sources.add(new VisibleVersions(immutable.iterator(startKey, endKey), sequence));
+        }
+        Version version = current;
+        int tables = 0;
+        for (int level = 0; level < version.numLevels(); level++) {
+            for (SSTable sstable : version.overlapping(level, startKey, endKey)) {
+                sources.add(new VisibleVersions(sstable.iterator(startKey, endKey), sequence));
+                tables++;
+            }
+        }
+        scans.increment();
+        tablesScanned.add(tables);
+        MergingIterator merged = new MergingIterator(sources, comparator);
+        long now = System.currentTimeMillis();
+        return new ScanIterator() {
+            private Entry next = advance();
+
+            private Entry advance() {
+                while (merged.hasNext()) {
+                    Entry entry = merged.next();
+                    if (entry.isLive(now)) {
+                        return entry;
                     }
                 }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void close() {
+                next = null;
+                merged.close();
             }
+        };
+    }
+
+    /**
+     * Takes a snapshot of the tree as of the last completed write. Close it when done, so that the versions
+     * only it can see are reclaimed by later flushes and compactions.
+     */
+    public Snapshot getSnapshot() {
+        synchronized (snapshots) {
+            long sequence = lastSequence;
+            snapshots.merge(sequence, 1, Integer::sum);
+            return new Snapshot(this, sequence);
         }
+    }
 
-        return validKeysInMemTable;
+    void releaseSnapshot(long sequence) {
+        synchronized (snapshots) {
+            snapshots.computeIfPresent(sequence, (s, count) -> count == 1 ? null : count - 1);
+        }
     }
+
     /**
-     * Getter for memTable to allow access to the in-memory store.
+     * The sequence of the oldest open snapshot, or of the last write if none is open. Versions that are
+     * shadowed at this sequence are not visible to any reader and can be dropped.
      */
-// Getter for memTable to allow access to the in-memory store.
-    public synchronized TreeMap<String, String> getMemTable() {
-        return memTable;
+    long smallestSnapshot() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? lastSequence : snapshots.firstKey();
+        }
     }
 
     /**
-     * Getter for sstables to allow access to the list of SSTables.
+     * The sequence number of the last write.
      */
-    public synchronized List<SSTable> getSSTables() {
-        return sstables;
+    public long getLastSequence() {
+        return lastSequence;
     }
 
+    /**
+     * Flushes the memTable and links the tables of the resulting Version into directory, which is created
+     * for them. Every write made before the call is in the checkpoint, which is labelled with sequence.
+     */
+    public Checkpoint checkpoint(File target, long sequence) throws IOException {
+        flushMemTable();
+        if (!target.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + target);
+        }
+        List<List<String>> levels = new ArrayList<>();
+        // Compactions delete tables only after installing a Version without them, which takes this lock
+        synchronized (versionLock) {
+            Version version = current;
+            for (int level = 0; level < version.numLevels(); level++) {
+                List<String> names = new ArrayList<>();
+                for (SSTable table : version.level(level)) {
+                    File file = table.getFile();
+                    Checkpoint.linkOrCopy(file, new File(target, file.getName()));
+                    File filter = SSTable.filterFileFor(file);
+                    if (filter.exists()) {
+                        Checkpoint.linkOrCopy(filter, new File(target, filter.getName()));
+                    }
+                    names.add(file.getName());
+                }
+                levels.add(Collections.unmodifiableList(names));
+            }
+        }
+        return new Checkpoint(target, Collections.unmodifiableList(levels), sequence);
+    }
 
     /**
-     * Flushes the memTable to disk by creating a new SSTable.
+     * Replaces the whole contents of the tree with the tables of a checkpoint, whose files are moved into
+     * the data directory. Writes wait until it is done, and onInstalled runs before they resume, e.g. to
+     * discard the write ahead log of the replaced contents.
      */
-    private void flushMemTableToDisk() throws IOException {
-        SSTable newTable = SSTable.createFromMemTable(memTable);
-        sstables.add(newTable);
-        memTable.clear();
+    public void installCheckpoint(Checkpoint checkpoint, LogAction onInstalled) throws IOException {
+        if (checkpoint.getLevels().size() > config.getNumLevels()) {
+            throw new IOException("Checkpoint has " + checkpoint.getLevels().size() + " levels but only "
+                    + config.getNumLevels() + " are configured");
+        }
+        switchLock.writeLock().lock();
+        try {
+            // Nothing may flush or compact the contents being replaced; no compaction starts before the next flush
+            awaitFlush();
+            awaitCompactions();
+            List<List<SSTable>> levels = new ArrayList<>();
+            for (int level = 0; level < config.getNumLevels(); level++) {
+                List<SSTable> tables = new ArrayList<>();
+                if (level < checkpoint.getLevels().size()) {
+                    for (String name : checkpoint.getLevels().get(level)) {
+                        File source = new File(checkpoint.getDirectory(), name);
+                        File target = newTableFile();
+                        File filter = SSTable.filterFileFor(source);
+                        if (filter.exists()) {
+                            Files.move(filter.toPath(), SSTable.filterFileFor(target).toPath());
+                        }
+                        Files.move(source.toPath(), target.toPath());
+                        tables.add(SSTable.loadFromFile(target, comparator));
+                    }
+                }
+                attach(tables);
+                levels.add(tables);
+            }
+
+            // Writes made from now on must be newer than every version of the installed tables
+            synchronized (sequenceLock) {
+                long sequence = lastSequence;
+                for (List<SSTable> tables : levels) {
+                    for (SSTable table : tables) {
+                        sequence = Math.max(sequence, table.getMaxSequence());
+                    }
+                }
+                lastSequence = sequence;
+                allocatedSequence = sequence;
+            }
+            Version replaced;
+            synchronized (versionLock) {
+                replaced = current;
+                Version version = Version.of(levels);
+                manifest.reset(version, nextFileNumber.get(), lastSequence);
+                current = version;
+            }
+            MemTable discarded = activeMemTable;
+            activeMemTable = MemTable.create(config.getMemTableType(), comparator);
+            discarded.release();
+            onInstalled.log();
+            retire(replaced.allOldestFirst());
+            for (SSTable table : replaced.allOldestFirst()) {
+                table.delete();  // Readers still holding the old Version keep their mappings
+            }
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * The order of the keys in the tree.
+     */
+    public KeyComparator getComparator() {
+        return comparator;
+    }
+
+    /**
+     * Returns the active memTable, which receives new writes.
+     */
+    public MemTable getMemTable() {
+        return activeMemTable;
+    }
+
+    /**
+     * Getter for sstables to allow access to the list of SSTables, ordered from oldest to newest data.
+     */
+    public List<SSTable> getSSTables() {
+        return current.allOldestFirst();
+    }
+
+    /**
+     * Returns the current set of SSTables by level. The returned Version never changes.
+     */
+    public Version getVersion() {
+        return current;
+    }
+
+    /**
+     * Number of table probes where the bloom filter passed and the key was found.
+     */
+    public long getBloomFilterHits() {
+        return bloomUsefulHits.sum();
+    }
+
+    /**
+     * Number of table probes skipped because the bloom filter ruled the key out.
+     */
+    public long getBloomFilterTrueNegatives() {
+        return bloomTrueNegatives.sum();
+    }
+
+    /**
+     * Number of table probes where the bloom filter passed but the table did not hold the key.
+     */
+    public long getBloomFilterFalsePositives() {
+        return bloomFalsePositives.sum();
+    }
+
+    /**
+     * Number of memTables flushed to SSTables since the tree was opened.
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Bytes of SSTables written by memTable flushes since the tree was opened.
+     */
+    public long getFlushedBytes() {
+        return flushedBytes.get();
+    }
+
+    /**
+     * Number of compactions completed since the tree was opened.
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * Durations of the memTable flushes, from freezing the memTable's contents into a file to installing it.
+     */
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+    /**
+     * Durations of the compactions, from picking the inputs to installing the outputs.
+     */
+    public LatencyHistogram getCompactionLatency() {
+        return compactionLatency;
+    }
+
+    /**
+     * Returns the tree's work counters since it was opened. Bytes written to a write ahead log are not
+     * known to the tree; see {@link EngineStats#withWalBytesWritten(long)}.
+     */
+    public EngineStats getStats() {
+        long blocksDecompressed = retiredBlocksDecompressed.get();
+        long decompressNanos = retiredDecompressNanos.get();
+        for (SSTable table : current.allOldestFirst()) {
+            blocksDecompressed += table.getBlocksDecompressed();
+            decompressNanos += table.getDecompressNanos();
+        }
+        return new EngineStats(userBytesWritten.sum(), 0, flushCount.get(), flushedBytes.get(),
+                flushLatency.getTotalNanos(), compactionCount.get(), compactionBytesRead.get(),
+                compactionBytesWritten.get(), compactionLatency.getTotalNanos(), gets.sum(), tablesChecked.sum(),
+                tablesRead.sum(), scans.sum(), tablesScanned.sum(), blockBytesRaw.get(), blockBytesStored.get(),
+                compressNanos.get(), blocksDecompressed, decompressNanos,
+                blockCache == null ? 0 : blockCache.getHitCount(), blockCache == null ? 0 : blockCache.getMissCount());
+    }
+
+    /**
+     * The cache of decompressed SSTable blocks, or null if it is disabled.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Reads every table of the current Version to tell how many of its bytes are live and how many are
+     * tombstones, expired values or shadowed versions, by merging all tables and memTables like a full compaction would.
+     * This reads all data on disk, so it is meant for tooling, not for every request.
+     */
+    public List<TableStats> computeTableStats() {
+        List<MemTable> memTables = new ArrayList<>();
+        memTables.add(activeMemTable);
+        MemTable immutable = immutableMemTable;
+        if (immutable != null) {
+            memTables.add(immutable);
+        }
+        Version version = current;
+
+        // Sources newest first; memTables only shadow, they have no file to account for
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        List<SSTable> owners = new ArrayList<>();
+        List<Integer> levels = new ArrayList<>();
+        for (MemTable memTable : memTables) {
+            sources.add(memTable.iterator());
+            owners.add(null);
+            levels.add(-1);
+        }
+        for (int level = 0; level < version.numLevels(); level++) {
+            for (SSTable table : version.level(level)) {
+                sources.add(table.uncachedIterator());
+                owners.add(table);
+                levels.add(level);
+            }
+        }
+
+        long[][] counts = new long[sources.size()][4];  // liveEntries, liveBytes, deadEntries, deadBytes
+        Entry[] heads = new Entry[sources.size()];
+        Comparator<Entry> order = Entry.internalOrder(comparator);
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            int cmp = order.compare(heads[a[0]], heads[b[0]]);
+            return cmp != 0 ? cmp : Integer.compare(a[0], b[0]);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).hasNext()) {
+                heads[i] = sources.get(i).next();
+                heap.add(new int[]{i});
+            }
+        }
+        byte[] currentKey = null;
+        long now = System.currentTimeMillis();
+        while (!heap.isEmpty()) {
+            int[] head = heap.poll();
+            int source = head[0];
+            Entry entry = heads[source];
+            boolean newest = currentKey == null || comparator.compare(entry.getKeyBytes(), currentKey) != 0;
+            currentKey = entry.getKeyBytes();
+            int slot = newest && entry.isLive(now) ? 0 : 2;
+            counts[source][slot]++;
+            counts[source][slot + 1] += SSTable.recordSize(entry);
+            if (sources.get(source).hasNext()) {
+                heads[source] = sources.get(source).next();
+                heap.add(head);
+            }
+        }
+
+        List<TableStats> stats = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            SSTable table = owners.get(i);
+            if (table != null) {
+                stats.add(new TableStats(table.getFile().getName(), levels.get(i), table.getSizeBytes(),
+                        counts[i][0], counts[i][1], counts[i][2], counts[i][3]));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Whether a frozen memTable is waiting for or being flushed.
+     */
+    public boolean isFlushPending() {
+        return immutableMemTable != null;
+    }
+
+    /**
+     * Blocks until the compactions scheduled so far have finished. Mostly useful for tests and tooling.
+     */
+    public void awaitCompactions() throws IOException {
+        try {
+            compactionExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compactions", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops background flushes and compactions, letting running ones finish first, and closes the manifest.
+     * Records still in the memTable are not flushed; see {@link #flushMemTable()}.
+     */
+    public void close() throws IOException {
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("MemTable flush did not finish in the specified time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionExecutor.shutdown();
+        try {
+            if (!compactionExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Compaction did not finish in the specified time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (versionLock) {
+            manifest.close();
+        }
+    }
+
+    /**
+     * Flushes a frozen memTable to disk by creating a new level 0 SSTable. Readers keep reading the
+     * memTable until the new table is installed.
+     */
+    private void flushMemTableToDisk(MemTable memTable) throws IOException {
+        long start = System.nanoTime();
+        SSTable newTable = SSTable.createFromMemTable(newTableFile(), memTable, config.getBloomBitsPerKey(),
+                smallestSnapshot(), config.getBlockCodec());
+        installVersion(new Manifest.Edit(0, List.of(newTable), List.of()));
+        countWritten(newTable);
+        flushCount.incrementAndGet();
+        flushedBytes.addAndGet(newTable.getSizeBytes());
+        flushLatency.recordSince(start);
+        synchronized (flushMonitor) {
+            immutableMemTable = null;
+            memTable.release();  // Readers that still hold it keep it until they are done
+            flushMonitor.notifyAll();  // Once a flush is awaited, its memTable is released
+        }
+        scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (compactor.pick(current) != null && !compactionExecutor.isShutdown()) {
+            compactionExecutor.execute(compactor::compactUntilBalanced);
+        }
+    }
+
+    /**
+     * Atomically replaces the compaction inputs with its outputs. Readers keep using the Version they hold.
+     * The compaction started at startNanos, a value of {@link System#nanoTime()}.
+     */
+    void installCompaction(Collection<SSTable> inputs, int outputLevel, List<SSTable> outputs, long startNanos)
+            throws IOException {
+        installVersion(new Manifest.Edit(outputLevel, outputs, inputs));
+        compactionCount.incrementAndGet();
+        for (SSTable input : inputs) {
+            compactionBytesRead.addAndGet(input.getSizeBytes());
+        }
+        retire(inputs);
+        for (SSTable output : outputs) {
+            compactionBytesWritten.addAndGet(output.getSizeBytes());
+            countWritten(output);
+        }
+        compactionLatency.recordSince(startNanos);
+    }
+
+    // Adds the blocks of a table just written to the compression counters
+    private void countWritten(SSTable table) {
+        blockBytesRaw.addAndGet(table.getRawDataBytes());
+        blockBytesStored.addAndGet(table.getDataBytes());
+        compressNanos.addAndGet(table.getCompressNanos());
+    }
+
+    // Lets tables entering the tree use the block cache
+    private void attach(Collection<SSTable> tables) {
+        if (blockCache != null) {
+            for (SSTable table : tables) {
+                table.setBlockCache(blockCache);
+            }
+        }
+    }
+
+    // Keeps the decompression counters of tables leaving the tree, and takes them out of the block cache
+    private void retire(Collection<SSTable> tables) {
+        for (SSTable table : tables) {
+            retiredBlocksDecompressed.addAndGet(table.getBlocksDecompressed());
+            retiredDecompressNanos.addAndGet(table.getDecompressNanos());
+            table.setBlockCache(null);
+        }
+    }
+
+    /**
+     * Logs an edit to the manifest and then makes the Version it produces current. The edit is durable
+     * before any file it removes is deleted, and before the log segments of a flush are dropped.
+     */
+    private void installVersion(Manifest.Edit edit) throws IOException {
+        synchronized (versionLock) {
+            Version version = edit.applyTo(current);
+            manifest.log(edit, nextFileNumber.get(), lastSequence, version);
+            current = version;
+        }
+        attach(edit.added);
+    }
+
+    /**
+     * Skips the versions written after the sequence a read is made at.
+     */
+    private static final class VisibleVersions implements ScanIterator {
+        private final Iterator<Entry> source;
+        private final long sequence;
+        private Entry next;
+
+        VisibleVersions(Iterator<Entry> source, long sequence) {
+            this.source = source;
+            this.sequence = sequence;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && source.hasNext()) {
+                Entry entry = source.next();
+                if (entry.getSequence() <= sequence) {
+                    next = entry;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry current = next;
+            advance();
+            return current;
+        }
+
+        @Override
+        public void close() {
+            next = null;
+            ScanIterator.close(source);
+        }
+    }
+
+    /**
+     * Maps the tables of the recovered Version and reads their indexes and filters on a few background
+     * threads, so the tree serves requests right away and reaches full speed shortly after.
+     */
+    private void loadTablesInBackground() {
+        List<SSTable> tables = current.allOldestFirst();
+        if (tables.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(tables.size(), Math.max(1, Runtime.getRuntime().availableProcessors()));
+        ExecutorService loader = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sstable-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Newest tables first: they serve most reads
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            SSTable table = tables.get(i);
+            loader.execute(() -> {
+                try {
+                    table.load();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Cannot open SSTable " + table.getFile() + ": " + e.getMessage());
+                }
+            });
+        }
+        loader.shutdown();  // Threads exit once every table is loaded
+    }
+
+    /**
+     * Removes table files that the manifest does not reference, i.e. leftovers of flushes or compactions
+     * interrupted by a crash, and of compactions whose inputs were not deleted yet.
+     */
+    private void deleteObsoleteFiles() throws IOException {
+        Set<String> live = new HashSet<>();
+        for (SSTable table : current.allOldestFirst()) {
+            live.add(table.getFile().getName());
+        }
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                boolean tableFile = name.endsWith(".sstable") || name.endsWith(".filter") || name.endsWith(".sstable.tmp");
+                String tableName = name.endsWith(".filter") ? name.replace(".filter", ".sstable") : name;
+                if (tableFile && !live.contains(tableName)) {
+                    Files.deleteIfExists(new File(directory, name).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocates the file for a new SSTable. File numbers increase monotonically.
+     */
+    File newTableFile() {
+        return new File(directory, String.format("%06d.sstable", nextFileNumber.getAndIncrement()));
+    }
+
+    private long highestFileNumber() {
+        long highest = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("\\d+\\.sstable")) {
+                    highest = Math.max(highest, Long.parseLong(name.substring(0, name.indexOf('.'))));
+                }
+            }
+        }
+        return highest;
     }
 }
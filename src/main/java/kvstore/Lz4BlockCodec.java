@@ -0,0 +1,211 @@
+package kvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lz4BlockCodec writes the LZ4 block format in plain Java: a series of sequences, each a token, literal
+ * bytes copied as they are, and a match that repeats 4 or more bytes found up to 64 KB back.
+ *
+ * <pre>
+ * sequence : token:byte [literalLen:byte*] literals:bytes offset:short(LE) [matchLen:byte*]
+ * token    : literal length (high 4 bits) and match length - 4 (low 4 bits); 15 means more length bytes
+ *            follow, each added to it, until one is below 255
+ * </pre>
+ *
+ * The last sequence has literals only, and the last 5 bytes of the input are always literals. The
+ * compressor is the greedy single-pass one of the reference implementation: a hash of the next 4 bytes
+ * finds the last position they occurred at, and a candidate is taken as soon as it matches. It favours
+ * speed over ratio, which suits the repetitive records of a data block.
+ */
+final class Lz4BlockCodec implements BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;      // Bytes at the end that are always literals
+    private static final int MATCH_FIND_LIMIT = 12;  // No match starts within this many bytes of the end
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;       // Step faster through input that does not match
+
+    // Last position of every hashed 4-byte sequence, per compressing thread
+    private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "lz4";
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst) {
+        int anchor = 0;  // Start of the literals not yet written
+        int op = 0;
+        if (length >= MATCH_FIND_LIMIT + 1) {
+            int[] table = HASH_TABLE.get();
+            Arrays.fill(table, -1);
+            int matchFindLimit = length - MATCH_FIND_LIMIT;
+            int matchLimit = length - LAST_LITERALS;
+            int ip = 0;
+            while (ip < matchFindLimit) {
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = table[hash];
+                table[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 < matchFindLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+        return writeSequence(src, anchor, length - anchor, 0, 0, dst, op);
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, int offset, int length, byte[] dst, int dstLength) throws IOException {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        while (true) {
+            if (ip >= end) {
+                throw corrupt("truncated sequence");
+            }
+            int token = src.get(ip++) & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw corrupt("truncated literal length");
+                    }
+                    b = src.get(ip++) & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > end - ip || literalLength > dstLength - op) {
+                throw corrupt("literals overrun the block");
+            }
+            src.get(ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == end) {
+                break;  // The last sequence has no match
+            }
+
+            if (end - ip < 2) {
+                throw corrupt("truncated match offset");
+            }
+            int matchOffset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+            ip += 2;
+            if (matchOffset == 0 || matchOffset > op) {
+                throw corrupt("match offset " + matchOffset + " out of range");
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw corrupt("truncated match length");
+                    }
+                    b = src.get(ip++) & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstLength - op) {
+                throw corrupt("match overruns the block");
+            }
+            int ref = op - matchOffset;
+            if (matchOffset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+            } else {
+                for (int i = 0; i < matchLength; i++) {  // Overlapping copy repeats the last matchOffset bytes
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+        if (op != dstLength) {
+            throw corrupt("decompressed to " + op + " bytes, expected " + dstLength);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /**
+     * Writes literals followed by a match, or literals only if matchLength is 0, and returns the new output
+     * position.
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int matchOffset,
+                                     int matchLength, byte[] dst, int op) {
+        int token = op++;
+        if (literalLength >= 15) {
+            dst[token] = (byte) 0xF0;
+            op = writeLength(literalLength - 15, dst, op);
+        } else {
+            dst[token] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength == 0) {
+            return op;
+        }
+
+        dst[op++] = (byte) matchOffset;
+        dst[op++] = (byte) (matchOffset >>> 8);
+        int length = matchLength - MIN_MATCH;
+        if (length >= 15) {
+            dst[token] |= 0x0F;
+            op = writeLength(length - 15, dst, op);
+        } else {
+            dst[token] |= (byte) length;
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int pos) {
+        return (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8 | (src[pos + 2] & 0xFF) << 16 | src[pos + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);  // Knuth's multiplicative hash, 2654435761
+    }
+
+    private static IOException corrupt(String reason) {
+        return new IOException("Corrupt LZ4 block: " + reason);
+    }
+}
@@ -0,0 +1,296 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Manifest is the durable history of an LSMTree's {@link Version}s: a log of version edits, each adding
+ * the tables written by a flush or compaction and removing the tables they replace.
+ *
+ * <pre>
+ * record : length:int crc32c:int edit:bytes     (framed like the write ahead log)
+ * edit   : level:int nextFileNumber:long addCount:int { table }* removeCount:int { name }* lastSequence:long comparator
+ * table  : name firstKey lastKey entryCount:long sizeBytes:long   (names and keys are length-prefixed bytes)
+ * </pre>
+ *
+ * Every edit records the key range and size of the tables it adds, so replaying the manifest rebuilds
+ * the levels without opening a single table; {@link SSTable#openLazily} defers that to the first read.
+ * Edits also record the last sequence number handed out, so a restarted tree stamps new writes above every
+ * version its tables hold; manifests written before sequences existed end without it. The name of the
+ * {@link KeyComparator} the tables are sorted by ends every edit, and a tree opened with another one fails
+ * instead of misreading them; older manifests, which lack it, were written in bytewise order.
+ * An edit is forced to disk before the tree uses the new Version, and before files it removes are deleted.
+ * Once the log holds many edits it is rewritten as a single snapshot edit of the live tables.
+ */
+final class Manifest implements Closeable {
+    static final String FILE_NAME = "MANIFEST";
+    private static final int HEADER_SIZE = 8;  // length + crc
+    private static final int MAX_EDITS_BEFORE_REWRITE = 1000;
+
+    private final File directory;
+    private final File file;
+    private final KeyComparator comparator;
+    private FileChannel channel;
+    private int editCount;
+    private long nextFileNumber;
+    private long lastSequence;
+
+    /**
+     * Adds tables to a level and removes tables from any level. Tables added to level 0 become its
+     * newest tables, the last one added being the newest.
+     */
+    static final class Edit {
+        final int level;
+        final List<SSTable> added;
+        final Collection<SSTable> removed;
+
+        Edit(int level, List<SSTable> added, Collection<SSTable> removed) {
+            this.level = level;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        Version applyTo(Version version) {
+            if (level > 0 || !removed.isEmpty()) {
+                return version.withCompaction(removed, level, added);
+            }
+            for (SSTable table : added) {
+                version = version.withFlushedTable(table);
+            }
+            return version;
+        }
+    }
+
+    Manifest(File directory, KeyComparator comparator) {
+        this.directory = directory;
+        this.comparator = comparator;
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Replays the manifest into the Version it describes, with every table opened lazily, and opens the
+     * manifest for new edits. A torn edit at the end, left by a crash while logging it, is discarded.
+     */
+    Version recover(int numLevels) throws IOException {
+        Version version = Version.empty(numLevels);
+        Map<String, SSTable> live = new HashMap<>();
+        long validLength = 0;
+        if (file.exists()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            while (data.remaining() >= HEADER_SIZE) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                data.get(payload);
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("MANIFEST: checksum mismatch, ignoring the rest of the log");
+                    break;
+                }
+                version = replay(ByteBuffer.wrap(payload), version, live, numLevels);
+                validLength = data.position();
+                editCount++;
+            }
+        }
+
+        boolean created = !file.exists();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (created) {
+            Directories.sync(directory);
+        }
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return version;
+    }
+
+    private Version replay(ByteBuffer edit, Version version, Map<String, SSTable> live, int numLevels)
+            throws IOException {
+        int level = edit.getInt();
+        if (level >= numLevels) {
+            throw new IOException("MANIFEST references level " + level + " but only " + numLevels
+                    + " levels are configured");
+        }
+        nextFileNumber = Math.max(nextFileNumber, edit.getLong());
+        List<SSTable> added = new ArrayList<>();
+        int addCount = edit.getInt();
+        for (int i = 0; i < addCount; i++) {
+            String name = readString(edit);
+            byte[] firstKey = readBytes(edit);
+            byte[] lastKey = readBytes(edit);
+            long entryCount = edit.getLong();
+            long sizeBytes = edit.getLong();
+            SSTable table = SSTable.openLazily(new File(directory, name), firstKey, lastKey, entryCount, sizeBytes,
+                    comparator);
+            added.add(table);
+            live.put(name, table);
+        }
+        List<SSTable> removed = new ArrayList<>();
+        int removeCount = edit.getInt();
+        for (int i = 0; i < removeCount; i++) {
+            SSTable table = live.remove(readString(edit));
+            if (table != null) {
+                removed.add(table);
+            }
+        }
+        if (edit.remaining() >= 8) {
+            lastSequence = Math.max(lastSequence, edit.getLong());
+        }
+        String comparatorName = edit.remaining() >= 4 ? readString(edit) : KeyComparator.BYTEWISE.name();
+        if (!comparatorName.equals(comparator.name())) {
+            throw new IOException("MANIFEST was written with key comparator " + comparatorName + ", not "
+                    + comparator.name());
+        }
+        return new Edit(level, added, removed).applyTo(version);
+    }
+
+    /**
+     * Durably logs an edit. Called with the tree's version lock held, so edits are logged in the order
+     * they are applied. {@code nextFileNumber} is the lowest file number not yet handed out, and
+     * {@code lastSequence} at least the highest sequence in any table.
+     */
+    void log(Edit edit, long nextFileNumber, long lastSequence, Version result) throws IOException {
+        this.nextFileNumber = nextFileNumber;
+        this.lastSequence = lastSequence;
+        if (editCount >= MAX_EDITS_BEFORE_REWRITE) {
+            rewrite(result);
+            return;
+        }
+        append(channel, encode(edit, nextFileNumber, lastSequence));
+        channel.force(false);
+        editCount++;
+    }
+
+    /**
+     * Replaces the whole history with the given Version, e.g. one installed from a checkpoint.
+     */
+    void reset(Version version, long nextFileNumber, long lastSequence) throws IOException {
+        this.nextFileNumber = nextFileNumber;
+        this.lastSequence = lastSequence;
+        rewrite(version);
+    }
+
+    /**
+     * The lowest file number that was not handed out when the last edit was logged.
+     */
+    long getNextFileNumber() {
+        return nextFileNumber;
+    }
+
+    /**
+     * The last sequence number handed out when the last edit was logged, 0 for an empty tree.
+     */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Replaces the log with one edit per level that adds the level's tables, written to a temporary file
+     * and renamed into place.
+     */
+    private void rewrite(Version version) throws IOException {
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        FileChannel snapshot = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            int edits = 0;
+            for (int level = version.numLevels() - 1; level >= 0; level--) {
+                List<SSTable> tables = new ArrayList<>(version.level(level));
+                if (level == 0) {
+                    Collections.reverse(tables);  // Replayed oldest first, so the newest ends up in front
+                }
+                if (!tables.isEmpty() || level == 0) {
+                    append(snapshot, encode(new Edit(level, tables, List.of()), nextFileNumber, lastSequence));
+                    edits++;
+                }
+            }
+            snapshot.force(true);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Directories.sync(directory);  // The rename itself must survive a crash before the old log is dropped
+            channel.close();
+            channel = snapshot;
+            editCount = edits;
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+    }
+
+    private byte[] encode(Edit edit, long nextFileNumber, long lastSequence) {
+        List<byte[]> strings = new ArrayList<>();
+        byte[] comparatorName = comparator.name().getBytes(StandardCharsets.UTF_8);
+        int size = 4 + 8 + 4 + 4 + 8 + 4 + comparatorName.length;
+        for (SSTable table : edit.added) {
+            byte[] name = table.getFile().getName().getBytes(StandardCharsets.UTF_8);
+            for (byte[] bytes : new byte[][]{name, table.getFirstKeyBytes(), table.getLastKeyBytes()}) {
+                strings.add(bytes);
+                size += 4 + bytes.length;
+            }
+            size += 16;
+        }
+        for (SSTable table : edit.removed) {
+            byte[] bytes = table.getFile().getName().getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        Iterator<byte[]> next = strings.iterator();
+        buffer.putInt(edit.level).putLong(nextFileNumber).putInt(edit.added.size());
+        for (SSTable table : edit.added) {
+            for (int i = 0; i < 3; i++) {
+                byte[] bytes = next.next();
+                buffer.putInt(bytes.length).put(bytes);
+            }
+            buffer.putLong(table.getEntryCount()).putLong(table.getSizeBytes());
+        }
+        buffer.putInt(edit.removed.size());
+        while (next.hasNext()) {
+            byte[] bytes = next.next();
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        buffer.putLong(lastSequence);
+        buffer.putInt(comparatorName.length).put(comparatorName);
+        return buffer.array();
+    }
+
+    private static void append(FileChannel target, byte[] payload) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer framed = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        framed.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (framed.hasRemaining()) {
+            target.write(framed);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package kvstore;
+
+/**
+ * MemTable holds the most recent writes of an LSMTree in memory, sorted by its {@link KeyComparator},
+ * until they are flushed to an SSTable. Deleted keys are kept as tombstone entries so that they shadow older values in the
+ * SSTables.
+ *
+ * Every write is kept as its own version, stamped with its sequence number, and the versions of a key are
+ * ordered newest first ({@link Entry#INTERNAL_ORDER}). Reads pass the sequence they read at and see the
+ * newest version that is not newer than it.
+ *
+ * A memTable is written while it is the tree's active memTable, by one writer at a time, and read
+ * concurrently. The tree inserts without holding a lock: writes take turns in the order of their
+ * sequences, each one waiting until the write before it is visible, so only the write whose turn it is
+ * inserts. Once frozen a memTable is only read, by lookups and by the background flush that turns it into
+ * an SSTable, and then released. The implementation is picked by
+ * {@link StoreConfig#setMemTableType(MemTableType)}.
+ */
+public interface MemTable {
+    /**
+     * Creates an empty memTable of the given type, ordered bytewise.
+     */
+    static MemTable create(MemTableType type) {
+        return create(type, KeyComparator.BYTEWISE);
+    }
+
+    /**
+     * Creates an empty memTable of the given type whose keys are ordered by the comparator.
+     */
+    static MemTable create(MemTableType type, KeyComparator comparator) {
+        switch (type) {
+            case ARENA:
+                return new ArenaMemTable(comparator);
+            case SKIP_LIST:
+            default:
+                return new SkipListMemTable(comparator);
+        }
+    }
+
+    /**
+     * Inserts a new version of a key that never expires. A null value records a tombstone.
+     */
+    default void put(byte[] key, byte[] value, long sequence) {
+        put(key, value, sequence, 0);
+    }
+
+    /**
+     * Inserts a new version of a key whose value expires at the given time, in milliseconds since the
+     * epoch, or never if it is 0.
+     */
+    void put(byte[] key, byte[] value, long sequence, long expiresAt);
+
+    /**
+     * Inserts a new version of a key, encoded as UTF-8.
+     */
+    default void put(String key, String value, long sequence) {
+        put(Entry.utf8(key), Entry.utf8(value), sequence);
+    }
+
+    /**
+     * Returns the newest entry of a key, whose value is null if the key was deleted, or null if this
+     * memTable holds nothing for the key.
+     */
+    default Entry get(String key) {
+        return get(Entry.utf8(key), Long.MAX_VALUE);
+    }
+
+    default Entry get(String key, long sequence) {
+        return get(Entry.utf8(key), sequence);
+    }
+
+    /**
+     * Returns the newest entry of a key written at or before the given sequence, or null if there is none.
+     */
+    Entry get(byte[] key, long sequence);
+
+    /**
+     * The order of the keys.
+     */
+    KeyComparator comparator();
+
+    /**
+     * Number of versions held, overwritten and deleted ones included.
+     */
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Bytes of keys and values written into this memTable, overwritten values included.
+     */
+    long getApproximateBytes();
+
+    /**
+     * Returns every version (including tombstones) of the keys in [startKey, endKey], in internal order.
+     * A null bound leaves that end of the range open. The iterator is weakly consistent: it reflects some,
+     * but not necessarily all, concurrent writes. A reader that stops before the end closes it, so that
+     * the memTable can be freed once released.
+     */
+    ScanIterator iterator(byte[] startKey, byte[] endKey);
+
+    default ScanIterator iterator(String startKey, String endKey) {
+        return iterator(Entry.utf8(startKey), Entry.utf8(endKey));
+    }
+
+    /**
+     * Returns every version of every key, including tombstones, in internal order.
+     */
+    ScanIterator iterator();
+
+    /**
+     * Called once the memTable's contents are in an SSTable, or discarded, and the tree no longer hands it
+     * to new readers. Readers that picked it up before may still be using it.
+     */
+    default void release() {
+    }
+}
@@ -0,0 +1,21 @@
+package kvstore;
+
+import java.io.IOException;
+
+/**
+ * MemTableListener lets the owner of the write ahead log follow the memTable lifecycle of an LSMTree,
+ * so that log segments can be retired as soon as the data they protect is stored in an SSTable.
+ */
+public interface MemTableListener {
+    /**
+     * Called when the memTable is about to be flushed, while no write is in flight. Every record logged
+     * so far is in the memTable being flushed. Returns a marker that is handed back to
+     * {@link #onMemTableFlushed(long)}, e.g. the id of the log segment that starts after this memTable.
+     */
+    long onMemTableFrozen() throws IOException;
+
+    /**
+     * Called once the memTable frozen with the given marker is durable in an SSTable.
+     */
+    void onMemTableFlushed(long marker) throws IOException;
+}
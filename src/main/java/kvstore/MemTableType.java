@@ -0,0 +1,18 @@
+package kvstore;
+
+/**
+ * MemTableType selects how an LSMTree keeps its memTables, see {@link MemTable}.
+ */
+public enum MemTableType {
+    /**
+     * Versions are entries of a concurrent skip list on the heap. Each write allocates a few objects that
+     * live until the memTable is flushed.
+     */
+    SKIP_LIST,
+
+    /**
+     * Keys, values and a skip list over them are packed into a few large off-heap slabs, freed together
+     * once the memTable is flushed; see {@link ArenaMemTable}.
+     */
+    ARENA
+}
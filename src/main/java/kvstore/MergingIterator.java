@@ -0,0 +1,98 @@
+package kvstore;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * MergingIterator performs a k-way merge of sorted entry iterators into a single sorted stream.
+ * Sources are given newest first and in internal order ({@link Entry#internalOrder}): the versions of a key come
+ * out newest sequence first, and between equal sequences the entry of the newest source wins. Unless all
+ * versions are requested, only the first version of every key is returned and the older ones are skipped.
+ * Tombstones are passed through so that callers can decide whether to honour or drop them. Closing it
+ * closes the sources that are {@link ScanIterator}s.
+ */
+public class MergingIterator implements ScanIterator {
+    private final List<? extends Iterator<Entry>> sources;
+    private final PriorityQueue<Head> heap;
+    private final boolean allVersions;
+    private final KeyComparator comparator;
+
+    private static final class Head {
+        final Iterator<Entry> source;
+        final int priority;  // Lower is newer
+        Entry entry;
+
+        Head(Iterator<Entry> source, int priority) {
+            this.source = source;
+            this.priority = priority;
+            this.entry = source.next();
+        }
+    }
+
+    public MergingIterator(List<? extends Iterator<Entry>> sources) {
+        this(sources, false, KeyComparator.BYTEWISE);
+    }
+
+    public MergingIterator(List<? extends Iterator<Entry>> sources, KeyComparator comparator) {
+        this(sources, false, comparator);
+    }
+
+    /**
+     * Merges the sources, whose keys are ordered by the comparator, returning every version of a key if
+     * allVersions is set, e.g. for a compaction that has to keep the versions snapshots still read.
+     */
+    public MergingIterator(List<? extends Iterator<Entry>> sources, boolean allVersions, KeyComparator comparator) {
+        this.sources = sources;
+        this.allVersions = allVersions;
+        this.comparator = comparator;
+        Comparator<Entry> order = Entry.internalOrder(comparator);
+        heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            int cmp = order.compare(a.entry, b.entry);
+            return cmp != 0 ? cmp : Integer.compare(a.priority, b.priority);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).hasNext()) {
+                heap.add(new Head(sources.get(i), i));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public Entry next() {
+        Head head = heap.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        Entry result = head.entry;
+        advance(head);
+        // Drop the shadowed versions of the same key, or only copies of the same version
+        while (!heap.isEmpty() && comparator.compare(heap.peek().entry.getKeyBytes(), result.getKeyBytes()) == 0
+                && (!allVersions || heap.peek().entry.getSequence() == result.getSequence())) {
+            advance(heap.poll());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        heap.clear();
+        for (Iterator<Entry> source : sources) {
+            ScanIterator.close(source);
+        }
+    }
+
+    private void advance(Head head) {
+        if (head.source.hasNext()) {
+            head.entry = head.source.next();
+            heap.add(head);
+        }
+    }
+}
@@ -9,15 +9,41 @@ public class Node {
         this.store = store;
     }
 
+    // A node in another process, reached at its "host:port" address
+    public Node(String address) {
+        this(address, null);
+    }
+
     public String getAddress() {
         return address;
     }
 
+    public String getHost() {
+        return address.substring(0, separator());
+    }
+
+    public int getPort() {
+        try {
+            return Integer.parseInt(address.substring(separator() + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid node address, expected host:port: " + address);
+        }
+    }
+
     public KeyValueStore getStore() {
         return store;
     }
 
+    // A remote node counts as active; whether it can be reached shows when it is used
     public boolean isActive() {
-        return store.isActive();
+        return store == null || store.isActive();
+    }
+
+    private int separator() {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid node address, expected host:port: " + address);
+        }
+        return colon;
     }
 }
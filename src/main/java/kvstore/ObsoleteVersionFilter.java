@@ -0,0 +1,69 @@
+package kvstore;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * ObsoleteVersionFilter drops the versions no reader can see anymore from a stream of entries in
+ * internal order, as a flush or compaction writes them out. A version is obsolete once a
+ * newer version of its key is visible to the oldest live snapshot: every snapshot, and every read made
+ * from now on, sees that newer version instead. Tombstones visible to every snapshot are dropped too
+ * when the output holds the oldest data of the tree, since there is nothing left for them to shadow.
+ * Values that expired by the time the filter was created are written as tombstones, and dropped like them:
+ * every read hides them already, so only the tombstone's shadowing of older versions is left to keep.
+ */
+class ObsoleteVersionFilter implements Iterator<Entry> {
+    private final Iterator<Entry> source;
+    private final long smallestSnapshot;
+    private final boolean dropTombstones;
+    private final KeyComparator comparator;
+    private final long now;
+    private byte[] currentKey;
+    private long previousSequence;  // Of the last version of currentKey, kept or not
+    private Entry next;
+
+    ObsoleteVersionFilter(Iterator<Entry> source, long smallestSnapshot, boolean dropTombstones,
+                          KeyComparator comparator, long now) {
+        this.source = source;
+        this.smallestSnapshot = smallestSnapshot;
+        this.dropTombstones = dropTombstones;
+        this.comparator = comparator;
+        this.now = now;
+        advance();
+    }
+
+    private void advance() {
+        next = null;
+        while (source.hasNext() && next == null) {
+            Entry entry = source.next();
+            if (entry.isExpired(now)) {
+                entry = new Entry(entry.getKeyBytes(), null, entry.getSequence());
+            }
+            if (currentKey == null || comparator.compare(entry.getKeyBytes(), currentKey) != 0) {
+                currentKey = entry.getKeyBytes();
+                previousSequence = Long.MAX_VALUE;
+            }
+            boolean shadowed = previousSequence <= smallestSnapshot;
+            boolean deadTombstone = dropTombstones && entry.isTombstone() && entry.getSequence() <= smallestSnapshot;
+            if (!shadowed && !deadTombstone) {
+                next = entry;
+            }
+            previousSequence = entry.getSequence();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Entry current = next;
+        advance();
+        return current;
+    }
+}
@@ -0,0 +1,37 @@
+package kvstore;
+
+/**
+ * OperationMetrics keeps one {@link LatencyHistogram} per kind of request, e.g. for the operations of a
+ * KeyValueStore or for the requests a server handles. Recording allocates nothing.
+ */
+public final class OperationMetrics {
+    public enum Operation {
+        GET, PUT, DELETE, BATCH, RANGE;
+
+        /**
+         * Name used as a metric label.
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+    public OperationMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records an operation that started at startNanos, a value of {@link System#nanoTime()}.
+     */
+    public void record(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].recordSince(startNanos);
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+}
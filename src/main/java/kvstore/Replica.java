@@ -0,0 +1,52 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A node that receives a primary's replication stream: a KeyValueStore in the same process, or one in
+ * another process reached over the network.
+ */
+public interface Replica {
+    /**
+     * A name for logs and replication status.
+     */
+    String getName();
+
+    boolean isActive();
+
+    /**
+     * Applies the writes of the records, in order, and returns once they are durable. logId identifies
+     * the primary's {@link ReplicationLog}, whose sequence numbers the records carry. Records may be
+     * delivered again after a failure, so applying them must be idempotent, which puts and deletes are.
+     */
+    void replicate(long logId, List<ReplicationLog.Record> records) throws IOException;
+
+    /**
+     * The last sequence of the log the replica applied, or -1 if its contents did not come from that log,
+     * e.g. because it last followed another primary. A replica that is known to be behind the log only by
+     * records the log still holds is caught up by replaying them, any other one with a checkpoint.
+     */
+    long getAppliedSequence(long logId) throws IOException;
+
+    /**
+     * Replaces the replica's contents with a checkpoint of the primary, which holds every record of the
+     * log up to the checkpoint's sequence. The checkpoint's own files are left in place.
+     */
+    void installCheckpoint(long logId, Checkpoint checkpoint) throws IOException;
+
+    /**
+     * Starts applying the records and completes once they are durable. Replicas reached over the network
+     * may send several batches before the first is acknowledged, but must apply them in the order of the
+     * calls.
+     */
+    default CompletableFuture<Void> replicateAsync(long logId, List<ReplicationLog.Record> records) {
+        try {
+            replicate(logId, records);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
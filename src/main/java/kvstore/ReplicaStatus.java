@@ -0,0 +1,51 @@
+package kvstore;
+
+/**
+ * A point-in-time view of how far a replica has caught up with its primary.
+ */
+public class ReplicaStatus {
+    private final String name;
+    private final boolean active;
+    private final long ackedSequence;
+    private final long lag;
+    private final long millisSinceLastAck;
+
+    public ReplicaStatus(String name, boolean active, long ackedSequence, long lag, long millisSinceLastAck) {
+        this.name = name;
+        this.active = active;
+        this.ackedSequence = ackedSequence;
+        this.lag = lag;
+        this.millisSinceLastAck = millisSinceLastAck;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Sequence number of the last write the replica acknowledged.
+     */
+    public long getAckedSequence() {
+        return ackedSequence;
+    }
+
+    /**
+     * Number of writes of the primary the replica has not acknowledged yet.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public long getMillisSinceLastAck() {
+        return millisSinceLastAck;
+    }
+
+    @Override
+    public String toString() {
+        return name + (active ? "" : " (inactive)") + ": acked " + ackedSequence + ", lag " + lag;
+    }
+}
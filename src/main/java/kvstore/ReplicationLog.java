@@ -0,0 +1,169 @@
+package kvstore;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReplicationLog is the in-memory, sequence-numbered log of the writes a primary ships to its replicas.
+ * Each write (a put, a delete or a whole write batch) is one record. Records are kept until every replica
+ * has acknowledged them, but at most MAX_BYTES of them, keys and values included: a replica that falls
+ * further behind is caught up with a {@link Checkpoint} of the primary's tables instead. While no replica
+ * is up nothing is kept at all.
+ *
+ * Sequence numbers start over when the process restarts, so each log also has a random ID; a replica
+ * only compares sequence numbers of the same log.
+ */
+public class ReplicationLog {
+    static final long MAX_BYTES = 32L * 1024 * 1024;
+    private static final int MIN_CAPACITY = 1024;  // A power of two
+    private static final int RECORD_OVERHEAD = 64;
+    private static final int ENTRY_OVERHEAD = 48;
+
+    /**
+     * One replicated write: its entries, null values being deletes, applied as a unit.
+     */
+    public static final class Record {
+        private final long sequence;
+        private final List<Entry> entries;
+
+        public Record(long sequence, List<Entry> entries) {
+            this.sequence = sequence;
+            this.entries = entries;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    private final long id = new SecureRandom().nextLong();
+    private Record[] ring = new Record[MIN_CAPACITY];  // Record n lives in slot n & (ring.length - 1)
+    private long firstSequence = 1;  // Oldest record still kept; the log is empty if it exceeds lastSequence
+    private long lastSequence = 0;
+    private long sizeBytes = 0;
+    private boolean retaining = false;
+
+    /**
+     * Appends a write and returns its sequence number.
+     */
+    public synchronized long append(List<Entry> entries) {
+        long sequence = ++lastSequence;
+        if (!retaining) {
+            firstSequence = sequence + 1;
+            notifyAll();
+            return sequence;
+        }
+        if (sequence - firstSequence >= ring.length) {
+            resize(ring.length * 2);
+        }
+        ring[slot(sequence)] = new Record(sequence, entries);
+        sizeBytes += sizeOf(entries);
+        while (sizeBytes > MAX_BYTES && firstSequence < sequence) {
+            drop();
+        }
+        notifyAll();
+        return sequence;
+    }
+
+    /**
+     * Whether records are kept for replicas to read. A primary keeps them while at least one of its replicas
+     * is up; when none is, the log is emptied, and the writes that follow are only counted.
+     */
+    public synchronized void setRetaining(boolean retaining) {
+        this.retaining = retaining;
+        if (!retaining) {
+            trimTo(lastSequence);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns up to maxRecords records following afterSequence, waiting up to timeoutMs for one to be
+     * appended. Returns null if the records following afterSequence have already been dropped.
+     */
+    public synchronized List<Record> read(long afterSequence, int maxRecords, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (lastSequence <= afterSequence && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (afterSequence + 1 < firstSequence) {
+            return null;
+        }
+        long end = Math.min(lastSequence, afterSequence + maxRecords);
+        List<Record> result = new ArrayList<>((int) Math.max(0, end - afterSequence));
+        for (long sequence = afterSequence + 1; sequence <= end; sequence++) {
+            result.add(ring[slot(sequence)]);
+        }
+        return result;
+    }
+
+    /**
+     * Drops the records up to and including sequence, e.g. once every replica has acknowledged them.
+     */
+    public synchronized void trimTo(long sequence) {
+        long end = Math.min(sequence, lastSequence);
+        while (firstSequence <= end) {
+            drop();
+        }
+        if (ring.length > MIN_CAPACITY && size() < ring.length / 4) {
+            resize(ring.length / 2);  // Gives back what a burst of writes grew
+        }
+    }
+
+    /**
+     * Number of records kept.
+     */
+    public synchronized int size() {
+        return (int) (lastSequence - firstSequence + 1);
+    }
+
+    /**
+     * Estimated bytes of the records kept.
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private void drop() {
+        int slot = slot(firstSequence++);
+        if (ring[slot] != null) {
+            sizeBytes -= sizeOf(ring[slot].getEntries());
+            ring[slot] = null;
+        }
+    }
+
+    private void resize(int capacity) {
+        Record[] resized = new Record[capacity];
+        for (long sequence = firstSequence; sequence <= lastSequence; sequence++) {
+            resized[(int) (sequence & (capacity - 1))] = ring[slot(sequence)];
+        }
+        ring = resized;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence & (ring.length - 1));
+    }
+
+    private static long sizeOf(List<Entry> entries) {
+        long bytes = RECORD_OVERHEAD;
+        for (Entry entry : entries) {
+            bytes += ENTRY_OVERHEAD + entry.getKeyBytes().length + (entry.isTombstone() ? 0 : entry.getValueBytes().length);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,275 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Replicator ships a primary's {@link ReplicationLog} to its replicas in the background, so client writes
+ * never wait for them. Each replica has a shipper thread that sends the records the replica has not
+ * acknowledged yet, up to MAX_BATCH_RECORDS at a time, and advances the replica's acknowledged sequence
+ * once the batch is applied. Up to MAX_BATCHES_IN_FLIGHT batches are sent before the oldest is
+ * acknowledged, which keeps a network link busy without letting a slow replica queue up unbounded work.
+ * A replica starts from the last sequence it applied, which it reports itself, so one that restarts or
+ * reconnects only gets the records it missed. One that fell behind what the log keeps, or whose contents
+ * did not come from this log, gets a {@link Checkpoint} of the primary's tables instead, and continues
+ * with the records after it.
+ */
+final class Replicator {
+    /**
+     * Makes a checkpoint of the primary, labelled with the last sequence it includes.
+     */
+    interface CheckpointSource {
+        Checkpoint create() throws IOException;
+    }
+
+    private static final int MAX_BATCH_RECORDS = 256;
+    private static final int MAX_BATCHES_IN_FLIGHT = 8;
+    private static final long POLL_MS = 100;
+    private static final long RETRY_DELAY_MS = 50;
+
+    private final ReplicationLog log;
+    private final CheckpointSource checkpoints;
+    private final List<Shipper> shippers = new CopyOnWriteArrayList<>();
+
+    Replicator(ReplicationLog log, CheckpointSource checkpoints) {
+        this.log = log;
+        this.checkpoints = checkpoints;
+    }
+
+    void addReplica(Replica replica) {
+        Shipper shipper = new Shipper(replica);
+        shippers.add(shipper);
+        trim();
+        shipper.thread.start();
+    }
+
+    void removeReplica(Replica replica) {
+        for (Shipper shipper : shippers) {
+            if (shipper.replica == replica) {
+                shippers.remove(shipper);
+                shipper.stop();
+            }
+        }
+        trim();
+    }
+
+    List<ReplicaStatus> getStatus() {
+        long last = log.getLastSequence();
+        long now = System.currentTimeMillis();
+        List<ReplicaStatus> status = new ArrayList<>();
+        for (Shipper shipper : shippers) {
+            long acked = shipper.acked;
+            status.add(new ReplicaStatus(shipper.replica.getName(), shipper.replica.isActive(), acked,
+                    Math.max(0, last - acked), now - shipper.lastAckMillis));
+        }
+        return status;
+    }
+
+    /**
+     * Waits until every active replica has acknowledged every write appended so far.
+     */
+    void awaitReplication(long timeoutMs) throws IOException {
+        long target = log.getLastSequence();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            for (Shipper shipper : shippers) {
+                while (shipper.replica.isActive() && shipper.acked < target) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("Replica " + shipper.replica.getName() + " did not catch up within "
+                                + timeoutMs + " ms");
+                    }
+                    try {
+                        wait(Math.min(remaining, POLL_MS));  // Also rechecks whether the replica is still active
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for replication", e);
+                    }
+                }
+            }
+        }
+    }
+
+    void close() {
+        for (Shipper shipper : shippers) {
+            shipper.stop();
+        }
+        shippers.clear();
+        trim();
+    }
+
+    // Drops the records every replica has acknowledged, and stops keeping any while no replica is up: one
+    // that comes back is caught up with a checkpoint
+    private void trim() {
+        long min = log.getLastSequence();
+        boolean anyActive = false;
+        for (Shipper shipper : shippers) {
+            min = Math.min(min, shipper.acked);
+            anyActive |= shipper.replica.isActive();
+        }
+        log.setRetaining(anyActive);
+        log.trimTo(min);
+    }
+
+    /**
+     * A batch sent to the replica but not acknowledged yet.
+     */
+    private static final class InFlight {
+        final long lastSequence;
+        final CompletableFuture<Void> applied;
+
+        InFlight(long lastSequence, CompletableFuture<Void> applied) {
+            this.lastSequence = lastSequence;
+            this.applied = applied;
+        }
+    }
+
+    private final class Shipper implements Runnable {
+        final Replica replica;
+        final Thread thread;
+        final ArrayDeque<InFlight> window = new ArrayDeque<>();  // Only used by the shipper thread
+        long sent = 0;  // Last sequence handed to the replica, only used by the shipper thread
+        boolean positioned = false;  // Whether sent continues from the replica's applied sequence
+        volatile long acked = 0;
+        volatile long lastAckMillis = System.currentTimeMillis();
+        volatile boolean running = true;
+
+        Shipper(Replica replica) {
+            this.replica = replica;
+            this.thread = new Thread(this, "replication-" + replica.getName());
+            thread.setDaemon(true);
+        }
+
+        // Not interrupted: the thread may be inside the replica's storage engine, whose file channels an
+        // interrupt would close. It notices the flag within POLL_MS instead.
+        void stop() {
+            running = false;
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (!replica.isActive()) {
+                        resend();
+                        trim();
+                        Thread.sleep(RETRY_DELAY_MS);
+                        continue;
+                    }
+                    if (!positioned) {
+                        position();
+                        continue;
+                    }
+                    collectAcknowledgements();
+                    if (window.size() >= MAX_BATCHES_IN_FLIGHT) {
+                        awaitOldestBatch();
+                        continue;
+                    }
+                    List<ReplicationLog.Record> batch = log.read(sent, MAX_BATCH_RECORDS, window.isEmpty() ? POLL_MS : 0);
+                    if (batch == null) {
+                        if (window.isEmpty()) {
+                            sendCheckpoint();
+                        } else {
+                            awaitOldestBatch();  // Acknowledge what was sent before copying
+                        }
+                    } else if (!batch.isEmpty()) {
+                        long last = batch.get(batch.size() - 1).getSequence();
+                        window.add(new InFlight(last, replica.replicateAsync(log.getId(), batch)));
+                        sent = last;
+                    } else if (!window.isEmpty()) {
+                        awaitOldestBatch();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    if (running && replica.isActive()) {
+                        System.err.println("Replication to " + replica.getName() + " failed: " + e.getMessage());
+                    }
+                    resend();
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Acknowledges the batches at the front of the window that have been applied
+        private void collectAcknowledgements() throws IOException, InterruptedException {
+            while (!window.isEmpty() && window.peek().applied.isDone()) {
+                InFlight batch = window.poll();
+                try {
+                    batch.applied.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause().getMessage(), e.getCause());
+                }
+                acknowledge(batch.lastSequence);
+            }
+        }
+
+        private void awaitOldestBatch() throws InterruptedException {
+            try {
+                window.peek().applied.get(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // Collected, or retried, on the next round
+            }
+        }
+
+        // Forgets the unacknowledged batches; they are sent again from wherever the replica got to
+        private void resend() {
+            window.clear();
+            positioned = false;
+        }
+
+        // Continues from the replica's last applied sequence, or from a checkpoint if it has none in this log
+        private void position() throws IOException {
+            long applied = replica.getAppliedSequence(log.getId());
+            if (applied < 0) {
+                sendCheckpoint();
+            } else {
+                acknowledge(applied);
+                sent = applied;
+            }
+            positioned = true;
+        }
+
+        /**
+         * Replaces the replica's contents with a checkpoint, for a replica whose next records were already
+         * dropped from the log. Writes made while the checkpoint is sent follow it as records.
+         */
+        private void sendCheckpoint() throws IOException {
+            System.out.println("Replica " + replica.getName() + " is behind the replication log, sending a checkpoint");
+            Checkpoint checkpoint = checkpoints.create();
+            try {
+                replica.installCheckpoint(log.getId(), checkpoint);
+            } finally {
+                checkpoint.delete();
+            }
+            acknowledge(checkpoint.getSequence());
+            sent = checkpoint.getSequence();
+        }
+
+        private void acknowledge(long sequence) {
+            synchronized (Replicator.this) {
+                acked = sequence;
+                lastAckMillis = System.currentTimeMillis();
+                Replicator.this.notifyAll();
+            }
+            trim();
+        }
+    }
+}
@@ -1,81 +1,676 @@
 package kvstore;
 
 import java.io.*;
-import java.util.TreeMap;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.UUID;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * SSTable is an immutable, sorted table of key/value records stored on disk.
+ *
+ * <pre>
+ * [data block 0] ... [data block n] [index block] [footer]
+ *
+ * record : keyLen:int key:bytes sequence:long valueLen:int [expiresAt:long] value:bytes
+ * index  : count:int { keyLen:int firstKey:bytes offset:long length:int rawLength:int }* lastKeyLen:int lastKey:bytes
+ * footer : indexOffset:long indexLength:int entryCount:long maxSequence:long codec:int version:int magic:long
+ * </pre>
+ *
+ * A valueLen of -1 marks a tombstone, and a valueLen below -1 a value of -valueLen - 2 bytes that expires
+ * at expiresAt, in milliseconds since the epoch; only such values store an expiry.
+ * Data blocks are compressed one by one with the {@link BlockCodec} the footer names; a block whose
+ * length equals its rawLength is stored uncompressed. Reads decompress only the blocks they visit.
+ *
+ * Records are sorted by the table's {@link KeyComparator}, which is not stored in the file: a table must
+ * be opened with the comparator it was written with. Keys and values are stored as the bytes they were
+ * written as. A table may hold several versions of a key, newest first; they can straddle a block
+ * boundary, so lookups start in the last block whose first key is smaller than the key.
+ *
+ * Older format versions are still read, and each lacks what later ones added. Tables of format version 1
+ * have no record sequences and no maxSequence; their records read as sequence 0, i.e. older than anything
+ * written since. Tables of format version 2 have no codec and no rawLength, i.e. uncompressed blocks.
+ * Tables of format version 3 hold no expiring values.
+ *
+ * The file is memory-mapped when opened and only the sparse block index is decoded onto the heap,
+ * so the heap footprint of a table depends on its number of blocks rather than on its data size.
+ * If a bloom filter file exists next to the table it is loaded as well and consulted by
+ * {@link #mightContain(byte[])} before any block is touched. Tables reopened from the manifest
+ * start out with only their key range and size, and map the file on first access.
+ *
+ * A table attached to a {@link BlockCache} keeps the blocks it decompresses there, and pins its index and
+ * filter against the cache's budget while it is loaded. Uncompressed blocks are read straight from the
+ * mapping, which the page cache already keeps.
+ */
 public class SSTable {
-    private File file;
-    private TreeMap<String, String> data;  // In-memory cache of the SSTable's data
+    public static final int BLOCK_SIZE = 4096;  // Target size of a data block in bytes
+    static final int FORMAT_VERSION = 4;
+    static final long MAGIC = 0x4B56535354424C31L; // "KVSSTBL1"
+    static final int FOOTER_SIZE = 44;
+    private static final int V2_FOOTER_SIZE = 40;  // Without codec
+    private static final int V1_FOOTER_SIZE = 32;  // Without maxSequence
+    static final int TOMBSTONE = -1;
+    static final int EXPIRING = -2;  // valueLen of an expiring value is EXPIRING - length
+    private static final AtomicLong NEXT_FILE_ID = new AtomicLong(1);
 
-    private SSTable(File file, TreeMap<String, String> data) {
+    private final File file;
+    private final KeyComparator comparator;
+    private final byte[] firstKey;
+    private final byte[] lastKey;
+    private final long entryCount;
+    private final long sizeBytes;
+    private volatile Contents contents;  // Null until the table is first read, for tables opened lazily
+    private final long fileId = NEXT_FILE_ID.getAndIncrement();  // Names the table's blocks in the block cache
+    private volatile BlockCache blockCache;  // Null when blocks are not cached
+    private long compressNanos;  // Spent by the writer that created this table, 0 for tables opened from disk
+    private final LongAdder blocksDecompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * The mapped file and the decoded block index and bloom filter of a table.
+     */
+    private static final class Contents {
+        final MappedByteBuffer buffer;
+        final byte[][] blockFirstKeys;  // Sparse index: first key of every data block
+        final int[] blockOffsets;
+        final int[] blockLengths;
+        final int[] blockRawLengths;  // Equal to blockLengths for uncompressed blocks
+        final BlockCodec codec;
+        final byte[] lastKey;
+        final long entryCount;
+        final long maxSequence;
+        final boolean sequenced;  // Whether records carry a sequence (format version 2 and later)
+        final BloomFilter bloomFilter;  // Null when the table was written without a filter
+        final long pinnedBytes;  // Approximate heap held by the index and filter
+
+        Contents(MappedByteBuffer buffer, byte[][] blockFirstKeys, int[] blockOffsets, int[] blockLengths,
+                 int[] blockRawLengths, BlockCodec codec, byte[] lastKey, long entryCount, long maxSequence,
+                 boolean sequenced, BloomFilter bloomFilter) {
+            this.buffer = buffer;
+            this.blockFirstKeys = blockFirstKeys;
+            this.blockOffsets = blockOffsets;
+            this.blockLengths = blockLengths;
+            this.blockRawLengths = blockRawLengths;
+            this.codec = codec;
+            this.lastKey = lastKey;
+            this.entryCount = entryCount;
+            this.maxSequence = maxSequence;
+            this.sequenced = sequenced;
+            this.bloomFilter = bloomFilter;
+            long bytes = (bloomFilter == null ? 0 : bloomFilter.getSizeBytes())
+                    + (lastKey == null ? 0 : lastKey.length) + 28L * blockFirstKeys.length;
+            for (byte[] key : blockFirstKeys) {
+                bytes += key.length;
+            }
+            this.pinnedBytes = bytes;
+        }
+    }
+
+    private SSTable(File file, KeyComparator comparator, byte[] firstKey, byte[] lastKey, long entryCount,
+                    long sizeBytes, Contents contents) {
         this.file = file;
-        this.data = data;
+        this.comparator = comparator;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.entryCount = entryCount;
+        this.sizeBytes = sizeBytes;
+        this.contents = contents;
+    }
+
+    /**
+     * Creates an SSTable from the given memTable and writes it to disk, with every version of a key.
+     */
+    public static SSTable createFromMemTable(File file, MemTable memTable, int bloomBitsPerKey)
+            throws IOException {
+        return createFromMemTable(file, memTable, bloomBitsPerKey, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates an SSTable from the given memTable and writes it to disk, leaving out the versions that no
+     * snapshot at or after smallestSnapshot can see. Values that have expired are written as tombstones.
+     */
+    public static SSTable createFromMemTable(File file, MemTable memTable, int bloomBitsPerKey,
+                                             long smallestSnapshot) throws IOException {
+        return createFromMemTable(file, memTable, bloomBitsPerKey, smallestSnapshot, StoreConfig.DEFAULT_BLOCK_CODEC);
+    }
+
+    /**
+     * Creates an SSTable from the given memTable like {@link #createFromMemTable(File, MemTable, int, long)},
+     * compressing its blocks with the given codec. The table is sorted by the memTable's comparator.
+     */
+    public static SSTable createFromMemTable(File file, MemTable memTable, int bloomBitsPerKey,
+                                             long smallestSnapshot, BlockCodec codec) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(file, bloomBitsPerKey, codec, memTable.comparator())) {
+            Iterator<Entry> it = new ObsoleteVersionFilter(memTable.iterator(), smallestSnapshot, false,
+                    memTable.comparator(), System.currentTimeMillis());
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                writer.add(entry.getKeyBytes(), entry.getSequence(), entry.getValueBytes(), entry.getExpiresAt());
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Opens an existing SSTable file written in bytewise key order.
+     */
+    public static SSTable loadFromFile(File file) throws IOException {
+        return loadFromFile(file, KeyComparator.BYTEWISE);
+    }
+
+    /**
+     * Opens an existing SSTable file: maps it into memory and reads its footer and block index.
+     */
+    public static SSTable loadFromFile(File file, KeyComparator comparator) throws IOException {
+        Contents contents = readContents(file);
+        byte[] firstKey = contents.blockFirstKeys.length == 0 ? null : contents.blockFirstKeys[0];
+        return new SSTable(file, comparator, firstKey, contents.lastKey, contents.entryCount,
+                contents.buffer.capacity(), contents);
+    }
+
+    /**
+     * Returns a table whose key range and size are already known (e.g. from the manifest) without touching
+     * the file. The file is mapped and its index and filter are read on first access, or by {@link #load()}.
+     */
+    public static SSTable openLazily(File file, byte[] firstKey, byte[] lastKey, long entryCount, long sizeBytes,
+                                     KeyComparator comparator) {
+        return new SSTable(file, comparator, firstKey, lastKey, entryCount, sizeBytes, null);
+    }
+
+    /**
+     * Maps the file and reads its index and filter now, if that has not happened yet.
+     */
+    public void load() throws IOException {
+        if (contents == null) {
+            synchronized (this) {
+                if (contents == null) {
+                    contents = readContents(file);
+                    if (blockCache != null) {
+                        blockCache.pin(contents.pinnedBytes);
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isLoaded() {
+        return contents != null;
+    }
+
+    /**
+     * Makes reads keep decompressed blocks in the given cache, or stop caching them if it is null. A table
+     * leaving the cache takes its blocks and its pinned index and filter out of it. Blocks that a read
+     * racing with that puts back are left for the cache to evict.
+     */
+    synchronized void setBlockCache(BlockCache cache) {
+        BlockCache previous = blockCache;
+        if (previous == cache) {
+            return;
+        }
+        Contents loaded = contents;
+        if (previous != null) {
+            if (loaded != null) {
+                previous.unpin(loaded.pinnedBytes);
+            }
+            previous.invalidateFile(fileId);
+        }
+        if (cache != null && loaded != null) {
+            cache.pin(loaded.pinnedBytes);
+        }
+        blockCache = cache;
+    }
+
+    private Contents contents() {
+        Contents loaded = contents;
+        if (loaded == null) {
+            try {
+                load();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open SSTable " + file, e);
+            }
+            loaded = contents;
+        }
+        return loaded;
+    }
+
+    private static Contents readContents(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < V1_FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid SSTable size " + size + " for " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        // Every format version ends with version:int magic:long
+        int version = buffer.getInt(buffer.capacity() - 12);
+        if (buffer.getLong(buffer.capacity() - 8) != MAGIC) {
+            throw new IOException("Not an SSTable file: " + file);
+        }
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported SSTable format version " + version + " in " + file);
+        }
+        boolean sequenced = version >= 2;
+        boolean compressed = version >= 3;
+        int footer = buffer.capacity() - (compressed ? FOOTER_SIZE : sequenced ? V2_FOOTER_SIZE : V1_FOOTER_SIZE);
+        if (footer < 0) {
+            throw new IOException("Invalid SSTable size " + buffer.capacity() + " for " + file);
+        }
+        long indexOffset = buffer.getLong(footer);
+        long entryCount = buffer.getLong(footer + 12);
+        long maxSequence = sequenced ? buffer.getLong(footer + 20) : 0;
+        BlockCodec codec = compressed ? BlockCodec.forId(buffer.getInt(footer + 28)) : BlockCodec.NONE;
+
+        int pos = (int) indexOffset;
+        int blockCount = buffer.getInt(pos);
+        pos += 4;
+        byte[][] firstKeys = new byte[blockCount][];
+        int[] offsets = new int[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] rawLengths = compressed ? new int[blockCount] : lengths;
+        for (int i = 0; i < blockCount; i++) {
+            int keyLength = buffer.getInt(pos);
+            firstKeys[i] = readBytes(buffer, pos + 4, keyLength);
+            pos += 4 + keyLength;
+            offsets[i] = (int) buffer.getLong(pos);
+            lengths[i] = buffer.getInt(pos + 8);
+            pos += 12;
+            if (compressed) {
+                rawLengths[i] = buffer.getInt(pos);
+                pos += 4;
+            }
+        }
+        int lastKeyLength = buffer.getInt(pos);
+        byte[] lastKey = blockCount == 0 ? null : readBytes(buffer, pos + 4, lastKeyLength);
+
+        File filterFile = filterFileFor(file);
+        BloomFilter bloomFilter = filterFile.exists() ? BloomFilter.readFrom(filterFile) : null;
+
+        return new Contents(buffer, firstKeys, offsets, lengths, rawLengths, codec, lastKey, entryCount, maxSequence,
+                sequenced, bloomFilter);
+    }
+
+    /**
+     * Returns the file holding the bloom filter of the given table file.
+     */
+    public static File filterFileFor(File tableFile) {
+        String name = tableFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(tableFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".filter");
+    }
+
+    /**
+     * Returns false if the key is definitely not in this table. Tables without a filter always return true.
+     */
+    public boolean mightContain(byte[] key) {
+        BloomFilter bloomFilter = contents().bloomFilter;
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
+    public boolean mightContain(String key) {
+        return mightContain(Entry.utf8(key));
+    }
+
+    public boolean hasBloomFilter() {
+        return contents().bloomFilter != null;
     }
 
     /**
-     * Creates an SSTable from the given memTable and writes it to disk.
+     * Looks up the newest version of a key. Returns null if this table holds no record for the key, or an
+     * entry whose value is null if the key was deleted.
      */
-    public static SSTable createFromMemTable(TreeMap<String, String> memTable) throws IOException {
-        File file = new File(UUID.randomUUID().toString() + ".sstable");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            for (Map.Entry<String, String> entry : memTable.entrySet()) {
-                writer.write(entry.getKey() + ":" + entry.getValue() + "\n");
+    public Entry find(String key) {
+        return find(Entry.utf8(key), Long.MAX_VALUE);
+    }
+
+    public Entry find(String key, long sequence) {
+        return find(Entry.utf8(key), sequence);
+    }
+
+    /**
+     * Looks up the newest version of a key written at or before the given sequence, or returns null if
+     * this table holds none.
+     */
+    public Entry find(byte[] key, long sequence) {
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        // Versions are contiguous and may continue into the following blocks
+        RecordIterator records = new RecordIterator(contents(), block, key, key, true);
+        while (records.hasNext()) {
+            Entry entry = records.next();
+            if (entry.getSequence() <= sequence) {
+                return entry;
             }
         }
-        // Create an SSTable instance with an in-memory copy of the data
-        return new SSTable(file, new TreeMap<>(memTable));
+        return null;
     }
 
     /**
-     * Reads a value for a given key from the in-memory data of this SSTable.
+     * Reads a value for a given key. Returns null if the key is absent or deleted.
      */
     public String read(String key) {
-        return data.get(key);
+        Entry entry = find(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the records (every version, including tombstones) with keys in [startKey, endKey], in
+     * internal order. A null bound leaves that end of the range open.
+     * Records are decoded lazily from the mapped file as the iterator advances.
+     */
+    public Iterator<Entry> iterator(byte[] startKey, byte[] endKey) {
+        return iterator(startKey, endKey, true);
+    }
+
+    private Iterator<Entry> iterator(byte[] startKey, byte[] endKey, boolean useCache) {
+        Contents contents = contents();
+        int start;
+        if (firstKey == null || (startKey != null && comparator.compare(startKey, lastKey) > 0)) {
+            start = contents.blockOffsets.length;
+        } else if (startKey == null || comparator.compare(startKey, firstKey) < 0) {
+            start = 0;
+        } else {
+            start = findBlock(startKey);
+        }
+        return new RecordIterator(contents, start, startKey, endKey, useCache);
+    }
+
+    public Iterator<Entry> iterator(String startKey, String endKey) {
+        return iterator(Entry.utf8(startKey), Entry.utf8(endKey));
+    }
+
+    /**
+     * Returns all records of this table, every version and tombstone included, in internal order.
+     */
+    public Iterator<Entry> iterator() {
+        return firstKey == null ? Collections.emptyIterator() : iterator((byte[]) null, null);
+    }
+
+    /**
+     * Returns all records like {@link #iterator()}, reading around the block cache: a one-off pass over the
+     * whole table, such as a compaction, neither pushes out the blocks that reads use nor skews the hit ratio.
+     */
+    Iterator<Entry> uncachedIterator() {
+        return firstKey == null ? Collections.emptyIterator() : iterator(null, null, false);
     }
 
     /**
      * Retrieves all keys within the given key range [startKey, endKey], excluding deleted entries.
      */
     public List<String> getKeyRange(String startKey, String endKey) throws IOException {
-        // Get a submap for the range and filter out keys with null values (i.e., deleted entries)
-        Map<String, String> rangeMap = data.subMap(startKey, true, endKey, true);
         List<String> validKeys = new ArrayList<>();
-
-        for (Map.Entry<String, String> entry : rangeMap.entrySet()) {
-            if (entry.getValue() != null) {  // Exclude deleted entries
+        Iterator<Entry> it = iterator(startKey, endKey);
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.isTombstone()) {  // Exclude deleted entries
                 validKeys.add(entry.getKey());
             }
         }
-
         return validKeys;
     }
 
+    public File getFile() {
+        return file;
+    }
+
     /**
-     * Loads the SSTable data from disk into memory (used when loading existing SSTables).
+     * Removes the table and its bloom filter from disk once it is no longer part of the tree.
+     * Readers still holding this table keep working: the file stays mapped until the table is collected.
      */
-    public static SSTable loadFromFile(File file) throws IOException {
-        TreeMap<String, String> data = new TreeMap<>();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    data.put(parts[0], parts[1]);
-                } else {
-                    data.put(parts[0], null);  // Treat entries with missing values as deletions
-                }
+    public void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(filterFileFor(file).toPath());
+    }
+
+    /**
+     * The smallest key in the table decoded as UTF-8, or null if it is empty.
+     */
+    public String getFirstKey() {
+        return Entry.fromUtf8(firstKey);
+    }
+
+    /**
+     * The largest key in the table decoded as UTF-8, or null if it is empty.
+     */
+    public String getLastKey() {
+        return Entry.fromUtf8(lastKey);
+    }
+
+    public byte[] getFirstKeyBytes() {
+        return firstKey;
+    }
+
+    public byte[] getLastKeyBytes() {
+        return lastKey;
+    }
+
+    /**
+     * The order of the table's keys.
+     */
+    public KeyComparator getComparator() {
+        return comparator;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * The codec the table's blocks were written with.
+     */
+    public BlockCodec getBlockCodec() {
+        return contents().codec;
+    }
+
+    /**
+     * Bytes of data blocks as stored in the file.
+     */
+    public long getDataBytes() {
+        long bytes = 0;
+        for (int length : contents().blockLengths) {
+            bytes += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes of data blocks once decompressed.
+     */
+    public long getRawDataBytes() {
+        long bytes = 0;
+        for (int length : contents().blockRawLengths) {
+            bytes += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Time the writer of this table spent compressing it, or 0 if the table was opened from disk.
+     */
+    public long getCompressNanos() {
+        return compressNanos;
+    }
+
+    void setCompressNanos(long compressNanos) {
+        this.compressNanos = compressNanos;
+    }
+
+    /**
+     * Compressed blocks decompressed by reads of this table so far.
+     */
+    public long getBlocksDecompressed() {
+        return blocksDecompressed.sum();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    /**
+     * The highest sequence of any record in this table, 0 for tables written without sequences.
+     */
+    public long getMaxSequence() {
+        return contents().maxSequence;
+    }
+
+    /**
+     * Returns the index of the block holding the first record of the key, or of the key after it, or -1 if
+     * the key is outside this table. That is the last block starting before the key: the newest versions
+     * of a key may sit at the end of the block before the first block starting with it.
+     */
+    private int findBlock(byte[] key) {
+        if (firstKey == null || comparator.compare(key, firstKey) < 0 || comparator.compare(key, lastKey) > 0) {
+            return -1;
+        }
+        byte[][] blockFirstKeys = contents().blockFirstKeys;
+        int low = 0;
+        int high = blockFirstKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (comparator.compare(blockFirstKeys[mid], key) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
             }
         }
+        return low;
+    }
 
-        return new SSTable(file, data);
+    /**
+     * Encoded size of a record in a data block.
+     */
+    static int recordSize(Entry entry) {
+        return 16 + entry.getKeyBytes().length + (entry.isTombstone() ? 0 : entry.getValueBytes().length)
+                + (entry.getExpiresAt() == 0 ? 0 : 8);
     }
 
-    public File getFile() {
-        return file;
+    /**
+     * Returns a block's records: a view of the mapped file if the block is stored uncompressed, else a
+     * decompressed copy, taken from the block cache if it is there and useCache is set.
+     */
+    private ByteBuffer readBlock(Contents contents, int block, boolean useCache) {
+        int offset = contents.blockOffsets[block];
+        int length = contents.blockLengths[block];
+        int rawLength = contents.blockRawLengths[block];
+        if (length == rawLength) {
+            return contents.buffer.slice(offset, length);
+        }
+        BlockCache cache = useCache ? blockCache : null;
+        if (cache != null) {
+            ByteBuffer cached = cache.get(fileId, offset);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long start = System.nanoTime();
+        byte[] raw = new byte[rawLength];
+        try {
+            contents.codec.decompress(contents.buffer, offset, length, raw, rawLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read block " + block + " of SSTable " + file, e);
+        }
+        decompressNanos.add(System.nanoTime() - start);
+        blocksDecompressed.increment();
+        return cache != null ? cache.put(fileId, offset, raw) : ByteBuffer.wrap(raw);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int pos, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(pos, bytes);
+        return bytes;
+    }
+
+    /**
+     * Walks records block by block, from a given block up to the end of the data section, bounded by the
+     * key range, whose null bounds are open. Each block is decompressed, or found in the block cache, when
+     * the walk reaches it.
+     */
+    private class RecordIterator implements Iterator<Entry> {
+        private final Contents contents;
+        private final byte[] startKey;
+        private final byte[] endKey;
+        private final boolean useCache;
+        private int nextBlock;
+        private ByteBuffer block;  // Records of the current block, null before the first one
+        private int pos;
+        private Entry next;
+
+        RecordIterator(Contents contents, int block, byte[] startKey, byte[] endKey, boolean useCache) {
+            this.contents = contents;
+            this.nextBlock = block;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.useCache = useCache;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                if (block == null || pos >= block.limit()) {
+                    if (nextBlock >= contents.blockOffsets.length) {
+                        return;
+                    }
+                    block = readBlock(contents, nextBlock++, useCache);
+                    pos = 0;
+                    continue;
+                }
+                int keyLength = block.getInt(pos);
+                byte[] key = readBytes(block, pos + 4, keyLength);
+                pos += 4 + keyLength;
+                long sequence = 0;
+                if (contents.sequenced) {
+                    sequence = block.getLong(pos);
+                    pos += 8;
+                }
+                int valueLength = block.getInt(pos);
+                pos += 4;
+                long expiresAt = 0;
+                if (valueLength <= EXPIRING) {
+                    expiresAt = block.getLong(pos);
+                    pos += 8;
+                    valueLength = EXPIRING - valueLength;
+                }
+                if (endKey != null && comparator.compare(key, endKey) > 0) {
+                    nextBlock = contents.blockOffsets.length;
+                    pos = block.limit();
+                    return;
+                }
+                if (startKey == null || comparator.compare(key, startKey) >= 0) {
+                    byte[] value = valueLength == TOMBSTONE ? null : readBytes(block, pos, valueLength);
+                    next = new Entry(key, value, sequence, expiresAt);
+                    pos += Math.max(valueLength, 0);
+                    return;
+                }
+                pos += Math.max(valueLength, 0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry current = next;
+            advance();
+            return current;
+        }
     }
 }
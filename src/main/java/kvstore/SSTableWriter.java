@@ -0,0 +1,271 @@
+package kvstore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SSTableWriter streams records sorted by its {@link KeyComparator} into the block-based SSTable format
+ * described in {@link SSTable}.
+ * Records are grouped into data blocks of roughly {@link SSTable#BLOCK_SIZE} bytes; the first key of every
+ * block goes into the sparse index that is written after the data, followed by the fixed-size footer.
+ * Each block is compressed with the writer's {@link BlockCodec} and stored compressed only if that saves at
+ * least an eighth of it; the index records both lengths, so a block whose lengths match is read as is.
+ * The table is written to a temporary file and renamed into place once it is complete and synced.
+ * A {@link BloomFilter} over the table's keys is persisted next to it (see {@link SSTable#filterFileFor}).
+ */
+public class SSTableWriter implements Closeable {
+    private final File file;
+    private final File tempFile;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+
+    private final BlockBuffer blockBuffer = new BlockBuffer(SSTable.BLOCK_SIZE * 2);
+    private final DataOutputStream block = new DataOutputStream(blockBuffer);
+    private final List<byte[]> indexKeys = new ArrayList<>();
+    private final List<Long> indexOffsets = new ArrayList<>();
+    private final List<Integer> indexLengths = new ArrayList<>();
+    private final List<Integer> indexRawLengths = new ArrayList<>();
+    private final int bloomBitsPerKey;
+    private final BlockCodec codec;
+    private final KeyComparator comparator;
+    private byte[] compressed = new byte[0];
+    private long[] keyHashes = new long[256];
+
+    private long offset = 0;           // Bytes of data blocks written so far
+    private long rawDataBytes = 0;     // The same blocks before compression
+    private long compressNanos = 0;
+    private long entryCount = 0;       // Records, i.e. versions
+    private int keyCount = 0;          // Distinct keys, hashed into the bloom filter
+    private byte[] blockFirstKey;
+    private byte[] lastKey;
+    private long lastSequence;
+    private long maxSequence = 0;
+    private boolean finished = false;
+
+    public SSTableWriter(File file) throws IOException {
+        this(file, StoreConfig.DEFAULT_BLOOM_BITS_PER_KEY);
+    }
+
+    public SSTableWriter(File file, int bloomBitsPerKey) throws IOException {
+        this(file, bloomBitsPerKey, StoreConfig.DEFAULT_BLOCK_CODEC);
+    }
+
+    public SSTableWriter(File file, int bloomBitsPerKey, BlockCodec codec) throws IOException {
+        this(file, bloomBitsPerKey, codec, KeyComparator.BYTEWISE);
+    }
+
+    public SSTableWriter(File file, int bloomBitsPerKey, BlockCodec codec, KeyComparator comparator)
+            throws IOException {
+        this.file = file;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.codec = codec;
+        this.comparator = comparator;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        this.fileOut = new FileOutputStream(tempFile);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+    }
+
+    /**
+     * Appends a record with sequence 0. Keys must be added in strictly increasing order; a null value
+     * writes a tombstone.
+     */
+    public void add(String key, String value) throws IOException {
+        add(key, 0, value);
+    }
+
+    /**
+     * Appends a version of a key, encoded as UTF-8.
+     */
+    public void add(String key, long sequence, String value) throws IOException {
+        add(Entry.utf8(key), sequence, Entry.utf8(value));
+    }
+
+    /**
+     * Appends a version of a key that never expires.
+     */
+    public void add(byte[] keyBytes, long sequence, byte[] valueBytes) throws IOException {
+        add(keyBytes, sequence, valueBytes, 0);
+    }
+
+    /**
+     * Appends a version of a key whose value expires at the given time, in milliseconds since the epoch,
+     * or never if it is 0. Records must be added in internal order ({@link Entry#internalOrder}):
+     * by key, and the versions of a key newest first.
+     */
+    public void add(byte[] keyBytes, long sequence, byte[] valueBytes, long expiresAt) throws IOException {
+        boolean sameKey = false;
+        if (lastKey != null) {
+            int cmp = comparator.compare(keyBytes, lastKey);
+            if (cmp < 0 || (cmp == 0 && sequence >= lastSequence)) {
+                throw new IllegalArgumentException("Records must be added in sorted order: "
+                        + new String(keyBytes, StandardCharsets.UTF_8) + "@" + sequence + " after "
+                        + new String(lastKey, StandardCharsets.UTF_8) + "@" + lastSequence);
+            }
+            sameKey = cmp == 0;
+        }
+        boolean expiring = valueBytes != null && expiresAt != 0;
+        int recordSize = 16 + keyBytes.length + (valueBytes == null ? 0 : valueBytes.length) + (expiring ? 8 : 0);
+
+        // Records never straddle blocks; start a new block once the current one would overflow
+        if (blockBuffer.size() > 0 && blockBuffer.size() + recordSize > SSTable.BLOCK_SIZE) {
+            flushBlock();
+        }
+        if (blockBuffer.size() == 0) {
+            blockFirstKey = keyBytes;
+        }
+
+        block.writeInt(keyBytes.length);
+        block.write(keyBytes);
+        block.writeLong(sequence);
+        if (valueBytes == null) {
+            block.writeInt(SSTable.TOMBSTONE);
+        } else if (expiring) {
+            block.writeInt(SSTable.EXPIRING - valueBytes.length);
+            block.writeLong(expiresAt);
+            block.write(valueBytes);
+        } else {
+            block.writeInt(valueBytes.length);
+            block.write(valueBytes);
+        }
+        if (bloomBitsPerKey > 0 && !sameKey) {
+            if (keyCount == keyHashes.length) {
+                keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+            }
+            keyHashes[keyCount++] = BloomFilter.hash(keyBytes);
+        }
+        lastKey = keyBytes;
+        lastSequence = sequence;
+        maxSequence = Math.max(maxSequence, sequence);
+        entryCount++;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Bytes of data blocks written so far, before compression.
+     */
+    public long getRawDataBytes() {
+        return rawDataBytes;
+    }
+
+    /**
+     * Time spent compressing blocks so far.
+     */
+    public long getCompressNanos() {
+        return compressNanos;
+    }
+
+    /**
+     * Approximate size of the file written so far, used to cut tables at a target size.
+     */
+    public long estimatedSize() {
+        return offset + blockBuffer.size();
+    }
+
+    /**
+     * Writes the index and footer, syncs the file to disk and opens it as an SSTable.
+     */
+    public SSTable finish() throws IOException {
+        flushBlock();
+
+        long indexOffset = offset;
+        ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBuffer);
+        index.writeInt(indexKeys.size());
+        for (int i = 0; i < indexKeys.size(); i++) {
+            index.writeInt(indexKeys.get(i).length);
+            index.write(indexKeys.get(i));
+            index.writeLong(indexOffsets.get(i));
+            index.writeInt(indexLengths.get(i));
+            index.writeInt(indexRawLengths.get(i));
+        }
+        byte[] lastKeyBytes = lastKey == null ? new byte[0] : lastKey;
+        index.writeInt(lastKeyBytes.length);
+        index.write(lastKeyBytes);
+        indexBuffer.writeTo(out);
+
+        out.writeLong(indexOffset);
+        out.writeInt(indexBuffer.size());
+        out.writeLong(entryCount);
+        out.writeLong(maxSequence);
+        out.writeInt(codec.id());
+        out.writeInt(SSTable.FORMAT_VERSION);
+        out.writeLong(SSTable.MAGIC);
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+        finished = true;
+
+        // The filter goes down before the table appears, so an opened table always has its filter
+        if (bloomBitsPerKey > 0) {
+            BloomFilter.build(keyHashes, keyCount, bloomBitsPerKey).writeTo(SSTable.filterFileFor(file));
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Directories.sync(file.getAbsoluteFile().getParentFile());  // The table and its filter, before the manifest
+        SSTable table = SSTable.loadFromFile(file, comparator);
+        table.setCompressNanos(compressNanos);
+        return table;
+    }
+
+    private void flushBlock() throws IOException {
+        int rawLength = blockBuffer.size();
+        if (rawLength == 0) {
+            return;
+        }
+        int length = rawLength;
+        if (codec != BlockCodec.NONE) {
+            if (compressed.length < codec.maxCompressedLength(rawLength)) {
+                compressed = new byte[codec.maxCompressedLength(rawLength)];
+            }
+            long start = System.nanoTime();
+            int compressedLength = codec.compress(blockBuffer.array(), rawLength, compressed);
+            compressNanos += System.nanoTime() - start;
+            if (compressedLength < rawLength - rawLength / 8) {
+                length = compressedLength;
+            }
+        }
+        if (length < rawLength) {
+            out.write(compressed, 0, length);
+        } else {
+            blockBuffer.writeTo(out);
+        }
+        indexKeys.add(blockFirstKey);
+        indexOffsets.add(offset);
+        indexLengths.add(length);
+        indexRawLengths.add(rawLength);
+        offset += length;
+        rawDataBytes += rawLength;
+        blockBuffer.reset();
+    }
+
+    /**
+     * Gives the compressor the block without copying it.
+     */
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Abandons an unfinished table and removes its temporary file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            out.close();
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+}
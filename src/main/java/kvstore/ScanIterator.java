@@ -0,0 +1,48 @@
+package kvstore;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * ScanIterator walks a range of entries and holds on to what it reads from, e.g. the slabs of an
+ * {@link ArenaMemTable}, until it runs to the end or is closed. A caller that stops before the end closes
+ * it, best with try-with-resources; closing it again, or after the end, does nothing.
+ */
+public interface ScanIterator extends Iterator<Entry>, AutoCloseable {
+    @Override
+    void close();
+
+    /**
+     * Wraps an iterator that holds nothing, whose close does nothing.
+     */
+    static ScanIterator of(Iterator<Entry> iterator) {
+        return new ScanIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    static ScanIterator empty() {
+        return of(Collections.emptyIterator());
+    }
+
+    /**
+     * Closes the iterator if it is a ScanIterator; any other iterator holds nothing to close.
+     */
+    static void close(Iterator<Entry> iterator) {
+        if (iterator instanceof ScanIterator) {
+            ((ScanIterator) iterator).close();
+        }
+    }
+}
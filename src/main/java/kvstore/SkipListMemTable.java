@@ -0,0 +1,77 @@
+package kvstore;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SkipListMemTable is the on-heap {@link MemTable}: every version is an {@link Entry} in a concurrent
+ * skip list, so writers and readers never block each other. Its entries are ordinary objects that the
+ * garbage collector reclaims once the memTable is flushed and no reader holds it any more.
+ */
+public class SkipListMemTable implements MemTable {
+    private final KeyComparator comparator;
+    private final ConcurrentSkipListSet<Entry> entries;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong approximateBytes = new AtomicLong();
+
+    public SkipListMemTable() {
+        this(KeyComparator.BYTEWISE);
+    }
+
+    public SkipListMemTable(KeyComparator comparator) {
+        this.comparator = comparator;
+        this.entries = new ConcurrentSkipListSet<>(Entry.internalOrder(comparator));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long sequence, long expiresAt) {
+        entries.add(new Entry(key, value, sequence, expiresAt));
+        size.incrementAndGet();
+        approximateBytes.addAndGet(key.length + (value == null ? 0 : value.length) + 8);
+    }
+
+    @Override
+    public Entry get(byte[] key, long sequence) {
+        Entry entry = entries.ceiling(new Entry(key, null, sequence));
+        return entry != null && comparator.compare(entry.getKeyBytes(), key) == 0 ? entry : null;
+    }
+
+    @Override
+    public KeyComparator comparator() {
+        return comparator;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public long getApproximateBytes() {
+        return approximateBytes.get();
+    }
+
+    @Override
+    public ScanIterator iterator(byte[] startKey, byte[] endKey) {
+        NavigableSet<Entry> range = entries;
+        if (startKey != null) {
+            range = range.tailSet(new Entry(startKey, null, Long.MAX_VALUE), true);
+        }
+        if (endKey != null) {
+            range = range.headSet(new Entry(endKey, null, Long.MIN_VALUE), true);
+        }
+        return ScanIterator.of(range.iterator());
+    }
+
+    @Override
+    public ScanIterator iterator() {
+        return ScanIterator.of(entries.iterator());
+    }
+}
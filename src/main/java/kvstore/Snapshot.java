@@ -0,0 +1,77 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Snapshot is a point-in-time view of an LSMTree: it sees every write whose sequence number is at or below
+ * its own, and none made after it was taken, so repeated reads and scans through it return the same
+ * results. Reads take no locks; they resolve the versions of a key against the snapshot's sequence.
+ *
+ * While a snapshot is open, flushes and compactions keep the versions it can see. Close it once it is no
+ * longer needed so that overwritten values can be reclaimed. Installing a checkpoint replaces the tree's
+ * contents, and with them whatever an open snapshot saw.
+ */
+public final class Snapshot implements Closeable {
+    private final LSMTree tree;
+    private final long sequence;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Snapshot(LSMTree tree, long sequence) {
+        this.tree = tree;
+        this.sequence = sequence;
+    }
+
+    /**
+     * The sequence of the last write this snapshot sees.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the value the key had when the snapshot was taken, or null if it did not exist or was deleted.
+     */
+    public String get(String key) throws IOException {
+        return Entry.fromUtf8(get(Entry.utf8(key)));
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        checkOpen();
+        return tree.get(key, sequence);
+    }
+
+    public ScanIterator scan(String startKey, String endKey) {
+        return scan(Entry.utf8(startKey), Entry.utf8(endKey));
+    }
+
+    /**
+     * Returns the live entries with keys in [startKey, endKey] as of the snapshot, in key order. A null
+     * bound leaves that end of the range open. Close it if it is not read to the end.
+     */
+    public ScanIterator scan(byte[] startKey, byte[] endKey) {
+        checkOpen();
+        return tree.scan(startKey, endKey, sequence);
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Releases the snapshot. Closing it again has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            tree.releaseSnapshot(sequence);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot at sequence " + sequence + " is closed");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package kvstore;
+
+import java.io.File;
+
+/**
+ * StoreConfig holds the tunable settings of a KeyValueStore and its storage engine.
+ * Every setting has a default, so {@code new StoreConfig()} gives a working configuration;
+ * setters return the config so settings can be chained.
+ */
+public class StoreConfig {
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;  // ~1% false positives
+    public static final BlockCodec DEFAULT_BLOCK_CODEC = BlockCodec.LZ4;
+
+    private File dataDirectory = new File("data");
+    private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;  // 0 disables the filters
+
+    // Leveled compaction: level 0 is compacted once it holds level0CompactionTrigger tables, level n >= 1
+    // once it exceeds levelBaseBytes * levelFanout^(n-1) bytes
+    private int numLevels = 7;
+    private int levelFanout = 10;
+    private int level0CompactionTrigger = 4;
+    private long levelBaseBytes = 10L * 1024 * 1024;
+    private long targetFileSizeBytes = 2L * 1024 * 1024;
+    private BlockCodec blockCodec = DEFAULT_BLOCK_CODEC;  // Codec of newly written SSTables' data blocks
+    private MemTableType memTableType = MemTableType.SKIP_LIST;
+    private long memTableMaxBytes = 4L * 1024 * 1024;  // Keys and values written before the memTable is flushed
+    private KeyComparator keyComparator = KeyComparator.BYTEWISE;
+
+    private FsyncPolicy walFsyncPolicy = FsyncPolicy.EVERY_BATCH;
+    private long walSyncIntervalMs = 10;  // Only used by FsyncPolicy.INTERVAL
+
+    private long cacheMaxBytes = 32L * 1024 * 1024;  // Approximate heap used by cached keys and values
+    private long blockCacheMaxBytes = 32L * 1024 * 1024;  // Decompressed SSTable blocks, plus pinned indexes and filters
+    private boolean blockCacheOffHeap = false;
+
+    public File getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public StoreConfig setDataDirectory(File dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        return this;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public StoreConfig setBloomBitsPerKey(int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0) {
+            throw new IllegalArgumentException("Bloom bits per key cannot be negative");
+        }
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    public StoreConfig setNumLevels(int numLevels) {
+        if (numLevels < 2) {
+            throw new IllegalArgumentException("At least two levels are required");
+        }
+        this.numLevels = numLevels;
+        return this;
+    }
+
+    public int getLevelFanout() {
+        return levelFanout;
+    }
+
+    public StoreConfig setLevelFanout(int levelFanout) {
+        if (levelFanout < 2) {
+            throw new IllegalArgumentException("Level fanout must be at least 2");
+        }
+        this.levelFanout = levelFanout;
+        return this;
+    }
+
+    public int getLevel0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    public StoreConfig setLevel0CompactionTrigger(int level0CompactionTrigger) {
+        if (level0CompactionTrigger < 1) {
+            throw new IllegalArgumentException("Level 0 compaction trigger must be at least 1");
+        }
+        this.level0CompactionTrigger = level0CompactionTrigger;
+        return this;
+    }
+
+    public long getLevelBaseBytes() {
+        return levelBaseBytes;
+    }
+
+    public StoreConfig setLevelBaseBytes(long levelBaseBytes) {
+        if (levelBaseBytes <= 0) {
+            throw new IllegalArgumentException("Level base size must be greater than 0");
+        }
+        this.levelBaseBytes = levelBaseBytes;
+        return this;
+    }
+
+    public long getTargetFileSizeBytes() {
+        return targetFileSizeBytes;
+    }
+
+    public StoreConfig setTargetFileSizeBytes(long targetFileSizeBytes) {
+        if (targetFileSizeBytes <= 0) {
+            throw new IllegalArgumentException("Target file size must be greater than 0");
+        }
+        this.targetFileSizeBytes = targetFileSizeBytes;
+        return this;
+    }
+
+    public BlockCodec getBlockCodec() {
+        return blockCodec;
+    }
+
+    /**
+     * Sets the codec new SSTables are written with. Existing tables keep the codec they were written with
+     * until a compaction rewrites them.
+     */
+    public StoreConfig setBlockCodec(BlockCodec blockCodec) {
+        if (blockCodec == null) {
+            throw new IllegalArgumentException("Block codec cannot be null; use BlockCodec.NONE");
+        }
+        this.blockCodec = blockCodec;
+        return this;
+    }
+
+    public MemTableType getMemTableType() {
+        return memTableType;
+    }
+
+    public StoreConfig setMemTableType(MemTableType memTableType) {
+        this.memTableType = memTableType;
+        return this;
+    }
+
+    public long getMemTableMaxBytes() {
+        return memTableMaxBytes;
+    }
+
+    /**
+     * Sets how many bytes of keys and values the active memTable takes before it is frozen and flushed to
+     * an SSTable. A larger memTable means fewer, larger level 0 tables and less compaction work, at the cost
+     * of memory and of a longer WAL replay after a crash.
+     */
+    public StoreConfig setMemTableMaxBytes(long memTableMaxBytes) {
+        if (memTableMaxBytes <= 0) {
+            throw new IllegalArgumentException("MemTable size must be greater than 0");
+        }
+        this.memTableMaxBytes = memTableMaxBytes;
+        return this;
+    }
+
+    public KeyComparator getKeyComparator() {
+        return keyComparator;
+    }
+
+    /**
+     * Sets the order of keys in the tables and scans. It cannot change once the data directory holds
+     * tables: a tree opened with a different comparator than its tables were written with fails to open.
+     */
+    public StoreConfig setKeyComparator(KeyComparator keyComparator) {
+        if (keyComparator == null) {
+            throw new IllegalArgumentException("Key comparator cannot be null");
+        }
+        this.keyComparator = keyComparator;
+        return this;
+    }
+
+    public FsyncPolicy getWalFsyncPolicy() {
+        return walFsyncPolicy;
+    }
+
+    public StoreConfig setWalFsyncPolicy(FsyncPolicy walFsyncPolicy) {
+        this.walFsyncPolicy = walFsyncPolicy;
+        return this;
+    }
+
+    public long getWalSyncIntervalMs() {
+        return walSyncIntervalMs;
+    }
+
+    public StoreConfig setWalSyncIntervalMs(long walSyncIntervalMs) {
+        if (walSyncIntervalMs <= 0) {
+            throw new IllegalArgumentException("WAL sync interval must be greater than 0");
+        }
+        this.walSyncIntervalMs = walSyncIntervalMs;
+        return this;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public StoreConfig setCacheMaxBytes(long cacheMaxBytes) {
+        if (cacheMaxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        }
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    public long getBlockCacheMaxBytes() {
+        return blockCacheMaxBytes;
+    }
+
+    /**
+     * Sets the memory budget of the SSTable block cache, separate from the row cache; 0 disables it. The
+     * indexes and filters of the open tables count against it.
+     */
+    public StoreConfig setBlockCacheMaxBytes(long blockCacheMaxBytes) {
+        if (blockCacheMaxBytes < 0) {
+            throw new IllegalArgumentException("Block cache size cannot be negative");
+        }
+        this.blockCacheMaxBytes = blockCacheMaxBytes;
+        return this;
+    }
+
+    public boolean isBlockCacheOffHeap() {
+        return blockCacheOffHeap;
+    }
+
+    /**
+     * Keeps cached blocks in direct buffers outside the Java heap.
+     */
+    public StoreConfig setBlockCacheOffHeap(boolean blockCacheOffHeap) {
+        this.blockCacheOffHeap = blockCacheOffHeap;
+        return this;
+    }
+
+    /**
+     * Size limit of a sorted level (1 and deeper); exceeding it makes the level a compaction candidate.
+     */
+    public long maxBytesForLevel(int level) {
+        long bytes = levelBaseBytes;
+        for (int i = 1; i < level; i++) {
+            bytes *= levelFanout;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,71 @@
+package kvstore;
+
+/**
+ * TableStats tells how much of an SSTable is still needed. A record is live if it is the newest version of
+ * its key in the whole tree and not a tombstone; tombstones and versions shadowed by a newer one, in this
+ * table or in a newer table or memTable, are dead. Dead versions an open snapshot still reads count as dead
+ * too: they only take space until the snapshot is closed and a compaction drops them.
+ */
+public final class TableStats {
+    private final String name;
+    private final int level;
+    private final long sizeBytes;
+    private final long liveEntries;
+    private final long liveBytes;
+    private final long deadEntries;
+    private final long deadBytes;
+
+    TableStats(String name, int level, long sizeBytes, long liveEntries, long liveBytes, long deadEntries,
+               long deadBytes) {
+        this.name = name;
+        this.level = level;
+        this.sizeBytes = sizeBytes;
+        this.liveEntries = liveEntries;
+        this.liveBytes = liveBytes;
+        this.deadEntries = deadEntries;
+        this.deadBytes = deadBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Size of the file, index and footer included.
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getLiveEntries() {
+        return liveEntries;
+    }
+
+    /**
+     * Encoded size of the live records.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    public long getDeadEntries() {
+        return deadEntries;
+    }
+
+    /**
+     * Encoded size of the tombstones and shadowed versions.
+     */
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    @Override
+    public String toString() {
+        return name + " level=" + level + " size=" + sizeBytes + " live=" + liveEntries + "/" + liveBytes
+                + "B dead=" + deadEntries + "/" + deadBytes + "B";
+    }
+}
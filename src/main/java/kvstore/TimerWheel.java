@@ -0,0 +1,141 @@
+package kvstore;
+
+import java.util.function.Consumer;
+
+/**
+ * TimerWheel is a hierarchical timing wheel that finds the items whose time has come, in time proportional
+ * to the number of expired items rather than to the number scheduled. It is not thread-safe: its owner
+ * calls it under a lock.
+ *
+ * Times are milliseconds. Each of the {@link #LEVELS} wheels has {@link #BUCKETS} buckets, and a bucket of
+ * level n spans 64^n ms, so the levels turn once every 64 ms, 4.1 s, 4.4 min, 4.7 h and 12.4 days. A timer
+ * goes into the lowest level whose turn covers its delay, in the bucket of its expiry time. As the clock
+ * advances past a bucket, its timers either expire or move down to a finer level; timers beyond the
+ * coarsest level wait in its buckets and are looked at once per turn.
+ */
+final class TimerWheel<T> {
+    static final int LEVELS = 5;
+    static final int BUCKETS = 64;
+    private static final int BUCKET_BITS = 6;
+
+    /**
+     * A scheduled item, linked into the bucket it waits in.
+     */
+    static final class Timer<T> {
+        final T item;
+        final long expiresAt;
+        Timer<T> prev;  // Null while the timer is not scheduled
+        Timer<T> next;
+
+        Timer(T item, long expiresAt) {
+            this.item = item;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Timer<T>[][] wheels;  // Sentinels of circular lists, by level and bucket
+    private long time;
+    private int size;
+
+    TimerWheel(long now) {
+        this.time = now;
+        @SuppressWarnings("unchecked")
+        Timer<T>[][] levels = (Timer<T>[][]) new Timer<?>[LEVELS][BUCKETS];
+        this.wheels = levels;
+        for (Timer<T>[] wheel : wheels) {
+            for (int i = 0; i < BUCKETS; i++) {
+                Timer<T> sentinel = new Timer<>(null, 0);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                wheel[i] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Schedules an item to expire at the given time and returns its timer, for {@link #cancel}.
+     */
+    Timer<T> schedule(T item, long expiresAt) {
+        Timer<T> timer = new Timer<>(item, expiresAt);
+        link(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Unschedules a timer; nothing happens if it expired or was cancelled already.
+     */
+    void cancel(Timer<T> timer) {
+        if (timer.prev != null) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Moves the clock forward to now and hands every item whose time is at or before it to onExpired.
+     */
+    void advance(long now, Consumer<T> onExpired) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = BUCKET_BITS * level;
+            long fromTick = previous >>> shift;
+            long toTick = now >>> shift;
+            if (toTick == fromTick) {
+                break;  // Coarser levels have not moved either
+            }
+            long ticks = Math.min(toTick - fromTick, BUCKETS);
+            for (long tick = toTick - ticks + 1; tick <= toTick; tick++) {
+                expire(wheels[level][(int) (tick & (BUCKETS - 1))], onExpired);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Empties a bucket whose time has come: expires its due timers and reschedules the others
+    private void expire(Timer<T> sentinel, Consumer<T> onExpired) {
+        Timer<T> timer = sentinel.next;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        while (timer != sentinel) {
+            Timer<T> next = timer.next;
+            if (timer.expiresAt <= time) {
+                timer.prev = null;
+                timer.next = null;
+                size--;
+                onExpired.accept(timer.item);
+            } else {
+                link(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private void link(Timer<T> timer) {
+        long at = Math.max(timer.expiresAt, time + 1);  // A timer already due expires on the next tick
+        long delay = at - time;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (BUCKET_BITS * (level + 1))) {
+            level++;
+        }
+        Timer<T> sentinel = wheels[level][(int) ((at >>> (BUCKET_BITS * level)) & (BUCKETS - 1))];
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private static <T> void unlink(Timer<T> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
@@ -0,0 +1,523 @@
+package kvstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * TinyLfuCache is a concurrent cache bounded by the total weight (e.g. bytes) of its entries, using the
+ * W-TinyLFU eviction policy.
+ *
+ * New entries enter a small LRU "window" (1% of the weight). Entries leaving the window compete for a
+ * place in the main area, a segmented LRU of a probation and a protected segment: a candidate is only
+ * admitted if the {@link FrequencySketch} says it was accessed more often than the entry it would evict.
+ * A one-off scan therefore passes through the window without flushing the frequently used entries, while
+ * a recency burst still gets cached. Entries hit again in probation are promoted to protected.
+ *
+ * Lookups are lock-free: they read a ConcurrentHashMap and record the access in a striped, lossy ring
+ * buffer. The buffered accesses, and all writes, are applied to the policy under a single eviction lock,
+ * which readers only ever try to take and never wait for.
+ *
+ * An entry may be given an expiry time. A lookup never returns an expired entry, and a {@link TimerWheel}
+ * removes expired entries as the clock passes them, whenever the policy is maintained under the eviction
+ * lock, so they do not linger and take the place of live ones until they are read or evicted.
+ *
+ * An entry may also carry a version, e.g. the sequence of the write that produced it. A versioned put only
+ * replaces an older version, so a value read from slower storage cannot overwrite the newer value a
+ * concurrent writer cached in the meantime, whichever of the two puts runs last.
+ */
+public class TinyLfuCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;  // Not (or no longer) part of the policy
+
+    private static final int ALWAYS = 0;     // How a put treats a cached value of its key: replaces it,
+    private static final int IF_ABSENT = 1;  // leaves it,
+    private static final int IF_NEWER = 2;   // or replaces it only if it is an older version
+
+    private static final int READ_BUFFER_SIZE = 16;  // Per stripe, a power of two
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    /**
+     * Computes the weight of an entry, e.g. its size in bytes. Must be non-negative and must not change.
+     */
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long expiresAt;  // 0 for never
+        final long version;  // 0 for unversioned puts
+        int queue = REMOVED;  // Guarded by the eviction lock, as are the links and the timer
+        Node<K, V> prev;
+        Node<K, V> next;
+        TimerWheel.Timer<Node<K, V>> timer;
+
+        Node(K key, V value, int weight, long expiresAt, long version) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            this.version = version;
+        }
+    }
+
+    /**
+     * An intrusive doubly linked list ordered from least to most recently used.
+     */
+    private static final class AccessQueue<K, V> {
+        Node<K, V> first;
+        Node<K, V> last;
+        long weight;
+
+        void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * One stripe of the read buffer: a ring of accessed nodes, filled by readers and drained under the lock.
+     */
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicLong writeCount = new AtomicLong();
+        volatile long readCount;  // Only advanced under the eviction lock
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final Weigher<K, V> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AccessQueue<K, V> window = new AccessQueue<>();
+    private final AccessQueue<K, V> probation = new AccessQueue<>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final LongSupplier clock;
+    private final TimerWheel<Node<K, V>> timerWheel;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedWeight = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public TinyLfuCache(long maximumWeight, Weigher<K, V> weigher) {
+        this(maximumWeight, weigher, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a cache whose expiry times are compared with the given clock, in milliseconds.
+     */
+    public TinyLfuCache(long maximumWeight, Weigher<K, V> weigher, LongSupplier clock) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight must be greater than 0");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 80 / 100;
+        this.clock = clock;
+        this.timerWheel = new TimerWheel<>(clock.getAsLong());
+
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        @SuppressWarnings("unchecked")
+        ReadBuffer<K, V>[] buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+        this.readBuffers = buffers;
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    /**
+     * Returns the cached value of a key, or null if it is not cached or has expired.
+     */
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null || (node.expiresAt != 0 && node.expiresAt <= clock.getAsLong())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * Caches a value, replacing any cached value of the key. Entries heavier than the whole cache are not kept.
+     */
+    public void put(K key, V value) {
+        put(key, value, 0, 0, ALWAYS);
+    }
+
+    /**
+     * Caches a value that expires at the given time, or never if it is 0, replacing any cached value of
+     * the key.
+     */
+    public void put(K key, V value, long expiresAt) {
+        put(key, value, expiresAt, 0, ALWAYS);
+    }
+
+    /**
+     * Caches a value unless the key is already cached, e.g. for a value just read from slower storage
+     * that a concurrent writer may have replaced in the meantime.
+     */
+    public void putIfAbsent(K key, V value) {
+        put(key, value, 0, 0, IF_ABSENT);
+    }
+
+    public void putIfAbsent(K key, V value, long expiresAt) {
+        put(key, value, expiresAt, 0, IF_ABSENT);
+    }
+
+    /**
+     * Caches a version of a value unless the same or a newer version of the key is cached. A value that
+     * cannot be kept (expired, or heavier than the cache) still removes older versions.
+     */
+    public void putIfNewer(K key, V value, long expiresAt, long version) {
+        put(key, value, expiresAt, version, IF_NEWER);
+    }
+
+    private void put(K key, V value, long expiresAt, long version, int mode) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Cache keys and values cannot be null");
+        }
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Entry weight cannot be negative");
+        }
+        if (weight > maximumWeight || (expiresAt != 0 && expiresAt <= clock.getAsLong())) {
+            if (mode == IF_NEWER) {
+                invalidateOlderThan(key, version);
+            } else {
+                invalidate(key);
+            }
+            return;
+        }
+        Node<K, V> node = new Node<>(key, value, weight, expiresAt, version);
+        Node<K, V> prior;
+        if (mode == IF_ABSENT) {
+            prior = data.putIfAbsent(key, node);
+            if (prior != null) {
+                return;
+            }
+        } else if (mode == IF_NEWER) {
+            while (true) {
+                prior = data.get(key);
+                if (prior == null ? data.putIfAbsent(key, node) == null
+                        : prior.version < version && data.replace(key, prior, node)) {
+                    break;
+                }
+                if (prior != null && prior.version >= version) {
+                    return;
+                }
+            }
+        } else {
+            prior = data.put(key, node);
+        }
+
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            if (prior != null) {
+                unlink(prior);
+            }
+            // A concurrent put or invalidate may already have replaced this node in the map
+            if (data.get(key) == node) {
+                sketch.ensureCapacity(2L * data.size());
+                sketch.increment(key);
+                node.queue = WINDOW;
+                window.addLast(node);
+                if (expiresAt != 0) {
+                    node.timer = timerWheel.schedule(node, expiresAt);
+                }
+                expireEntries();
+                evict();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a key from the cache.
+     */
+    public void invalidate(K key) {
+        Node<K, V> node = data.remove(key);
+        if (node != null) {
+            evictionLock.lock();
+            try {
+                unlink(node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached value of a key if its version is older than the given one.
+     */
+    public void invalidateOlderThan(K key, long version) {
+        Node<K, V> node = data.get(key);
+        if (node != null && node.version < version && data.remove(key, node)) {
+            evictionLock.lock();
+            try {
+                unlink(node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that have expired, which otherwise happens as the cache is used.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            expireEntries();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes every key from the cache.
+     */
+    public void invalidateAll() {
+        for (K key : data.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Total weight of the cached entries, as of the last write.
+     */
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return window.weight + probation.weight + protectedQueue.weight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Fraction of lookups that found the key, or 1 if there were no lookups.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getEvictionWeight() {
+        return evictedWeight.sum();
+    }
+
+    /**
+     * Entries removed because they expired.
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        long writeCount = buffer.writeCount.get();
+        long pending = writeCount - buffer.readCount;
+        // Lossy: when the stripe is full or contended the access is simply not recorded
+        if (pending < READ_BUFFER_SIZE && buffer.writeCount.compareAndSet(writeCount, writeCount + 1)) {
+            buffer.slots.lazySet((int) writeCount & (READ_BUFFER_SIZE - 1), node);
+            pending++;
+        }
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+                expireEntries();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            long readCount = buffer.readCount;
+            long writeCount = buffer.writeCount.get();
+            while (readCount < writeCount) {
+                int index = (int) readCount & (READ_BUFFER_SIZE - 1);
+                Node<K, V> node = buffer.slots.get(index);
+                if (node == null) {
+                    break;  // Claimed but not yet published by its reader; picked up by the next drain
+                }
+                buffer.slots.lazySet(index, null);
+                onAccess(node);
+                readCount++;
+            }
+            buffer.readCount = readCount;
+        }
+    }
+
+    private void onAccess(Node<K, V> node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.addLast(node);
+                // Keep the protected segment within its share, demoting its least recently used entries
+                while (protectedQueue.weight > protectedMaximum && protectedQueue.first != node) {
+                    Node<K, V> demoted = protectedQueue.first;
+                    protectedQueue.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedQueue.moveToLast(node);
+                break;
+            default:
+                break;  // Removed since the access was recorded
+        }
+    }
+
+    /**
+     * Moves entries that overflow the window into the main area, admitting each one only if it is used
+     * more often than the main area's eviction victim, then evicts until the cache is within its weight.
+     */
+    private void evict() {
+        while (window.weight > windowMaximum && window.first != null) {
+            Node<K, V> candidate = window.first;
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+
+            while (totalWeight() > maximumWeight && candidate.queue == PROBATION) {
+                Node<K, V> victim = probation.first != candidate ? probation.first : protectedQueue.first;
+                if (victim == null) {
+                    break;
+                }
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    evictEntry(victim);
+                } else {
+                    evictEntry(candidate);
+                }
+            }
+        }
+        // Still too heavy (e.g. heavy entries in the window): evict in LRU order, main area first
+        while (totalWeight() > maximumWeight) {
+            Node<K, V> victim = probation.first != null ? probation.first
+                    : protectedQueue.first != null ? protectedQueue.first : window.first;
+            evictEntry(victim);
+        }
+    }
+
+    private void expireEntries() {
+        timerWheel.advance(clock.getAsLong(), this::expireEntry);
+    }
+
+    private void expireEntry(Node<K, V> node) {
+        node.timer = null;  // Already off the wheel
+        data.remove(node.key, node);
+        unlink(node);
+        expirations.increment();
+    }
+
+    private long totalWeight() {
+        return window.weight + probation.weight + protectedQueue.weight;
+    }
+
+    private void evictEntry(Node<K, V> node) {
+        data.remove(node.key, node);
+        unlink(node);
+        evictions.increment();
+        evictedWeight.add(node.weight);
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.timer != null) {
+            timerWheel.cancel(node.timer);
+            node.timer = null;
+        }
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                break;
+            default:
+                break;
+        }
+        node.queue = REMOVED;
+    }
+}
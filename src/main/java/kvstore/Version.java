@@ -0,0 +1,141 @@
+package kvstore;
+
+import java.util.*;
+
+/**
+ * Version is an immutable snapshot of the SSTables that make up the LSM tree, organised in levels.
+ * Level 0 holds freshly flushed tables, newest first, whose key ranges may overlap. Every deeper
+ * level holds tables sorted by key with non-overlapping ranges, and holds older data than the
+ * levels above it. Flushes and compactions never modify a Version; they install a new one, so
+ * readers can use whatever Version they picked up without locking.
+ */
+public final class Version {
+    private final List<List<SSTable>> levels;
+
+    private Version(List<List<SSTable>> levels) {
+        this.levels = levels;
+    }
+
+    public static Version empty(int numLevels) {
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int i = 0; i < numLevels; i++) {
+            levels.add(Collections.emptyList());
+        }
+        return new Version(Collections.unmodifiableList(levels));
+    }
+
+    /**
+     * Builds a Version from tables already arranged by level (level 0 newest first, other levels by key).
+     */
+    public static Version of(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<>();
+        for (List<SSTable> tables : levels) {
+            copy.add(Collections.unmodifiableList(new ArrayList<>(tables)));
+        }
+        return new Version(Collections.unmodifiableList(copy));
+    }
+
+    public int numLevels() {
+        return levels.size();
+    }
+
+    public List<SSTable> level(int level) {
+        return levels.get(level);
+    }
+
+    public long levelBytes(int level) {
+        long bytes = 0;
+        for (SSTable table : levels.get(level)) {
+            bytes += table.getSizeBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the table of a sorted level (1 and deeper) whose key range contains the key, or null.
+     */
+    public SSTable findTable(int level, byte[] key) {
+        List<SSTable> tables = levels.get(level);
+        int low = 0;
+        int high = tables.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SSTable table = tables.get(mid);
+            KeyComparator comparator = table.getComparator();
+            if (comparator.compare(table.getLastKeyBytes(), key) < 0) {
+                low = mid + 1;
+            } else if (comparator.compare(table.getFirstKeyBytes(), key) > 0) {
+                high = mid - 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tables of a level whose key ranges intersect [startKey, endKey]; a null bound is open.
+     */
+    public List<SSTable> overlapping(int level, byte[] startKey, byte[] endKey) {
+        List<SSTable> result = new ArrayList<>();
+        for (SSTable table : levels.get(level)) {
+            KeyComparator comparator = table.getComparator();
+            if ((startKey == null || comparator.compare(table.getLastKeyBytes(), startKey) >= 0)
+                    && (endKey == null || comparator.compare(table.getFirstKeyBytes(), endKey) <= 0)) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all tables ordered from the oldest data to the newest: the deepest level first,
+     * level 0 last.
+     */
+    public List<SSTable> allOldestFirst() {
+        List<SSTable> result = new ArrayList<>();
+        for (int level = levels.size() - 1; level > 0; level--) {
+            result.addAll(levels.get(level));
+        }
+        List<SSTable> level0 = new ArrayList<>(levels.get(0));
+        Collections.reverse(level0);
+        result.addAll(level0);
+        return result;
+    }
+
+    /**
+     * Returns a new Version with a freshly flushed table added as the newest table of level 0.
+     */
+    public Version withFlushedTable(SSTable table) {
+        List<List<SSTable>> copy = new ArrayList<>(levels);
+        List<SSTable> level0 = new ArrayList<>();
+        level0.add(table);
+        level0.addAll(levels.get(0));
+        copy.set(0, Collections.unmodifiableList(level0));
+        return new Version(Collections.unmodifiableList(copy));
+    }
+
+    /**
+     * Returns a new Version with the compaction inputs removed from every level and the outputs
+     * merged into the output level in key order.
+     */
+    public Version withCompaction(Collection<SSTable> inputs, int outputLevel, List<SSTable> outputs) {
+        Set<SSTable> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(inputs);
+        List<List<SSTable>> copy = new ArrayList<>();
+        for (int level = 0; level < levels.size(); level++) {
+            List<SSTable> tables = new ArrayList<>();
+            for (SSTable table : levels.get(level)) {
+                if (!removed.contains(table)) {
+                    tables.add(table);
+                }
+            }
+            if (level == outputLevel) {
+                tables.addAll(outputs);
+                tables.sort((a, b) -> a.getComparator().compare(a.getFirstKeyBytes(), b.getFirstKeyBytes()));
+            }
+            copy.add(Collections.unmodifiableList(tables));
+        }
+        return new Version(Collections.unmodifiableList(copy));
+    }
+}
@@ -0,0 +1,127 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WalRecord encodes the store's operations as binary write ahead log payloads:
+ * {@code type:byte keyLen:int key:bytes [valueLen:int value:bytes]}. Keys and values are
+ * length-prefixed and logged as the bytes they were written as, so they may hold any data. A put whose
+ * value expires is {@code PUT_EXPIRING keyLen:int key:bytes valueLen:int value:bytes expiresAt:long}, with
+ * the absolute expiry time, so replaying it later does not extend the value's life. A write batch is a single record,
+ * {@code BATCH count:int} followed by one put or delete per operation. Writes replicated from a primary
+ * are a batch prefixed with their position in the primary's replication log,
+ * {@code REPLICATED logId:long sequence:long BATCH ...}, so a replica knows after a crash how far it got.
+ */
+final class WalRecord {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte BATCH = 3;
+    static final byte REPLICATED = 4;
+    static final byte PUT_EXPIRING = 5;
+
+    private WalRecord() {
+    }
+
+    static byte[] put(byte[] key, byte[] value) {
+        return put(key, value, 0);
+    }
+
+    /**
+     * A put whose value expires at the given time, in milliseconds since the epoch, or never if it is 0.
+     */
+    static byte[] put(byte[] key, byte[] value, long expiresAt) {
+        if (expiresAt == 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + key.length + 4 + value.length);
+            buffer.put(PUT).putInt(key.length).put(key).putInt(value.length).put(value);
+            return buffer.array();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + key.length + 4 + value.length + 8);
+        buffer.put(PUT_EXPIRING).putInt(key.length).put(key).putInt(value.length).put(value).putLong(expiresAt);
+        return buffer.array();
+    }
+
+    static byte[] delete(byte[] key) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + key.length);
+        buffer.put(DELETE).putInt(key.length).put(key);
+        return buffer.array();
+    }
+
+    static byte[] batch(List<Entry> entries) {
+        List<byte[]> operations = new ArrayList<>(entries.size());
+        int length = 1 + 4;
+        for (Entry entry : entries) {
+            byte[] operation = entry.isTombstone() ? delete(entry.getKeyBytes())
+                    : put(entry.getKeyBytes(), entry.getValueBytes(), entry.getExpiresAt());
+            operations.add(operation);
+            length += operation.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(BATCH).putInt(operations.size());
+        for (byte[] operation : operations) {
+            buffer.put(operation);
+        }
+        return buffer.array();
+    }
+
+    static byte[] replicated(long logId, long sequence, List<Entry> entries) {
+        byte[] batch = batch(entries);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8 + batch.length);
+        buffer.put(REPLICATED).putLong(logId).putLong(sequence).put(batch);
+        return buffer.array();
+    }
+
+    /**
+     * The replication log ID and sequence of a REPLICATED record, or null for any other record.
+     */
+    static long[] replicationPosition(byte[] record) {
+        if (record[0] != REPLICATED) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record, 1, 16);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    /**
+     * Decodes a record into the entries it writes, in order; deletes decode to a tombstone.
+     */
+    static List<Entry> decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (buffer.get(0) == REPLICATED) {
+            buffer.position(1 + 8 + 8);
+        } else if (buffer.get(0) != BATCH) {
+            return Collections.singletonList(decodeOperation(buffer));
+        }
+        buffer.get();
+        int count = buffer.getInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(decodeOperation(buffer));
+        }
+        return entries;
+    }
+
+    private static Entry decodeOperation(ByteBuffer buffer) {
+        byte type = buffer.get();
+        byte[] key = readBytes(buffer);
+        switch (type) {
+            case PUT:
+                return new Entry(key, readBytes(buffer));
+            case PUT_EXPIRING:
+                byte[] value = readBytes(buffer);
+                return new Entry(key, value, 0, buffer.getLong());
+            case DELETE:
+                return new Entry(key, null);
+            default:
+                throw new IllegalArgumentException("Unknown WAL record type " + type);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
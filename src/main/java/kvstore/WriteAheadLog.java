@@ -1,66 +1,466 @@
 package kvstore;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 /**
- * The WriteAheadLog (WAL) class provides a mechanism for logging operations 
- * to persistent storage before they are applied to the main system, ensuring 
+ * The WriteAheadLog (WAL) class provides a mechanism for logging operations
+ * to persistent storage before they are applied to the main system, ensuring
  * durability in the event of system failure.
+ *
+ * The log is split into numbered segment files ({@code wal-000001.log}, ...). Every record is framed as
+ * {@code length:int crc32c:int payload:bytes}; recovery stops reading a segment at the first record that
+ * is incomplete or fails its checksum, which is what a crash in the middle of a write leaves behind.
+ * A new segment is started whenever the memTable is frozen ({@link #rollSegment()}), so once that
+ * memTable is flushed to an SSTable all older segments can be deleted ({@link #deleteSegmentsBefore(long)})
+ * and recovery only ever replays about one memTable worth of records.
+ *
+ * Writes are group-committed: callers enqueue their record and a single writer thread drains
+ * everything that queued up while the previous batch was being written, appends it to the log
+ * with one write and, depending on the {@link FsyncPolicy}, one {@code force()}. Callers block
+ * until the batch holding their record has been written (and forced, for EVERY_BATCH). Records are
+ * written in the order they were queued; {@link #submit(byte[])} queues a record without waiting, so a
+ * caller can fix the order of its records under a lock and wait for them outside it.
+ *
+ * A batch whose write or force fails is failed as a whole and cut off the segment again, so neither its
+ * records nor a torn one are replayed on recovery, and later batches are appended where it started. If
+ * that is not possible either, or the log cannot be forced between batches, the log fails for good and
+ * every later write is rejected.
  */
-public class WriteAheadLog {
-    private static final String LOG_FILE = "wal.log";  // The file where log entries are stored
-    private List<String> logs = new ArrayList<>();     // In-memory list of log entries
+public class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;  // length + crc
+    private static final int MAX_BATCH_RECORDS = 4096;
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long syncIntervalNanos;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Object ioLock = new Object();  // Guards the channel: writes, rolls and truncation
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile IOException failure;  // Once set, the log's contents on disk are unknown
+
+    private FileChannel channel;
+    private long currentSegmentId;
+    private long lastSyncNanos = System.nanoTime();
+    private boolean unsynced = false;
+
+    // Updated by the writer thread only
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    private static final PendingWrite WAKE_UP = new PendingWrite(new byte[0]);  // Wakes the writer on close
 
     /**
-     * Constructor for WriteAheadLog. If the log file already exists, it recovers the log entries;
-     * otherwise, it creates a new log file.
+     * A record queued for the writer thread.
      */
+    public static final class PendingWrite {
+        private final byte[] data;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private PendingWrite(byte[] data) {
+            this.data = data;
+        }
+    }
+
     public WriteAheadLog() throws IOException {
-        File file = new File(LOG_FILE);
-        if (file.exists()) {
-            recoverLog(); // Recover log entries if the log file exists
-        } else {
-            file.createNewFile(); // Create a new log file if it doesn't exist
+        this(new StoreConfig());
+    }
+
+    /**
+     * Opens the log in the configured data directory. Existing segments are kept for recovery and new
+     * records go to a fresh segment, so a torn record at the end of an old segment is never appended to.
+     */
+    public WriteAheadLog(StoreConfig config) throws IOException {
+        this.directory = config.getDataDirectory();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create data directory " + directory);
+        }
+        this.fsyncPolicy = config.getWalFsyncPolicy();
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getWalSyncIntervalMs());
+
+        List<Long> segments = listSegments();
+        this.currentSegmentId = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        this.channel = openSegment(currentSegmentId);
+
+        this.writerThread = new Thread(this::writeLoop, "wal-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Logs an operation and waits until the batch containing it has been committed.
+     * Safe to call from many threads; concurrent callers share a single write and fsync.
+     */
+    public void logOperation(String operation) throws IOException {
+        append(operation.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a binary record and waits until the batch containing it has been committed.
+     */
+    public void append(byte[] payload) throws IOException {
+        await(submit(payload));
+    }
+
+    /**
+     * Queues a binary record behind the records queued before it, without waiting for it to be written.
+     */
+    public PendingWrite submit(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Log records cannot be empty");
+        }
+        if (closed) {
+            throw new IOException("Write ahead log is closed");
+        }
+        if (failure != null) {
+            throw new IOException("Write ahead log failed, no more writes are accepted", failure);
+        }
+        PendingWrite write = new PendingWrite(frame(payload));
+        queue.add(write);
+        return write;
+    }
+
+    /**
+     * Waits until the batch containing a queued record has been committed.
+     */
+    public void await(PendingWrite write) throws IOException {
+        try {
+            while (true) {
+                try {
+                    write.done.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (!writerThread.isAlive() && !write.done.isDone()) {
+                        throw new IOException("Write ahead log is closed");  // Raced with close()
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the log write", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Log write failed", e.getCause());
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer framed = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        framed.putInt(payload.length);
+        framed.putInt((int) crc.getValue());
+        framed.put(payload);
+        return framed.array();
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(pollTimeoutMs(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    try {
+                        syncIfDue();
+                    } catch (IOException e) {
+                        fail(e);  // Writes acknowledged since the last sync may be lost
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_RECORDS - 1);
+                batch.removeIf(write -> write == WAKE_UP);
+                if (failure != null) {
+                    throw new IOException("Write ahead log failed, no more writes are accepted", failure);
+                }
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                }
+                for (PendingWrite write : batch) {
+                    write.done.complete(null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(new IOException("Log write failed", e));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).data);
+        }
+        synchronized (ioLock) {
+            long start;
+            try {
+                start = channel.size();
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            long bytes = 0;
+            try {
+                // One gathering write for the whole batch
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                bytes = remaining;
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                unsynced = true;
+                if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+                    sync();
+                } else {
+                    syncIfDue();
+                }
+            } catch (IOException | RuntimeException e) {
+                discard(start, e);
+                throw e;
+            }
+            recordsWritten.addAndGet(buffers.length);
+            bytesWritten.addAndGet(bytes);
+            batchesWritten.incrementAndGet();
+        }
+    }
+
+    // Cuts a failed batch off the segment, so that it is not replayed and the next batch follows the last
+    // good one; fails the log if that does not work
+    private void discard(long start, Exception cause) {
+        try {
+            channel.truncate(start);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+            fail(cause);
+        }
+    }
+
+    private void fail(Exception cause) {
+        if (failure == null) {
+            System.err.println("ERROR: Write ahead log failed: " + cause);
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void syncIfDue() throws IOException {
+        synchronized (ioLock) {
+            if (fsyncPolicy == FsyncPolicy.INTERVAL && unsynced && System.nanoTime() - lastSyncNanos >= syncIntervalNanos) {
+                sync();
+            }
         }
     }
 
+    private void sync() throws IOException {
+        channel.force(false);
+        unsynced = false;
+        lastSyncNanos = System.nanoTime();
+        syncs.incrementAndGet();
+    }
+
+    /**
+     * Number of records written to the log since it was opened.
+     */
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
     /**
-     * Synchronized method to log operations in a thread-safe manner.
-     * Writes the operation to the log file and stores it in the in-memory list.
+     * Bytes written to the log since it was opened, framing included.
      */
-    public synchronized void logOperation(String operation) throws IOException {
-        logs.add(operation); // Add the operation to the in-memory list
-        // Append the operation to the log file
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(LOG_FILE, true))) {
-            writer.write(operation + "\n");
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Number of group-commit batches written; records per batch shows how well writes are grouped.
+     */
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    /**
+     * Number of times the log was forced to disk.
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Records waiting for the writer thread.
+     */
+    public int getPendingRecords() {
+        return queue.size();
+    }
+
+    private long pollTimeoutMs() {
+        return fsyncPolicy == FsyncPolicy.INTERVAL ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(syncIntervalNanos)) : 100;
+    }
+
+    /**
+     * Closes the current segment and directs new records to a fresh one. Records appended before this call
+     * stay in older segments. Returns the id of the new segment.
+     */
+    public long rollSegment() throws IOException {
+        synchronized (ioLock) {
+            sync();
+            channel.close();
+            currentSegmentId++;
+            channel = openSegment(currentSegmentId);
+            return currentSegmentId;
         }
     }
 
     /**
-     * Recovers the log entries from the log file.
-     * Reads the log file line by line and returns a list of logged operations.
+     * Deletes every segment older than the given one, once their records are safely stored elsewhere.
+     */
+    public void deleteSegmentsBefore(long segmentId) throws IOException {
+        long current = getCurrentSegmentId();
+        for (long id : listSegments()) {
+            if (id < segmentId && id != current) {
+                Files.deleteIfExists(segmentFile(id).toPath());
+            }
+        }
+    }
+
+    public long getCurrentSegmentId() {
+        synchronized (ioLock) {
+            return currentSegmentId;
+        }
+    }
+
+    /**
+     * Reads every intact record from all segments, oldest first. Reading a segment stops at the first
+     * torn or corrupt record; the following segments are still read.
+     */
+    public List<byte[]> readRecords() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (long id : listSegments()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segmentFile(id).toPath()));
+            while (data.remaining() >= HEADER_SIZE) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    break;  // Torn tail: the record was never completely written
+                }
+                byte[] payload = new byte[length];
+                data.get(payload);
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("WAL segment " + id + ": checksum mismatch, ignoring the rest of the segment");
+                    break;
+                }
+                records.add(payload);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Recovers the log entries written with {@link #logOperation(String)}.
      */
     public List<String> recoverLog() throws IOException {
         List<String> recoveryOps = new ArrayList<>(); // List to store recovered operations
-        // Read the log file line by line
-        try (BufferedReader reader = new BufferedReader(new FileReader(LOG_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                recoveryOps.add(line); // Add each log entry to the recovery list
-            }
+        for (byte[] record : readRecords()) {
+            recoveryOps.add(new String(record, StandardCharsets.UTF_8));
         }
         return recoveryOps; // Return the recovered operations
     }
 
     /**
-     * Synchronized method to clear the log file.
-     * This method truncates the log file and clears the in-memory list of logs.
+     * Clears the log: deletes all older segments and empties the current one.
+     */
+    public void clearLog() throws IOException {
+        synchronized (ioLock) {
+            deleteSegmentsBefore(currentSegmentId);
+            channel.truncate(0);
+            sync();
+        }
+    }
+
+    /**
+     * Commits all queued writes, forces the log to disk and stops the writer thread.
      */
-    public synchronized void clearLog() throws IOException {
-        // Truncate the log file to empty its contents
-        Files.write(Paths.get(LOG_FILE), new byte[0], StandardOpenOption.TRUNCATE_EXISTING);
-        logs.clear(); // Clear the in-memory list of logs
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Not interrupt(): interrupting a thread inside FileChannel I/O closes the channel
+        queue.add(WAKE_UP);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            sync();
+            channel.close();
+        }
+    }
+
+    // Opens a new segment, whose directory entry is made durable before any record is acknowledged in it
+    private FileChannel openSegment(long id) throws IOException {
+        FileChannel segment = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            Directories.sync(directory);
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() {
+        List<Long> ids = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a segment file
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
     }
 }
@@ -0,0 +1,101 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WriteBatch collects puts and deletes that {@link KeyValueStore#write(WriteBatch)} applies as one unit:
+ * a single write ahead log record, so after a crash either all of them or none are recovered. Operations
+ * on the same key are applied in the order they were added, the last one wins. A put may be given a time
+ * to live, counted from when it is added to the batch.
+ */
+public class WriteBatch {
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Puts a key and value, encoded as UTF-8.
+     */
+    public WriteBatch put(String key, String value) {
+        validateKey(key);
+        return put(Entry.utf8(key), Entry.utf8(value));
+    }
+
+    /**
+     * Puts a key and value, encoded as UTF-8, that expire ttlMs milliseconds from now.
+     */
+    public WriteBatch put(String key, String value, long ttlMs) {
+        validateKey(key);
+        return put(Entry.utf8(key), Entry.utf8(value), ttlMs);
+    }
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        return add(key, value, 0);
+    }
+
+    /**
+     * Puts a key and value that expire ttlMs milliseconds from now.
+     */
+    public WriteBatch put(byte[] key, byte[] value, long ttlMs) {
+        return add(key, value, KeyValueStore.expiryTime(ttlMs));
+    }
+
+    /**
+     * Puts a key and value that expire at the given time, in milliseconds since the epoch, or never if it
+     * is 0; e.g. for a write forwarded from another node that already fixed its expiry.
+     */
+    public WriteBatch putUntil(byte[] key, byte[] value, long expiresAt) {
+        return add(key, value, expiresAt);
+    }
+
+    private WriteBatch add(byte[] key, byte[] value, long expiresAt) {
+        validateKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+        entries.add(new Entry(key, value, 0, expiresAt));
+        return this;
+    }
+
+    public WriteBatch delete(String key) {
+        validateKey(key);
+        return delete(Entry.utf8(key));
+    }
+
+    /**
+     * Deletes a key. Unlike {@link KeyValueStore#delete(byte[])}, deleting a key that does not exist is
+     * not an error.
+     */
+    public WriteBatch delete(byte[] key) {
+        validateKey(key);
+        entries.add(new Entry(key, null));
+        return this;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * The operations in the order they were added; deletes are tombstones.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static void validateKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Key cannot be null or empty");
+        }
+    }
+
+    private static void validateKey(byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("Key cannot be null or empty");
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package kvstore.network;
+
+import kvstore.Entry;
+import kvstore.WriteBatch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client of the binary protocol. It is safe to share between threads: all of them send their requests
+ * over one connection, and a reader thread completes each request when the response with its ID arrives.
+ */
+public class BinaryClient implements Closeable {
+    private static final long TIMEOUT_MS = 30000;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final Thread reader;
+    private final Map<Long, CompletableFuture<BinaryFrame>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final byte opcodeFlags;
+    private volatile IOException failure;
+
+    public BinaryClient(String host, int port) throws IOException {
+        this(host, port, false);
+    }
+
+    /**
+     * @param forwarded whether requests are forwarded by a shard to the owner of their keys, which must
+     *                  execute them itself
+     */
+    BinaryClient(String host, int port, boolean forwarded) throws IOException {
+        this.opcodeFlags = forwarded ? BinaryFrame.FORWARDED : 0;
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.reader = new Thread(this::readResponses, "kv-binary-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request of text fields without waiting for its response.
+     */
+    public CompletableFuture<BinaryFrame> send(byte opcode, List<String> fields) {
+        return sendBytes(opcode, BinaryFrame.encode(fields));
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     */
+    public CompletableFuture<BinaryFrame> sendBytes(byte opcode, List<byte[]> fields) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<BinaryFrame> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            byte[] frame = BinaryFrame.ofBytes(requestId, (byte) (opcode | opcodeFlags), fields).toBytes();
+            synchronized (out) {
+                out.write(frame);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    public String get(String key) throws IOException {
+        return new String(get(utf8(key)), StandardCharsets.UTF_8);
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        return call(BinaryFrame.GET, List.of(key)).get(0);
+    }
+
+    public void put(String key, String value) throws IOException {
+        put(utf8(key), utf8(value));
+    }
+
+    /**
+     * Stores the value's bytes as they are, e.g. a serialized message.
+     */
+    public void put(byte[] key, byte[] value) throws IOException {
+        call(BinaryFrame.PUT, List.of(key, value));
+    }
+
+    /**
+     * Stores a value that expires ttlMs milliseconds after the server receives it.
+     */
+    public void put(String key, String value, long ttlMs) throws IOException {
+        put(utf8(key), utf8(value), ttlMs);
+    }
+
+    public void put(byte[] key, byte[] value, long ttlMs) throws IOException {
+        call(BinaryFrame.PUT, List.of(key, value, utf8(Long.toString(ttlMs))));
+    }
+
+    public void delete(String key) throws IOException {
+        delete(utf8(key));
+    }
+
+    public void delete(byte[] key) throws IOException {
+        call(BinaryFrame.DELETE, List.of(key));
+    }
+
+    public void batchPut(List<String> keys, List<String> values) throws IOException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Keys and values must be of the same length.");
+        }
+        List<byte[]> fields = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            fields.add(utf8(keys.get(i)));
+            fields.add(utf8(values.get(i)));
+        }
+        call(BinaryFrame.BATCH, fields);
+    }
+
+    /**
+     * Applies the puts and deletes of the batch atomically.
+     */
+    public void write(WriteBatch batch) throws IOException {
+        List<byte[]> fields = new ArrayList<>();
+        BinaryProtocol.encodeEntries(batch.getEntries(), fields);
+        call(BinaryFrame.WRITE, fields);
+    }
+
+    public List<String[]> readKeyRange(String startKey, String endKey) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        for (Entry entry : scanKeyRange(utf8(startKey), utf8(endKey))) {
+            result.add(new String[]{entry.getKey(), entry.getValue()});
+        }
+        return result;
+    }
+
+    /**
+     * The live entries with keys between startKey and endKey inclusive, in key order.
+     */
+    public List<Entry> scanKeyRange(byte[] startKey, byte[] endKey) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        try {
+            iterateKeyRange(startKey, endKey).forEachRemaining(result::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    /**
+     * Iterates over the live entries with keys between startKey and endKey inclusive, in key order,
+     * fetching them a page at a time as the iteration reaches them. Fetching a page throws an
+     * UncheckedIOException if the server cannot be reached.
+     */
+    public Iterator<Entry> iterateKeyRange(byte[] startKey, byte[] endKey) throws IOException {
+        List<byte[]> first = call(BinaryFrame.RANGE, List.of(startKey, endKey));
+        return new Iterator<Entry>() {
+            private List<byte[]> page = first;
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (next + 1 < page.size()) {
+                    return true;
+                }
+                if (page.size() % 2 == 0) {
+                    return false;  // The last page
+                }
+                byte[] lastKey = page.get(page.size() - 3);
+                try {
+                    page = call(BinaryFrame.RANGE, List.of(lastKey, endKey, utf8(BinaryProtocol.AFTER_START)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                next = 0;
+                return next + 1 < page.size();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = new Entry(page.get(next), page.get(next + 1));
+                next += 2;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Adds the shard at the binary protocol address "host:port" to the server's cluster, and waits until
+     * the server has moved the keys the new shard takes over to it.
+     */
+    public void addNode(String address) throws IOException {
+        call(BinaryFrame.ADD_NODE, List.of(utf8(address)));
+    }
+
+    /**
+     * Sends a request and waits for its response, turning error statuses into the exceptions the
+     * KeyValueStore itself throws.
+     */
+    private List<byte[]> call(byte opcode, List<byte[]> fields) throws IOException {
+        BinaryFrame response;
+        try {
+            response = sendBytes(opcode, fields).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No response within " + TIMEOUT_MS + " ms");
+        }
+
+        switch (response.getCode()) {
+            case BinaryFrame.OK:
+                return response.getFieldBytes();
+            default:
+                break;
+        }
+        String message = response.getFields().isEmpty() ? "" : response.getFields().get(0);
+        switch (response.getCode()) {
+            case BinaryFrame.NOT_FOUND:
+                throw new NoSuchElementException(message);
+            case BinaryFrame.BAD_REQUEST:
+                throw new IllegalArgumentException(message);
+            case BinaryFrame.UNAVAILABLE:
+                throw new IllegalStateException(message);
+            default:
+                throw new IOException(message);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void readResponses() {
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > BinaryFrame.MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (buffer.capacity() < Integer.BYTES + length) {
+                    buffer = ByteBuffer.allocate(Integer.BYTES + length);
+                }
+                buffer.clear();
+                buffer.putInt(length);
+                in.readFully(buffer.array(), Integer.BYTES, length);
+                buffer.position(0).limit(Integer.BYTES + length);
+                BinaryFrame response = BinaryFrame.parse(buffer);
+
+                CompletableFuture<BinaryFrame> request = pending.remove(response.getRequestId());
+                if (request != null) {
+                    request.complete(response);
+                } else if (response.getCode() != BinaryFrame.OK) {
+                    // Not tied to a request, e.g. the server rejecting a malformed frame before closing
+                    System.err.println("Server error: " + response.getFields());
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+        for (CompletableFuture<BinaryFrame> request : pending.values()) {
+            request.completeExceptionally(new IOException("Connection closed", failure));
+        }
+        pending.clear();
+    }
+
+    /**
+     * Whether requests can still be sent; false once the connection failed or was closed.
+     */
+    public boolean isOpen() {
+        return failure == null && !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package kvstore.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One message of the binary protocol, a request or a response. Both have the same layout, all integers
+ * big-endian:
+ *
+ * <pre>
+ * length:int        number of bytes after this field
+ * requestId:long    chosen by the client, echoed in the response
+ * code:byte         the opcode of a request, or the status of a response
+ * fieldCount:int
+ * { fieldLength:int, bytes } * fieldCount
+ * </pre>
+ *
+ * The fields of each request, and of its successful response:
+ *
+ * <pre>
+ * GET     key                           value
+ * PUT     key, value[, ttlMs]           -
+ * DELETE  key                           -
+ * BATCH   key1, value1, key2, value2..  -
+ * RANGE   startKey, endKey[, "after"]   key1, value1, key2, value2..[, ""] (in key order)
+ * REPLICATE  logId, then per record: sequence, entryCount, then per entry: "P", key, value or
+ *            "E", key, value, expiresAt or "D", key
+ * WRITE   per entry: "P", key, value or "E", key, value, expiresAt or "D", key   -
+ * APPLIED_SEQUENCE  logId                    sequence, or -1
+ * CHECKPOINT_FILE   directory, fileName, offset, bytes   -
+ * CHECKPOINT_INSTALL  directory, logId, sequence, levelCount, then per level: tableCount, fileNames..   -
+ * ADD_NODE  address                     -
+ * </pre>
+ *
+ * A PUT with ttlMs expires that many milliseconds after the server receives it; "E" entries carry the
+ * absolute expiry time in milliseconds since the epoch, as fixed by the node that first accepted the
+ * write. A RANGE response holds one page of the range, about a megabyte of entries; an empty last field
+ * means the range goes on, and the client asks for the rest by sending the last key it received as
+ * startKey, with "after" to leave that key out.
+ *
+ * WRITE is an atomic batch of puts and deletes. REPLICATE carries a primary's replication log records to
+ * a follower; the records of a connection are applied in the order they were sent, one batch at a time.
+ * A primary catches up a follower that is far behind by sending its table files in CHECKPOINT_FILE
+ * chunks, in order on the replication connection, and then installing them with CHECKPOINT_INSTALL;
+ * directory is a name the primary picks for the checkpoint.
+ *
+ * ADD_NODE adds the shard at the binary protocol address "host:port" to the cluster, and returns once this
+ * server has moved the keys the new shard takes over to it; it is sent to every existing shard.
+ *
+ * A server that is one shard of a {@link kvstore.HashRing} forwards a request for keys it does not own to
+ * their owners, setting the FORWARDED bit in the opcode. A forwarded request is executed locally, except
+ * that while this server moves keys to a new shard, a forwarded write also goes to the keys' new owners.
+ *
+ * A failed response has a non-OK status and the error message as its only field. Since fields are length
+ * prefixed, keys and values may hold any bytes, and they are carried as they are; numbers, names and
+ * messages are UTF-8 text.
+ */
+public final class BinaryFrame {
+    public static final byte GET = 1;
+    public static final byte PUT = 2;
+    public static final byte DELETE = 3;
+    public static final byte BATCH = 4;
+    public static final byte RANGE = 5;
+    public static final byte REPLICATE = 6;
+    public static final byte WRITE = 7;
+    public static final byte APPLIED_SEQUENCE = 8;
+    public static final byte CHECKPOINT_FILE = 9;
+    public static final byte CHECKPOINT_INSTALL = 10;
+    public static final byte ADD_NODE = 11;
+    public static final byte FORWARDED = 0x40;  // Flag bit of a request opcode
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte BAD_REQUEST = 2;
+    public static final byte UNAVAILABLE = 3;
+    public static final byte ERROR = 4;
+
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int MIN_FRAME_BYTES = Long.BYTES + 1 + Integer.BYTES;
+    static final int MAX_FIELD_BYTES = MAX_FRAME_BYTES - MIN_FRAME_BYTES;  // Of a frame's fields, lengths included
+
+    private final long requestId;
+    private final byte code;
+    private final List<byte[]> fields;
+
+    /**
+     * A frame of text fields, each sent as its UTF-8 bytes.
+     */
+    public BinaryFrame(long requestId, byte code, List<String> fields) {
+        this(encode(fields), requestId, code);
+    }
+
+    private BinaryFrame(List<byte[]> fields, long requestId, byte code) {
+        this.requestId = requestId;
+        this.code = code;
+        this.fields = fields;
+    }
+
+    /**
+     * A frame of binary fields, e.g. keys and values, sent as they are.
+     */
+    public static BinaryFrame ofBytes(long requestId, byte code, List<byte[]> fields) {
+        return new BinaryFrame(fields, requestId, code);
+    }
+
+    /**
+     * The UTF-8 bytes of text fields.
+     */
+    public static List<byte[]> encode(List<String> fields) {
+        List<byte[]> encoded = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            encoded.add(field.getBytes(StandardCharsets.UTF_8));
+        }
+        return encoded;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * The fields decoded as UTF-8 text.
+     */
+    public List<String> getFields() {
+        List<String> decoded = new ArrayList<>(fields.size());
+        for (byte[] field : fields) {
+            decoded.add(new String(field, StandardCharsets.UTF_8));
+        }
+        return decoded;
+    }
+
+    /**
+     * The fields as they were sent. The arrays must not be modified.
+     */
+    public List<byte[]> getFieldBytes() {
+        return fields;
+    }
+
+    public byte[] toBytes() {
+        int length = MIN_FRAME_BYTES;
+        for (byte[] field : fields) {
+            length += Integer.BYTES + field.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+        buffer.putInt(length).putLong(requestId).put(code).putInt(fields.size());
+        for (byte[] field : fields) {
+            buffer.putInt(field.length).put(field);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses the next frame from the buffer, which is in read mode. Returns null, leaving the buffer
+     * untouched, if the frame is not complete yet; otherwise the frame's bytes are consumed.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid frame, or exceed the size limit
+     */
+    public static BinaryFrame parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.limit() - start < Integer.BYTES) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length < MIN_FRAME_BYTES || length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Invalid frame length: " + length);
+        }
+        int end = start + Integer.BYTES + length;
+        if (buffer.limit() < end) {
+            return null;
+        }
+
+        int position = start + Integer.BYTES;
+        long requestId = buffer.getLong(position);
+        byte code = buffer.get(position + Long.BYTES);
+        position += Long.BYTES + 1;
+        int fieldCount = buffer.getInt(position);
+        position += Integer.BYTES;
+        if (fieldCount < 0 || fieldCount > (end - position) / Integer.BYTES) {
+            throw new IllegalArgumentException("Invalid field count: " + fieldCount);
+        }
+        List<byte[]> fields = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldLength = end - position >= Integer.BYTES ? buffer.getInt(position) : -1;
+            position += Integer.BYTES;
+            if (fieldLength < 0 || fieldLength > end - position) {
+                throw new IllegalArgumentException("Field " + i + " exceeds the frame");
+            }
+            byte[] bytes = new byte[fieldLength];
+            buffer.get(position, bytes);
+            fields.add(bytes);
+            position += fieldLength;
+        }
+        if (position != end) {
+            throw new IllegalArgumentException("Frame has " + (end - position) + " trailing bytes");
+        }
+        buffer.position(end);
+        return ofBytes(requestId, code, Collections.unmodifiableList(fields));
+    }
+}
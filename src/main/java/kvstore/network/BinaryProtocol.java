@@ -0,0 +1,374 @@
+package kvstore.network;
+
+import kvstore.Checkpoint;
+import kvstore.Entry;
+import kvstore.KeyValueStore;
+import kvstore.Node;
+import kvstore.ReplicationLog;
+import kvstore.ScanIterator;
+import kvstore.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The binary protocol of {@link BinaryFrame}s, executing requests on a KeyValueStore, or on the shards
+ * that own their keys. Every response
+ * carries the ID of its request, so a connection runs many requests at once and answers each one as soon
+ * as it completes, regardless of the order they were sent in. Replication requests are the exception:
+ * they run one at a time, in order, so a primary can pipeline them on one connection.
+ */
+public class BinaryProtocol implements Protocol<BinaryFrame> {
+    private static final int MAX_IN_FLIGHT = 32;  // Per connection
+    private static final byte[] PUT_OPERATION = {'P'};
+    private static final byte[] EXPIRING_PUT_OPERATION = {'E'};
+    private static final byte[] DELETE_OPERATION = {'D'};
+    static final int RANGE_PAGE_BYTES = 1024 * 1024;  // Of keys and values in one RANGE response
+    static final String AFTER_START = "after";
+    private static final byte[] MORE_ENTRIES = {};
+
+    private final ShardRouter router;
+
+    public BinaryProtocol(KeyValueStore store) {
+        this(new ShardRouter(store));
+    }
+
+    public BinaryProtocol(ShardRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public BinaryFrame parse(ByteBuffer buffer) {
+        return BinaryFrame.parse(buffer);
+    }
+
+    @Override
+    public void execute(BinaryFrame request, boolean keepAlive, OutputStream out) throws IOException {
+        out.write(handle(request).toBytes());
+    }
+
+    @Override
+    public boolean isLast(BinaryFrame request) {
+        return false;  // Clients close the connection when they are done
+    }
+
+    @Override
+    public boolean isOrdered(BinaryFrame request) {
+        switch ((byte) (request.getCode() & ~BinaryFrame.FORWARDED)) {
+            case BinaryFrame.REPLICATE:
+            case BinaryFrame.APPLIED_SEQUENCE:
+            case BinaryFrame.CHECKPOINT_FILE:
+            case BinaryFrame.CHECKPOINT_INSTALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public byte[] malformed(String error) {
+        return new BinaryFrame(0, BinaryFrame.BAD_REQUEST, List.of(error)).toBytes();
+    }
+
+    @Override
+    public int maxInFlight() {
+        return MAX_IN_FLIGHT;
+    }
+
+    BinaryFrame handle(BinaryFrame request) {
+        long id = request.getRequestId();
+        List<byte[]> fields = request.getFieldBytes();  // Keys and values stay bytes; the rest is text
+        boolean forwarded = (request.getCode() & BinaryFrame.FORWARDED) != 0;
+        ShardRouter target = forwarded ? router.local() : router;
+        try {
+            switch ((byte) (request.getCode() & ~BinaryFrame.FORWARDED)) {
+                case BinaryFrame.GET:
+                    expectFields(fields, 1);
+                    return BinaryFrame.ofBytes(id, BinaryFrame.OK, List.of(target.get(fields.get(0))));
+                case BinaryFrame.PUT:
+                    if (fields.size() == 3) {
+                        target.put(fields.get(0), fields.get(1), number(fields.get(2)));
+                    } else {
+                        expectFields(fields, 2);
+                        target.put(fields.get(0), fields.get(1));
+                    }
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.DELETE:
+                    expectFields(fields, 1);
+                    target.delete(fields.get(0));
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.BATCH:
+                    if (fields.isEmpty() || fields.size() % 2 != 0) {
+                        throw new IllegalArgumentException("A batch needs one or more key, value pairs");
+                    }
+                    WriteBatch batch = new WriteBatch();
+                    for (int i = 0; i < fields.size(); i += 2) {
+                        batch.put(fields.get(i), fields.get(i + 1));
+                    }
+                    target.write(batch);
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.WRITE:
+                    List<Entry> operations = new ArrayList<>();
+                    decodeEntries(fields, 0, -1, operations);
+                    WriteBatch writes = new WriteBatch();
+                    for (Entry entry : operations) {
+                        if (entry.isTombstone()) {
+                            writes.delete(entry.getKeyBytes());
+                        } else {
+                            writes.putUntil(entry.getKeyBytes(), entry.getValueBytes(), entry.getExpiresAt());
+                        }
+                    }
+                    if (writes.isEmpty()) {
+                        throw new IllegalArgumentException("A write needs one or more operations");
+                    }
+                    target.write(writes);
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.RANGE:
+                    if (fields.size() != 3) {
+                        expectFields(fields, 2);
+                    }
+                    return BinaryFrame.ofBytes(id, BinaryFrame.OK, rangePage(target, fields.get(0),
+                            fields.get(1), fields.size() == 3 && text(fields.get(2)).equals(AFTER_START)));
+                case BinaryFrame.REPLICATE:
+                    if (fields.isEmpty()) {
+                        throw new IllegalArgumentException("Missing replication log ID");
+                    }
+                    router.getStore().replicate(number(fields.get(0)), decodeRecords(fields));
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.APPLIED_SEQUENCE:
+                    expectFields(fields, 1);
+                    long applied = router.getStore().getAppliedSequence(number(fields.get(0)));
+                    return new BinaryFrame(id, BinaryFrame.OK, List.of(Long.toString(applied)));
+                case BinaryFrame.CHECKPOINT_FILE:
+                    expectFields(fields, 4);
+                    receiveCheckpointFile(fields);
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.CHECKPOINT_INSTALL:
+                    installCheckpoint(request.getFields());
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                case BinaryFrame.ADD_NODE:
+                    expectFields(fields, 1);
+                    Node node = new Node(text(fields.get(0)));
+                    node.getPort();  // Checks the address before any key moves
+                    router.addNode(node);
+                    return new BinaryFrame(id, BinaryFrame.OK, Collections.emptyList());
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + request.getCode());
+            }
+        } catch (NoSuchElementException e) {
+            return error(id, BinaryFrame.NOT_FOUND, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(id, BinaryFrame.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(id, BinaryFrame.UNAVAILABLE, e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error processing request: " + e.getMessage());
+            return error(id, BinaryFrame.ERROR, "An error occurred while processing the request");
+        } catch (RuntimeException e) {
+            return error(id, BinaryFrame.UNAVAILABLE, "Unable to communicate with the data node");
+        }
+    }
+
+    /**
+     * The key, value pairs of one RANGE response: as many entries from the start of the range as fit in
+     * {@link #RANGE_PAGE_BYTES}, and at least one, followed by an empty field if the range goes on past
+     * them. The client asks for the rest after the last key, so no response nears the frame size limit.
+     */
+    private static List<byte[]> rangePage(ShardRouter target, byte[] startKey, byte[] endKey, boolean afterStart)
+            throws IOException {
+        List<byte[]> pairs = new ArrayList<>();
+        long bytes = 0;
+        try (ScanIterator range = target.scanKeyRange(startKey, endKey)) {
+            while (range.hasNext()) {
+                Entry entry = range.next();
+                if (afterStart && pairs.isEmpty() && Arrays.equals(entry.getKeyBytes(), startKey)) {
+                    continue;
+                }
+                long pairBytes = 2L * Integer.BYTES + entry.getKeyBytes().length + entry.getValueBytes().length;
+                if (!pairs.isEmpty() && bytes + pairBytes > RANGE_PAGE_BYTES) {
+                    pairs.add(MORE_ENTRIES);
+                    break;
+                }
+                if (pairBytes + Integer.BYTES > BinaryFrame.MAX_FIELD_BYTES) {
+                    throw new IOException("Entry " + entry.getKey() + " is too large for a frame");
+                }
+                pairs.add(entry.getKeyBytes());
+                pairs.add(entry.getValueBytes());
+                bytes += pairBytes;
+            }
+        }
+        return pairs;
+    }
+
+    // Writes a chunk of a checkpoint file; the first chunk of a file starts it over
+    private void receiveCheckpointFile(List<byte[]> fields) throws IOException {
+        File directory = router.getStore().getReceivedCheckpointDirectory(text(fields.get(0)));
+        String name = checkFileName(text(fields.get(1)));
+        long offset = number(fields.get(2));
+        byte[] data = fields.get(3);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + directory);
+        }
+        try (FileChannel file = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            if (offset == 0) {
+                file.truncate(0);
+            }
+            file.write(ByteBuffer.wrap(data), offset);
+        }
+    }
+
+    private void installCheckpoint(List<String> fields) throws IOException {
+        File directory;
+        long logId;
+        Checkpoint checkpoint;
+        try {
+            directory = router.getStore().getReceivedCheckpointDirectory(fields.get(0));
+            logId = Long.parseLong(fields.get(1));
+            long sequence = Long.parseLong(fields.get(2));
+            int levelCount = Integer.parseInt(fields.get(3));
+            List<List<String>> levels = new ArrayList<>();
+            int i = 4;
+            for (int level = 0; level < levelCount; level++) {
+                int tableCount = Integer.parseInt(fields.get(i++));
+                List<String> tables = new ArrayList<>();
+                for (String name : fields.subList(i, i + tableCount)) {
+                    tables.add(checkFileName(name));
+                }
+                levels.add(tables);
+                i += tableCount;
+            }
+            checkpoint = new Checkpoint(directory, levels, sequence);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated checkpoint description");
+        }
+        try {
+            router.getStore().installCheckpoint(logId, checkpoint);
+        } finally {
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * Encodes replication log records as the fields of a REPLICATE request.
+     */
+    static List<byte[]> encodeRecords(long logId, List<ReplicationLog.Record> records) {
+        List<byte[]> fields = new ArrayList<>();
+        fields.add(utf8(Long.toString(logId)));
+        for (ReplicationLog.Record record : records) {
+            fields.add(utf8(Long.toString(record.getSequence())));
+            fields.add(utf8(Integer.toString(record.getEntries().size())));
+            encodeEntries(record.getEntries(), fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Appends the entries as fields: "P", key, value for a put, "E", key, value, expiresAt for a put that
+     * expires, "D", key for a delete.
+     */
+    static void encodeEntries(List<Entry> entries, List<byte[]> fields) {
+        for (Entry entry : entries) {
+            if (entry.isTombstone()) {
+                fields.add(DELETE_OPERATION);
+                fields.add(entry.getKeyBytes());
+            } else if (entry.getExpiresAt() != 0) {
+                fields.add(EXPIRING_PUT_OPERATION);
+                fields.add(entry.getKeyBytes());
+                fields.add(entry.getValueBytes());
+                fields.add(utf8(Long.toString(entry.getExpiresAt())));
+            } else {
+                fields.add(PUT_OPERATION);
+                fields.add(entry.getKeyBytes());
+                fields.add(entry.getValueBytes());
+            }
+        }
+    }
+
+    static List<ReplicationLog.Record> decodeRecords(List<byte[]> fields) {
+        List<ReplicationLog.Record> records = new ArrayList<>();
+        try {
+            int i = 1;  // After the log ID
+            while (i < fields.size()) {
+                long sequence = number(fields.get(i++));
+                int count = Integer.parseInt(text(fields.get(i++)));
+                if (count < 0 || count > (fields.size() - i) / 2) {  // An entry takes at least two fields
+                    throw new IllegalArgumentException("Invalid entry count " + count);
+                }
+                List<Entry> entries = new ArrayList<>(count);
+                i = decodeEntries(fields, i, count, entries);
+                records.add(new ReplicationLog.Record(sequence, entries));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated replication records");
+        }
+        return records;
+    }
+
+    /**
+     * Decodes count entries, or all remaining fields if count is -1, starting at field index from.
+     * Returns the index after the last decoded field.
+     */
+    private static int decodeEntries(List<byte[]> fields, int from, int count, List<Entry> entries) {
+        int i = from;
+        try {
+            for (int e = 0; count < 0 ? i < fields.size() : e < count; e++) {
+                byte[] type = fields.get(i++);
+                byte[] key = fields.get(i++);
+                if (Arrays.equals(PUT_OPERATION, type)) {
+                    entries.add(new Entry(key, fields.get(i++)));
+                } else if (Arrays.equals(EXPIRING_PUT_OPERATION, type)) {
+                    byte[] value = fields.get(i++);
+                    entries.add(new Entry(key, value, 0, number(fields.get(i++))));
+                } else if (Arrays.equals(DELETE_OPERATION, type)) {
+                    entries.add(new Entry(key, null));
+                } else {
+                    throw new IllegalArgumentException("Unknown operation " + text(type));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated operations");
+        }
+        return i;
+    }
+
+    // Checkpoint files are plain names within the checkpoint directory
+    private static String checkFileName(String name) {
+        if (!name.matches("[A-Za-z0-9_-]+\\.[a-z]+")) {
+            throw new IllegalArgumentException("Invalid checkpoint file name: " + name);
+        }
+        return name;
+    }
+
+    private static void expectFields(List<byte[]> fields, int count) {
+        if (fields.size() != count) {
+            throw new IllegalArgumentException("Expected " + count + " fields, got " + fields.size());
+        }
+    }
+
+    private static String text(byte[] field) {
+        return new String(field, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String field) {
+        return field.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long number(byte[] field) {
+        return Long.parseLong(text(field));
+    }
+
+    private static BinaryFrame error(long requestId, byte status, String message) {
+        return new BinaryFrame(requestId, status, List.of(message == null ? "" : message));
+    }
+}
@@ -0,0 +1,453 @@
+package kvstore.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EventLoopServer serves a {@link Protocol} with non-blocking sockets: a few event-loop threads, each
+ * owning a Selector, read and write all connections, and a worker pool runs the storage calls.
+ *
+ * Connections are kept alive between requests, and clients may pipeline: every complete request in the
+ * read buffer is queued. A connection has at most {@link Protocol#maxInFlight()} requests on the worker
+ * pool at a time; with one (HTTP), its requests are executed, and answered, in the order they were sent.
+ * A connection with too many queued requests stops being read until it catches up, and a worker writing
+ * a response blocks while too many of the connection's bytes are waiting to be sent, so a streamed
+ * response never buffers more than that. Idle connections are closed after a timeout.
+ */
+public class EventLoopServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_QUEUED_REQUESTS = 64;  // Per connection, before reading is paused
+    private static final long MAX_UNSENT_BYTES = 256 * 1024;  // Per connection, before response writers wait
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private final Protocol<?> protocol;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final ThreadPoolExecutor workers;
+    private final Thread acceptThread;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public EventLoopServer(int port, RequestDispatcher dispatcher, int eventLoopThreads, int workerThreads)
+            throws IOException {
+        this(port, new HttpProtocol(dispatcher), eventLoopThreads, workerThreads);
+    }
+
+    public EventLoopServer(int port, Protocol<?> protocol, int eventLoopThreads, int workerThreads)
+            throws IOException {
+        this.protocol = protocol;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "kv-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.eventLoops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            eventLoops[i] = new EventLoop("kv-event-loop-" + i);
+        }
+        this.acceptThread = new Thread(this::acceptLoop, "kv-acceptor");
+    }
+
+    public void start() {
+        for (EventLoop loop : eventLoops) {
+            loop.thread.start();
+        }
+        acceptThread.start();
+        System.out.println("Server listening on port " + getPort() + " (" + eventLoops.length + " event loops)");
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Requests handed to the worker pool that no worker has picked up yet.
+     */
+    public int getQueuedRequests() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Workers currently executing a request.
+     */
+    public int getActiveWorkers() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * Blocks until the server has shut down.
+     */
+    public void awaitTermination() throws InterruptedException {
+        acceptThread.join();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();  // Blocking: only this thread accepts
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)].register(channel);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        System.out.println("Shutting down server...");
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        for (EventLoop loop : eventLoops) {
+            loop.close();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Workers did not terminate in the specified time.");
+                workers.shutdownNow();
+            }
+            acceptThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Server shutdown complete.");
+    }
+
+    /**
+     * One selector thread. Other threads hand it work (new connections, finished responses) through a
+     * task queue and wake up its selector; only this thread touches its connections' buffers and keys.
+     */
+    private final class EventLoop {
+        final Thread thread;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection<?> connection = new Connection<>(this, channel, protocol);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void close() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly((SocketChannel) key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing selector: " + e.getMessage());
+                }
+            });
+        }
+
+        private void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (!selector.isOpen()) {
+                        return;
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection<?> connection = (Connection<?>) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= 1000) {
+                        closeIdleConnections(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Event loop failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection<?> connection = (Connection<?>) key.attachment();
+                if (connection != null && connection.isIdle(now)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection. Only used on its event loop's thread, except for the
+     * protocol calls that run on a worker and post their results back.
+     */
+    private final class Connection<R> {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final Protocol<R> protocol;
+        SelectionKey key;
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);  // Write mode between reads
+        final Queue<R> pendingRequests = new ArrayDeque<>();
+        final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        long unsentBytes = 0;  // Written by workers but not yet by the socket, guarded by this connection
+        volatile boolean closed = false;
+        int requestsInFlight = 0;
+        boolean orderedInFlight = false;  // Whether the request in flight must run alone
+        boolean closeAfterWrites = false;
+        String parseError;  // Answered after the requests before it, then the connection is closed
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel, Protocol<R> protocol) {
+            this.loop = loop;
+            this.channel = channel;
+            this.protocol = protocol;
+        }
+
+        void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                // The client is done sending; answer what it already sent, then close
+                closeAfterWrites = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+
+            readBuffer.flip();
+            try {
+                R request;
+                while (!closeAfterWrites && (request = protocol.parse(readBuffer)) != null) {
+                    pendingRequests.add(request);
+                    if (protocol.isLast(request)) {
+                        closeAfterWrites = true;  // Ignore anything pipelined after e.g. "Connection: close"
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                parseError = e.getMessage();
+                closeAfterWrites = true;
+            }
+            readBuffer.compact();
+            if (closeAfterWrites || pendingRequests.size() >= MAX_QUEUED_REQUESTS) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);  // Backpressure
+            }
+            dispatchNext();
+        }
+
+        /**
+         * Hands the oldest queued requests to workers, as many as the protocol lets run at once.
+         */
+        void dispatchNext() {
+            while (requestsInFlight < protocol.maxInFlight() && !pendingRequests.isEmpty() && !orderedInFlight) {
+                boolean ordered = protocol.isOrdered(pendingRequests.peek());
+                if (ordered && requestsInFlight > 0) {
+                    break;  // Dispatched once the requests before it complete
+                }
+                R request = pendingRequests.poll();
+                orderedInFlight = ordered;
+                boolean keepAlive = !protocol.isLast(request)
+                        && !(closeAfterWrites && pendingRequests.isEmpty() && parseError == null);
+                requestsInFlight++;
+                workers.execute(() -> {
+                    try {
+                        protocol.execute(request, keepAlive, new ResponseStream(this));
+                        loop.execute(this::onResponseComplete);
+                    } catch (IOException | RuntimeException e) {
+                        if (!closed) {
+                            System.err.println("Error writing response: " + e.getMessage());
+                        }
+                        loop.execute(this::close);  // A partly written response cannot be completed
+                    }
+                });
+            }
+            if (requestsInFlight == 0 && pendingRequests.isEmpty() && parseError != null) {
+                String error = parseError;
+                parseError = null;
+                enqueueWrite(ByteBuffer.wrap(protocol.malformed(error)));
+            }
+        }
+
+        /**
+         * Waits, on a worker thread, until the connection has room for more unsent bytes, then reserves it.
+         */
+        synchronized void reserve(int bytes) throws IOException {
+            while (unsentBytes > 0 && unsentBytes + bytes > MAX_UNSENT_BYTES && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing a response", e);
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            unsentBytes += bytes;
+        }
+
+        synchronized void release(int bytes) {
+            unsentBytes -= bytes;
+            notifyAll();
+        }
+
+        void onResponseComplete() {
+            requestsInFlight--;
+            orderedInFlight = false;  // An ordered request is the only one in flight
+            if (!key.isValid()) {
+                return;  // Closed while writing
+            }
+            if (!closeAfterWrites && pendingRequests.size() < MAX_QUEUED_REQUESTS) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            dispatchNext();
+            closeIfDone();  // Its last bytes may have been sent before it completed
+        }
+
+        void enqueueWrite(ByteBuffer bytes) {
+            if (!key.isValid()) {
+                return;
+            }
+            pendingWrites.add(bytes);
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer head = pendingWrites.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);  // Socket buffer full
+                    return;
+                }
+                pendingWrites.poll();
+                release(head.capacity());
+            }
+            lastActivity = System.currentTimeMillis();
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            closeIfDone();
+        }
+
+        void closeIfDone() {
+            if (closeAfterWrites && requestsInFlight == 0 && pendingRequests.isEmpty() && parseError == null
+                    && pendingWrites.isEmpty()) {
+                close();
+            }
+        }
+
+        boolean isIdle(long now) {
+            return requestsInFlight == 0 && pendingWrites.isEmpty() && now - lastActivity > IDLE_TIMEOUT_MS;
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * The output of one response: every write is copied and handed to the connection's event loop, which
+     * sends it in order after the writes before it.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final Connection<?> connection;
+
+        ResponseStream(Connection<?> connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            connection.reserve(len);
+            ByteBuffer bytes = ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len));
+            connection.loop.execute(() -> connection.enqueueWrite(bytes));
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+    }
+}
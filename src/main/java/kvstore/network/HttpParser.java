@@ -0,0 +1,113 @@
+package kvstore.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HttpParser decodes HTTP/1.x requests from a byte buffer that may hold a partial request, exactly one,
+ * or several pipelined ones. Request bodies must be announced with Content-Length.
+ */
+public final class HttpParser {
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+    static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    private HttpParser() {
+    }
+
+    /**
+     * Parses the next request from the buffer, which is in read mode. Returns null, leaving the buffer
+     * untouched, if the request is not complete yet; otherwise the request's bytes are consumed.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid request, or exceed the size limits
+     */
+    public static HttpRequest parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        int headerEnd = findHeaderEnd(buffer, start);
+        if (headerEnd < 0) {
+            if (buffer.limit() - start > MAX_HEADER_BYTES) {
+                throw new IllegalArgumentException("Request headers too large");
+            }
+            return null;
+        }
+
+        int headLength = headerEnd - start;
+        if (headLength > 0 && buffer.get(headerEnd - 1) == '\r') {
+            headLength--;  // The CR of the last line's CRLF; the split below drops the others
+        }
+        byte[] headBytes = new byte[headLength];
+        buffer.get(start, headBytes);
+        String[] lines = new String(headBytes, StandardCharsets.ISO_8859_1).split("\r?\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 3 || !requestLine[2].startsWith("HTTP/")) {
+            throw new IllegalArgumentException("Malformed request line: " + lines[0]);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Malformed header: " + lines[i]);
+            }
+            headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        for (String name : headers.keySet()) {
+            if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                throw new IllegalArgumentException("Chunked request bodies are not supported");
+            }
+        }
+
+        int contentLength = 0;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Integer.parseInt(header.getValue());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid Content-Length: " + header.getValue());
+                }
+            }
+        }
+        if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+            throw new IllegalArgumentException("Invalid Content-Length: " + contentLength);
+        }
+
+        int bodyStart = skipHeaderTerminator(buffer, headerEnd);
+        if (buffer.limit() - bodyStart < contentLength) {
+            return null;  // Body not fully received yet
+        }
+        byte[] body = new byte[contentLength];
+        buffer.get(bodyStart, body);
+        buffer.position(bodyStart + contentLength);
+
+        return new HttpRequest(requestLine[0].toUpperCase(), requestLine[1], requestLine[2], headers,
+                new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the position of the line break that ends the last header line, or -1 if the blank line
+     * ending the headers has not been received yet. Accepts CRLF as well as bare LF line endings.
+     */
+    private static int findHeaderEnd(ByteBuffer buffer, int start) {
+        for (int i = start; i < buffer.limit() - 1; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (buffer.get(i + 1) == '\n') {
+                return i;
+            }
+            if (buffer.get(i + 1) == '\r' && i + 2 < buffer.limit() && buffer.get(i + 2) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipHeaderTerminator(ByteBuffer buffer, int headerEnd) {
+        int pos = headerEnd + 1;  // Past the "\n" ending the last header
+        if (buffer.get(pos) == '\r') {
+            pos++;
+        }
+        return pos + 1;  // Past the "\n" of the blank line
+    }
+}
@@ -0,0 +1,47 @@
+package kvstore.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP/1.1 with keep-alive and pipelining. HTTP has no way to match a response to its request other
+ * than their order, so a connection executes one request at a time.
+ */
+public class HttpProtocol implements Protocol<HttpRequest> {
+    private final RequestDispatcher dispatcher;
+
+    public HttpProtocol(RequestDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public HttpRequest parse(ByteBuffer buffer) {
+        return HttpParser.parse(buffer);
+    }
+
+    @Override
+    public void execute(HttpRequest request, boolean keepAlive, OutputStream out) throws IOException {
+        dispatcher.serve(request, out, keepAlive);
+    }
+
+    @Override
+    public boolean isLast(HttpRequest request) {
+        return !request.isKeepAlive();
+    }
+
+    @Override
+    public boolean isOrdered(HttpRequest request) {
+        return true;  // One at a time anyway
+    }
+
+    @Override
+    public byte[] malformed(String error) {
+        return HttpResponse.badRequest("ERROR: " + error).toBytes(false);
+    }
+
+    @Override
+    public int maxInFlight() {
+        return 1;
+    }
+}
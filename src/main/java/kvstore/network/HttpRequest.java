@@ -0,0 +1,59 @@
+package kvstore.network;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP/1.x request as parsed by {@link HttpParser}: request line, headers and the body announced by
+ * Content-Length. Header names are case-insensitive.
+ */
+public class HttpRequest {
+    private final String method;
+    private final String path;
+    private final String version;
+    private final Map<String, String> headers;
+    private final String body;
+
+    public HttpRequest(String method, String path, String version, Map<String, String> headers, String body) {
+        this.method = method;
+        this.path = path;
+        this.version = version;
+        TreeMap<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * HTTP/1.1 connections stay open unless the client sends "Connection: close"; HTTP/1.0 connections
+     * only stay open if the client asks for keep-alive.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if ("HTTP/1.0".equals(version)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+}
@@ -0,0 +1,137 @@
+package kvstore.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * A plain-text HTTP/1.1 response. Every response carries a Content-Length, or is sent with chunked
+ * transfer encoding, so clients can send the next request on the same connection without waiting for
+ * it to close. A streamed body is produced part by part while it is written, e.g. a large key range.
+ */
+public class HttpResponse {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final int status;
+    private final String reason;
+    private final String body;
+    private final Iterator<String> bodyParts;  // A streamed body instead of body, consumed once
+
+    public HttpResponse(int status, String reason, String body) {
+        this(status, reason, body, null);
+    }
+
+    private HttpResponse(int status, String reason, String body, Iterator<String> bodyParts) {
+        this.status = status;
+        this.reason = reason;
+        this.body = body;
+        this.bodyParts = bodyParts;
+    }
+
+    /**
+     * A response whose body is the concatenation of the parts, sent in chunks as the parts are produced.
+     */
+    public static HttpResponse streamed(int status, String reason, Iterator<String> bodyParts) {
+        return new HttpResponse(status, reason, null, bodyParts);
+    }
+
+    public static HttpResponse ok(String body) {
+        return new HttpResponse(200, "OK", body);
+    }
+
+    public static HttpResponse badRequest(String body) {
+        return new HttpResponse(400, "Bad Request", body);
+    }
+
+    public static HttpResponse notFound(String body) {
+        return new HttpResponse(404, "Not Found", body);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * The body of the response, or null if it is streamed.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isStreamed() {
+        return bodyParts != null;
+    }
+
+    /**
+     * Encodes the status line, headers and body. The Connection header tells the client whether the
+     * server keeps the connection open after this response.
+     */
+    public byte[] toBytes(boolean keepAlive) {
+        if (bodyParts != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                writeTo(out, keepAlive);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);  // Not thrown by a ByteArrayOutputStream
+            }
+            return out.toByteArray();
+        }
+        byte[] content = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        byte[] message = new byte[headBytes.length + content.length];
+        System.arraycopy(headBytes, 0, message, 0, headBytes.length);
+        System.arraycopy(content, 0, message, headBytes.length, content.length);
+        return message;
+    }
+
+    /**
+     * Writes the response. A streamed body is sent with chunked transfer encoding, each chunk holding
+     * parts up to about CHUNK_SIZE bytes. If producing a part fails the response cannot be completed any
+     * more, so an IOException is thrown and the caller should close the connection.
+     */
+    public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+        if (bodyParts == null) {
+            out.write(toBytes(keepAlive));
+            return;
+        }
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+        try {
+            while (bodyParts.hasNext()) {
+                chunk.write(bodyParts.next().getBytes(StandardCharsets.UTF_8));
+                if (chunk.size() >= CHUNK_SIZE) {
+                    writeChunk(out, chunk);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to produce the response body: " + e.getMessage(), e);
+        }
+        chunk.write('\n');
+        writeChunk(out, chunk);
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));  // Last chunk, no trailers
+    }
+
+    private static void writeChunk(OutputStream out, ByteArrayOutputStream chunk) throws IOException {
+        byte[] size = (Integer.toHexString(chunk.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] message = new byte[size.length + chunk.size() + 2];
+        System.arraycopy(size, 0, message, 0, size.length);
+        System.arraycopy(chunk.toByteArray(), 0, message, size.length, chunk.size());
+        message[message.length - 2] = '\r';
+        message[message.length - 1] = '\n';
+        out.write(message);
+        chunk.reset();
+    }
+}
@@ -1,43 +1,135 @@
 package kvstore.network;
 
 import kvstore.KeyValueStore;
+import kvstore.Node;
+import kvstore.StoreConfig;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Network front end of a KeyValueStore. By default it serves HTTP with an {@link EventLoopServer}:
+ * non-blocking sockets with keep-alive and pipelining, storage calls on a worker pool. The original
+ * blocking mode, one pool thread per connection, is still available with {@code --blocking}.
+ *
+ * A second listener speaks the {@link BinaryProtocol} to the same store, for clients that want many
+ * requests in flight on one connection and keys or values that are awkward to form-encode.
+ *
+ * A server started with {@code --replicate-to=host:port,...} is a primary: it ships its writes to the
+ * followers listening on those binary ports, which are KeyValueStoreServers themselves.
+ *
+ * With {@code --node=host:port --shard-nodes=host:port,...} the server is one shard of a cluster, named
+ * by the binary ports of its members: it stores only the keys it owns and forwards the other requests
+ * (see {@link ShardRouter}).
+ */
 public class KeyValueStoreServer {
     private static final int DEFAULT_PORT = 8081;
+    private static final int DEFAULT_BINARY_PORT = 8082;
     private static final int TIMEOUT_MS = 30000;  // 30 seconds socket timeout
     private KeyValueStore store;
-    private ExecutorService executor;
+    private ShardRouter router;
+    private RequestDispatcher dispatcher;
+    private ThreadPoolExecutor executor;
     private ServerSocket serverSocket;
-
+    private EventLoopServer eventLoopServer;
+    private EventLoopServer binaryServer;
+    private final List<RemoteReplica> replicas = new ArrayList<>();
 
     public KeyValueStoreServer(int port) throws IOException {
-        store = new KeyValueStore();
-        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());  // Dynamically adjust pool size
-        serverSocket = new ServerSocket(port);
-        serverSocket.setSoTimeout(TIMEOUT_MS);  // Set socket timeout
+        this(port, new KeyValueStore(), false);
+    }
+
+    public KeyValueStoreServer(int port, KeyValueStore store, boolean blocking) throws IOException {
+        this(port, -1, store, blocking);
+    }
+
+    /**
+     * @param binaryPort port of the binary protocol listener, or -1 to serve HTTP only
+     */
+    public KeyValueStoreServer(int port, int binaryPort, KeyValueStore store, boolean blocking) throws IOException {
+        this(port, binaryPort, new ShardRouter(store), blocking);
+    }
+
+    public KeyValueStoreServer(int port, int binaryPort, ShardRouter router, boolean blocking) throws IOException {
+        this.store = router.getStore();
+        this.router = router;
+        this.dispatcher = new RequestDispatcher(router);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if (blocking) {
+            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(cpus);  // Dynamically adjust pool size
+            serverSocket = new ServerSocket(port);
+            dispatcher.getMetricsExporter().addGauge("kvstore_http_queued_connections",
+                    "Accepted connections waiting for a handler thread", () -> executor.getQueue().size());
+        } else {
+            // Event loops only move bytes; storage calls may block on the WAL, so the worker pool is larger
+            eventLoopServer = new EventLoopServer(port, dispatcher, Math.max(1, cpus / 2), cpus * 4);
+            addWorkerGauges("http", eventLoopServer);
+        }
+        if (binaryPort >= 0) {
+            binaryServer = new EventLoopServer(binaryPort, new BinaryProtocol(router), Math.max(1, cpus / 2), cpus * 4);
+            addWorkerGauges("binary", binaryServer);
+        }
+    }
+
+    private void addWorkerGauges(String protocol, EventLoopServer server) {
+        PrometheusExporter exporter = dispatcher.getMetricsExporter();
+        exporter.addGauge("kvstore_" + protocol + "_queued_requests",
+                "Requests waiting for a worker thread", server::getQueuedRequests);
+        exporter.addGauge("kvstore_" + protocol + "_active_workers",
+                "Worker threads executing a request", server::getActiveWorkers);
+    }
+
+    /**
+     * Replicates the store's writes to the follower whose binary protocol listens at the node's address.
+     */
+    public synchronized void addReplica(Node node) {
+        RemoteReplica replica = new RemoteReplica(node);
+        replicas.add(replica);
+        store.addReplica(replica);
+    }
 
+    /**
+     * Adds a shard to the cluster, moving the keys it takes over from this server to it.
+     */
+    public void addShard(Node node) throws IOException {
+        router.addNode(node);
     }
 
+    /**
+     * Serves requests until the server is shut down.
+     */
     public void start() {
-        System.out.println("Server listening on port " + serverSocket.getLocalPort());
+        if (binaryServer != null) {
+            binaryServer.start();
+        }
+        if (eventLoopServer != null) {
+            eventLoopServer.start();
+            try {
+                eventLoopServer.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
 
+        System.out.println("Server listening on port " + serverSocket.getLocalPort());
         try {
-            while (true) {
+            while (!serverSocket.isClosed()) {
                 try {
                     Socket clientSocket = serverSocket.accept();
                     clientSocket.setSoTimeout(TIMEOUT_MS);  // Set timeout on individual sockets
-
-                    // Pass the required arguments: Socket, KeyValueStore, NetworkManager, HeartbeatManager
-                    executor.submit(new KeyValueStoreHandler(clientSocket, store /*, networkManager, heartbeatManager*/));
+                    executor.submit(new KeyValueStoreHandler(clientSocket, dispatcher));
                 } catch (IOException e) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("Error accepting client connection: " + e.getMessage());
+                    }
                 }
             }
         } finally {
@@ -45,8 +137,16 @@ public class KeyValueStoreServer {
         }
     }
 
-    // Gracefully shutdown the server and executor service
+    // Gracefully shutdown the server, its threads and the store
     public void shutdown() {
+        if (binaryServer != null) {
+            binaryServer.shutdown();
+        }
+        if (eventLoopServer != null) {
+            eventLoopServer.shutdown();
+            closeStore();
+            return;
+        }
         try {
             System.out.println("Shutting down server...");
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -61,13 +161,75 @@ public class KeyValueStoreServer {
         } catch (IOException | InterruptedException e) {
             System.err.println("Error shutting down the server: " + e.getMessage());
         }
+        closeStore();
+    }
+
+    private synchronized void closeStore() {
+        if (store != null) {
+            try {
+                router.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the connections to other shards: " + e.getMessage());
+            }
+            for (RemoteReplica replica : replicas) {
+                store.removeReplica(replica);
+                try {
+                    replica.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing the connection to " + replica.getName() + ": " + e.getMessage());
+                }
+            }
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the store: " + e.getMessage());
+            }
+            store = null;
+        }
     }
 
     public static void main(String[] args) {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int port = DEFAULT_PORT;
+        int binaryPort = DEFAULT_BINARY_PORT;
+        boolean blocking = false;
+        StoreConfig config = new StoreConfig();
+        List<Node> followers = new ArrayList<>();
+        Node self = null;
+        List<Node> shards = new ArrayList<>();
+        int ownersPerKey = 1;
+        for (String arg : args) {
+            if ("--blocking".equals(arg)) {
+                blocking = true;
+            } else if (arg.startsWith("--binary-port=")) {
+                binaryPort = Integer.parseInt(arg.substring("--binary-port=".length()));
+            } else if (arg.startsWith("--data-dir=")) {
+                config.setDataDirectory(new File(arg.substring("--data-dir=".length())));
+            } else if (arg.startsWith("--replicate-to=")) {
+                for (String address : arg.substring("--replicate-to=".length()).split(",")) {
+                    followers.add(new Node(address.trim()));
+                }
+            } else if (arg.startsWith("--node=")) {
+                self = new Node(arg.substring("--node=".length()));
+            } else if (arg.startsWith("--shard-nodes=")) {
+                for (String address : arg.substring("--shard-nodes=".length()).split(",")) {
+                    shards.add(new Node(address.trim()));
+                }
+            } else if (arg.startsWith("--shard-owners=")) {
+                ownersPerKey = Integer.parseInt(arg.substring("--shard-owners=".length()));
+            } else {
+                port = Integer.parseInt(arg);
+            }
+        }
 
         try {
-            KeyValueStoreServer server = new KeyValueStoreServer(port);
+            KeyValueStore store = new KeyValueStore(config);
+            ShardRouter router = shards.isEmpty() ? new ShardRouter(store)
+                    : new ShardRouter(store, self == null ? new Node("localhost:" + binaryPort) : self, shards, ownersPerKey);
+            KeyValueStoreServer server = new KeyValueStoreServer(port, binaryPort, router, blocking);
+            for (Node follower : followers) {
+                server.addReplica(follower);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
             server.start();
         } catch (IOException e) {
             System.err.println("Failed to start the server: " + e.getMessage());
@@ -0,0 +1,166 @@
+package kvstore.network;
+
+import kvstore.BlockCache;
+import kvstore.EngineStats;
+import kvstore.Entry;
+import kvstore.KeyValueStore;
+import kvstore.LSMTree;
+import kvstore.LatencyHistogram;
+import kvstore.OperationMetrics;
+import kvstore.TinyLfuCache;
+import kvstore.WriteAheadLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * PrometheusExporter renders the metrics of a server and its store in the Prometheus text exposition
+ * format, for {@code GET /metrics}. Latencies are histograms in seconds with power-of-two buckets
+ * from about 1 microsecond to 8.6 seconds, plus precomputed quantiles for dashboards without PromQL.
+ * Counters and gauges are read from the components when scraped; nothing is recorded here.
+ */
+public class PrometheusExporter {
+    private static final int SMALLEST_BUCKET_EXPONENT = 10;  // 2^10 ns = 1.024 us
+    private static final int LARGEST_BUCKET_EXPONENT = 33;   // 2^33 ns = 8.6 s
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final KeyValueStore store;
+    private final OperationMetrics requestMetrics;
+    private final List<Gauge> gauges = new ArrayList<>();  // Guarded by this
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    public PrometheusExporter(KeyValueStore store, OperationMetrics requestMetrics) {
+        this.store = store;
+        this.requestMetrics = requestMetrics;
+    }
+
+    /**
+     * Adds a value read on every scrape, e.g. the queue depth of a worker pool.
+     */
+    public synchronized void addGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        writeLatencies(out, "kvstore_request_duration_seconds",
+                "Time to handle a request, from parsing to writing the response", requestMetrics);
+        writeLatencies(out, "kvstore_operation_duration_seconds",
+                "Time spent in a store operation", store.getMetrics());
+
+        WriteAheadLog wal = store.getWriteAheadLog();
+        counter(out, "kvstore_wal_records_total", "Records written to the write ahead log", wal.getRecordsWritten());
+        counter(out, "kvstore_wal_bytes_total", "Bytes written to the write ahead log", wal.getBytesWritten());
+        counter(out, "kvstore_wal_batches_total", "Group-commit batches written to the write ahead log", wal.getBatchesWritten());
+        counter(out, "kvstore_wal_syncs_total", "Times the write ahead log was forced to disk", wal.getSyncCount());
+        gauge(out, "kvstore_wal_pending_records", "Records waiting for the write ahead log writer", wal.getPendingRecords());
+
+        TinyLfuCache<ByteBuffer, Entry> cache = store.getCache();
+        counter(out, "kvstore_cache_hits_total", "Reads served by the cache", cache.getHitCount());
+        counter(out, "kvstore_cache_misses_total", "Reads not found in the cache", cache.getMissCount());
+        counter(out, "kvstore_cache_evictions_total", "Entries evicted from the cache", cache.getEvictionCount());
+        counter(out, "kvstore_cache_expirations_total", "Expired entries removed from the cache",
+                cache.getExpirationCount());
+        gauge(out, "kvstore_cache_entries", "Entries in the cache", cache.size());
+        gauge(out, "kvstore_cache_bytes", "Approximate bytes held by the cache", cache.weightedSize());
+
+        LSMTree tree = store.getLSMTree();
+        counter(out, "kvstore_memtable_flushes_total", "MemTables flushed to SSTables", tree.getFlushCount());
+        counter(out, "kvstore_memtable_flushed_bytes_total", "Bytes of SSTables written by memTable flushes", tree.getFlushedBytes());
+        gauge(out, "kvstore_memtable_flush_pending", "1 while a frozen memTable waits to be flushed", tree.isFlushPending() ? 1 : 0);
+        gauge(out, "kvstore_memtable_entries", "Versions held by the active memTable", tree.getMemTable().size());
+        counter(out, "kvstore_compactions_total", "Compactions completed", tree.getCompactionCount());
+        EngineStats stats = tree.getStats();
+        counter(out, "kvstore_user_bytes_total", "Bytes of keys and values written by users", stats.getUserBytesWritten());
+        counter(out, "kvstore_compaction_read_bytes_total", "Bytes of SSTables read by compactions", stats.getCompactionBytesRead());
+        counter(out, "kvstore_compaction_written_bytes_total", "Bytes of SSTables written by compactions", stats.getCompactionBytesWritten());
+        counter(out, "kvstore_get_tables_checked_total", "SSTables whose bloom filter a get consulted", stats.getTablesCheckedByGets());
+        counter(out, "kvstore_get_tables_read_total", "SSTables whose blocks a get read", stats.getTablesReadByGets());
+        counter(out, "kvstore_block_raw_bytes_total", "Bytes of SSTable data blocks written, before compression", stats.getBlockBytesRaw());
+        counter(out, "kvstore_block_stored_bytes_total", "Bytes of SSTable data blocks written, as stored", stats.getBlockBytesStored());
+        counter(out, "kvstore_block_compress_nanoseconds_total", "Time spent compressing data blocks", stats.getCompressNanos());
+        counter(out, "kvstore_blocks_decompressed_total", "Data blocks decompressed by reads", stats.getBlocksDecompressed());
+        counter(out, "kvstore_block_decompress_nanoseconds_total", "Time spent decompressing data blocks", stats.getDecompressNanos());
+        counter(out, "kvstore_block_cache_hits_total", "Compressed block reads served by the block cache", stats.getBlockCacheHits());
+        counter(out, "kvstore_block_cache_misses_total", "Compressed block reads not found in the block cache", stats.getBlockCacheMisses());
+        BlockCache blockCache = tree.getBlockCache();
+        if (blockCache != null) {
+            counter(out, "kvstore_block_cache_evictions_total", "Blocks evicted from the block cache", blockCache.getEvictionCount());
+            gauge(out, "kvstore_block_cache_blocks", "Blocks in the block cache", blockCache.getBlockCount());
+            gauge(out, "kvstore_block_cache_bytes", "Bytes held by cached blocks", blockCache.getUsedBytes());
+            gauge(out, "kvstore_block_cache_pinned_bytes", "Bytes of indexes and filters pinned against the block cache budget",
+                    blockCache.getPinnedBytes());
+        }
+        gauge(out, "kvstore_sstables", "Live SSTables", tree.getSSTables().size());
+
+        List<Gauge> registered;
+        synchronized (this) {
+            registered = new ArrayList<>(gauges);
+        }
+        for (Gauge g : registered) {
+            gauge(out, g.name, g.help, g.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void writeLatencies(StringBuilder out, String name, String help, OperationMetrics metrics) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (OperationMetrics.Operation operation : OperationMetrics.Operation.values()) {
+            LatencyHistogram histogram = metrics.latency(operation);
+            String label = "op=\"" + operation.label() + "\"";
+            for (int exponent = SMALLEST_BUCKET_EXPONENT; exponent <= LARGEST_BUCKET_EXPONENT; exponent++) {
+                out.append(name).append("_bucket{").append(label).append(",le=\"")
+                        .append(seconds(1L << exponent)).append("\"} ")
+                        .append(histogram.countBelow(1L << exponent)).append('\n');
+            }
+            long count = histogram.getCount();
+            out.append(name).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+            out.append(name).append("_sum{").append(label).append("} ").append(seconds(histogram.getTotalNanos())).append('\n');
+            out.append(name).append("_count{").append(label).append("} ").append(count).append('\n');
+        }
+
+        String quantiles = name + "_quantile";
+        out.append("# HELP ").append(quantiles).append(' ').append(help).append(", by quantile since start\n");
+        out.append("# TYPE ").append(quantiles).append(" gauge\n");
+        for (OperationMetrics.Operation operation : OperationMetrics.Operation.values()) {
+            LatencyHistogram histogram = metrics.latency(operation);
+            for (double quantile : QUANTILES) {
+                out.append(quantiles).append("{op=\"").append(operation.label()).append("\",quantile=\"")
+                        .append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+        }
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder out, String name, String help, String type, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
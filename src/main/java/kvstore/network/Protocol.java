@@ -0,0 +1,51 @@
+package kvstore.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A wire protocol served by an {@link EventLoopServer}: how requests are framed in the byte stream of a
+ * connection, and how they are executed. Parsing runs on an event-loop thread, execution on a worker.
+ */
+public interface Protocol<R> {
+    /**
+     * Parses the next request from the buffer, which is in read mode. Returns null, leaving the buffer
+     * untouched, if the request is not complete yet; otherwise the request's bytes are consumed.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid request
+     */
+    R parse(ByteBuffer buffer);
+
+    /**
+     * Executes a request and writes its encoded response, which is complete when this method returns.
+     * Each write is sent as a unit, so a protocol whose responses may interleave writes every response with
+     * a single call. Writes block while the client is slow to read. keepAlive is false if the connection
+     * is closed after this response.
+     *
+     * @throws IOException if the response could not be completed; the connection is closed
+     */
+    void execute(R request, boolean keepAlive, OutputStream out) throws IOException;
+
+    /**
+     * Whether the client asked to close the connection after this request; anything sent after it is ignored.
+     */
+    boolean isLast(R request);
+
+    /**
+     * Whether the request must run alone: after every earlier request of its connection has completed,
+     * and before any later one starts, e.g. because requests must be applied in the order they were sent.
+     */
+    boolean isOrdered(R request);
+
+    /**
+     * The response to bytes that are not a valid request, sent before the connection is closed.
+     */
+    byte[] malformed(String error);
+
+    /**
+     * How many requests of one connection may execute at the same time. With 1, responses are sent in the
+     * order of the requests; with more, each response is sent as soon as it is ready.
+     */
+    int maxInFlight();
+}
@@ -0,0 +1,206 @@
+package kvstore.network;
+
+import kvstore.Checkpoint;
+import kvstore.Entry;
+import kvstore.Node;
+import kvstore.Replica;
+import kvstore.ReplicationLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A follower in another process, a KeyValueStoreServer reached over the binary protocol at a
+ * {@link Node}'s address. Batches are pipelined on one persistent connection, which the follower reads
+ * in order; when it falls behind, TCP flow control makes the primary's sends wait. A failed connection is
+ * reopened on the next batch, at most once every RECONNECT_DELAY_MS. Checkpoints are streamed on the same
+ * connection as chunks of their files, each sent as the raw bytes of a frame field.
+ */
+public class RemoteReplica implements Replica, Closeable {
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final long TIMEOUT_MS = 30000;
+    private static final long MAX_REQUEST_BYTES = 4 * 1024 * 1024;  // Well below the frame size limit
+    private static final int CHECKPOINT_CHUNK_BYTES = 1024 * 1024;
+
+    private final Node node;
+    private BinaryClient client;  // Guarded by this
+    private long reconnectAt = 0;
+
+    public RemoteReplica(Node node) {
+        this.node = node;
+    }
+
+    @Override
+    public String getName() {
+        return node.getAddress();
+    }
+
+    @Override
+    public synchronized boolean isActive() {
+        return (client != null && client.isOpen()) || System.currentTimeMillis() >= reconnectAt;
+    }
+
+    @Override
+    public void replicate(long logId, List<ReplicationLog.Record> records) throws IOException {
+        await(replicateAsync(logId, records));
+    }
+
+    @Override
+    public long getAppliedSequence(long logId) throws IOException {
+        BinaryFrame response = await(send(connection(), BinaryFrame.APPLIED_SEQUENCE,
+                BinaryFrame.encode(List.of(Long.toString(logId)))));
+        return Long.parseLong(response.getFields().get(0));
+    }
+
+    /**
+     * Streams the checkpoint's files, then has the follower install them. The chunks are pipelined; the
+     * follower writes them in order.
+     */
+    @Override
+    public void installCheckpoint(long logId, Checkpoint checkpoint) throws IOException {
+        BinaryClient connection = connection();
+        String directory = checkpoint.getDirectory().getName();
+        List<CompletableFuture<BinaryFrame>> chunks = new ArrayList<>();
+        byte[] buffer = new byte[CHECKPOINT_CHUNK_BYTES];
+        for (String name : checkpoint.getFileNames()) {
+            try (InputStream in = Files.newInputStream(new File(checkpoint.getDirectory(), name).toPath())) {
+                long offset = 0;
+                int read;
+                do {
+                    read = in.readNBytes(buffer, 0, buffer.length);
+                    List<byte[]> fields = BinaryFrame.encode(List.of(directory, name, Long.toString(offset)));
+                    fields.add(read == buffer.length ? buffer : Arrays.copyOf(buffer, read));
+                    chunks.add(send(connection, BinaryFrame.CHECKPOINT_FILE, fields));
+                    offset += read;
+                } while (read == buffer.length);
+            }
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(directory);
+        fields.add(Long.toString(logId));
+        fields.add(Long.toString(checkpoint.getSequence()));
+        fields.add(Integer.toString(checkpoint.getLevels().size()));
+        for (List<String> level : checkpoint.getLevels()) {
+            fields.add(Integer.toString(level.size()));
+            fields.addAll(level);
+        }
+        CompletableFuture<BinaryFrame> install = send(connection, BinaryFrame.CHECKPOINT_INSTALL,
+                BinaryFrame.encode(fields));
+        for (CompletableFuture<BinaryFrame> chunk : chunks) {
+            await(chunk);
+        }
+        await(install);
+    }
+
+    private <T> T await(CompletableFuture<T> request) throws IOException {
+        try {
+            return request.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replicating to " + getName(), e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Replica " + getName() + " did not respond within " + TIMEOUT_MS + " ms");
+        }
+    }
+
+    /**
+     * Sends the records, split into requests of at most MAX_REQUEST_BYTES, and completes when the
+     * follower has applied all of them.
+     */
+    @Override
+    public CompletableFuture<Void> replicateAsync(long logId, List<ReplicationLog.Record> records) {
+        BinaryClient connection;
+        try {
+            connection = connection();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        List<ReplicationLog.Record> chunk = new ArrayList<>();
+        long chunkBytes = 0;
+        for (ReplicationLog.Record record : records) {
+            long recordBytes = estimatedBytes(record);
+            if (!chunk.isEmpty() && chunkBytes + recordBytes > MAX_REQUEST_BYTES) {
+                requests.add(send(connection, logId, chunk));
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(record);
+            chunkBytes += recordBytes;
+        }
+        requests.add(send(connection, logId, chunk));
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> send(BinaryClient connection, long logId, List<ReplicationLog.Record> records) {
+        return send(connection, BinaryFrame.REPLICATE, BinaryProtocol.encodeRecords(logId, records))
+                .thenApply(response -> null);
+    }
+
+    // Sends a request whose future fails unless the follower answers OK
+    private CompletableFuture<BinaryFrame> send(BinaryClient connection, byte opcode, List<byte[]> fields) {
+        return connection.sendBytes(opcode, fields).thenApply(response -> {
+            if (response.getCode() != BinaryFrame.OK) {
+                throw new CompletionException(new IOException("Replica " + getName() + " rejected a request: "
+                        + response.getFields()));
+            }
+            return response;
+        });
+    }
+
+    private synchronized BinaryClient connection() throws IOException {
+        if (client != null && client.isOpen()) {
+            return client;
+        }
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        if (System.currentTimeMillis() < reconnectAt) {
+            throw new IOException("Waiting to reconnect to replica " + getName());
+        }
+        try {
+            client = new BinaryClient(node.getHost(), node.getPort());
+            System.out.println("Connected to replica " + getName());
+            return client;
+        } catch (IOException e) {
+            reconnectAt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+            throw e;
+        }
+    }
+
+    // Bytes of the record's encoded fields and their length prefixes; a number takes at most 20 digits
+    private static long estimatedBytes(ReplicationLog.Record record) {
+        long bytes = 2 * (Integer.BYTES + 20);  // Sequence and entry count
+        for (Entry entry : record.getEntries()) {
+            bytes += 2 * Integer.BYTES + 1 + entry.getKeyBytes().length;  // Operation and key
+            if (!entry.isTombstone()) {
+                bytes += Integer.BYTES + entry.getValueBytes().length;
+                bytes += entry.getExpiresAt() != 0 ? Integer.BYTES + 20 : 0;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package kvstore.network;
+
+import kvstore.EngineStats;
+import kvstore.Entry;
+import kvstore.KeyValueStore;
+import kvstore.OperationMetrics;
+import kvstore.TableStats;
+import kvstore.WriteBatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * RequestDispatcher maps HTTP requests onto KeyValueStore operations, through a {@link ShardRouter} that
+ * sends them to the shards owning their keys when the store is sharded. It is shared by the blocking
+ * and the event-loop servers and is safe to call from many worker threads.
+ *
+ * <pre>
+ * GET    /key                       read a key
+ * GET    /startKey,endKey           read a key range, streamed in key order
+ * PUT    key=k&amp;value=v[&amp;ttlMs=n]     store one key, optionally expiring n ms from now
+ * POST   key1=k&amp;value1=v[&amp;ttlMs1=n]&amp;delete2=k..  store and delete a batch of keys atomically
+ * DELETE /key                       delete a key
+ * GET    /metrics                   latency histograms and counters, in Prometheus text format
+ * GET    /admin/stats               read, write and space amplification of the storage engine
+ * </pre>
+ *
+ * The latency of every request is recorded by kind, from dispatching it to writing the last byte of its
+ * response (see {@link #serve}).
+ */
+public class RequestDispatcher {
+    static final String METRICS_PATH = "/metrics";
+    static final String STATS_PATH = "/admin/stats";
+
+    private final ShardRouter router;
+    private final OperationMetrics requestMetrics = new OperationMetrics();
+    private final PrometheusExporter metricsExporter;
+
+    public RequestDispatcher(KeyValueStore store) {
+        this(new ShardRouter(store));
+    }
+
+    public RequestDispatcher(ShardRouter router) {
+        this.router = router;
+        this.metricsExporter = new PrometheusExporter(router.getStore(), requestMetrics);
+    }
+
+    /**
+     * Executes a request and writes its response, recording how long both took.
+     */
+    public void serve(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dispatch(request).writeTo(out, keepAlive);
+        } finally {
+            OperationMetrics.Operation operation = operationOf(request);
+            if (operation != null) {
+                requestMetrics.record(operation, start);
+            }
+        }
+    }
+
+    public HttpResponse dispatch(HttpRequest request) {
+        try {
+            switch (request.getMethod()) {
+                case "GET":
+                    if (METRICS_PATH.equals(request.getPath())) {
+                        return HttpResponse.ok(metricsExporter.scrape());
+                    }
+                    if (STATS_PATH.equals(request.getPath())) {
+                        return HttpResponse.ok(renderStats());
+                    }
+                    return request.getPath().contains(",") ? handleRangeQuery(request.getPath())
+                            : handleGetRequest(request.getPath());
+                case "POST":
+                    return request.getBody().isEmpty() ? HttpResponse.badRequest("ERROR: Missing POST body")
+                            : handlePostRequest(request.getBody());
+                case "PUT":
+                    return request.getBody().isEmpty() ? HttpResponse.badRequest("ERROR: Missing PUT body")
+                            : handlePutRequest(request.getBody());
+                case "DELETE":
+                    return handleDeleteRequest(request.getPath());
+                default:
+                    return new HttpResponse(405, "Method Not Allowed", "ERROR: Method not allowed");
+            }
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.badRequest("ERROR: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            return new HttpResponse(503, "Service Unavailable", "ERROR: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error processing request: " + e.getMessage());
+            return new HttpResponse(500, "Internal Server Error", "ERROR: An error occurred while processing the request");
+        } catch (RuntimeException e) {
+            // Handle communication errors with other nodes if necessary
+            return new HttpResponse(503, "Service Unavailable", "ERROR: Unable to communicate with the data node");
+        }
+    }
+
+    /**
+     * Latencies of the requests served so far, by kind.
+     */
+    public OperationMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    /**
+     * The exporter behind {@code GET /metrics}, e.g. to register the gauges of a server.
+     */
+    public PrometheusExporter getMetricsExporter() {
+        return metricsExporter;
+    }
+
+    private static OperationMetrics.Operation operationOf(HttpRequest request) {
+        switch (request.getMethod()) {
+            case "GET":
+                if (METRICS_PATH.equals(request.getPath()) || STATS_PATH.equals(request.getPath())) {
+                    return null;  // Scrapes are not traffic
+                }
+                return request.getPath().contains(",") ? OperationMetrics.Operation.RANGE : OperationMetrics.Operation.GET;
+            case "POST":
+                return OperationMetrics.Operation.BATCH;
+            case "PUT":
+                return OperationMetrics.Operation.PUT;
+            case "DELETE":
+                return OperationMetrics.Operation.DELETE;
+            default:
+                return null;
+        }
+    }
+
+    // Engine counters, then one line per SSTable; reads every table to tell live from dead bytes
+    private String renderStats() {
+        KeyValueStore store = router.getStore();
+        EngineStats stats = store.getEngineStats();
+        List<TableStats> tables = store.getLSMTree().computeTableStats();
+        long tableBytes = 0;
+        long liveBytes = 0;
+        for (TableStats table : tables) {
+            tableBytes += table.getSizeBytes();
+            liveBytes += table.getLiveBytes();
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("write amplification: %.2f (user %d B, wal %d B, flush %d B, compaction %d B)%n",
+                stats.getWriteAmplification(), stats.getUserBytesWritten(), stats.getWalBytesWritten(),
+                stats.getFlushBytesWritten(), stats.getCompactionBytesWritten()));
+        out.append(String.format("read amplification: %.2f tables checked, %.2f tables read per get (%d gets); "
+                        + "%.2f tables per scan (%d scans)%n", stats.getTablesCheckedPerGet(),
+                stats.getTablesReadPerGet(), stats.getGets(), stats.getTablesPerScan(), stats.getScans()));
+        out.append(String.format("space amplification: %.2f (%d B on disk, %d B live)%n",
+                liveBytes == 0 ? 0 : (double) tableBytes / liveBytes, tableBytes, liveBytes));
+        out.append(String.format("flushes: %d in %d ms; compactions: %d in %d ms, %d B read%n",
+                stats.getFlushCount(), stats.getFlushNanos() / 1_000_000, stats.getCompactionCount(),
+                stats.getCompactionNanos() / 1_000_000, stats.getCompactionBytesRead()));
+        out.append(String.format("compression: %.2f (%d B of blocks stored as %d B), %d ms compressing, "
+                        + "%d blocks in %d ms decompressing%n", stats.getCompressionRatio(), stats.getBlockBytesRaw(),
+                stats.getBlockBytesStored(), stats.getCompressNanos() / 1_000_000, stats.getBlocksDecompressed(),
+                stats.getDecompressNanos() / 1_000_000));
+        for (TableStats table : tables) {
+            out.append(table).append('\n');
+        }
+        return out.toString();
+    }
+
+    // 1. Handle Get (Read)
+    private HttpResponse handleGetRequest(String path) throws IOException {
+        String key = path.substring(1); // Assume path is like "/key"
+        try {
+            return HttpResponse.ok("VALUE: " + router.get(key));
+        } catch (NoSuchElementException e) {
+            return HttpResponse.notFound("ERROR: Key not found");
+        }
+    }
+
+    // 2. Handle Range Query (ReadKeyRange)
+    private HttpResponse handleRangeQuery(String path) throws IOException {
+        String[] keys = path.substring(1).split(","); // Assume path is like "/startKey,endKey"
+        if (keys.length != 2) {
+            return HttpResponse.badRequest("ERROR: Invalid range request format, expected /startKey,endKey");
+        }
+        String startKey = keys[0].trim(); // Remove any leading/trailing whitespace
+        String endKey = keys[1].trim();
+        if (startKey.isEmpty() || endKey.isEmpty()) {
+            return HttpResponse.badRequest("ERROR: Invalid range request, keys cannot be empty");
+        }
+
+        // Stream the range in key order: entries are read while the response is written, so a large
+        // range never has to fit in memory
+        Iterator<Entry> range = router.scanKeyRange(startKey, endKey);
+        if (!range.hasNext()) {
+            return HttpResponse.notFound("ERROR: No values found in the specified range.");
+        }
+
+        // Format the result as key=value for each pair
+        Iterator<String> parts = new Iterator<String>() {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                return range.hasNext();
+            }
+
+            @Override
+            public String next() {
+                Entry entry = range.next();
+                String separator = first ? "RANGE VALUES: " : ", ";
+                first = false;
+                return separator + entry.getKey() + "=" + entry.getValue();
+            }
+        };
+        return HttpResponse.streamed(200, "OK", parts);
+    }
+
+    // 3. Handle POST (Put, BatchPut), applied as one atomic write batch
+    private HttpResponse handlePostRequest(String requestBody) throws IOException {
+        WriteBatch batch = new WriteBatch();
+
+        // Temporary storage for key-value pairs, and for the time to live of the pairs that have one
+        Map<String, String> tempMap = new HashMap<>();
+        Map<String, Long> ttls = new HashMap<>();
+        for (String param : requestBody.split("&")) {
+            String[] keyValue = param.split("=");
+            if (keyValue.length == 2 && keyValue[0].trim().startsWith("ttlMs")) {
+                ttls.put("key" + keyValue[0].trim().substring(5), parseTtl(keyValue[1].trim()));
+            }
+        }
+
+        // Parsing the parameters
+        for (String param : requestBody.split("&")) {
+            String[] keyValue = param.split("=");
+            if (keyValue.length == 2) {
+                String key = keyValue[0].trim();
+                String value = keyValue[1].trim();
+
+                // Separate key and value based on prefix (key1, value1, key2, value2, delete1)
+                if (key.startsWith("key")) {
+                    tempMap.put(key, value);  // Temporarily store
+                } else if (key.startsWith("value")) {
+                    // Find the matching key (key1 matches value1, key2 matches value2)
+                    String matchingKey = "key" + key.substring(5);
+                    if (tempMap.containsKey(matchingKey)) {
+                        Long ttl = ttls.get(matchingKey);
+                        if (ttl == null) {
+                            batch.put(tempMap.get(matchingKey), value);
+                        } else {
+                            batch.put(tempMap.get(matchingKey), value, ttl);
+                        }
+                    }
+                } else if (key.startsWith("delete")) {
+                    batch.delete(value);
+                }
+            }
+        }
+
+        // Validate the batch before writing it
+        if (batch.isEmpty()) {
+            return HttpResponse.badRequest("ERROR: Invalid parameters");
+        }
+        router.write(batch);
+        return HttpResponse.ok("OK: Keys stored");
+    }
+
+    // 4. Handle PUT (Single key-value Put)
+    private HttpResponse handlePutRequest(String requestBody) throws IOException {
+        String key = null;
+        String value = null;
+        Long ttl = null;
+        for (String pair : requestBody.split("&")) {
+            String[] kv = pair.split("=");
+            if (kv.length == 2) {
+                if ("key".equals(kv[0].trim())) {
+                    key = kv[1].trim();
+                } else if ("value".equals(kv[0].trim())) {
+                    value = kv[1].trim();
+                } else if ("ttlMs".equals(kv[0].trim())) {
+                    ttl = parseTtl(kv[1].trim());
+                }
+            }
+        }
+
+        if (key == null || value == null) {
+            return HttpResponse.badRequest("ERROR: Invalid parameters");
+        }
+        if (ttl == null) {
+            router.put(key, value);
+        } else {
+            router.put(key, value, ttl);
+        }
+        return HttpResponse.ok("OK: Key stored");
+    }
+
+    // Time to live in milliseconds, which must be positive
+    private static long parseTtl(String ttl) {
+        try {
+            long ms = Long.parseLong(ttl);
+            if (ms > 0) {
+                return ms;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid ttlMs: " + ttl);
+    }
+
+    // 5. Handle DELETE
+    private HttpResponse handleDeleteRequest(String path) throws IOException {
+        String key = path.substring(1); // Extract the key from the path
+        try {
+            router.delete(key);
+            return HttpResponse.ok("OK: Key deleted");
+        } catch (NoSuchElementException e) {
+            return HttpResponse.notFound("ERROR: Key not found or already deleted"); // Key doesn't exist
+        }
+    }
+}
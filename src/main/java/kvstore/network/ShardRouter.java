@@ -0,0 +1,459 @@
+package kvstore.network;
+
+import kvstore.Entry;
+import kvstore.HashRing;
+import kvstore.KeyValueStore;
+import kvstore.MergingIterator;
+import kvstore.Node;
+import kvstore.ScanIterator;
+import kvstore.WriteBatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ShardRouter runs each request on the nodes that own its keys. The servers of a sharded cluster share
+ * a {@link HashRing} of their binary protocol addresses; a key is stored on its owners only, so adding
+ * nodes adds capacity. Requests for keys this node does not own are forwarded to their owners over the
+ * binary protocol:
+ *
+ * <ul>
+ * <li>a read goes to the first owner that can be reached,</li>
+ * <li>a write goes to every owner, and a batch is split into one atomic batch per owner,</li>
+ * <li>a range read asks every node, since hashing spreads any key range over all of them, and merges the
+ * results in key order as it pages through them.</li>
+ * </ul>
+ *
+ * A store that is not sharded gets a router that runs everything locally.
+ */
+public class ShardRouter implements Closeable {
+    private static final int MIGRATION_CHUNK_ENTRIES = 1000;
+
+    private final KeyValueStore store;
+    private final Node self;
+    private final int ownersPerKey;
+    private final ShardRouter local;  // Runs forwarded requests, without routing them again
+    private final ShardRouter sharded;  // Of a local router: the router of the shard it runs requests for
+    private final ReadWriteLock rebalanceLock;
+    private final Map<String, BinaryClient> clients;
+    private volatile HashRing ring;
+    private volatile HashRing growing;  // The ring addNode is moving keys to, which also gets the writes
+
+    /**
+     * A router for a store that holds every key.
+     */
+    public ShardRouter(KeyValueStore store) {
+        this(store, null, null, 1, new ReentrantReadWriteLock(), null);
+    }
+
+    /**
+     * @param self         this node, as it appears in nodes
+     * @param nodes        every shard, this one included, by binary protocol address
+     * @param ownersPerKey the number of nodes that store each key
+     */
+    public ShardRouter(KeyValueStore store, Node self, List<Node> nodes, int ownersPerKey) {
+        this(store, self, new HashRing(nodes), ownersPerKey, new ReentrantReadWriteLock(), null);
+        if (nodes.stream().noneMatch(this::isSelf)) {
+            throw new IllegalArgumentException("Node " + self.getAddress() + " is not one of the shards");
+        }
+        if (ownersPerKey < 1) {
+            throw new IllegalArgumentException("Each key needs at least one owner");
+        }
+    }
+
+    private ShardRouter(KeyValueStore store, Node self, HashRing ring, int ownersPerKey, ReadWriteLock rebalanceLock,
+                        ShardRouter sharded) {
+        this.store = store;
+        this.sharded = sharded;
+        this.self = self;
+        this.ring = ring;
+        this.ownersPerKey = ownersPerKey;
+        this.rebalanceLock = rebalanceLock;
+        this.clients = ring == null ? Collections.emptyMap() : new ConcurrentHashMap<>();
+        this.local = ring == null ? this : new ShardRouter(store, null, null, 1, rebalanceLock, this);
+    }
+
+    public KeyValueStore getStore() {
+        return store;
+    }
+
+    /**
+     * The router for requests another shard forwarded here: it runs them on the local store, except for
+     * writes to keys that are moving to a node the forwarding shard may not know about yet (see
+     * {@link #addNode}).
+     */
+    public ShardRouter local() {
+        return local;
+    }
+
+    public String get(String key) throws IOException {
+        byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        if (ring == null) {
+            return store.get(key);
+        }
+        rebalanceLock.readLock().lock();
+        try {
+            IOException unreachable = null;
+            for (Node owner : owners(key)) {
+                if (isSelf(owner)) {
+                    return store.get(key);
+                }
+                try {
+                    return client(owner).get(key);
+                } catch (IOException e) {
+                    unreachable = e;  // Try the next owner
+                }
+            }
+            throw unreachable;
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    public void put(String key, String value) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(byte[] key, byte[] value) throws IOException {
+        if (sharded != null) {
+            sharded.writeForwarded(new WriteBatch().put(key, value));
+            return;
+        }
+        if (ring == null) {
+            store.put(key, value);
+            return;
+        }
+        write(new WriteBatch().put(key, value));
+    }
+
+    /**
+     * Puts a key that expires ttlMs milliseconds from now. Its owners all get the same expiry time.
+     */
+    public void put(String key, String value, long ttlMs) throws IOException {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), ttlMs);
+    }
+
+    public void put(byte[] key, byte[] value, long ttlMs) throws IOException {
+        if (sharded != null) {
+            sharded.writeForwarded(new WriteBatch().put(key, value, ttlMs));
+            return;
+        }
+        if (ring == null) {
+            store.put(key, value, ttlMs);
+            return;
+        }
+        write(new WriteBatch().put(key, value, ttlMs));
+    }
+
+    /**
+     * Deletes the key from every owner.
+     *
+     * @throws NoSuchElementException if none of them had it
+     */
+    public void delete(String key) throws IOException {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void delete(byte[] key) throws IOException {
+        if (sharded != null) {
+            sharded.deleteForwarded(key);
+            return;
+        }
+        if (ring == null) {
+            store.delete(key);
+            return;
+        }
+        deleteFrom(key, this::writeOwners);
+    }
+
+    // Deletes the key from each of its nodes, while no keys move
+    private void deleteFrom(byte[] key, Function<byte[], List<Node>> ownersOf) throws IOException {
+        rebalanceLock.readLock().lock();
+        try {
+            boolean deleted = false;
+            for (Node owner : ownersOf.apply(key)) {
+                try {
+                    if (isSelf(owner)) {
+                        store.delete(key);
+                    } else {
+                        client(owner).delete(key);
+                    }
+                    deleted = true;
+                } catch (NoSuchElementException e) {
+                    // Missing on this owner
+                }
+            }
+            if (!deleted) {
+                throw new NoSuchElementException("Key not found: " + new String(key, StandardCharsets.UTF_8));
+            }
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the batch, atomically on each owner. A batch that spans shards is not atomic as a whole.
+     */
+    public void write(WriteBatch batch) throws IOException {
+        if (sharded != null) {
+            sharded.writeForwarded(batch);
+            return;
+        }
+        rebalanceLock.readLock().lock();
+        try {
+            if (ring == null) {
+                store.write(batch);
+                return;
+            }
+            writeTo(batch, this::writeOwners);
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a batch another shard forwarded here. That shard may not know about a node being added yet,
+     * so the keys this node still owns are also written to the nodes they are moving to, and the keys it
+     * no longer owns are passed on to their owners rather than kept here, where they would be dropped.
+     */
+    private void writeForwarded(WriteBatch batch) throws IOException {
+        rebalanceLock.readLock().lock();
+        try {
+            writeTo(batch, this::forwardedOwners);
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    private void deleteForwarded(byte[] key) throws IOException {
+        deleteFrom(key, this::forwardedOwners);
+    }
+
+    // The nodes a write forwarded here goes to: this one and whichever nodes the key is moving to, or the
+    // key's owners if it has moved away
+    private List<Node> forwardedOwners(byte[] key) {
+        List<Node> owners = owners(key);
+        Node here = owners.stream().filter(this::isSelf).findFirst().orElse(null);
+        if (here == null) {
+            return owners;
+        }
+        List<Node> targets = new ArrayList<>();
+        targets.add(here);
+        for (Node owner : writeOwners(key)) {
+            if (!owners.contains(owner)) {
+                targets.add(owner);
+            }
+        }
+        return targets;
+    }
+
+    // Splits the batch into one atomic batch per node and applies each, under the read lock
+    private void writeTo(WriteBatch batch, Function<byte[], List<Node>> ownersOf) throws IOException {
+        Map<Node, WriteBatch> perOwner = new LinkedHashMap<>();
+        for (Entry entry : batch.getEntries()) {
+            for (Node owner : ownersOf.apply(entry.getKeyBytes())) {
+                WriteBatch part = perOwner.computeIfAbsent(owner, node -> new WriteBatch());
+                if (entry.isTombstone()) {
+                    part.delete(entry.getKeyBytes());
+                } else {
+                    part.putUntil(entry.getKeyBytes(), entry.getValueBytes(), entry.getExpiresAt());
+                }
+            }
+        }
+        for (Map.Entry<Node, WriteBatch> part : perOwner.entrySet()) {
+            if (isSelf(part.getKey())) {
+                store.write(part.getValue());
+            } else {
+                client(part.getKey()).write(part.getValue());
+            }
+        }
+    }
+
+    /**
+     * The live entries with keys between startKey and endKey inclusive, in key order. They are read while
+     * the caller iterates: locally from the store, and from each other shard a page at a time, so a range
+     * of any size is merged without holding it in memory. Close the scan if it is not read to the end.
+     */
+    public ScanIterator scanKeyRange(String startKey, String endKey) throws IOException {
+        return scanKeyRange(startKey.getBytes(StandardCharsets.UTF_8), endKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ScanIterator scanKeyRange(byte[] startKey, byte[] endKey) throws IOException {
+        HashRing current = ring;
+        if (current == null) {
+            return store.scanKeyRange(startKey, endKey);
+        }
+        List<Iterator<Entry>> parts = new ArrayList<>();
+        for (Node node : current.getNodes()) {
+            if (isSelf(node)) {
+                parts.add(store.scanKeyRange(startKey, endKey));
+            } else {
+                parts.add(client(node).iterateKeyRange(startKey, endKey));
+            }
+        }
+        // Also drops the copies of keys with several owners
+        return new MergingIterator(parts, store.getLSMTree().getComparator());
+    }
+
+    /**
+     * Adds a shard to the ring and moves the keys it now owns to it from this node. Only the keys on the
+     * arcs the new node takes over move; every node of the cluster must be told about it, e.g. with the
+     * ADD_NODE request of the binary protocol. The keys are copied a chunk at a time, and requests on
+     * this node only wait while a chunk is copied. Until the last chunk is copied, reads still go to the
+     * old owners and writes go to both the old and the new owners, so none of them is lost on the way;
+     * that includes writes forwarded by shards that have not been told about the new node yet.
+     */
+    public synchronized void addNode(Node node) throws IOException {
+        if (ring == null) {
+            throw new IllegalStateException("This store is not sharded");
+        }
+        HashRing before = ring;
+        if (before.getNodes().stream().anyMatch(n -> n.getAddress().equals(node.getAddress()))) {
+            return;  // Already a member
+        }
+        HashRing after = before.withNode(node);
+        growing = after;
+        long moved = 0;
+        try {
+            byte[] cursor = null;
+            do {
+                rebalanceLock.writeLock().lock();
+                try {
+                    Map<Node, WriteBatch> moving = new LinkedHashMap<>();
+                    cursor = nextChunk(cursor, entry -> {
+                        List<Node> oldOwners = before.getOwners(entry.getKeyBytes(), ownersPerKey);
+                        if (oldOwners.stream().noneMatch(this::isSelf)) {
+                            return;  // Not this node's to move
+                        }
+                        for (Node owner : after.getOwners(entry.getKeyBytes(), ownersPerKey)) {
+                            if (!oldOwners.contains(owner)) {
+                                moving.computeIfAbsent(owner, n -> new WriteBatch())
+                                        .putUntil(entry.getKeyBytes(), entry.getValueBytes(), entry.getExpiresAt());
+                            }
+                        }
+                    });
+                    for (Map.Entry<Node, WriteBatch> chunk : moving.entrySet()) {
+                        client(chunk.getKey()).write(chunk.getValue());
+                        moved += chunk.getValue().size();
+                    }
+                } finally {
+                    rebalanceLock.writeLock().unlock();
+                }
+            } while (cursor != null);
+
+            rebalanceLock.writeLock().lock();
+            try {
+                ring = after;
+            } finally {
+                rebalanceLock.writeLock().unlock();
+            }
+        } finally {
+            growing = null;
+        }
+
+        // Nothing routes these keys here any more
+        byte[] cursor = null;
+        do {
+            WriteBatch deletes = new WriteBatch();
+            cursor = nextChunk(cursor, entry -> {
+                if (after.getOwners(entry.getKeyBytes(), ownersPerKey).stream().noneMatch(this::isSelf)) {
+                    deletes.delete(entry.getKeyBytes());
+                }
+            });
+            if (!deletes.isEmpty()) {
+                store.write(deletes);
+            }
+        } while (cursor != null);
+        System.out.println("Added shard " + node.getAddress() + ": moved " + moved + " entries to it");
+    }
+
+    // Passes up to MIGRATION_CHUNK_ENTRIES local entries after the cursor key, or from the first key if it is
+    // null, to the consumer; returns the last key passed, or null once every key has been
+    private byte[] nextChunk(byte[] cursor, Consumer<Entry> consumer) {
+        byte[] last = null;
+        int count = 0;
+        try (ScanIterator entries = store.getLSMTree().scan(cursor, null)) {
+            while (count < MIGRATION_CHUNK_ENTRIES && entries.hasNext()) {
+                Entry entry = entries.next();
+                if (cursor != null && Arrays.equals(entry.getKeyBytes(), cursor)) {
+                    continue;
+                }
+                consumer.accept(entry);
+                last = entry.getKeyBytes();
+                count++;
+            }
+        }
+        return count < MIGRATION_CHUNK_ENTRIES ? null : last;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (BinaryClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    private List<Node> owners(byte[] key) {
+        return ring.getOwners(key, ownersPerKey);
+    }
+
+    // The owners of the key, and while a node is being added, its owners once the node is in
+    private List<Node> writeOwners(byte[] key) {
+        List<Node> owners = owners(key);
+        HashRing next = growing;
+        if (next == null) {
+            return owners;
+        }
+        List<Node> all = new ArrayList<>(owners);
+        for (Node owner : next.getOwners(key, ownersPerKey)) {
+            if (!all.contains(owner)) {
+                all.add(owner);
+            }
+        }
+        return all;
+    }
+
+    private boolean isSelf(Node node) {
+        return node.getAddress().equals(self.getAddress());
+    }
+
+    private BinaryClient client(Node node) throws IOException {
+        BinaryClient client = clients.get(node.getAddress());
+        if (client == null || !client.isOpen()) {
+            synchronized (clients) {
+                client = clients.get(node.getAddress());
+                if (client == null || !client.isOpen()) {
+                    if (client != null) {
+                        client.close();
+                    }
+                    client = new BinaryClient(node.getHost(), node.getPort(), true);
+                    clients.put(node.getAddress(), client);
+                }
+            }
+        }
+        return client;
+    }
+}
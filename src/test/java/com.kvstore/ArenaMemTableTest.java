@@ -0,0 +1,154 @@
+package com.kvstore;
+
+import kvstore.ArenaMemTable;
+import kvstore.Entry;
+import kvstore.LSMTree;
+import kvstore.MemTableType;
+import kvstore.ScanIterator;
+import kvstore.SkipListMemTable;
+import kvstore.Snapshot;
+import kvstore.StoreConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArenaMemTableTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testBehavesLikeTheSkipListMemTable() {
+        ArenaMemTable arena = new ArenaMemTable();
+        SkipListMemTable skipList = new SkipListMemTable();
+        Random random = new Random(7);
+        String large = "x".repeat(ArenaMemTable.SLAB_SIZE + 100);  // Needs a slab of its own
+        for (long sequence = 1; sequence <= 5000; sequence++) {
+            String key = "key" + random.nextInt(800) + (random.nextInt(50) == 0 ? "\u00e9\u4e2d" : "");
+            String value = random.nextInt(10) == 0 ? null : sequence == 2500 ? large : "value-\u00fc-" + sequence;
+            if (value != null && sequence % 7 == 0) {  // Expiring values keep their expiry time
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                arena.put(keyBytes, valueBytes, sequence, 1_000_000 + sequence);
+                skipList.put(keyBytes, valueBytes, sequence, 1_000_000 + sequence);
+            } else {
+                arena.put(key, value, sequence);
+                skipList.put(key, value, sequence);
+            }
+        }
+        assertEquals(skipList.size(), arena.size());
+        assertTrue(arena.getArenaBytes() > ArenaMemTable.SLAB_SIZE * 2L);
+
+        assertEntriesEqual(skipList.iterator(), arena.iterator());
+        assertEntriesEqual(skipList.iterator("key2", "key4"), arena.iterator("key2", "key4"));
+        for (int i = 0; i < 800; i++) {
+            for (long sequence : new long[]{Long.MAX_VALUE, 1000, 3}) {
+                Entry expected = skipList.get("key" + i, sequence);
+                Entry actual = arena.get("key" + i, sequence);
+                assertEquals(expected == null ? null : expected.toString(), actual == null ? null : actual.toString());
+            }
+        }
+        assertNull(arena.get("missing"));
+    }
+
+    @Test
+    void testSlabsAreFreedOnceTheLastReaderIsDone() {
+        ArenaMemTable memTable = new ArenaMemTable();
+        for (int i = 0; i < 100; i++) {
+            memTable.put(String.format("key%03d", i), "value" + i, i + 1);
+        }
+        Iterator<Entry> reader = memTable.iterator();
+        reader.next();
+
+        memTable.release();
+        assertFalse(memTable.isFreed(), "An iterator still reads the slabs");
+        assertEquals("value50", memTable.get("key050").getValue());
+        int remaining = 0;
+        while (reader.hasNext()) {
+            reader.next();
+            remaining++;
+        }
+        assertEquals(99, remaining);
+        assertTrue(memTable.isFreed(), "The exhausted iterator was the last reader");
+
+        assertNull(memTable.get("key050"), "Late readers find the memTable empty");
+        assertFalse(memTable.iterator().hasNext());
+    }
+
+    @Test
+    void testClosingAPartlyReadScanLetsTheFlushedMemTableBeFreed() throws Exception {
+        LSMTree tree = new LSMTree(new StoreConfig().setDataDirectory(tempDir).setMemTableType(MemTableType.ARENA));
+        try {
+            for (int i = 0; i < 50; i++) {
+                tree.put(String.format("key%03d", i), "value" + i);
+            }
+            ArenaMemTable memTable = (ArenaMemTable) tree.getMemTable();
+            ScanIterator scan = tree.scan((byte[]) null, null);
+            assertEquals("key000", scan.next().getKey());
+
+            tree.flushMemTable();
+            assertFalse(memTable.isFreed(), "The open scan still reads the flushed memTable");
+            scan.close();
+            assertTrue(memTable.isFreed(), "The closed scan was the last reader");
+            assertFalse(scan.hasNext());
+            assertEquals(50, tree.getKeyRange("key000", "key999").size());
+        } finally {
+            tree.close();
+        }
+    }
+
+    @Test
+    void testTreeWithArenaMemTables() throws Exception {
+        LSMTree tree = new LSMTree(new StoreConfig().setDataDirectory(tempDir).setMemTableType(MemTableType.ARENA)
+                .setMemTableMaxBytes(2 * 1024));  // Writers freeze memTables while others read them
+        try {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int writerId = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            String key = String.format("w%d-%04d", writerId, i);
+                            tree.put(key, "value" + i);
+                            assertEquals("value" + i, tree.get(key));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get(), () -> "Writer failed: " + failure.get());
+
+            try (Snapshot snapshot = tree.getSnapshot()) {
+                tree.put("w0-0000", "changed");
+                tree.flushMemTable();
+                assertEquals("value0", snapshot.get("w0-0000"));
+            }
+            assertEquals("changed", tree.get("w0-0000"));
+            assertEquals(2000, tree.getKeyRange("w", "x").size());
+        } finally {
+            tree.close();
+        }
+    }
+
+    private static void assertEntriesEqual(Iterator<Entry> expected, Iterator<Entry> actual) {
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            assertEquals(expected.next().toString(), actual.next().toString());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,152 @@
+package com.kvstore;
+
+import kvstore.Entry;
+import kvstore.KeyValueStore;
+import kvstore.StoreConfig;
+import kvstore.network.BinaryClient;
+import kvstore.network.BinaryFrame;
+import kvstore.network.BinaryProtocol;
+import kvstore.network.EventLoopServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryProtocolTest {
+    @TempDir
+    File dataDir;
+
+    private KeyValueStore store;
+    private EventLoopServer server;
+    private BinaryClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new KeyValueStore(new StoreConfig().setDataDirectory(dataDir));
+        server = new EventLoopServer(0, new BinaryProtocol(store), 2, 4);
+        server.start();
+        client = new BinaryClient("localhost", server.getPort());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.shutdown();
+        store.close();
+    }
+
+    @Test
+    void testOperationsWithCharactersHttpCannotCarry() throws IOException {
+        client.put("a=b&c", "x&y=z\r\n");
+        assertEquals("x&y=z\r\n", client.get("a=b&c"));
+        assertEquals("x&y=z\r\n", store.get("a=b&c"));
+
+        client.batchPut(List.of("k1", "k2", "k,3"), List.of("v1", "", "v3"));
+        List<String[]> range = client.readKeyRange("k", "k3");
+        assertEquals(3, range.size());
+        assertArrayEquals(new String[]{"k,3", "v3"}, range.get(0));  // ',' sorts before the digits
+        assertArrayEquals(new String[]{"k2", ""}, range.get(2));
+
+        client.delete("k1");
+        assertThrows(NoSuchElementException.class, () -> client.get("k1"));
+        assertThrows(NoSuchElementException.class, () -> client.delete("k1"));
+        assertThrows(IllegalArgumentException.class, () -> client.put("", "empty key"));
+    }
+
+    @Test
+    void testBinaryKeysAndValuesAreCarriedAsGiven() throws IOException {
+        byte[] key = {'p', 'b', ':', 0, (byte) 0x80};
+        byte[] value = {0x08, (byte) 0x96, 0x01, (byte) 0xff, 0};  // A serialized message, not text
+        client.put(key, value);
+        assertArrayEquals(value, client.get(key));
+        assertArrayEquals(value, store.get(key));
+
+        List<Entry> range = client.scanKeyRange(new byte[]{'p'}, new byte[]{'q'});
+        assertEquals(1, range.size());
+        assertArrayEquals(key, range.get(0).getKeyBytes());
+        assertArrayEquals(value, range.get(0).getValueBytes());
+
+        client.delete(key);
+        assertThrows(NoSuchElementException.class, () -> client.get(key));
+    }
+
+    @Test
+    void testRangeLargerThanAFrameIsSentInPages() throws Exception {
+        byte[] value = new byte[1024 * 1024];
+        for (int i = 0; i < 24; i++) {
+            value[0] = (byte) i;
+            client.put(("big" + (char) ('a' + i)).getBytes(), value);
+        }
+
+        BinaryFrame firstPage = client.sendBytes(BinaryFrame.RANGE, List.of("big".getBytes(), "bih".getBytes())).get();
+        assertEquals(BinaryFrame.OK, firstPage.getCode());
+        assertEquals(1, firstPage.getFieldBytes().size() % 2);  // Ends with the marker of more entries
+
+        List<Entry> range = client.scanKeyRange("big".getBytes(), "bih".getBytes());
+        assertEquals(24, range.size());
+        for (int i = 0; i < 24; i++) {
+            assertEquals("big" + (char) ('a' + i), range.get(i).getKey());
+            assertEquals((byte) i, range.get(i).getValueBytes()[0]);
+        }
+        assertTrue(client.isOpen());
+    }
+
+    @Test
+    void testManyRequestsInFlightOnOneConnection() throws Exception {
+        List<CompletableFuture<BinaryFrame>> puts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            puts.add(client.send(BinaryFrame.PUT, List.of("key" + i, "value" + i)));
+        }
+        for (CompletableFuture<BinaryFrame> put : puts) {
+            assertEquals(BinaryFrame.OK, put.get().getCode());
+        }
+
+        // Responses may arrive in any order; each must still answer its own request
+        List<CompletableFuture<BinaryFrame>> gets = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            gets.add(client.send(BinaryFrame.GET, List.of("key" + i)));
+        }
+        for (int i = 0; i < 500; i++) {
+            BinaryFrame response = gets.get(i).get();
+            assertEquals(BinaryFrame.OK, response.getCode());
+            assertEquals(List.of("value" + i), response.getFields());
+        }
+    }
+
+    @Test
+    void testReplicationRecordsClaimingMoreEntriesThanSentAreRejected() throws Exception {
+        BinaryFrame response = client.send(BinaryFrame.REPLICATE, List.of("1", "5", "2000000000", "P", "key")).get();
+        assertEquals(BinaryFrame.BAD_REQUEST, response.getCode());
+        assertThrows(NoSuchElementException.class, () -> store.get("key"));
+    }
+
+    @Test
+    void testMalformedFrameIsRejected() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(-5);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + frame.length).putInt(frame.length).put(frame);
+            BinaryFrame response = BinaryFrame.parse(buffer.flip());
+            assertEquals(BinaryFrame.BAD_REQUEST, response.getCode());
+            assertEquals(-1, in.read(), "Server should close the connection after a malformed frame");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.kvstore;
+
+import kvstore.BlockCache;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCacheTest {
+    private static byte[] block(int size, int fill) {
+        byte[] block = new byte[size];
+        Arrays.fill(block, (byte) fill);
+        return block;
+    }
+
+    @Test
+    void testBlocksAreKeyedByFileAndOffset() {
+        BlockCache cache = new BlockCache(1024 * 1024, false);
+        assertNull(cache.get(1, 0));
+        cache.put(1, 0, block(100, 1));
+        cache.put(1, 4096, block(100, 2));
+        cache.put(2, 0, block(100, 3));
+
+        assertEquals(1, cache.get(1, 0).get(0));
+        assertEquals(2, cache.get(1, 4096).get(0));
+        assertEquals(3, cache.get(2, 0).get(0));
+        assertNull(cache.get(2, 4096));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.6, cache.getHitRatio(), 1e-9);
+
+        cache.invalidateFile(1);
+        assertNull(cache.get(1, 0));
+        assertNotNull(cache.get(2, 0));
+        assertEquals(1, cache.getBlockCount());
+    }
+
+    @Test
+    void testBudgetIsBoundedAndLeastRecentlyUsedBlocksGoFirst() {
+        long capacity = 64 * 1024;
+        BlockCache cache = new BlockCache(capacity, false);
+        cache.put(7, 0, block(1000, 1));
+        for (int i = 1; i <= 1000; i++) {
+            cache.put(7, i * 1000, block(1000, 1));
+            assertNotNull(cache.get(7, 0), "A block in constant use stays cached");
+            assertTrue(cache.getUsedBytes() <= capacity);
+        }
+        assertTrue(cache.getEvictionCount() > 900);
+        assertNull(cache.get(7, 1000));
+
+        // A block larger than a shard's share is returned without being cached
+        ByteBuffer huge = cache.put(8, 0, block((int) capacity, 1));
+        assertEquals(capacity, huge.remaining());
+        assertNull(cache.get(8, 0));
+    }
+
+    @Test
+    void testOffHeapBlocksAreDirectCopies() {
+        BlockCache cache = new BlockCache(1024 * 1024, true);
+        byte[] data = block(100, 5);
+        ByteBuffer returned = cache.put(1, 0, data);
+        data[0] = 9;  // The cache keeps its own copy
+        ByteBuffer cached = cache.get(1, 0);
+        assertTrue(cached.isDirect());
+        assertEquals(100, cached.remaining());
+        assertEquals(5, cached.get(0));
+        assertEquals(5, returned.get(0));
+    }
+}
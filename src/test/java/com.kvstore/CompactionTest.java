@@ -0,0 +1,214 @@
+package com.kvstore;
+
+import kvstore.BlockCodec;
+import kvstore.EngineStats;
+import kvstore.Entry;
+import kvstore.LSMTree;
+import kvstore.SSTable;
+import kvstore.StoreConfig;
+import kvstore.TableStats;
+import kvstore.Version;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactionTest {
+    @TempDir
+    File tempDir;
+
+    private LSMTree lsmTree;
+
+    private StoreConfig config;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        config = new StoreConfig()
+                .setDataDirectory(tempDir)
+                .setMemTableMaxBytes(2 * 1024)
+                .setNumLevels(3)
+                .setLevelFanout(4)
+                .setLevel0CompactionTrigger(2)
+                .setLevelBaseBytes(16 * 1024)
+                .setTargetFileSizeBytes(8 * 1024);
+        lsmTree = new LSMTree(config);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        lsmTree.close();
+    }
+
+    @Test
+    void testCompactionKeepsNewestVersions() throws IOException {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 400; i++) {
+                lsmTree.put(String.format("key%04d", i), "value" + round + "-" + i);
+            }
+        }
+        for (int i = 0; i < 400; i += 2) {
+            lsmTree.put(String.format("key%04d", i), null);  // Delete every other key
+        }
+        lsmTree.awaitCompactions();
+
+        for (int i = 0; i < 400; i++) {
+            String expected = i % 2 == 0 ? null : "value4-" + i;
+            assertEquals(expected, lsmTree.get(String.format("key%04d", i)), "Wrong value for key " + i);
+        }
+        assertEquals(200, lsmTree.getKeyRange("key0000", "key9999").size());
+    }
+
+    @Test
+    void testLevelsStayBoundedAndObsoleteFilesAreDeleted() throws IOException {
+        for (int i = 0; i < 3000; i++) {
+            lsmTree.put(String.format("key%05d", i), "some reasonably sized value number " + i);
+        }
+        lsmTree.awaitCompactions();
+
+        Version version = lsmTree.getVersion();
+        assertTrue(version.level(0).size() < 2, "Level 0 should have been compacted");
+        for (int level = 1; level < version.numLevels(); level++) {
+            List<SSTable> tables = version.level(level);
+            for (int i = 1; i < tables.size(); i++) {
+                assertTrue(tables.get(i - 1).getLastKey().compareTo(tables.get(i).getFirstKey()) < 0,
+                        "Sorted levels must not overlap");
+            }
+        }
+
+        String[] files = tempDir.list((dir, name) -> name.endsWith(".sstable"));
+        assertEquals(lsmTree.getSSTables().size(), files.length, "Compacted inputs should be removed from disk");
+        assertEquals("some reasonably sized value number 1234", lsmTree.get("key01234"));
+    }
+
+    @Test
+    void testReopenRestoresLevelsFromManifest() throws IOException {
+        for (int i = 0; i < 3000; i++) {
+            lsmTree.put(String.format("key%05d", i), "value" + i);
+        }
+        lsmTree.flushMemTable();  // The tree alone keeps no log of what is still in memory
+        lsmTree.awaitCompactions();
+        Version before = lsmTree.getVersion();
+        lsmTree.close();
+
+        // Leftover of a compaction that never got installed
+        File orphan = new File(tempDir, "999999.sstable");
+        assertTrue(orphan.createNewFile());
+
+        lsmTree = new LSMTree(config);
+        Version after = lsmTree.getVersion();
+        for (int level = 0; level < before.numLevels(); level++) {
+            assertEquals(before.level(level).size(), after.level(level).size(), "Tables on level " + level);
+            for (int i = 0; i < before.level(level).size(); i++) {
+                SSTable expected = before.level(level).get(i);
+                SSTable actual = after.level(level).get(i);
+                assertEquals(expected.getFile().getName(), actual.getFile().getName());
+                assertEquals(expected.getFirstKey(), actual.getFirstKey());
+                assertEquals(expected.getLastKey(), actual.getLastKey());
+            }
+        }
+        assertFalse(orphan.exists(), "Files the manifest does not list should be removed");
+        assertEquals("value2999", lsmTree.get("key02999"));
+        assertEquals(2900, lsmTree.getKeyRange("key00100", "key99999").size());
+    }
+
+    @Test
+    void testStatsAccountForAmplification() throws IOException {
+        LSMTree tree = new LSMTree(new StoreConfig()
+                .setDataDirectory(new File(tempDir, "stats"))
+                .setLevel0CompactionTrigger(10)
+                .setBlockCodec(BlockCodec.NONE));
+        try {
+            for (int i = 0; i < 100; i++) {  // A full memTable
+                tree.put(String.format("key%04d", i), "old" + i);
+            }
+            tree.flushMemTable();
+            for (int i = 0; i < 50; i++) {
+                tree.put(String.format("key%04d", i), "new" + i);
+            }
+            tree.put("key0075", null);
+            tree.flushMemTable();
+
+            List<TableStats> tables = tree.computeTableStats();
+            assertEquals(2, tables.size());
+            TableStats newer = tables.get(0);
+            TableStats older = tables.get(1);
+            assertEquals(50, newer.getLiveEntries());
+            assertEquals(1, newer.getDeadEntries(), "The tombstone takes space but holds nothing");
+            assertEquals(49, older.getLiveEntries());
+            assertEquals(51, older.getDeadEntries(), "Overwritten and deleted keys are dead");
+            assertTrue(older.getLiveBytes() + older.getDeadBytes() < older.getSizeBytes());
+
+            assertEquals("new5", tree.get("key0005"));
+            assertNull(tree.get("zzz"));
+            EngineStats stats = tree.getStats();
+            assertEquals(2, stats.getGets());
+            assertEquals(2, stats.getFlushCount());
+            assertTrue(stats.getTablesCheckedByGets() >= 2, "The first get stops at the newest table");
+            assertTrue(stats.getTablesReadByGets() <= stats.getTablesCheckedByGets());
+            assertTrue(stats.getWriteAmplification() > 1, "SSTables carry more than the user bytes");
+        } finally {
+            tree.close();
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            lsmTree.put(String.format("key%05d", i), "value" + i);
+        }
+        lsmTree.awaitCompactions();
+        EngineStats stats = lsmTree.getStats();
+        assertTrue(stats.getCompactionCount() > 0);
+        assertTrue(stats.getCompactionBytesRead() > 0 && stats.getCompactionBytesWritten() > 0);
+        assertTrue(stats.getCompactionNanos() > 0);
+        assertEquals(stats.getUserBytesWritten(), 3000 * 8 + lengths("value", 3000));
+    }
+
+    private static long lengths(String prefix, int count) {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += (prefix + i).length();
+        }
+        return total;
+    }
+
+    @Test
+    void testExpiredValuesAreDroppedWhenTablesAreRewritten() throws Exception {
+        long expiresAt = System.currentTimeMillis() + 500;
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+            entries.add(new Entry(key, ("value" + i).getBytes(StandardCharsets.UTF_8), 0, i % 2 == 0 ? expiresAt : 0));
+        }
+        lsmTree.write(entries, null);
+        lsmTree.flushMemTable();  // Still live, so stored with their expiry time
+        assertEquals("value0", lsmTree.get("key0000"));
+        assertEquals(200, lsmTree.getKeyRange("key0000", "key9999").size());
+
+        while (System.currentTimeMillis() <= expiresAt) {
+            Thread.sleep(20);
+        }
+        assertNull(lsmTree.get("key0000"), "Expired values are hidden from reads");
+        assertEquals("value1", lsmTree.get("key0001"));
+        assertEquals(100, lsmTree.getKeyRange("key0000", "key9999").size());
+
+        // Two more level 0 tables overlapping the expired keys, so they are compacted whichever level they are in
+        lsmTree.put("key0000a", "value");
+        lsmTree.flushMemTable();
+        lsmTree.put("key0001a", "value");
+        lsmTree.flushMemTable();
+        lsmTree.awaitCompactions();
+        long records = 0;
+        for (SSTable table : lsmTree.getSSTables()) {
+            records += table.getEntryCount();
+        }
+        assertEquals(102, records, "Compacting into the bottom level drops the expired values");
+        assertNull(lsmTree.get("key0198"));
+        assertEquals("value199", lsmTree.get("key0199"));
+    }
+}
@@ -0,0 +1,204 @@
+package com.kvstore;
+
+import kvstore.KeyValueStore;
+import kvstore.StoreConfig;
+import kvstore.network.EventLoopServer;
+import kvstore.network.HttpParser;
+import kvstore.network.HttpRequest;
+import kvstore.network.RequestDispatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopServerTest {
+    @TempDir
+    File dataDir;
+
+    private KeyValueStore store;
+    private EventLoopServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new KeyValueStore(new StoreConfig().setDataDirectory(dataDir));
+        server = new EventLoopServer(0, new RequestDispatcher(store), 2, 4);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+        store.close();
+    }
+
+    @Test
+    void testKeepAliveServesManyRequestsOnOneConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            for (int i = 0; i < 20; i++) {
+                send(socket, put("key" + i, "value" + i));
+                assertEquals("HTTP/1.1 200 OK", readResponses(socket.getInputStream(), 1).get(0).split("\r\n")[0]);
+            }
+            send(socket, "GET /key7 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String response = readResponses(socket.getInputStream(), 1).get(0);
+            assertTrue(response.contains("Connection: keep-alive"));
+            assertTrue(response.endsWith("VALUE: value7\n"));
+        }
+    }
+
+    @Test
+    void testPipelinedRequestsAreAnsweredInOrder() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            // All requests in one write; the reads see the preceding writes
+            send(socket, put("pipelined", "first")
+                    + "GET /pipelined HTTP/1.1\r\n\r\n"
+                    + put("pipelined", "second")
+                    + "GET /pipelined HTTP/1.1\r\n\r\n"
+                    + "DELETE /pipelined HTTP/1.1\r\n\r\n"
+                    + "GET /pipelined HTTP/1.1\r\nConnection: close\r\n\r\n");
+            List<String> responses = readResponses(socket.getInputStream(), 6);
+            assertTrue(responses.get(1).endsWith("VALUE: first\n"));
+            assertTrue(responses.get(3).endsWith("VALUE: second\n"));
+            assertTrue(responses.get(4).endsWith("OK: Key deleted\n"));
+            assertTrue(responses.get(5).startsWith("HTTP/1.1 404 Not Found"));
+            assertTrue(responses.get(5).contains("Connection: close"));
+            assertEquals(-1, socket.getInputStream().read(), "Server should close after Connection: close");
+        }
+    }
+
+    @Test
+    void testMetricsEndpointReportsLatenciesAndCounters() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            send(socket, put("measured", "value") + "GET /measured HTTP/1.1\r\n\r\n" + "GET /missing HTTP/1.1\r\n\r\n");
+            readResponses(socket.getInputStream(), 3);
+            send(socket, "GET /metrics HTTP/1.1\r\nConnection: close\r\n\r\n");
+            String metrics = readResponses(socket.getInputStream(), 1).get(0);
+
+            assertTrue(metrics.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(metrics.contains("# TYPE kvstore_request_duration_seconds histogram"));
+            assertTrue(metrics.contains("kvstore_request_duration_seconds_count{op=\"get\"} 2\n"));
+            assertTrue(metrics.contains("kvstore_request_duration_seconds_count{op=\"put\"} 1\n"));
+            assertTrue(metrics.contains("kvstore_request_duration_seconds_bucket{op=\"get\",le=\"+Inf\"} 2\n"));
+            assertTrue(metrics.contains("kvstore_operation_duration_seconds_count{op=\"put\"} 1\n"));
+            assertTrue(metrics.contains("kvstore_wal_records_total 1\n"));
+            assertTrue(metrics.contains("kvstore_cache_hits_total 1\n"), "The read after the put is cached");
+        }
+    }
+
+    @Test
+    void testRequestLineEndsBeforeItsLineBreak() {
+        for (String request : List.of("GET /?key=a HTTP/1.0\r\n\r\n", "GET /?key=a HTTP/1.0\n\n")) {
+            HttpRequest parsed = HttpParser.parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+            assertEquals("HTTP/1.0", parsed.getVersion());
+            assertFalse(parsed.isKeepAlive());
+        }
+        HttpRequest withHeader = HttpParser.parse(ByteBuffer.wrap(
+                "GET /a HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals("close", withHeader.getHeader("Connection"));
+        assertFalse(withHeader.isKeepAlive());
+    }
+
+    @Test
+    void testMalformedRequestIsRejected() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            send(socket, "NONSENSE\r\n\r\n");
+            List<String> responses = readResponses(socket.getInputStream(), 1);
+            assertTrue(responses.get(0).startsWith("HTTP/1.1 400 Bad Request"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void testLargeRangeIsStreamedInKeyOrder() throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            keys.add(String.format("range%05d", i));
+            values.add("value" + i);
+        }
+        store.batchPut(keys, values);
+        store.delete("range00001");
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            send(socket, "GET /range00000,range02999 HTTP/1.1\r\n\r\nGET /range00002 HTTP/1.1\r\n\r\n");
+            List<String> responses = readResponses(socket.getInputStream(), 2);
+            String range = responses.get(0);
+            assertTrue(range.contains("Transfer-Encoding: chunked"));
+            String body = range.substring(range.indexOf("\r\n\r\n") + 4);
+            assertTrue(body.startsWith("RANGE VALUES: range00000=value0, range00002=value2, "));
+            assertTrue(body.endsWith("range02999=value2999\n"));
+            assertEquals(2999, body.split(", ").length);
+            assertTrue(responses.get(1).endsWith("VALUE: value2\n"), "Connection should stay usable");
+        }
+    }
+
+    private static String put(String key, String value) {
+        String body = "key=" + key + "&value=" + value;
+        return "PUT / HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    private static void send(Socket socket, String requests) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(requests.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Reads the given number of responses, relying on their Content-Length or chunked encoding to find
+     * where each one ends. Chunked bodies are returned decoded.
+     */
+    private static List<String> readResponses(InputStream in, int count) throws IOException {
+        List<String> responses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            while (!head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+                int b = in.read();
+                assertNotEquals(-1, b, "Connection closed before response " + i);
+                head.write(b);
+            }
+            String headers = head.toString(StandardCharsets.US_ASCII);
+            int contentLength = 0;
+            for (String line : headers.split("\r\n")) {
+                if (line.startsWith("Content-Length:")) {
+                    contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+                }
+            }
+            if (headers.contains("Transfer-Encoding: chunked")) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                int chunkSize;
+                while ((chunkSize = Integer.parseInt(readLine(in), 16)) > 0) {
+                    body.write(in.readNBytes(chunkSize));
+                    assertEquals("", readLine(in));
+                }
+                assertEquals("", readLine(in));
+                responses.add(headers + body.toString(StandardCharsets.UTF_8));
+                continue;
+            }
+            byte[] body = in.readNBytes(contentLength);
+            responses.add(headers + new String(body, StandardCharsets.UTF_8));
+        }
+        return responses;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertNotEquals(-1, b, "Connection closed inside a chunked body");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -1,34 +1,66 @@
 package com.kvstore;
 
+import kvstore.Checkpoint;
+import kvstore.Entry;
 import kvstore.KeyValueStore;
+import kvstore.Replica;
+import kvstore.ReplicaStatus;
+import kvstore.ReplicationLog;
+import kvstore.StoreConfig;
+import kvstore.WriteBatch;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class KeyValueStoreTest {
+    private static final long MEMTABLE_BYTES = 2 * 1024;  // Small enough to flush every hundred or so entries
+
     private KeyValueStore primaryStore;
     private KeyValueStore secondaryStore1;
     private KeyValueStore secondaryStore2;
 
+    @TempDir
+    File dataDir;
+
     @BeforeEach
     void setUp() throws IOException {
-        // Initialize key-value stores
-        primaryStore = new KeyValueStore();
-        secondaryStore1 = new KeyValueStore();
-        secondaryStore2 = new KeyValueStore();
+        // Initialize key-value stores, each with its own data directory
+        primaryStore = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "primary"))
+                .setMemTableMaxBytes(MEMTABLE_BYTES));
+        secondaryStore1 = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "secondary1"))
+                .setMemTableMaxBytes(MEMTABLE_BYTES));
+        secondaryStore2 = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "secondary2"))
+                .setMemTableMaxBytes(MEMTABLE_BYTES));
 
         // Add secondary stores to primary for replication
         primaryStore.addNode(secondaryStore1);
         primaryStore.addNode(secondaryStore2);
     }
 
+    @AfterEach
+    void tearDown() throws IOException {
+        primaryStore.close();
+        secondaryStore1.close();
+        secondaryStore2.close();
+    }
+
 
     @Test
     void testPutAndGet() throws IOException {
@@ -77,6 +109,7 @@ class KeyValueStoreTest {
         primaryStore.put("key1", "value1");
 
         // Ensure replication to secondary nodes
+        primaryStore.awaitReplication();
         assertEquals("value1", secondaryStore1.get("key1"));
         assertEquals("value1", secondaryStore2.get("key1"));
     }
@@ -102,12 +135,16 @@ class KeyValueStoreTest {
         assertEquals("value3", primaryStore.get("key3"));
 
         // Ensure replication after recovery
+        primaryStore.awaitReplication();
         assertEquals("value3", secondaryStore1.get("key3"));
         assertEquals("value3", secondaryStore2.get("key3"));
     }
 
     @Test
     public void testFailoverHandling() throws IOException {
+        primaryStore.put("key1", "value1");
+        primaryStore.awaitReplication();
+
         // Simulate failure of primary node
         primaryStore.simulateFailure();
 
@@ -125,6 +162,7 @@ class KeyValueStoreTest {
         secondaryStore1.put("key4", "value4");
 
         // Ensure the new primary replicates to other nodes
+        secondaryStore1.awaitReplication();
         assertEquals("value4", secondaryStore2.get("key4"));
         assertEquals("value4", secondaryStore1.get("key4"));
     }
@@ -143,7 +181,8 @@ class KeyValueStoreTest {
         // Simulate recovery of secondary node
         secondaryStore1.recoverFromFailure();
 
-        // Ensure that secondary node has synced with the primary node after recovery
+        // Ensure that secondary node has caught up with the primary node after recovery
+        primaryStore.awaitReplication();
         assertEquals("value5", secondaryStore1.get("key5"));
         assertEquals("value6", secondaryStore1.get("key6"));
     }
@@ -158,9 +197,364 @@ class KeyValueStoreTest {
         primaryStore.batchPut(keys, values);
 
         // Ensure all keys are replicated to secondary nodes
+        primaryStore.awaitReplication();
         for (int i = 0; i < keys.size(); i++) {
             assertEquals(values.get(i), secondaryStore1.get(keys.get(i)));
             assertEquals(values.get(i), secondaryStore2.get(keys.get(i)));
         }
     }
+
+    @Test
+    public void testDataSurvivesRestartAfterLogTruncation() throws IOException {
+        File directory = new File(dataDir, "restart");
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(directory)
+                .setMemTableMaxBytes(MEMTABLE_BYTES));
+        for (int i = 0; i < 250; i++) {
+            store.put("restartKey" + i, "value" + i);  // Flushes the memTable a few times
+        }
+        store.delete("restartKey7");
+        store.close();
+
+        // Flushed records live in SSTables only; their log segments are gone
+        assertTrue(directory.list((dir, name) -> name.startsWith("wal-")).length <= 2);
+
+        KeyValueStore reopened = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        assertEquals("value0", reopened.get("restartKey0"));
+        assertEquals("value249", reopened.get("restartKey249"));
+        assertThrows(NoSuchElementException.class, () -> reopened.get("restartKey7"));
+        reopened.close();
+    }
+
+    @Test
+    public void testBinaryKeysAndValuesAreStoredAsGiven() throws IOException {
+        File directory = new File(dataDir, "binary");
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        byte[] key = {'m', 's', 'g', ':', 0, (byte) 0xff};
+        byte[] value = {0x0a, 0x03, ':', 0, (byte) 0xc3, (byte) 0x28};  // Not valid UTF-8
+        store.put(key, value);
+        for (int i = 0; i < 150; i++) {
+            store.put(("filler:" + i).getBytes(), new byte[]{(byte) i});  // Flushes the binary record
+        }
+        assertArrayEquals(value, store.get(key));
+        store.close();
+
+        KeyValueStore reopened = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16).put(new byte[]{1, 2}).put(key).flip();
+        buffer.position(2);
+        assertArrayEquals(value, reopened.get(buffer));
+        assertEquals(2, buffer.position(), "Reading the key must not consume the buffer");
+        reopened.delete(key);
+        assertThrows(NoSuchElementException.class, () -> reopened.get(key));
+        reopened.close();
+    }
+
+    @Test
+    public void testKeysWithATimeToLiveExpire() throws Exception {
+        File directory = new File(dataDir, "ttl");
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        store.put("session", "alice", 600);
+        store.write(new WriteBatch().put("token", "t1", 600).put("kept", "v1"));
+        assertThrows(IllegalArgumentException.class, () -> store.put("bad", "ttl", 0));
+        assertEquals("alice", store.get("session"));  // Cached until it expires
+        store.close();
+
+        KeyValueStore reopened = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        assertEquals("t1", reopened.get("token"), "The expiry time survives a restart");
+        assertEquals("alice", reopened.get("session"));
+        Thread.sleep(700);
+        assertThrows(NoSuchElementException.class, () -> reopened.get("session"));
+        assertThrows(NoSuchElementException.class, () -> reopened.get("token"));
+        assertThrows(NoSuchElementException.class, () -> reopened.delete("session"));
+        assertEquals("v1", reopened.get("kept"));
+        reopened.getCache().cleanUp();
+        assertEquals(1, reopened.getCache().size(), "Expired keys were removed from the cache");
+        reopened.close();
+    }
+
+    @Test
+    public void testCleanShutdownSkipsWalReplay() throws IOException {
+        File directory = new File(dataDir, "clean");
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        store.put("cleanKey", "cleanValue");  // Still in the memTable
+        store.close();
+
+        // The memTable was flushed on close, and the log no longer holds anything worth replaying
+        assertTrue(new File(directory, "CLEAN_SHUTDOWN").exists());
+        assertEquals(1, directory.list((dir, name) -> name.endsWith(".sstable")).length);
+
+        KeyValueStore reopened = new KeyValueStore(new StoreConfig().setDataDirectory(directory));
+        assertFalse(new File(directory, "CLEAN_SHUTDOWN").exists(), "A crash after restart must replay the WAL");
+        assertEquals("cleanValue", reopened.get("cleanKey"));
+        reopened.close();
+    }
+
+    @Test
+    public void testWriteBatchIsAtomicAndReplicated() throws IOException {
+        primaryStore.put("ledger:old", "1");
+        primaryStore.write(new WriteBatch()
+                .put("ledger:a", "10")
+                .put("ledger:b", "20")
+                .delete("ledger:old")
+                .delete("ledger:missing")  // Not an error inside a batch
+                .put("ledger:a", "11"));   // Later operations on a key win
+
+        primaryStore.awaitReplication();
+        for (KeyValueStore store : List.of(primaryStore, secondaryStore1, secondaryStore2)) {
+            assertEquals("11", store.get("ledger:a"));
+            assertEquals("20", store.get("ledger:b"));
+            assertThrows(NoSuchElementException.class, () -> store.get("ledger:old"));
+        }
+
+        // A copy of the data directory taken while the store runs is what a crash leaves behind
+        File crashImage = new File(dataDir, "crash");
+        try (Stream<Path> files = Files.list(new File(dataDir, "primary").toPath())) {
+            crashImage.mkdirs();
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, crashImage.toPath().resolve(file.getFileName()));
+            }
+        }
+        KeyValueStore recovered = new KeyValueStore(new StoreConfig().setDataDirectory(crashImage));
+        assertEquals("11", recovered.get("ledger:a"));
+        assertEquals("20", recovered.get("ledger:b"));
+        assertThrows(NoSuchElementException.class, () -> recovered.get("ledger:old"));
+        recovered.close();
+    }
+
+    @Test
+    public void testConcurrentWritesToAKeyEndTheSameOnThePrimaryAfterRecoveryAndOnReplicas() throws Exception {
+        List<Thread> writers = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < 8; t++) {
+            int writer = t;
+            writers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        primaryStore.put("contended" + (i % 4), "writer" + writer + "-" + i);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure.get(), () -> "Concurrent writes failed: " + failure.get());
+        primaryStore.awaitReplication();
+
+        // What a crash leaves behind, taken once no flush or compaction is changing the files
+        while (primaryStore.getLSMTree().isFlushPending()) {
+            Thread.sleep(10);
+        }
+        primaryStore.getLSMTree().awaitCompactions();
+        File crashImage = new File(dataDir, "crash");
+        try (Stream<Path> files = Files.list(new File(dataDir, "primary").toPath())) {
+            crashImage.mkdirs();
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, crashImage.toPath().resolve(file.getFileName()));
+            }
+        }
+        KeyValueStore recovered = new KeyValueStore(new StoreConfig().setDataDirectory(crashImage));
+        try {
+            for (int k = 0; k < 4; k++) {
+                String expected = primaryStore.get("contended" + k);
+                assertEquals(expected, recovered.get("contended" + k), "WAL replay order");
+                assertEquals(expected, secondaryStore1.get("contended" + k), "Replication order");
+                assertEquals(expected, secondaryStore2.get("contended" + k), "Replication order");
+            }
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testReadsRacingWithDeletesAndPutsNeverCacheAStaleValue() throws Exception {
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "racing")));
+        try {
+            for (int round = 0; round < 200; round++) {
+                String key = "racing" + round;
+                store.put(key, "v");
+                store.getCache().invalidate(ByteBuffer.wrap(key.getBytes()));  // Make the readers fill the cache
+                AtomicBoolean deleted = new AtomicBoolean();
+                List<Thread> readers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    readers.add(new Thread(() -> {
+                        while (!deleted.get()) {
+                            try {
+                                store.get(key);
+                            } catch (NoSuchElementException e) {
+                                // Read after the delete
+                            }
+                        }
+                    }));
+                }
+                readers.forEach(Thread::start);
+                store.delete(key);
+                deleted.set(true);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+                assertThrows(NoSuchElementException.class, () -> store.get(key), "Deleted key served from the cache");
+            }
+
+            // Concurrent puts: the cache ends with the value the tree ends with
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int writer = t;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            store.put("contended", "writer" + writer + "-" + i);
+                            store.get("contended");
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertEquals(store.getLSMTree().get("contended"), store.get("contended"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReplicationIsAsynchronousAndReportsLag() throws IOException {
+        secondaryStore1.simulateFailure();
+        for (int i = 0; i < 10; i++) {
+            primaryStore.put("lagKey" + i, "value" + i);  // Does not wait for, or fail because of, the failed node
+        }
+
+        primaryStore.awaitReplication();  // Only waits for active nodes
+        assertEquals("value9", secondaryStore2.get("lagKey9"));
+        ReplicaStatus failed = primaryStore.getReplicationStatus().get(0);
+        assertEquals("secondary1", failed.getName());
+        assertFalse(failed.isActive());
+        assertEquals(10, failed.getLag());
+        assertEquals(0, primaryStore.getReplicationStatus().get(1).getLag());
+
+        secondaryStore1.recoverFromFailure();
+        primaryStore.awaitReplication();
+        assertEquals("value9", secondaryStore1.get("lagKey9"));
+        assertEquals(0, primaryStore.getReplicationStatus().get(0).getLag());
+        assertEquals(10, primaryStore.getReplicationStatus().get(0).getAckedSequence());
+    }
+
+    @Test
+    public void testReplicaWithForeignContentsIsCaughtUpWithACheckpoint() throws IOException {
+        for (int i = 0; i < 500; i++) {
+            primaryStore.put("cp" + i, "value" + i);
+        }
+        for (int i = 0; i < 500; i += 10) {
+            primaryStore.delete("cp" + i);
+        }
+        KeyValueStore follower = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "follower")));
+        follower.put("stale", "not on the primary");
+
+        // It did not follow this primary, so its contents are replaced rather than patched
+        primaryStore.addReplica(follower);
+        primaryStore.awaitReplication();
+        assertThrows(NoSuchElementException.class, () -> follower.get("stale"));
+        assertThrows(NoSuchElementException.class, () -> follower.get("cp10"));
+        assertEquals("value499", follower.get("cp499"));
+        assertEquals(450, follower.readKeyRange("cp", "cq").size());
+
+        // Writes made after the checkpoint follow as records
+        primaryStore.put("after", "checkpoint");
+        primaryStore.awaitReplication();
+        assertEquals("checkpoint", follower.get("after"));
+
+        primaryStore.removeReplica(follower);
+        follower.close();
+        for (String name : List.of("primary", "follower")) {
+            String[] checkpoints = new File(dataDir, name).list((dir, file) -> file.startsWith("checkpoint-"));
+            assertEquals(0, checkpoints.length, "Checkpoint files left in " + name);
+        }
+
+        // The installed tables survive a restart
+        KeyValueStore reopened = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "follower")));
+        assertEquals("value499", reopened.get("cp499"));
+        assertThrows(NoSuchElementException.class, () -> reopened.get("stale"));
+        reopened.close();
+    }
+
+    @Test
+    public void testRestartedReplicaReplaysOnlyTheLogTail() throws IOException {
+        File followerDir = new File(dataDir, "follower");
+        RestartableReplica replica = new RestartableReplica();
+        replica.store = new KeyValueStore(new StoreConfig().setDataDirectory(followerDir));
+        primaryStore.addReplica(replica);
+        primaryStore.put("key1", "value1");
+        primaryStore.awaitReplication();
+
+        replica.store.close();
+        replica.store = null;  // Down: the primary keeps the records it misses
+        primaryStore.put("key2", "value2");
+
+        KeyValueStore restarted = new KeyValueStore(new StoreConfig().setDataDirectory(followerDir));
+        restarted.put("local", "lost if a checkpoint replaced the contents");
+        replica.store = restarted;
+        primaryStore.awaitReplication();
+        assertEquals("value2", restarted.get("key2"));
+        assertEquals("lost if a checkpoint replaced the contents", restarted.get("local"));
+
+        primaryStore.removeReplica(replica);
+        restarted.close();
+    }
+
+    @Test
+    public void testReplicationLogIsBoundedInBytesAndEmptyWhileNoReplicaIsUp() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog();
+        log.append(List.of(new Entry("unread", "value")));
+        assertEquals(0, log.size());  // Nobody to read it
+
+        log.setRetaining(true);
+        for (int i = 0; i < 48; i++) {
+            log.append(List.of(new Entry(("key" + i).getBytes(), new byte[1024 * 1024])));
+        }
+        assertTrue(log.size() < 48, log.size() + " records kept");
+        assertTrue(log.getSizeBytes() <= 32L * 1024 * 1024, log.getSizeBytes() + " bytes kept");
+        assertNull(log.read(1, 10, 0));  // Dropped: a replica this far behind gets a checkpoint
+        assertEquals("key47", log.read(48, 10, 0).get(0).getEntries().get(0).getKey());
+
+        log.setRetaining(false);
+        assertEquals(0, log.size());
+        assertEquals(0, log.getSizeBytes());
+        assertEquals(49, log.getLastSequence());
+    }
+
+    // A replica whose store can be closed and reopened while the primary keeps replicating to it
+    private static final class RestartableReplica implements Replica {
+        volatile KeyValueStore store;
+
+        @Override
+        public String getName() {
+            return "restartable";
+        }
+
+        @Override
+        public boolean isActive() {
+            return store != null;
+        }
+
+        @Override
+        public void replicate(long logId, List<ReplicationLog.Record> records) throws IOException {
+            store.replicate(logId, records);
+        }
+
+        @Override
+        public long getAppliedSequence(long logId) {
+            return store.getAppliedSequence(logId);
+        }
+
+        @Override
+        public void installCheckpoint(long logId, Checkpoint checkpoint) throws IOException {
+            store.installCheckpoint(logId, checkpoint);
+        }
+    }
 }
@@ -0,0 +1,214 @@
+package com.kvstore;
+
+import kvstore.BlockCache;
+import kvstore.EngineStats;
+import kvstore.Entry;
+import kvstore.KeyComparator;
+import kvstore.LSMTree;
+import kvstore.Snapshot;
+import kvstore.StoreConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LSMTreeTest {
+    @TempDir
+    File tempDir;
+
+    private LSMTree lsmTree;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        lsmTree = new LSMTree(new StoreConfig().setDataDirectory(tempDir).setMemTableMaxBytes(2 * 1024));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        lsmTree.close();
+    }
+
+    @Test
+    void testWritesAndReadsContinueDuringBackgroundFlushes() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int writerId = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        String key = String.format("w%d-%04d", writerId, i);
+                        lsmTree.put(key, "value" + i);
+                        // A key is never lost while its memTable moves from active to immutable to SSTable
+                        assertEquals("value" + i, lsmTree.get(key));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get(), () -> "Concurrent access failed: " + failure.get());
+
+        lsmTree.flushMemTable();
+        assertTrue(lsmTree.getMemTable().isEmpty());
+        assertFalse(lsmTree.getSSTables().isEmpty());
+        assertEquals(1000, lsmTree.getKeyRange("w2-", "w2-9999").size());
+        assertEquals("value999", lsmTree.get("w3-0999"));
+    }
+
+    @Test
+    void testNewestValueWinsAcrossMemTablesAndTables() throws IOException {
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 150; i++) {
+                lsmTree.put(String.format("key%03d", i), "round" + round);
+            }
+        }
+        lsmTree.put("key010", null);
+
+        assertNull(lsmTree.get("key010"));
+        List<String> keys = lsmTree.getKeyRange("key000", "key020");
+        assertEquals(20, keys.size());
+        assertFalse(keys.contains("key010"));
+        assertEquals("round2", lsmTree.scan("key149", "key149").next().getValue());
+    }
+
+    @Test
+    void testVersionsNewerThanASnapshotAreNotBloomFilterFalsePositives() throws IOException {
+        Snapshot snapshot = lsmTree.getSnapshot();
+        lsmTree.put("key", "value");
+        lsmTree.flushMemTable();
+
+        assertNull(snapshot.get("key"));
+        assertEquals(0, lsmTree.getBloomFilterFalsePositives(), "The table holds the key, if only a newer version");
+        assertEquals(1, lsmTree.getBloomFilterHits());
+        snapshot.close();
+    }
+
+    @Test
+    void testSnapshotReadsAreRepeatableAcrossFlushesAndCompactions() throws IOException {
+        for (int i = 0; i < 150; i++) {
+            lsmTree.put(String.format("key%03d", i), "before");
+        }
+        Snapshot snapshot = lsmTree.getSnapshot();
+        Iterator<Entry> scan = lsmTree.scan("key000", "key999");  // Reads as of its start, like a snapshot
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 150; i++) {
+                lsmTree.put(String.format("key%03d", i), "after" + round);
+            }
+        }
+        lsmTree.put("key010", null);
+        lsmTree.put("key500", "added");
+        lsmTree.flushMemTable();
+        lsmTree.awaitCompactions();
+
+        assertEquals("before", snapshot.get("key010"), "Overwrites and deletes after the snapshot are not seen");
+        assertNull(snapshot.get("key500"), "Keys added after the snapshot are not seen");
+        List<String> values = new ArrayList<>();
+        snapshot.scan("key000", "key999").forEachRemaining(entry -> values.add(entry.getValue()));
+        assertEquals(150, values.size());
+        assertTrue(values.stream().allMatch("before"::equals));
+        int scanned = 0;
+        while (scan.hasNext()) {
+            assertEquals("before", scan.next().getValue());
+            scanned++;
+        }
+        assertEquals(150, scanned);
+
+        assertNull(lsmTree.get("key010"));
+        assertEquals("after4", lsmTree.get("key011"));
+        snapshot.close();
+        assertThrows(IllegalStateException.class, () -> snapshot.get("key010"));
+    }
+
+    @Test
+    void testCustomKeyComparatorIsUsedAndRecordedInTheManifest() throws IOException {
+        KeyComparator reverse = new KeyComparator() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return KeyComparator.BYTEWISE.compare(b, a);
+            }
+
+            @Override
+            public String name() {
+                return "reverse-bytewise";
+            }
+        };
+        File directory = new File(tempDir, "reverse");
+        LSMTree tree = new LSMTree(new StoreConfig().setDataDirectory(directory).setKeyComparator(reverse));
+        for (int i = 0; i < 300; i++) {
+            tree.put(String.format("key%03d", i), "value" + i);
+        }
+        tree.flushMemTable();
+        tree.awaitCompactions();
+        tree.close();
+
+        tree = new LSMTree(new StoreConfig().setDataDirectory(directory).setKeyComparator(reverse));
+        try {
+            List<String> keys = new ArrayList<>();
+            tree.scan("key299", "key290").forEachRemaining(entry -> keys.add(entry.getKey()));
+            assertEquals(List.of("key299", "key298", "key297", "key296", "key295",
+                    "key294", "key293", "key292", "key291", "key290"), keys);
+            assertEquals("value123", tree.get("key123"));
+        } finally {
+            tree.close();
+        }
+        IOException e = assertThrows(IOException.class,
+                () -> new LSMTree(new StoreConfig().setDataDirectory(directory)));
+        assertTrue(e.getMessage().contains("reverse-bytewise"), e.getMessage());
+    }
+
+    @Test
+    void testBlockCacheServesRepeatedReadsAndIsTrackedApartFromTheRowCache() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            lsmTree.put(String.format("key%04d", i), "value-value-value-value-" + i);
+        }
+        lsmTree.flushMemTable();
+        lsmTree.awaitCompactions();
+        BlockCache blockCache = lsmTree.getBlockCache();
+        assertTrue(blockCache.getPinnedBytes() > 0, "Indexes and filters count against the budget");
+        long hitsBefore = blockCache.getHitCount();
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 2000; i += 100) {
+                assertEquals("value-value-value-value-" + i, lsmTree.get(String.format("key%04d", i)));
+            }
+        }
+        assertEquals(2000, lsmTree.getKeyRange("key0000", "key9999").size());
+        assertTrue(blockCache.getHitCount() - hitsBefore >= 40, "Blocks read again come from the cache");
+        assertTrue(blockCache.getBlockCount() > 0);
+
+        EngineStats stats = lsmTree.getStats();
+        assertEquals(blockCache.getHitCount(), stats.getBlockCacheHits());
+        assertEquals(blockCache.getMissCount(), stats.getBlockCacheMisses());
+        assertTrue(stats.getBlockCacheHitRatio() > 0.5, "Hit ratio " + stats.getBlockCacheHitRatio());
+    }
+
+    @Test
+    void testBlockCacheCanBeDisabled() throws IOException {
+        LSMTree tree = new LSMTree(new StoreConfig().setDataDirectory(new File(tempDir, "uncached"))
+                .setBlockCacheMaxBytes(0));
+        try {
+            tree.put("key", "value");
+            tree.flushMemTable();
+            assertEquals("value", tree.get("key"));
+            assertNull(tree.getBlockCache());
+            assertEquals(0, tree.getStats().getBlockCacheHitRatio());
+        } finally {
+            tree.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.kvstore;
+
+import kvstore.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void testPercentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000L, histogram.getTotalNanos());
+
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500_000 && median <= 500_000 * 1.125, "Median " + median);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990_000 && p99 <= 990_000 * 1.125, "p99 " + p99);
+        assertEquals(524, histogram.countBelow(1L << 19), "Power-of-two bounds are exact: 2^19 ns is 524.288 us");
+        assertEquals(1000, histogram.countBelow(1L << 20));
+    }
+
+    @Test
+    void testExtremeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(3, histogram.getCount());
+        assertEquals(2, histogram.countBelow(1));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,143 @@
+package com.kvstore;
+
+import kvstore.KeyValueStore;
+import kvstore.Node;
+import kvstore.ReplicaStatus;
+import kvstore.StoreConfig;
+import kvstore.WriteBatch;
+import kvstore.network.BinaryProtocol;
+import kvstore.network.EventLoopServer;
+import kvstore.network.RemoteReplica;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationOverTcpTest {
+    @TempDir
+    File dataDir;
+
+    private KeyValueStore primary;
+    private final List<KeyValueStore> followers = new ArrayList<>();
+    private final List<EventLoopServer> servers = new ArrayList<>();
+    private final List<RemoteReplica> replicas = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        primary = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "primary")));
+        for (int i = 0; i < 2; i++) {
+            KeyValueStore follower = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "follower" + i)));
+            EventLoopServer server = new EventLoopServer(0, new BinaryProtocol(follower), 2, 4);
+            server.start();
+            RemoteReplica replica = new RemoteReplica(new Node("localhost:" + server.getPort()));
+            primary.addReplica(replica);
+            followers.add(follower);
+            servers.add(server);
+            replicas.add(replica);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        primary.close();
+        for (RemoteReplica replica : replicas) {
+            replica.close();
+        }
+        for (EventLoopServer server : servers) {
+            server.shutdown();
+        }
+        for (KeyValueStore follower : followers) {
+            follower.close();
+        }
+    }
+
+    @Test
+    void testWritesReachFollowersInOrder() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            primary.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 2000; i += 2) {
+            primary.put("key" + i, "updated" + i);  // Overwrites must not be reordered on the followers
+        }
+        for (int i = 0; i < 2000; i += 10) {
+            primary.delete("key" + i);
+        }
+        WriteBatch batch = new WriteBatch();
+        batch.put("batch=1", "a&b\r\n");
+        batch.delete("key1");
+        primary.write(batch);
+        primary.awaitReplication();
+
+        for (KeyValueStore follower : followers) {
+            assertEquals("value3", follower.get("key3"));
+            assertEquals("updated4", follower.get("key4"));
+            assertThrows(NoSuchElementException.class, () -> follower.get("key10"));
+            assertThrows(NoSuchElementException.class, () -> follower.get("key1"));
+            assertEquals("a&b\r\n", follower.get("batch=1"));
+        }
+        for (ReplicaStatus status : primary.getReplicationStatus()) {
+            assertTrue(status.isActive());
+            assertEquals(0, status.getLag());
+        }
+    }
+
+    @Test
+    void testFollowerThatRestartsCatchesUp() throws Exception {
+        primary.put("before", "1");
+        primary.awaitReplication();
+
+        int port = servers.get(0).getPort();
+        servers.get(0).shutdown();
+        for (int i = 0; i < 100; i++) {
+            primary.put("during" + i, "2");
+        }
+        servers.set(0, new EventLoopServer(port, new BinaryProtocol(followers.get(0)), 2, 4));
+        servers.get(0).start();
+
+        // The primary reconnects on its own, after its reconnect delay
+        long deadline = System.currentTimeMillis() + 10000;
+        while (primary.getReplicationStatus().stream().anyMatch(status -> status.getLag() > 0)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Follower did not catch up");
+            Thread.sleep(50);
+        }
+        assertEquals("1", followers.get(0).get("before"));
+        assertEquals("2", followers.get(0).get("during99"));
+        assertEquals("2", followers.get(1).get("during99"));
+    }
+
+    @Test
+    void testFollowerWithForeignContentsReceivesACheckpoint() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            primary.put("key" + i, "value" + i);
+        }
+        primary.delete("key7");
+        primary.awaitReplication();
+
+        KeyValueStore follower = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "follower2")));
+        follower.put("stale", "not on the primary");
+        EventLoopServer server = new EventLoopServer(0, new BinaryProtocol(follower), 2, 4);
+        server.start();
+        RemoteReplica replica = new RemoteReplica(new Node("localhost:" + server.getPort()));
+        followers.add(follower);
+        servers.add(server);
+        replicas.add(replica);
+
+        primary.addReplica(replica);
+        primary.awaitReplication();
+        assertEquals("value999", follower.get("key999"));
+        assertThrows(NoSuchElementException.class, () -> follower.get("key7"));
+        assertThrows(NoSuchElementException.class, () -> follower.get("stale"));
+
+        primary.put("after", "checkpoint");
+        primary.awaitReplication();
+        assertEquals("checkpoint", follower.get("after"));
+    }
+}
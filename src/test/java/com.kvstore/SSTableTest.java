@@ -0,0 +1,199 @@
+package com.kvstore;
+
+import kvstore.BlockCodec;
+import kvstore.Entry;
+import kvstore.SSTable;
+import kvstore.SSTableWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SSTableTest {
+    @TempDir
+    File tempDir;
+
+    private SSTable writeTable(File file, int count) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(file)) {
+            for (int i = 0; i < count; i++) {
+                String key = String.format("key%05d", i);
+                // Every tenth key is a tombstone, the rest carry values containing the old ':' separator
+                writer.add(key, i % 10 == 0 ? null : "value:" + i + ":payload");
+            }
+            return writer.finish();
+        }
+    }
+
+    @Test
+    void testPointReadsAcrossBlocks() throws IOException {
+        SSTable table = writeTable(new File(tempDir, "points.sstable"), 2000);
+        assertTrue(table.getSizeBytes() > SSTable.BLOCK_SIZE, "Table should span several blocks");
+
+        assertEquals("value:1:payload", table.read("key00001"));
+        assertEquals("value:1999:payload", table.read("key01999"));
+        assertNull(table.read("key99999"));
+        assertNull(table.find("aaa"), "Keys before the first block are absent");
+
+        Entry deleted = table.find("key00010");
+        assertNotNull(deleted, "Tombstones must be distinguishable from missing keys");
+        assertTrue(deleted.isTombstone());
+    }
+
+    @Test
+    void testVersionsOfAKeyAreFoundAcrossBlockBoundaries() throws IOException {
+        File file = new File(tempDir, "versions.sstable");
+        SSTable table;
+        try (SSTableWriter writer = new SSTableWriter(file)) {
+            writer.add("a", 1, "first");
+            for (long sequence = 500; sequence > 100; sequence--) {
+                writer.add("key", sequence, "value" + sequence);  // Newest first, spanning several blocks
+            }
+            writer.add("z", 2, null);
+            table = writer.finish();
+        }
+        assertEquals(402, table.getEntryCount());
+        assertEquals(500, table.getMaxSequence());
+
+        assertEquals("value500", table.find("key").getValue());
+        assertEquals("value250", table.find("key", 250).getValue());
+        assertEquals(101, table.find("key", 101).getSequence());
+        assertNull(table.find("key", 100), "No version of the key is that old");
+        assertTrue(table.find("z", 2).isTombstone());
+        assertThrows(IllegalArgumentException.class, () -> {
+            try (SSTableWriter writer = new SSTableWriter(new File(tempDir, "unsorted.sstable"))) {
+                writer.add("key", 1, "older");
+                writer.add("key", 2, "newer");
+            }
+        }, "Versions of a key must be added newest first");
+    }
+
+    @Test
+    void testRangeIterationIsSortedAndBounded() throws IOException {
+        SSTable table = writeTable(new File(tempDir, "range.sstable"), 2000);
+
+        List<String> keys = new ArrayList<>();
+        Iterator<Entry> it = table.iterator("key00995", "key01011");
+        while (it.hasNext()) {
+            keys.add(it.next().getKey());
+        }
+        assertEquals(17, keys.size());
+        assertEquals("key00995", keys.get(0));
+        assertEquals("key01011", keys.get(keys.size() - 1));
+
+        // getKeyRange skips tombstones (key01000 and key01010)
+        assertEquals(15, table.getKeyRange("key00995", "key01011").size());
+        assertTrue(table.getKeyRange("zzz", "zzzz").isEmpty());
+    }
+
+    @Test
+    void testReopenReadsOnlyIndex() throws IOException {
+        File file = new File(tempDir, "reopen.sstable");
+        writeTable(file, 500);
+
+        SSTable reopened = SSTable.loadFromFile(file);
+        assertEquals(500, reopened.getEntryCount());
+        assertEquals("key00000", reopened.getFirstKey());
+        assertEquals("key00499", reopened.getLastKey());
+        assertEquals("value:321:payload", reopened.read("key00321"));
+    }
+
+    @Test
+    void testBloomFilterPersistedNextToTable() throws IOException {
+        File file = new File(tempDir, "filtered.sstable");
+        writeTable(file, 1000);
+        assertTrue(SSTable.filterFileFor(file).exists(), "Filter file should be written next to the table");
+
+        SSTable reopened = SSTable.loadFromFile(file);
+        assertTrue(reopened.hasBloomFilter());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(reopened.mightContain(String.format("key%05d", i)), "Bloom filters have no false negatives");
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (reopened.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50, "False positive rate too high: " + falsePositives);
+    }
+
+    @Test
+    void testTableWithoutFilter() throws IOException {
+        File file = new File(tempDir, "unfiltered.sstable");
+        try (SSTableWriter writer = new SSTableWriter(file, 0)) {
+            writer.add("a", "1");
+            writer.finish();
+        }
+        SSTable table = SSTable.loadFromFile(file);
+        assertFalse(table.hasBloomFilter());
+        assertTrue(table.mightContain("b"), "Tables without a filter must always be probed");
+    }
+
+    @Test
+    void testTablesWithDifferentCodecsReadTheSame() throws IOException {
+        List<SSTable> tables = new ArrayList<>();
+        for (BlockCodec codec : new BlockCodec[]{BlockCodec.NONE, BlockCodec.LZ4}) {
+            try (SSTableWriter writer = new SSTableWriter(new File(tempDir, codec.name() + ".sstable"), 10, codec)) {
+                for (int i = 0; i < 2000; i++) {
+                    writer.add(String.format("account%05d", i), i % 7 == 0 ? null
+                            : "{\"id\":" + i + ",\"status\":\"active\",\"balance\":" + (i * 37 % 1000) + ",\"currency\":\"EUR\"}");
+                }
+                writer.finish();
+            }
+            tables.add(SSTable.loadFromFile(new File(tempDir, codec.name() + ".sstable")));
+        }
+        SSTable plain = tables.get(0);
+        SSTable compressed = tables.get(1);
+        assertEquals(BlockCodec.NONE, plain.getBlockCodec());
+        assertEquals(BlockCodec.LZ4, compressed.getBlockCodec(), "The codec is read from the file");
+        assertEquals(plain.getRawDataBytes(), compressed.getRawDataBytes());
+        assertTrue(compressed.getDataBytes() * 2 < plain.getDataBytes(),
+                "Repetitive records should compress well: " + compressed.getDataBytes() + " of " + plain.getDataBytes());
+
+        Iterator<Entry> expected = plain.iterator();
+        Iterator<Entry> actual = compressed.iterator();
+        while (expected.hasNext()) {
+            Entry entry = expected.next();
+            Entry other = actual.next();
+            assertEquals(entry.getKey(), other.getKey());
+            assertEquals(entry.getValue(), other.getValue());
+        }
+        assertFalse(actual.hasNext());
+        assertEquals(plain.read("account01234"), compressed.read("account01234"));
+        assertNull(compressed.read("account01232"), "Tombstones survive compression");
+        assertEquals(0, plain.getBlocksDecompressed());
+        assertTrue(compressed.getBlocksDecompressed() > 0, "Blocks are decompressed as they are read");
+    }
+
+    @Test
+    void testLz4RoundTripsAnyInput() throws IOException {
+        Random random = new Random(42);
+        byte[] noise = new byte[5000];
+        random.nextBytes(noise);
+        byte[] run = new byte[70000];  // Longer than a match can reach back
+        Arrays.fill(run, (byte) 'x');
+        byte[] text = "the quick brown fox jumps over the lazy dog; ".repeat(100).getBytes();
+        for (byte[] input : new byte[][]{new byte[0], "a".getBytes(), "abcdabcdabcd".getBytes(), noise, run, text}) {
+            byte[] compressed = new byte[BlockCodec.LZ4.maxCompressedLength(input.length)];
+            int length = BlockCodec.LZ4.compress(input, input.length, compressed);
+            byte[] output = new byte[input.length];
+            BlockCodec.LZ4.decompress(ByteBuffer.wrap(compressed), 0, length, output, output.length);
+            assertArrayEquals(input, output);
+        }
+
+        byte[] compressed = new byte[BlockCodec.LZ4.maxCompressedLength(text.length)];
+        int length = BlockCodec.LZ4.compress(text, text.length, compressed);
+        assertTrue(length < text.length / 10, "Repeated text should shrink: " + length);
+        assertThrows(IOException.class, () -> BlockCodec.LZ4.decompress(ByteBuffer.wrap(compressed), 0, length - 1,
+                new byte[text.length], text.length), "Truncated input must be detected");
+    }
+}
@@ -0,0 +1,259 @@
+package com.kvstore;
+
+import kvstore.Entry;
+import kvstore.HashRing;
+import kvstore.KeyValueStore;
+import kvstore.Node;
+import kvstore.StoreConfig;
+import kvstore.WriteBatch;
+import kvstore.network.BinaryClient;
+import kvstore.network.BinaryProtocol;
+import kvstore.network.EventLoopServer;
+import kvstore.network.ShardRouter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardingTest {
+    @TempDir
+    File dataDir;
+
+    private final List<KeyValueStore> stores = new ArrayList<>();
+    private final List<ShardRouter> routers = new ArrayList<>();
+    private final List<EventLoopServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (EventLoopServer server : servers) {
+            server.shutdown();
+        }
+        for (ShardRouter router : routers) {
+            router.close();
+        }
+        for (KeyValueStore store : stores) {
+            store.close();
+        }
+    }
+
+    @Test
+    void testRingSpreadsKeysAndAddingANodeMovesOnlyItsShare() {
+        List<Node> nodes = List.of(new Node("a:1"), new Node("b:1"), new Node("c:1"));
+        HashRing ring = new HashRing(nodes);
+        HashRing grown = ring.withNode(new Node("d:1"));
+
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < 30000; i++) {
+            String key = "key" + i;
+            String owner = ring.getOwner(key).getAddress();
+            counts.merge(owner, 1, Integer::sum);
+            String newOwner = grown.getOwner(key).getAddress();
+            if (!newOwner.equals(owner)) {
+                assertEquals("d:1", newOwner);  // Keys only move to the new node
+                moved++;
+            }
+        }
+        for (int count : counts.values()) {
+            assertTrue(count > 7000 && count < 13000, "Uneven share: " + counts);
+        }
+        assertTrue(moved > 4500 && moved < 10500, "Moved " + moved + " of 30000 keys");
+
+        List<Node> owners = ring.getOwners("key1", 2);
+        assertEquals(2, owners.size());
+        assertNotSame(owners.get(0), owners.get(1));
+        assertEquals(3, ring.getOwners("key1", 5).size());
+    }
+
+    @Test
+    void testRequestsAreRoutedToTheOwningShard() throws IOException {
+        List<Node> nodes = startShards(3);
+        for (int i = 0; i < 300; i++) {
+            routers.get(i % 3).put("key" + i, "value" + i);  // Any shard accepts any key
+        }
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 300; i += 3) {
+            batch.put("key" + i, "batched" + i);
+        }
+        batch.delete("key1");
+        routers.get(0).write(batch);
+
+        HashRing ring = new HashRing(nodes);
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            int owner = nodes.indexOf(ring.getOwner(key));
+            for (int s = 0; s < 3; s++) {
+                if (key.equals("key1")) {
+                    assertThrows(NoSuchElementException.class, () -> stores.get(owner).get(key));
+                } else if (s == owner) {
+                    assertEquals(i % 3 == 0 ? "batched" + i : "value" + i, stores.get(s).get(key));
+                } else {
+                    int other = s;
+                    assertThrows(NoSuchElementException.class, () -> stores.get(other).get(key));  // Stored once
+                }
+            }
+            if (!key.equals("key1")) {
+                assertEquals(i % 3 == 0 ? "batched" + i : "value" + i, routers.get(2).get(key));
+            }
+        }
+
+        routers.get(1).delete("key2");
+        assertThrows(NoSuchElementException.class, () -> routers.get(0).get("key2"));
+        assertThrows(NoSuchElementException.class, () -> routers.get(2).delete("key2"));
+
+        // A range spans every shard; the merged result is in key order
+        Iterator<Entry> range = routers.get(2).scanKeyRange("key100", "key199");
+        List<String> keys = new ArrayList<>();
+        range.forEachRemaining(entry -> keys.add(entry.getKey()));
+        assertEquals(109, keys.size());  // key100..key199, and key11..key19 sort between them
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+        }
+
+        // Clients of the binary protocol see one store, whichever shard they connect to
+        try (BinaryClient client = new BinaryClient("localhost", servers.get(1).getPort())) {
+            client.put("client-key", "client-value");
+            assertEquals("client-value", client.get("client-key"));
+            assertEquals(109, client.readKeyRange("key100", "key199").size());
+        }
+    }
+
+    @Test
+    void testRangeOfManyPagesPerShardIsMergedInOrder() throws IOException {
+        startShards(3);
+        for (int i = 0; i < 100; i++) {
+            byte[] value = new byte[64 * 1024];
+            value[0] = (byte) i;
+            routers.get(0).put(String.format("big%03d", i).getBytes(), value);  // Pages of about 16 entries
+        }
+
+        Iterator<Entry> range = routers.get(1).scanKeyRange("big", "bih");
+        for (int i = 0; i < 100; i++) {
+            Entry entry = range.next();
+            assertEquals(String.format("big%03d", i), entry.getKey());
+            assertEquals((byte) i, entry.getValueBytes()[0]);
+        }
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    void testAddingAShardStreamsItsKeysToIt() throws IOException {
+        List<Node> nodes = startShards(2);
+        for (int i = 0; i < 1000; i++) {
+            routers.get(0).put("key" + i, "value" + i);
+        }
+
+        // The new shard starts knowing the whole cluster; the existing ones hand its keys over
+        int port = freePort();
+        Node added = new Node("localhost:" + port);
+        List<Node> grown = new ArrayList<>(nodes);
+        grown.add(added);
+        startShard(added, grown);
+        routers.get(0).addNode(added);
+        try (BinaryClient admin = new BinaryClient("localhost", nodes.get(1).getPort())) {
+            admin.addNode(added.getAddress());
+        }
+
+        HashRing ring = new HashRing(grown);
+        int onNewShard = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            int owner = grown.indexOf(ring.getOwner(key));
+            for (int s = 0; s < 3; s++) {
+                if (s == owner) {
+                    assertEquals("value" + i, stores.get(s).get(key));
+                } else {
+                    int other = s;
+                    assertThrows(NoSuchElementException.class, () -> stores.get(other).get(key));
+                }
+            }
+            if (owner == 2) {
+                onNewShard++;
+            }
+            assertEquals("value" + i, routers.get(i % 3).get(key));
+        }
+        assertTrue(onNewShard > 150 && onNewShard < 550, onNewShard + " keys moved");
+    }
+
+    @Test
+    void testWritesForwardedByAShardNotYetToldAreNotLostWhileAShardIsAdded() throws Exception {
+        List<Node> nodes = startShards(2);
+        for (int i = 0; i < 5000; i++) {
+            routers.get(0).put("key" + i, "value" + i);  // Several chunks to move
+        }
+        int port = freePort();
+        Node added = new Node("localhost:" + port);
+        List<Node> grown = new ArrayList<>(nodes);
+        grown.add(added);
+        startShard(added, grown);
+
+        // Shard 1 forwards the writes for shard 0's keys while shard 0 moves keys to the new shard
+        Map<String, String> written = new HashMap<>();
+        Thread adding = new Thread(() -> {
+            try {
+                routers.get(0).addNode(added);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        adding.start();
+        for (int round = 0; adding.isAlive() || round < 3; round++) {
+            for (int i = 0; i < 5000; i += 7) {
+                String key = "key" + i;
+                String value = "round" + round + "-" + i;
+                routers.get(1).put(key, value);
+                written.put(key, value);
+            }
+        }
+        adding.join();
+        routers.get(1).addNode(added);
+
+        for (int i = 0; i < 5000; i++) {
+            String key = "key" + i;
+            String expected = written.getOrDefault(key, "value" + i);
+            for (ShardRouter router : routers) {
+                assertEquals(expected, router.get(key), key);
+            }
+        }
+    }
+
+    private List<Node> startShards(int count) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node("localhost:" + freePort()));
+        }
+        for (Node node : nodes) {
+            startShard(node, nodes);
+        }
+        return nodes;
+    }
+
+    private void startShard(Node node, List<Node> nodes) throws IOException {
+        KeyValueStore store = new KeyValueStore(new StoreConfig().setDataDirectory(new File(dataDir, "shard" + stores.size()))
+                .setMemTableMaxBytes(16 * 1024));  // Migrations read flushed tables as well as memTables
+        ShardRouter router = new ShardRouter(store, node, nodes, 1);
+        EventLoopServer server = new EventLoopServer(node.getPort(), new BinaryProtocol(router), 2, 4);
+        server.start();
+        stores.add(store);
+        routers.add(router);
+        servers.add(server);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.kvstore;
+
+import kvstore.TinyLfuCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TinyLfuCacheTest {
+    private static TinyLfuCache<String, String> cacheOfBytes(long maximumBytes) {
+        return new TinyLfuCache<>(maximumBytes, (key, value) -> key.length() + value.length());
+    }
+
+    @Test
+    void testPutGetAndInvalidate() {
+        TinyLfuCache<String, String> cache = cacheOfBytes(1000);
+        cache.put("key1", "value1");
+        assertEquals("value1", cache.get("key1"));
+        cache.put("key1", "value2");
+        assertEquals("value2", cache.get("key1"));
+        cache.putIfAbsent("key1", "stale");
+        assertEquals("value2", cache.get("key1"));
+
+        cache.invalidate("key1");
+        assertNull(cache.get("key1"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    void testVersionedPutsOnlyReplaceOlderVersions() {
+        TinyLfuCache<String, String> cache = cacheOfBytes(1000);
+        cache.putIfNewer("key", "v5", 0, 5);
+        cache.putIfNewer("key", "v3", 0, 3);  // A stale fill after a newer write
+        assertEquals("v5", cache.get("key"));
+        cache.putIfNewer("key", "v7", 0, 7);
+        assertEquals("v7", cache.get("key"));
+
+        cache.invalidateOlderThan("key", 7);
+        assertEquals("v7", cache.get("key"));
+        cache.invalidateOlderThan("key", 8);
+        assertNull(cache.get("key"));
+
+        // A version too heavy to keep still removes the older one
+        cache.putIfNewer("key", "v9", 0, 9);
+        cache.putIfNewer("key", "x".repeat(2000), 0, 10);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    void testWeightIsBounded() {
+        TinyLfuCache<String, String> cache = cacheOfBytes(1000);
+        for (int i = 0; i < 500; i++) {
+            cache.put(String.format("key%03d", i), "0123456789");  // 16 bytes each
+        }
+        assertTrue(cache.weightedSize() <= 1000, "Weighted size " + cache.weightedSize());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(cache.size() * 16L, cache.weightedSize());
+
+        cache.put("huge", "x".repeat(2000));  // Heavier than the whole cache
+        assertNull(cache.get("huge"));
+    }
+
+    @Test
+    void testFrequentlyUsedEntriesSurviveAScan() {
+        TinyLfuCache<String, String> cache = cacheOfBytes(100 * 16);
+        for (int i = 0; i < 50; i++) {
+            cache.put(String.format("hot%03d", i), "0123456789");
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get(String.format("hot%03d", i));
+            }
+        }
+
+        // A one-off scan over many more keys than the cache holds
+        for (int i = 0; i < 5000; i++) {
+            cache.put(String.format("cold%04d", i), "012345678");
+        }
+
+        int hotLeft = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(String.format("hot%03d", i)) != null) {
+                hotLeft++;
+            }
+        }
+        assertTrue(hotLeft >= 45, "Only " + hotLeft + " of 50 hot entries survived the scan");
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        TinyLfuCache<String, String> cache = cacheOfBytes(64 * 1024);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int threadId = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = "key" + ((i * 31 + threadId) % 5000);
+                        if (i % 4 == 0) {
+                            cache.put(key, "value-" + key);
+                        } else if (i % 97 == 0) {
+                            cache.invalidate(key);
+                        } else {
+                            String value = cache.get(key);
+                            if (value != null) {
+                                assertEquals("value-" + key, value);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get(), () -> "Concurrent access failed: " + failure.get());
+        assertTrue(cache.weightedSize() <= 64 * 1024);
+        assertEquals(8 * 15000, cache.getHitCount() + cache.getMissCount(), 8 * 200);
+    }
+
+    @Test
+    void testExpiredEntriesAreNeverReturnedAndRemovedByTheTimerWheel() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100_000,
+                (key, value) -> key.length() + value.length(), now::get);
+        long[] ttls = {5, 70, 5_000, 300_000, 20_000_000, 2_000_000_000L};  // One per wheel level, and beyond
+        for (int i = 0; i < ttls.length; i++) {
+            cache.put("key" + i, "value" + i, now.get() + ttls[i]);
+        }
+        cache.put("forever", "value");
+        cache.put("expired", "value", now.get());  // Not cached at all
+        assertNull(cache.get("expired"));
+        assertEquals(7, cache.size());
+
+        for (int i = 0; i < ttls.length; i++) {
+            now.set(1_000_000 + ttls[i] - 1);
+            assertEquals("value" + i, cache.get("key" + i), "Not expired yet");
+            now.set(1_000_000 + ttls[i]);
+            assertNull(cache.get("key" + i), "Expired entries are not returned even before they are removed");
+            cache.cleanUp();
+            assertEquals(ttls.length - i, cache.size(), "The wheel removes entry " + i + " once it is due");
+        }
+        assertEquals(ttls.length, cache.getExpirationCount());
+        assertEquals("value", cache.get("forever"));
+
+        cache.put("replaced", "old", now.get() + 10);
+        cache.put("replaced", "new");  // Cancels the old entry's timer
+        now.addAndGet(100);
+        cache.cleanUp();
+        assertEquals("new", cache.get("replaced"));
+        assertEquals(ttls.length, cache.getExpirationCount());
+    }
+}
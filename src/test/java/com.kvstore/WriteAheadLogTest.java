@@ -1,11 +1,20 @@
 package com.kvstore;
 
+import kvstore.FsyncPolicy;
+import kvstore.StoreConfig;
 import kvstore.WriteAheadLog;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -45,5 +54,89 @@ class WriteAheadLogTest {
                 "Recovered log should contain the previously logged operation");
     }
 
+    @Test
+    void testConcurrentWritersAreGroupCommitted(@TempDir File tempDir) throws Exception {
+        WriteAheadLog groupLog = new WriteAheadLog(new StoreConfig().setDataDirectory(tempDir));
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int writerId = t;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    try {
+                        groupLog.logOperation("PUT:w" + writerId + "-" + i + ":v");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        Set<String> recovered = new HashSet<>(groupLog.recoverLog());
+        assertEquals(1600, recovered.size(), "Every acknowledged write must be in the log exactly once");
+        assertTrue(recovered.contains("PUT:w7-199:v"));
+        groupLog.close();
+        assertThrows(IOException.class, () -> groupLog.logOperation("PUT:late:v"));
+    }
+
+    @Test
+    void testRelaxedFsyncPoliciesStillLogWrites(@TempDir File tempDir) throws IOException {
+        for (FsyncPolicy policy : new FsyncPolicy[]{FsyncPolicy.INTERVAL, FsyncPolicy.OS_MANAGED}) {
+            File directory = new File(tempDir, policy.name());
+            WriteAheadLog relaxedLog = new WriteAheadLog(new StoreConfig()
+                    .setDataDirectory(directory)
+                    .setWalFsyncPolicy(policy)
+                    .setWalSyncIntervalMs(5));
+            relaxedLog.logOperation("PUT:key:" + policy);
+            relaxedLog.close();
+
+            WriteAheadLog reopened = new WriteAheadLog(new StoreConfig().setDataDirectory(directory));
+            assertEquals(List.of("PUT:key:" + policy), reopened.recoverLog());
+            reopened.close();
+        }
+    }
+
+    @Test
+    void testTornAndCorruptRecordsAreSkipped(@TempDir File tempDir) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(new StoreConfig().setDataDirectory(tempDir));
+        log.logOperation("PUT:intact:v");
+        log.logOperation("PUT:corrupt:v");
+        log.close();
+
+        // Flip a payload byte of the second record, then append half of a record header
+        File segment = tempDir.listFiles((dir, name) -> name.startsWith("wal-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long secondPayload = 8 + "PUT:intact:v".length() + 8;
+            file.seek(secondPayload);
+            file.write('X');
+            file.seek(file.length());
+            file.write(new byte[]{0, 0});
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(new StoreConfig().setDataDirectory(tempDir));
+        assertEquals(List.of("PUT:intact:v"), reopened.recoverLog());
+        reopened.logOperation("PUT:after:v");  // Goes to a fresh segment, not after the torn tail
+        assertEquals(List.of("PUT:intact:v", "PUT:after:v"), reopened.recoverLog());
+        reopened.close();
+    }
+
+    @Test
+    void testRolledSegmentsCanBeDeleted(@TempDir File tempDir) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(new StoreConfig().setDataDirectory(tempDir));
+        log.append("old".getBytes(StandardCharsets.UTF_8));
+        long newSegment = log.rollSegment();
+        log.append("new".getBytes(StandardCharsets.UTF_8));
+        assertEquals(newSegment, log.getCurrentSegmentId());
+        assertEquals(2, log.readRecords().size());
+
+        log.deleteSegmentsBefore(newSegment);
+        assertEquals(List.of("new"), log.recoverLog());
+        assertEquals(1, tempDir.list((dir, name) -> name.startsWith("wal-")).length);
+        log.close();
+    }
+
     // Add more tests for edge cases, like empty log, etc.
 }